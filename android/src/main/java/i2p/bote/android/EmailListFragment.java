@@ -314,18 +314,18 @@ public class EmailListFragment extends AuthenticatedFragment implements
                 case R.id.action_mark_read:
                 case R.id.action_mark_unread:
                     List<Integer> selected = mAdapter.getSelectedItems();
-                    for (int i = (selected.size() - 1); i >= 0; i--) {
-                        Email email = mAdapter.getEmail(selected.get(i));
-                        try {
-                            // The Loader will update mAdapter
-                            mFolder.setNew(email, !areUnread);
-                        } catch (PasswordException e) {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                        } catch (GeneralSecurityException e) {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                        }
+                    List<String> messageIds = new ArrayList<String>();
+                    for (int i = (selected.size() - 1); i >= 0; i--)
+                        messageIds.add(mAdapter.getEmail(selected.get(i)).getMessageID());
+                    try {
+                        // The Loader will update mAdapter
+                        mFolder.setNew(messageIds, !areUnread);
+                    } catch (PasswordException e) {
+                        // TODO Auto-generated catch block
+                        e.printStackTrace();
+                    } catch (GeneralSecurityException e) {
+                        // TODO Auto-generated catch block
+                        e.printStackTrace();
                     }
                     areUnread = !areUnread;
                     mode.invalidate();
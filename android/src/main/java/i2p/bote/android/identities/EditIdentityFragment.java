@@ -356,7 +356,10 @@ public class EditIdentityFragment extends EditPictureFragment {
             ChangeIdentityStatus status = ChangeIdentityStatus.valueOf(values[0]);
             switch (status) {
                 case GENERATING_KEYS:
-                    currentStatus = getString(R.string.generating_keys);
+                    if (values.length > 2)
+                        currentStatus = getString(R.string.generating_vanity_keys, values[1], values[2]);
+                    else
+                        currentStatus = getString(R.string.generating_keys);
                     break;
                 case SAVING_IDENTITY:
                     currentStatus = getString(R.string.saving_identity);
@@ -47,11 +47,16 @@ public class Configuration implements IdentityConfig {
     private static final String CONFIG_FILE_NAME = "i2pbote.config";
     private static final String DEST_KEY_FILE_NAME = "local_dest.key";
     private static final String DHT_PEER_FILE_NAME = "dht_peers.txt";
+    private static final String DHT_ROUTING_TABLE_FILE_NAME = "dht_routing_table.dat";
     private static final String RELAY_PEER_FILE_NAME = "relay_peers.txt";
     private static final String IDENTITIES_FILE_NAME = "identities";
     private static final String ADDRESS_BOOK_FILE_NAME = "addressBook";
+    private static final String IDENTITIES_DIR = "identity_store";   // relative to I2P_BOTE_SUBDIR
+    private static final String ADDRESS_BOOK_DIR = "addressbook_store";   // relative to I2P_BOTE_SUBDIR
     private static final String MESSAGE_ID_CACHE_FILE = "msgidcache.txt";
     private static final String PASSWORD_FILE = "password";
+    private static final String PASSWORD_CHANGE_PROGRESS_FILE = "pwchange_progress.txt";
+    private static final String PENDING_DELIVERIES_FILE = "pendingDeliveries";
     private static final String SSL_KEYSTORE_FILE = "i2p.bote.ssl.keystore.jks";      // relative to I2P_BOTE_SUBDIR
     private static final String SSL_KEY_ALIAS = "botessl";
     private static final String OUTBOX_DIR = "outbox";              // relative to I2P_BOTE_SUBDIR
@@ -262,18 +267,47 @@ public class Configuration implements IdentityConfig {
         return new File(i2pBoteDir, DHT_PEER_FILE_NAME);
     }
 
+    /** Returns the file the DHT routing table is saved to when the DHT shuts down */
+    public File getDhtRoutingTableFile() {
+        return new File(i2pBoteDir, DHT_ROUTING_TABLE_FILE_NAME);
+    }
+
     public File getRelayPeerFile() {
         return new File(i2pBoteDir, RELAY_PEER_FILE_NAME);
     }
 
+    /**
+     * Returns the file that identities were stored in before they were moved
+     * to {@link #getIdentitiesDir()}.
+     */
     public File getIdentitiesFile() {
         return new File(i2pBoteDir, IDENTITIES_FILE_NAME);
     }
 
+    /**
+     * Returns the file that contacts were stored in before they were moved
+     * to {@link #getAddressBookDir()}.
+     */
     public File getAddressBookFile() {
         return new File(i2pBoteDir, ADDRESS_BOOK_FILE_NAME);
     }
 
+    /**
+     * Returns the directory that contains the email identities, one file per identity.
+     * @see i2p.bote.folder.RecordStore
+     */
+    public File getIdentitiesDir() {
+        return new File(i2pBoteDir, IDENTITIES_DIR);
+    }
+
+    /**
+     * Returns the directory that contains the address book, one file per contact.
+     * @see i2p.bote.folder.RecordStore
+     */
+    public File getAddressBookDir() {
+        return new File(i2pBoteDir, ADDRESS_BOOK_DIR);
+    }
+
     public File getMessageIdCacheFile() {
         return new File(i2pBoteDir, MESSAGE_ID_CACHE_FILE);
     }
@@ -288,6 +322,23 @@ public class Configuration implements IdentityConfig {
         return new File(i2pBoteDir, PASSWORD_FILE);
     }
 
+    /**
+     * Returns the file that records which files have been re-encrypted
+     * during a password change.
+     * @see i2p.bote.fileencryption.ReEncryptor
+     */
+    public File getPasswordChangeProgressFile() {
+        return new File(i2pBoteDir, PASSWORD_CHANGE_PROGRESS_FILE);
+    }
+
+    /**
+     * Returns the file that lists sent email packets whose delivery hasn't been confirmed yet.
+     * @see i2p.bote.folder.PendingDeliveryList
+     */
+    public File getPendingDeliveriesFile() {
+        return new File(i2pBoteDir, PENDING_DELIVERIES_FILE);
+    }
+
     /**
      * Returns the file that caches the parameters needed for generating a
      * file encryption key from a password.
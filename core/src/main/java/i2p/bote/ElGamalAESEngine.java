@@ -10,6 +10,7 @@ package i2p.bote;
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -477,6 +478,99 @@ final class ElGamalAESEngine {
         return encrypt(data, target, key, null, null, null, paddedSize);
     }
 
+    /**
+     * Returns the number of bytes {@link #encryptInPlace(byte[], int, int, PublicKey, SessionKey, Set, SessionTag)}
+     * writes in front of the data.
+     * @param existingSession <code>true</code> if a session tag is used, <code>false</code> for a new session
+     * @param numTags the number of session tags delivered
+     */
+    static int getPrefixLength(boolean existingSession, int numTags) {
+        int aesHeaderLength = 2 + SessionTag.BYTE_LENGTH*numTags + 4 + Hash.HASH_LENGTH + 1;
+        return (existingSession ? SessionTag.BYTE_LENGTH : ELG_ENCRYPTED_LENGTH) + aesHeaderLength;
+    }
+
+    /**
+     * Returns the number of bytes {@link #encryptInPlace(byte[], int, int, PublicKey, SessionKey, Set, SessionTag)}
+     * turns <code>dataLength</code> bytes of data into.
+     */
+    static int getEncryptedLength(int dataLength, boolean existingSession, int numTags) {
+        int headerLength = existingSession ? SessionTag.BYTE_LENGTH : ELG_ENCRYPTED_LENGTH;
+        int size = getPrefixLength(existingSession, numTags) - headerLength + dataLength;
+        return headerLength + size + AESEngine.getPaddingSize(size, 0);
+    }
+
+    /**
+     * Encrypts part of a buffer without copying the data. The result is the same as that of
+     * <code>encrypt(data, target, key, tagsForDelivery, currentTag, 0)</code>: the ElGamal
+     * block or session tag, and the AES header are written into the bytes in front of the
+     * data, and up to 15 bytes of AES padding are written after it.
+     *
+     * @param buffer contains the data, and room for the prefix and the padding
+     * @param dataOffset the index of the first byte of data; must be at least
+     *                   <code>getPrefixLength(currentTag!=null, tagsForDelivery.size())</code>
+     * @param dataLength the number of bytes to encrypt
+     * @param tagsForDelivery session tags to be associated with the key; can be empty
+     * @param currentTag the tag to use, or <code>null</code> to encrypt as a new session
+     * @return the length of the encrypted data, which starts <code>getPrefixLength()</code> bytes before <code>dataOffset</code>
+     */
+    int encryptInPlace(byte[] buffer, int dataOffset, int dataLength, PublicKey target, SessionKey key,
+                       Set<SessionTag> tagsForDelivery, SessionTag currentTag) {
+        boolean existingSession = currentTag != null;
+        int start = dataOffset - getPrefixLength(existingSession, tagsForDelivery.size());
+        int encryptedLength = getEncryptedLength(dataLength, existingSession, tagsForDelivery.size());
+        if (start < 0 || start+encryptedLength > buffer.length)
+            throw new IllegalArgumentException("Not enough room in the buffer: offset=" + dataOffset + ", length=" + dataLength + ", buffer size=" + buffer.length);
+
+        byte[] iv;
+        int aesStart;
+        if (existingSession) {
+            // session tag, same as in encryptExistingSession()
+            _context.statManager().updateFrequency("crypto.elGamalAES.encryptExistingSession");
+            byte rawTag[] = currentTag.getData();
+            System.arraycopy(rawTag, 0, buffer, start, SessionTag.BYTE_LENGTH);
+            iv = halfHash(rawTag);
+            aesStart = start + SessionTag.BYTE_LENGTH;
+        } else {
+            // ElGamal block, same as in encryptNewSession()
+            _context.statManager().updateFrequency("crypto.elGamalAES.encryptNewSession");
+            byte elgSrcData[] = new byte[ELG_CLEARTEXT_LENGTH];
+            System.arraycopy(key.getData(), 0, elgSrcData, 0, SessionKey.KEYSIZE_BYTES);
+            _context.random().nextBytes(elgSrcData, SessionKey.KEYSIZE_BYTES, ELG_CLEARTEXT_LENGTH - SessionKey.KEYSIZE_BYTES);
+            byte preIV[] = SimpleByteCache.acquire(32);
+            System.arraycopy(elgSrcData, SessionKey.KEYSIZE_BYTES, preIV, 0, 32);
+            byte elgEncr[] = _context.elGamalEngine().encrypt(elgSrcData, target);
+            // right-align the ElGamal block in case it is shorter than 514 bytes
+            Arrays.fill(buffer, start, start + ELG_ENCRYPTED_LENGTH - elgEncr.length, (byte)0);
+            System.arraycopy(elgEncr, 0, buffer, start + ELG_ENCRYPTED_LENGTH - elgEncr.length, elgEncr.length);
+            iv = halfHash(preIV);
+            SimpleByteCache.release(preIV);
+            aesStart = start + ELG_ENCRYPTED_LENGTH;
+        }
+
+        // AES block, same as in encryptAESBlock() with no new key
+        int cur = aesStart;
+        DataHelper.toLong(buffer, cur, 2, tagsForDelivery.size());
+        cur += 2;
+        for (SessionTag tag : tagsForDelivery) {
+            System.arraycopy(tag.getData(), 0, buffer, cur, SessionTag.BYTE_LENGTH);
+            cur += SessionTag.BYTE_LENGTH;
+        }
+        DataHelper.toLong(buffer, cur, 4, dataLength);
+        cur += 4;
+        _context.sha().calculateHash(buffer, dataOffset, dataLength, buffer, cur);
+        cur += Hash.HASH_LENGTH;
+        buffer[cur++] = 0x00; // don't rekey
+        cur += dataLength;
+        int size = cur - aesStart;
+        byte padding[] = AESEngine.getPadding(_context, size, 0);
+        System.arraycopy(padding, 0, buffer, cur, padding.length);
+        cur += padding.length;
+
+        _context.aes().encrypt(buffer, aesStart, buffer, aesStart, key, iv, cur - aesStart);
+        SimpleByteCache.release(iv);
+        return cur - start;
+    }
+
     /**
      * scenario 1:
      * Begin with 222 bytes, ElG encrypted, containing:
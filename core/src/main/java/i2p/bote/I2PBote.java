@@ -70,6 +70,11 @@ import java.util.concurrent.TimeUnit;
 import javax.mail.MessagingException;
 
 import i2p.bote.addressbook.AddressBook;
+import i2p.bote.crypto.CryptoFactory;
+import i2p.bote.crypto.CryptoImplementation;
+import i2p.bote.crypto.ECDH_ECDSA;
+import i2p.bote.crypto.EphemeralKeyPool;
+import i2p.bote.crypto.RelaySessionKeyManager;
 import i2p.bote.crypto.wordlist.WordListAnchor;
 import i2p.bote.debug.DebugSupport;
 import i2p.bote.email.Email;
@@ -83,7 +88,9 @@ import i2p.bote.fileencryption.PasswordCacheListener;
 import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.fileencryption.PasswordIncorrectException;
 import i2p.bote.fileencryption.PasswordMismatchException;
+import i2p.bote.fileencryption.ReKeyThread;
 import i2p.bote.fileencryption.PasswordVerifier;
+import i2p.bote.fileencryption.ReEncryptor;
 import i2p.bote.folder.DirectoryEntryFolder;
 import i2p.bote.folder.EmailFolder;
 import i2p.bote.folder.EmailFolderManager;
@@ -93,11 +100,14 @@ import i2p.bote.folder.IndexPacketFolder;
 import i2p.bote.folder.MessageIdCache;
 import i2p.bote.folder.NewEmailListener;
 import i2p.bote.folder.Outbox;
+import i2p.bote.folder.PendingDeliveryList;
+import i2p.bote.folder.RecordStore;
 import i2p.bote.folder.RelayPacketFolder;
 import i2p.bote.folder.TrashFolder;
 import i2p.bote.migration.Migrator;
 import i2p.bote.network.BanList;
 import i2p.bote.network.BannedPeer;
+import i2p.bote.network.DatagramSessionManager;
 import i2p.bote.network.DhtException;
 import i2p.bote.network.DhtPeerSource;
 import i2p.bote.network.DhtPeerStats;
@@ -123,6 +133,7 @@ import i2p.bote.service.OutboxListener;
 import i2p.bote.service.OutboxProcessor;
 import i2p.bote.service.RelayPacketSender;
 import i2p.bote.service.RelayPeerManager;
+import i2p.bote.service.ReturnChainTracker;
 import i2p.bote.status.ChangePasswordStatus;
 import i2p.bote.status.StatusListener;
 
@@ -130,7 +141,7 @@ import i2p.bote.status.StatusListener;
  * This is the core class of the application. It is implemented as a singleton.
  */
 public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSender, PasswordVerifier {
-    public static final int PROTOCOL_VERSION = 4;
+    public static final int PROTOCOL_VERSION = 7;   // version 5 remembers session tags in relay packets, version 6 accepts raw datagrams authenticated by a session MAC, version 7 sends real HashCash stamps in relay requests
     private static final String APP_VERSION = "0.4.8";
     private static final int STARTUP_DELAY = 3;   // the number of minutes to wait before connecting to I2P (this gives the router time to get ready)
     private static volatile I2PBote instance;
@@ -145,6 +156,7 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
     private Outbox outbox;   // stores outgoing emails for all local users
     private EmailFolder inbox;   // stores incoming emails for all local users
     private EmailFolder sentFolder;
+    private PendingDeliveryList pendingDeliveries;   // sent email packets that haven't been confirmed as delivered
     private TrashFolder trashFolder;
     private RelayPacketFolder relayPacketFolder;   // stores email packets we're forwarding for other machines
     private IncompleteEmailFolder incompleteEmailFolder;   // stores email packets addressed to a local user
@@ -159,6 +171,8 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
     private DeliveryChecker deliveryChecker;
     private KademliaDHT dht;
     private RelayPeerManager peerManager;
+    private ReturnChainTracker returnChainTracker;   // matches end-to-end relay confirmations to outgoing relay packets
+    private RelaySessionKeyManager relaySessionKeyManager;   // session keys and tags for the outer layer of relay packets
     private PasswordCache passwordCache;
     private Future<Void> passwordChangeResult;
     private ConnectTask connectTask;
@@ -200,8 +214,8 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
                 addressBook.clearPasswordProtectedData();
             }
         });
-        identities = new Identities(configuration.getIdentitiesFile(), passwordCache);
-        addressBook = new AddressBook(configuration.getAddressBookFile(), passwordCache);
+        identities = new Identities(configuration.getIdentitiesDir(), passwordCache);
+        addressBook = new AddressBook(configuration.getAddressBookDir(), passwordCache);
         initializeFolderAccess(passwordCache);
         initializeExternalThemeDir();
 
@@ -235,10 +249,15 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
         inbox = new EmailFolder(configuration.getInboxDir(), passwordCache);
         outbox = new Outbox(configuration.getOutboxDir(), passwordCache);
         sentFolder = new EmailFolder(configuration.getSentFolderDir(), passwordCache);
+        pendingDeliveries = new PendingDeliveryList(configuration.getPendingDeliveriesFile(), passwordCache);
         trashFolder = new TrashFolder(configuration.getTrashFolderDir(), passwordCache);
         relayPacketFolder = new RelayPacketFolder(configuration.getRelayPacketDir());
         MessageIdCache messageIdCache = new MessageIdCache(configuration.getMessageIdCacheFile(), configuration.getMessageIdCacheSize());
         incompleteEmailFolder = new IncompleteEmailFolder(configuration.getIncompleteDir(), messageIdCache, inbox);
+        // complete emails left over from the last run are stored when the inbox can be written
+        passwordCache.addPasswordCacheListener(incompleteEmailFolder);
+        if (!isPasswordRequired())
+            incompleteEmailFolder.assembleUnstoredEmails();
         emailDhtStorageFolder = new EmailPacketFolder(configuration.getEmailDhtStorageDir());
         indexPacketDhtStorageFolder = new IndexPacketFolder(configuration.getIndexPacketDhtStorageDir());
         directoryDhtFolder = new DirectoryEntryFolder(configuration.getDirectoryEntryDhtStorageDir());
@@ -327,14 +346,25 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
      * Initializes daemon threads, doesn't start them yet.
      */
     private void initializeServices() {
-        I2PPacketDispatcher dispatcher = new I2PPacketDispatcher();
+        DatagramSessionManager datagramSessionManager = new DatagramSessionManager(I2PAppContext.getGlobalContext());
+        I2PPacketDispatcher dispatcher = new I2PPacketDispatcher(datagramSessionManager);
         i2pSession.addMuxedSessionListener(dispatcher, I2PSession.PROTO_DATAGRAM, I2PSession.PORT_ANY);
+        i2pSession.addMuxedSessionListener(dispatcher, I2PSession.PROTO_DATAGRAM_RAW, I2PSession.PORT_ANY);
         
         backgroundThreads.add(passwordCache);
-        I2PSendQueue sendQueue = new I2PSendQueue(i2pSession, dispatcher);
+        List<File> encryptedDirs = Arrays.asList(configuration.getInboxDir(), configuration.getOutboxDir(), configuration.getSentFolderDir(),
+                configuration.getTrashFolderDir(), configuration.getIdentitiesDir(), configuration.getAddressBookDir());
+        List<String> encryptedFileExtensions = Arrays.asList(EmailFolder.EMAIL_FILE_EXTENSION, EmailFolder.METADATA_FILE_EXTENSION,
+                RecordStore.RECORD_SUFFIX, RecordStore.FIELD_SUFFIX);
+        backgroundThreads.add(new ReKeyThread(passwordCache, encryptedDirs, encryptedFileExtensions));
+        for (CryptoImplementation cryptoImpl: CryptoFactory.getInstances())
+            if (cryptoImpl instanceof ECDH_ECDSA) {
+                EphemeralKeyPool ephemeralKeyPool = new EphemeralKeyPool((ECDH_ECDSA)cryptoImpl);
+                ((ECDH_ECDSA)cryptoImpl).setEphemeralKeyPool(ephemeralKeyPool);
+                backgroundThreads.add(ephemeralKeyPool);
+            }
+        I2PSendQueue sendQueue = new I2PSendQueue(i2pSession, dispatcher, datagramSessionManager);
         backgroundThreads.add(sendQueue);
-        RelayPacketSender relayPacketSender = new RelayPacketSender(sendQueue, relayPacketFolder, configuration);   // reads packets stored in the relayPacketFolder and sends them
-        backgroundThreads.add(relayPacketSender);
 
         I2PAppThread seedless = null;
         try {
@@ -352,7 +382,7 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
         } catch (InvocationTargetException e) {
         }
 
-        dht = new KademliaDHT(sendQueue, dispatcher, configuration.getDhtPeerFile(), (DhtPeerSource) seedless);
+        dht = new KademliaDHT(sendQueue, dispatcher, configuration.getDhtPeerFile(), configuration.getDhtRoutingTableFile(), (DhtPeerSource) seedless);
         backgroundThreads.add(dht);
         
         dht.setStorageHandler(EncryptedEmailPacket.class, emailDhtStorageFolder);
@@ -360,21 +390,27 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
         dht.setStorageHandler(Contact.class, directoryDhtFolder);
         
         peerManager = new RelayPeerManager(sendQueue, getLocalDestination(), configuration.getRelayPeerFile());
+        returnChainTracker = new ReturnChainTracker(getLocalDestination(), peerManager);
+        relaySessionKeyManager = new RelaySessionKeyManager(I2PAppContext.getGlobalContext());
         backgroundThreads.add(peerManager);
+        RelayPacketSender relayPacketSender = new RelayPacketSender(sendQueue, relayPacketFolder, peerManager, relaySessionKeyManager, configuration);   // reads packets stored in the relayPacketFolder and sends them
+        backgroundThreads.add(relayPacketSender);
         
         dispatcher.addPacketListener(emailDhtStorageFolder);
         dispatcher.addPacketListener(indexPacketDhtStorageFolder);
-        dispatcher.addPacketListener(new RelayPacketHandler(relayPacketFolder, dht, sendQueue, i2pSession));
+        RelayPacketHandler relayPacketHandler = new RelayPacketHandler(relayPacketFolder, dht, sendQueue, i2pSession, returnChainTracker, relaySessionKeyManager, configuration.getHashCashStrength());   // decrypts incoming relay packets and stores them
+        backgroundThreads.add(relayPacketHandler);
+        dispatcher.addPacketListener(relayPacketHandler);
         dispatcher.addPacketListener(peerManager);
         dispatcher.addPacketListener(relayPacketSender);
         
         ExpirationThread expirationThread = new ExpirationThread();
         expirationThread.addExpirationListener(emailDhtStorageFolder);
         expirationThread.addExpirationListener(indexPacketDhtStorageFolder);
-        expirationThread.addExpirationListener(relayPacketSender);
+        expirationThread.addExpirationListener(relayPacketFolder);
         backgroundThreads.add(expirationThread);
         
-        outboxProcessor = new OutboxProcessor(dht, outbox, peerManager, relayPacketFolder, identities, configuration, this);
+        outboxProcessor = new OutboxProcessor(dht, outbox, peerManager, relayPacketFolder, returnChainTracker, relaySessionKeyManager, identities, configuration, this);
         outboxProcessor.addOutboxListener(new OutboxListener() {
             /** Moves sent emails to the "sent" folder */
             @Override
@@ -386,6 +422,13 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
                 }
                 catch (Exception e) {
                     log.error("Cannot move email from outbox to sent folder: " + email, e);
+                    return;
+                }
+                try {
+                    pendingDeliveries.add(email.getMessageID(), email.getMetadata().getUndeliveredPacketKeys());
+                }
+                catch (Exception e) {
+                    log.error("Cannot add email to the list of pending deliveries: " + email, e);
                 }
             }
         });
@@ -394,7 +437,7 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
         emailChecker = new EmailChecker(identities, configuration, incompleteEmailFolder, emailDhtStorageFolder, indexPacketDhtStorageFolder, this, sendQueue, dht, peerManager);
         backgroundThreads.add(emailChecker);
         
-        deliveryChecker = new DeliveryChecker(dht, sentFolder, configuration, this);
+        deliveryChecker = new DeliveryChecker(dht, sentFolder, pendingDeliveries, configuration, this);
         backgroundThreads.add(deliveryChecker);
     }
 
@@ -741,18 +784,37 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
             passwordCache.setPassword(newPassword);
             DerivedKey newKey = passwordCache.getKey();
 
-            lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_IDENTITIES);
-            identities.changePassword(oldPassword, newKey);
-
-            lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_ADDRESS_BOOK);
-            addressBook.changePassword(oldPassword, newKey);
-            for (EmailFolder folder: getEmailFolders()) {
-                lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_FOLDER, folder.getName());
-                folder.changePassword(oldPassword, newKey);
+            // files are re-encrypted in parallel; if a previous password change was interrupted, it is resumed
+            ReEncryptor reEncryptor;
+            try {
+                reEncryptor = new ReEncryptor(oldPassword, newPassword, newKey, configuration.getPasswordChangeProgressFile());
+            } catch (PasswordException e) {
+                passwordCache.setPassword(oldPassword);
+                throw e;
             }
+            try {
+                lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_IDENTITIES);
+                identities.changePassword(reEncryptor);
+                reEncryptor.await();
+
+                lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_ADDRESS_BOOK);
+                addressBook.changePassword(reEncryptor);
+                pendingDeliveries.changePassword(reEncryptor);
+                reEncryptor.await();
 
-            lsnr.updateStatus(ChangePasswordStatus.UPDATING_PASSWORD_FILE);
-            FileEncryptionUtil.writePasswordFile(passwordFile, passwordCache.getPassword(), newKey);
+                for (EmailFolder folder: getEmailFolders()) {
+                    lsnr.updateStatus(ChangePasswordStatus.RE_ENCRYPTING_FOLDER, folder.getName());
+                    folder.changePassword(reEncryptor);
+                    reEncryptor.await();
+                }
+
+                lsnr.updateStatus(ChangePasswordStatus.UPDATING_PASSWORD_FILE);
+                FileEncryptionUtil.writePasswordFile(passwordFile, passwordCache.getPassword(), newKey);
+                reEncryptor.complete();
+            }
+            finally {
+                reEncryptor.shutdown();
+            }
         }
     }
     
@@ -768,6 +830,8 @@ public class I2PBote implements NetworkStatusSource, EmailFolderManager, MailSen
     public void tryPassword(byte[] password) throws IOException, GeneralSecurityException, PasswordException  {
         File passwordFile = configuration.getPasswordFile();
         boolean correct = FileEncryptionUtil.isPasswordCorrect(password, passwordFile);
+        if (correct && ReEncryptor.isInterrupted(configuration.getPasswordChangeProgressFile()))
+            log.warn("A password change was interrupted. Some files can't be decrypted until the password is changed again, using the same new password.");
         if (correct) {
             // Don't cache tried password if none is set. This check is needed
             // because IMAP doesn't support a blank password, so the user
@@ -21,6 +21,8 @@
 
 package i2p.bote;
 
+import i2p.bote.crypto.RelaySessionKeyManager;
+
 import net.i2p.I2PAppContext;
 import net.i2p.crypto.SHA256Generator;
 import net.i2p.crypto.SessionKeyManager;
@@ -31,6 +33,7 @@ import net.i2p.data.Hash;
 import net.i2p.data.PrivateKey;
 import net.i2p.data.PublicKey;
 import net.i2p.data.SessionKey;
+import net.i2p.data.SessionTag;
 import net.i2p.util.Log;
 import net.i2p.util.Translate;
 
@@ -61,6 +64,14 @@ import javax.mail.MessagingException;
 import javax.mail.Part;
 
 public class Util {
+    /**
+     * The number of bytes {@link #encryptInPlace(byte[], int, int, PublicKey)} needs
+     * in front of the data.
+     */
+    public static final int ENCRYPTION_PREFIX_LENGTH = ElGamalAESEngine.getPrefixLength(false, 0);
+    
+    private static ElGamalAESEngine elGamalAESEngine;   // shared by the encryptInPlace() and decrypt() methods; session keys are not shared
+    
     private Util() { }
     
     /** Reads all data from an <code>InputStream</code> */
@@ -344,6 +355,76 @@ public class Util {
         return elGamalAESEngine.encrypt(data, key, sessionKey, null, null, null, 0);
     }
     
+    /**
+     * Returns the length of <code>dataLength</code> bytes of data after encryption
+     * with {@link #encrypt(byte[], PublicKey)} or {@link #encryptInPlace(byte[], int, int, PublicKey)}.
+     * @param dataLength
+     */
+    public static int getEncryptedLength(int dataLength) {
+        return ElGamalAESEngine.getEncryptedLength(dataLength, false, 0);
+    }
+    
+    /**
+     * Returns the length of <code>dataLength</code> bytes of data after encryption with
+     * {@link #encryptInPlace(byte[], int, int, RelaySessionKeyManager.OutboundMessage)}.
+     * @param dataLength
+     * @param message
+     */
+    public static int getEncryptedLength(int dataLength, RelaySessionKeyManager.OutboundMessage message) {
+        return ElGamalAESEngine.getEncryptedLength(dataLength, message.getCurrentTag()!=null, message.getTagsForDelivery().size());
+    }
+    
+    /**
+     * Returns the number of bytes {@link #encryptInPlace(byte[], int, int, RelaySessionKeyManager.OutboundMessage)}
+     * needs in front of the data.
+     * @param existingSession <code>true</code> if a session tag is used, <code>false</code> for a new session
+     * @param numTags The number of session tags delivered
+     */
+    public static int getEncryptionPrefixLength(boolean existingSession, int numTags) {
+        return ElGamalAESEngine.getPrefixLength(existingSession, numTags);
+    }
+    
+    /**
+     * Encrypts part of a buffer with an I2P public key, without copying the data.<br/>
+     * There must be {@link #ENCRYPTION_PREFIX_LENGTH} bytes of room in front of the data,
+     * and up to 15 bytes behind it. The encrypted data can be decrypted with
+     * {@link #decrypt(byte[], PrivateKey)}.
+     * @param buffer
+     * @param dataOffset
+     * @param dataLength
+     * @param key
+     * @return The length of the encrypted data, which starts at <code>dataOffset-ENCRYPTION_PREFIX_LENGTH</code>
+     */
+    public static int encryptInPlace(byte[] buffer, int dataOffset, int dataLength, PublicKey key) {
+        I2PAppContext appContext = I2PAppContext.getGlobalContext();
+        SessionKey sessionKey = appContext.keyGenerator().generateSessionKey();
+        return getElGamalAESEngine(appContext).encryptInPlace(buffer, dataOffset, dataLength, key, sessionKey, Collections.<SessionTag>emptySet(), null);
+    }
+    
+    /**
+     * Like {@link #encryptInPlace(byte[], int, int, PublicKey)}, but with a session key and
+     * session tags from a {@link RelaySessionKeyManager}. The number of bytes needed in front
+     * of the data is given by {@link #getEncryptionPrefixLength(boolean, int)}.<br/>
+     * If <code>message</code> uses a session tag, the encrypted data can only be decrypted
+     * with {@link #decrypt(byte[], PrivateKey, SessionKeyManager)} and the receiver's
+     * <code>RelaySessionKeyManager</code>.
+     * @param buffer
+     * @param dataOffset
+     * @param dataLength
+     * @param message
+     * @return The length of the encrypted data
+     */
+    public static int encryptInPlace(byte[] buffer, int dataOffset, int dataLength, RelaySessionKeyManager.OutboundMessage message) {
+        ElGamalAESEngine engine = getElGamalAESEngine(I2PAppContext.getGlobalContext());
+        return engine.encryptInPlace(buffer, dataOffset, dataLength, message.getTarget(), message.getKey(), message.getTagsForDelivery(), message.getCurrentTag());
+    }
+    
+    private static synchronized ElGamalAESEngine getElGamalAESEngine(I2PAppContext appContext) {
+        if (elGamalAESEngine == null)
+            elGamalAESEngine = new ElGamalAESEngine(appContext);
+        return elGamalAESEngine;
+    }
+    
     /**
      * Decrypts data with an I2P private key 
      * @throws DataFormatException
@@ -356,6 +437,42 @@ public class Util {
         return elGamalAESEngine.decrypt(data, key, sessionKeyMgr);
     }
     
+    /**
+     * Decrypts data with an I2P private key, using and remembering the session tags
+     * in a <code>SessionKeyManager</code>.
+     * @param data
+     * @param key
+     * @param sessionKeyManager
+     * @throws DataFormatException
+     */
+    public static byte[] decrypt(byte data[], PrivateKey key, SessionKeyManager sessionKeyManager) throws DataFormatException {
+        return getElGamalAESEngine(I2PAppContext.getGlobalContext()).decrypt(data, key, sessionKeyManager);
+    }
+    
+    /**
+     * Decrypts data that was encrypted with a session tag, given the session key that belongs
+     * to the tag. This lets the sender of a packet recover the data it encrypted with
+     * {@link #encryptInPlace(byte[], int, int, RelaySessionKeyManager.OutboundMessage)}.
+     * @param data
+     * @param tag The tag the data starts with
+     * @param key The session key for <code>tag</code>
+     * @return The decrypted data, or <code>null</code> if the data doesn't start with <code>tag</code>
+     * @throws DataFormatException
+     */
+    public static byte[] decryptSentData(byte data[], final SessionTag tag, final SessionKey key) throws DataFormatException {
+        I2PAppContext appContext = I2PAppContext.getGlobalContext();
+        SessionKeyManager sessionKeyMgr = new net.i2p.crypto.SessionKeyManager(appContext) {
+            @Override
+            public SessionKey consumeTag(SessionTag sessionTag) {
+                return tag.equals(sessionTag) ? key : null;
+            }
+        };
+        if (data.length<SessionTag.BYTE_LENGTH || !tag.equals(new SessionTag(Arrays.copyOf(data, SessionTag.BYTE_LENGTH))))
+            return null;
+        // the private key is not needed because the tag is known
+        return getElGamalAESEngine(appContext).decrypt(data, null, sessionKeyMgr);
+    }
+
     /** Overwrites a <code>byte</code> array with zeros */
     public static void zeroOut(byte[] array) {
         for (int i=0; i<array.length; i++)
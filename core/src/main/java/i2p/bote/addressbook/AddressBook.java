@@ -21,128 +21,135 @@
 
 package i2p.bote.addressbook;
 
+import i2p.bote.Util;
 import i2p.bote.email.EmailDestination;
-import i2p.bote.fileencryption.DerivedKey;
-import i2p.bote.fileencryption.EncryptedInputStream;
-import i2p.bote.fileencryption.EncryptedOutputStream;
-import i2p.bote.fileencryption.FileEncryptionUtil;
 import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.fileencryption.PasswordHolder;
+import i2p.bote.fileencryption.ReEncryptor;
+import i2p.bote.folder.RecordStore;
 import i2p.bote.packet.dht.Contact;
+import i2p.bote.util.DestinationIndex;
 import i2p.bote.util.ExportableData;
 import i2p.bote.util.SortedProperties;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.security.GeneralSecurityException;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import net.i2p.data.Hash;
 import net.i2p.util.Log;
-import net.i2p.util.SecureFileOutputStream;
 
 /**
  * Implements the private address book. Holds a set of {@link Contact}s
  * which are sorted by name.<br/>
- * Contacts can be written to, and read from, a password-encrypted file.
+ * Contacts are stored in a password-encrypted {@link RecordStore}, one record
+ * per contact, so saving only rewrites the contacts that have changed. Pictures
+ * are stored separately and are only read when they are needed.
+ * <p/>
+ * Lookups by Email Destination, destination hash, or name use a
+ * {@link DestinationIndex}. After renaming a contact, {@link #add(Contact)}
+ * must be called again to update the index.
  */
 public class AddressBook extends ExportableData {
+    private static final String PICTURE_FIELD = "picture";
+    private static final String PREF_NAME = "name";
+    private static final String PREF_DESTINATION = "destination";
+    private static final String PREF_PICTURE = "picture";
+    private static final String PREF_TEXT = "text";
+    
     private Log log = new Log(AddressBook.class);
-    private File addressFile;
+    private File addressBookDir;
     private PasswordHolder passwordHolder;
     private SortedSet<Contact> contacts;
+    private DestinationIndex<Contact> destinationIndex;   // contains the same contacts as the sorted set
+    private RecordStore recordStore;
 
     /**
-     * Constructs a new empty <code>AddressBook</code>.
-     * @param addressFile
+     * Constructs a new empty <code>AddressBook</code>. The contacts in
+     * <code>addressBookDir</code> are lazy-loaded.
+     * @param addressBookDir
      * @param passwordHolder
      */
-    public AddressBook(File addressFile, PasswordHolder passwordHolder) {
-        this.addressFile = addressFile;
+    public AddressBook(File addressBookDir, PasswordHolder passwordHolder) {
+        this.addressBookDir = addressBookDir;
         this.passwordHolder = passwordHolder;
+        destinationIndex = new ContactIndex();
+        recordStore = new RecordStore(addressBookDir, passwordHolder);
     }
  
+    /** Returns the ID of the record that stores the contact for a given Email Destination. */
+    static String getRecordId(EmailDestination destination) {
+        return Util.toBase32(destination.getHash());
+    }
+    
     protected void initializeIfNeeded() throws PasswordException {
         if (contacts == null)
             readContacts();
     }
     
     /**
-     * Reads an <code>AddressBook</code> from the encrypted address book file.
-     * Each contact is defined by one line that contains an Email Destination
-     * and a name, separated by a tab character.
+     * Reads the contacts from the record store. Each record contains the name,
+     * Email Destination, and text of one contact. Pictures are not read until
+     * they are needed.
      * @throws PasswordException 
      */
     private void readContacts() throws PasswordException {
-        if (!addressFile.exists()) {
-            log.debug("Address file does not exist: <" + addressFile.getAbsolutePath() + ">");
-            contacts = new TreeSet<Contact>(new ContactComparator());
-            return;
-        }
-        
-        log.debug("Reading address book from <" + addressFile.getAbsolutePath() + ">");
-        BufferedReader input = null;
+        log.debug("Reading address book from <" + addressBookDir.getAbsolutePath() + ">");
+        SortedSet<Contact> contacts = new TreeSet<Contact>(new ContactComparator());
         try {
-            InputStream encryptedStream = new EncryptedInputStream(new FileInputStream(addressFile), passwordHolder);
-            input = new BufferedReader(new InputStreamReader(encryptedStream));
-            
-            // No PasswordException occurred, so parse the input stream
-            Properties properties = new Properties();
-            properties.load(new InputStreamReader(encryptedStream));
-            
-            loadFromProperties(properties, false, false);
+            Map<String, Properties> records = recordStore.readAll();
+            for (Entry<String, Properties> entry: records.entrySet()) {
+                Contact contact = readContact(entry.getValue(), "");
+                if (contact != null) {
+                    contact.setPictureSource(recordStore.getPictureSource(entry.getKey(), PICTURE_FIELD));
+                    contacts.add(contact);
+                }
+            }
         } catch (PasswordException e) {
             throw e;
         } catch (Exception e) {
             log.error("Can't read address book.", e);
         }
-        finally {
-            if (input != null)
-                try {
-                    input.close();
-                }
-                catch (IOException e) {
-                    log.error("Error closing input stream.", e);
-                }
-        }
+        
+        this.contacts = contacts;
+        destinationIndex.clear();
+        for (Contact contact: contacts)
+            destinationIndex.add(contact);
     }
 
     protected boolean loadFromProperties(Properties properties, boolean append, boolean replace) {
         if (contacts == null || !append) {
             contacts = new TreeSet<Contact>(new ContactComparator());
+            destinationIndex.clear();
         }
         int index = 0;
         while (true) {
             String prefix = "contact" + index + ".";
-            String name = properties.getProperty(prefix + "name");
-            if (name == null)
+            if (properties.getProperty(prefix + PREF_NAME) == null)
                 break;
 
-            String destBase64 = properties.getProperty(prefix + "destination");
-            if (destBase64 == null)
-                continue;
-            try {
-                EmailDestination destination = new EmailDestination(destBase64);
-                String pictureBase64 = properties.getProperty(prefix + "picture");
-                String text = properties.getProperty(prefix + "text");
-                Contact contact = new Contact(name, destination, pictureBase64, text);
+            Contact contact = readContact(properties, prefix);
+            if (contact != null) {
+                contact.setPictureBase64(properties.getProperty(prefix + PREF_PICTURE));
 
-                if (append && replace && contacts.contains(contact)) {
-                    contacts.remove(contact);
+                // a contact that is already present is kept unless it is to be replaced
+                Contact existing = destinationIndex.get(contact.getBase64Dest());
+                if (existing == null || replace) {
+                    if (existing != null)
+                        removeFromSortedSet(existing);
+                    contacts.add(contact);
+                    destinationIndex.add(contact);
                 }
-                contacts.add(contact);
-            }
-            catch (GeneralSecurityException e) {
-                log.error("Not a valid Email Destination: <" + destBase64 + ">", e);
             }
 
             index++;
@@ -150,18 +157,62 @@ public class AddressBook extends ExportableData {
         return index > 0;
     }
     
-    public void save() throws IOException, PasswordException, GeneralSecurityException {
-        initializeIfNeeded();
-        
-        OutputStream encryptedStream = new EncryptedOutputStream(new SecureFileOutputStream(addressFile), passwordHolder);
+    /**
+     * Creates a <code>Contact</code> from properties whose names start with a
+     * given prefix. The picture is not read. Returns <code>null</code> if the
+     * properties don't contain a valid Email Destination.
+     */
+    private Contact readContact(Properties properties, String prefix) {
+        String destBase64 = properties.getProperty(prefix + PREF_DESTINATION);
+        if (destBase64 == null)
+            return null;
         try {
-            Properties properties = saveToProperties();
-            properties.store(new OutputStreamWriter(encryptedStream, "UTF-8"), null);
-        } catch (IOException e) {
-            log.error("Can't save email identities to file <" + addressFile.getAbsolutePath() + ">.", e);
-            throw e;
-        } finally {
-            encryptedStream.close();
+            EmailDestination destination = new EmailDestination(destBase64);
+            String name = properties.getProperty(prefix + PREF_NAME);
+            String text = properties.getProperty(prefix + PREF_TEXT);
+            return new Contact(name, destination, null, text);
+        }
+        catch (GeneralSecurityException e) {
+            log.error("Not a valid Email Destination: <" + destBase64 + ">", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Saves all contacts that have changed since they were last read or saved,
+     * and deletes the records of removed contacts. All changes are committed
+     * together (see {@link RecordStore}).
+     */
+    public void save() throws IOException, PasswordException, GeneralSecurityException {
+        synchronized(passwordHolder) {
+            initializeIfNeeded();
+            
+            RecordStore.Transaction transaction = recordStore.beginTransaction();
+            Set<String> recordIds = new HashSet<String>();
+            for (Contact contact: contacts) {
+                String recordId = getRecordId(contact.getDestination());
+                recordIds.add(recordId);
+                
+                Properties record = new Properties();
+                writeContact(contact, record, "");
+                transaction.putRecord(recordId, record);
+                
+                // a picture that hasn't been loaded can't have changed
+                if (contact.getPictureSource() == null) {
+                    byte[] picture = contact.getPicture();
+                    transaction.putLargeField(recordId, PICTURE_FIELD, picture==null||picture.length==0 ? null : picture);
+                }
+            }
+            for (String recordId: recordStore.getRecordIds())
+                if (!recordIds.contains(recordId))
+                    transaction.deleteRecord(recordId);
+            
+            try {
+                transaction.commit();
+            } catch (IOException e) {
+                log.error("Can't save address book to <" + addressBookDir.getAbsolutePath() + ">.", e);
+                throw e;
+            }
         }
     }
 
@@ -170,37 +221,62 @@ public class AddressBook extends ExportableData {
         int index = 0;
         for (Contact contact: contacts) {
             String prefix = "contact" + index + ".";
-            properties.setProperty(prefix + "name", contact.getName());
-            String base64Dest = contact.getDestination().toBase64();
-            properties.setProperty(prefix + "destination", base64Dest);
+            writeContact(contact, properties, prefix);
             String pictureBase64 = contact.getPictureBase64();
-            properties.setProperty(prefix + "picture", (pictureBase64==null ? "" : pictureBase64));
-            String text = contact.getText();
-            properties.setProperty(prefix + "text", (text==null ? "" : text));
+            properties.setProperty(prefix + PREF_PICTURE, (pictureBase64==null ? "" : pictureBase64));
             index++;
         }
         return properties;
     }
     
+    /**
+     * Writes a <code>Contact</code> to properties whose names start with a
+     * given prefix. The picture is not written.
+     */
+    private void writeContact(Contact contact, Properties properties, String prefix) {
+        properties.setProperty(prefix + PREF_NAME, contact.getName());
+        String base64Dest = contact.getDestination().toBase64();
+        properties.setProperty(prefix + PREF_DESTINATION, base64Dest);
+        String text = contact.getText();
+        properties.setProperty(prefix + PREF_TEXT, (text==null ? "" : text));
+    }
+    
+    /**
+     * Adds a contact. If there is a contact with the same Email Destination
+     * already, it is replaced.
+     * @param contact
+     * @throws PasswordException
+     */
     public void add(Contact contact) throws PasswordException {
         initializeIfNeeded();
+        Contact existing = destinationIndex.get(contact.getBase64Dest());
+        if (existing != null)
+            removeFromSortedSet(existing);
         contacts.add(contact);
+        destinationIndex.add(contact);
     }
     
     public void remove(String destination) throws PasswordException {
         initializeIfNeeded();
-        Contact contact = get(destination);
+        if (destination == null)
+            return;
+        Contact contact = destinationIndex.remove(destination);
         if (contact != null)
-            contacts.remove(contact);
+            removeFromSortedSet(contact);
     }
     
-    public void changePassword(byte[] oldPassword, DerivedKey newKey) throws FileNotFoundException, IOException, GeneralSecurityException, PasswordException {
-        if (addressFile.exists())
-            FileEncryptionUtil.changePassword(addressFile, oldPassword, newKey);
+    /**
+     * Schedules the contact records for re-encryption.
+     * @param reEncryptor
+     */
+    public void changePassword(ReEncryptor reEncryptor) {
+        recordStore.changePassword(reEncryptor);
     }
     
     public void clearPasswordProtectedData() {
         contacts = null;
+        destinationIndex.clear();
+        recordStore.clearPasswordProtectedData();
     }
     
     /**
@@ -214,10 +290,31 @@ public class AddressBook extends ExportableData {
        if (contacts==null || destination==null || destination.isEmpty())
             return null;
         
-        for (Contact contact: contacts)
-            if (destination.equals(contact.getBase64Dest()))
-                return contact;
-        return null;
+        return destinationIndex.get(destination);
+    }
+    
+    /**
+     * Looks up a {@link Contact} by the hash of its Email Destination (see
+     * {@link EmailDestination#getHash()}). If none is found, <code>null</code>
+     * is returned.
+     * @param destinationHash
+     */
+    public Contact getByHash(Hash destinationHash) throws PasswordException {
+        initializeIfNeeded();
+        
+        if (contacts == null)
+            return null;
+        
+        return destinationIndex.getByHash(destinationHash);
+    }
+    
+    /**
+     * Returns all contacts with a given name, ignoring case.
+     * @param name
+     */
+    public List<Contact> getByName(String name) throws PasswordException {
+        initializeIfNeeded();
+        return destinationIndex.getByName(name);
     }
     
     /**
@@ -228,13 +325,23 @@ public class AddressBook extends ExportableData {
     public boolean contains(String base64dest) throws PasswordException {
         initializeIfNeeded();
         
-        if (base64dest == null)
+        if (contacts == null)
             return false;
         
-        for (Contact contact: contacts)
-            if (base64dest.equals(contact.getBase64Dest()))
-                return true;
-        return false;
+        return destinationIndex.contains(base64dest);
+    }
+    
+    /**
+     * This method does not attempt to decrypt the address book and does not
+     * throw {@link PasswordException}. If the contacts haven't been read yet,
+     * it looks for records in the record store.
+     * @return <code>true</code> if there are no contacts, <code>false</code> otherwise
+     */
+    public boolean isNone() {
+        if (contacts != null)
+            return contacts.isEmpty();
+        else
+            return !recordStore.hasRecords();
     }
     
     public SortedSet<Contact> getAll() throws PasswordException {
@@ -247,6 +354,31 @@ public class AddressBook extends ExportableData {
        return contacts.size();
     }
     
+    /**
+     * Removes a contact from the sorted set. This works even if the name has
+     * changed since the contact was added, which <code>TreeSet.remove()</code> doesn't.
+     */
+    private void removeFromSortedSet(Contact contact) {
+        if (!contacts.remove(contact))
+            for (Iterator<Contact> iterator=contacts.iterator(); iterator.hasNext(); )
+                if (iterator.next() == contact) {
+                    iterator.remove();
+                    break;
+                }
+    }
+    
+    private static class ContactIndex extends DestinationIndex<Contact> {
+        @Override
+        protected EmailDestination getDestination(Contact contact) {
+            return contact.getDestination();
+        }
+        
+        @Override
+        protected String getName(Contact contact) {
+            return contact.getName();
+        }
+    }
+    
     /**
      * Compares two contacts by name and email destination.
      */
@@ -33,19 +33,35 @@ import net.i2p.I2PAppContext;
 /**
  * Implements {@link #toByteArray(PublicKeyPair)} and {@link #toByteArray(PrivateKeyPair)},
  * and provides methods for AES encryption and decryption.
+ * <p/>
+ * The AES methods are thread-safe.
  */
 public abstract class AbstractCryptoImplementation implements CryptoImplementation {
     protected I2PAppContext appContext;
-    private Cipher aesCipher;
+    private ThreadLocal<Cipher> aesCipher;   // one per thread because Cipher isn't thread-safe
 
     protected AbstractCryptoImplementation() throws GeneralSecurityException {
         appContext = I2PAppContext.getGlobalContext();
+        String transformation = "AES/CBC/PKCS7Padding";
         try {
-            aesCipher = Cipher.getInstance("AES/CBC/PKCS7Padding");
+            Cipher.getInstance(transformation);
         } catch (NoSuchPaddingException e) {
             // SUN provider incorrectly calls it PKCS5Padding
-            aesCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            transformation = "AES/CBC/PKCS5Padding";
+            Cipher.getInstance(transformation);   // throw an exception now if AES is not available
         }
+        
+        final String aesTransformation = transformation;
+        aesCipher = new ThreadLocal<Cipher>() {
+            @Override
+            protected Cipher initialValue() {
+                try {
+                    return Cipher.getInstance(aesTransformation);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Can't create AES cipher.", e);
+                }
+            }
+        };
     }
     
     /** This implementation returns the whole set of Base64 characters. */
@@ -79,6 +95,7 @@ public abstract class AbstractCryptoImplementation implements CryptoImplementati
     protected byte[] encryptAes(byte[] data, byte[] key, byte[] iv) throws GeneralSecurityException {
         SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
         IvParameterSpec ivps = new IvParameterSpec(iv, 0, 16);
+        Cipher aesCipher = this.aesCipher.get();
         aesCipher.init(Cipher.ENCRYPT_MODE, keySpec, ivps, appContext.random());
 
         byte[] encryptedData = new byte[aesCipher.getOutputSize(data.length)];
@@ -91,6 +108,7 @@ public abstract class AbstractCryptoImplementation implements CryptoImplementati
     protected byte[] decryptAes(byte[] data, byte[] key, byte[] iv) throws GeneralSecurityException {
         SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
         IvParameterSpec ivps = new IvParameterSpec(iv, 0, 16);
+        Cipher aesCipher = this.aesCipher.get();
         aesCipher.init(Cipher.DECRYPT_MODE, keySpec, ivps, appContext.random());
 
         byte[] decryptedData = new byte[aesCipher.getOutputSize(data.length)];
@@ -27,6 +27,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
@@ -43,6 +44,8 @@ import java.security.spec.ECPrivateKeySpec;
 import java.security.spec.ECPublicKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.KeyAgreement;
 import net.i2p.data.Base64;
@@ -64,18 +67,31 @@ import net.i2p.util.Log;
  * and private keys produced by this class always start with an upper case A when
  * base64-encoded. The leading A is omitted, which saves two bytes in email destinations
  * (see the {@link #toBase64(PublicKey)} and {@link #toBase64(PrivateKey)} methods).
+ * <p/>
+ * JCA objects that are not thread-safe (<code>KeyAgreement</code>, <code>Signature</code>,
+ * <code>KeyFactory</code>, <code>MessageDigest</code>) are kept per thread, so they are only looked up once per
+ * thread and no locking is needed. Public key pairs decoded by {@link #createPublicKeyPair(byte[])}
+ * are cached because the same destinations are decoded over and over. Ephemeral keys
+ * for encryption can be generated ahead of time by an {@link EphemeralKeyPool}.
+ * <p/>
+ * Encryption, decryption, signing, and verification are thread-safe.
  */
 public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
     private static final int IV_SIZE = 16;   // length of the AES initialization vector
+    private static final int MAX_CACHED_PUBLIC_KEYS = 256;
 
     protected int keyLengthBytes;
     protected ECParameterSpec ecParameterSpec;
-    private KeyPairGenerator encryptionKeyPairGenerator;
+    private ThreadLocal<KeyPairGenerator> encryptionKeyPairGenerator;   // one per thread because KeyPairGenerator isn't guaranteed to be thread-safe
     private KeyPairGenerator signingKeyPairGenerator;
-    private KeyFactory ecdhKeyFactory;
-    private KeyFactory ecdsaKeyFactory;
-    private Signature signatureAlg;
-    private Signature altSignatureAlg;
+    private ThreadLocal<KeyFactory> ecdhKeyFactory;
+    private ThreadLocal<KeyFactory> ecdsaKeyFactory;
+    private ThreadLocal<KeyAgreement> keyAgreement;
+    private ThreadLocal<MessageDigest> sha256;
+    private ThreadLocal<Signature> signatureAlg;
+    private ThreadLocal<Signature> altSignatureAlg;   // null if there are no old signatures to verify
+    private Map<ByteBuffer, PublicKeyPair> publicKeyCache;   // maps encoded public key pairs to decoded ones, least recently used first
+    private volatile EphemeralKeyPool ephemeralKeyPool;
     private Log log = new Log(ECDH_ECDSA.class);
 
     /**
@@ -86,26 +102,91 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
      * @param keyLengthBytes Length of a byte array encoding of one (public or private) key
      * @throws GeneralSecurityException
      */
-    ECDH_ECDSA(String curveName, String sigName, int keyLengthBytes) throws GeneralSecurityException {
+    ECDH_ECDSA(String curveName, final String sigName, int keyLengthBytes) throws GeneralSecurityException {
         super();
 
         ecParameterSpec = ECUtils.getParameters(curveName);
 
-        signatureAlg = Signature.getInstance(sigName);
+        Signature.getInstance(sigName);   // throw an exception now if the signature algorithm is not available
+        signatureAlg = new JcaThreadLocal<Signature>() {
+            @Override
+            Signature create() throws GeneralSecurityException {
+                return Signature.getInstance(sigName);
+            }
+        };
         // Backwards-compatibility with old ECDSA-521 signatures that used SHA-256
-        if ("P-521".equals(curveName))
-            altSignatureAlg = Signature.getInstance("SHA256withECDSA");
+        if ("P-521".equals(curveName)) {
+            Signature.getInstance("SHA256withECDSA");
+            altSignatureAlg = new JcaThreadLocal<Signature>() {
+                @Override
+                Signature create() throws GeneralSecurityException {
+                    return Signature.getInstance("SHA256withECDSA");
+                }
+            };
+        }
+        
+        KeyAgreement.getInstance("ECDH");
+        keyAgreement = new JcaThreadLocal<KeyAgreement>() {
+            @Override
+            KeyAgreement create() throws GeneralSecurityException {
+                return KeyAgreement.getInstance("ECDH");
+            }
+        };
+        sha256 = new JcaThreadLocal<MessageDigest>() {
+            @Override
+            MessageDigest create() throws GeneralSecurityException {
+                return MessageDigest.getInstance("SHA-256");
+            }
+        };
 
         this.keyLengthBytes = keyLengthBytes;
 
-        encryptionKeyPairGenerator = KeyPairGenerator.getInstance("ECDH");
-        encryptionKeyPairGenerator.initialize(ecParameterSpec, appContext.random());
+        encryptionKeyPairGenerator = new ThreadLocal<KeyPairGenerator>() {
+            @Override
+            protected KeyPairGenerator initialValue() {
+                try {
+                    return createKeyPairGenerator("ECDH");
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Can't create ECDH key pair generator.", e);
+                }
+            }
+        };
+        createKeyPairGenerator("ECDH");   // throw an exception now if ECDH is not available
 
-        signingKeyPairGenerator = KeyPairGenerator.getInstance("ECDSA");
-        signingKeyPairGenerator.initialize(ecParameterSpec, appContext.random());
+        signingKeyPairGenerator = createKeyPairGenerator("ECDSA");
 
-        ecdhKeyFactory = KeyFactory.getInstance("ECDH");
-        ecdsaKeyFactory = KeyFactory.getInstance("ECDSA");
+        KeyFactory.getInstance("ECDH");
+        ecdhKeyFactory = new JcaThreadLocal<KeyFactory>() {
+            @Override
+            KeyFactory create() throws GeneralSecurityException {
+                return KeyFactory.getInstance("ECDH");
+            }
+        };
+        KeyFactory.getInstance("ECDSA");
+        ecdsaKeyFactory = new JcaThreadLocal<KeyFactory>() {
+            @Override
+            KeyFactory create() throws GeneralSecurityException {
+                return KeyFactory.getInstance("ECDSA");
+            }
+        };
+        
+        publicKeyCache = new LinkedHashMap<ByteBuffer, PublicKeyPair>(16, 0.75f, true) {
+            private static final long serialVersionUID = 4730862281709123457L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, PublicKeyPair> eldest) {
+                return size() > MAX_CACHED_PUBLIC_KEYS;
+            }
+        };
+    }
+    
+    /**
+     * Sets a pool of pre-generated ephemeral keys for {@link #encrypt(byte[], PublicKey)}.
+     * @param ephemeralKeyPool An <code>EphemeralKeyPool</code> for this <code>ECDH_ECDSA</code>,
+     * or <code>null</code> to always generate keys when they are needed
+     */
+    public void setEphemeralKeyPool(EphemeralKeyPool ephemeralKeyPool) {
+        this.ephemeralKeyPool = ephemeralKeyPool;
     }
     
     @Override
@@ -113,9 +194,16 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
         return 2 * keyLengthBytes;
     }
     
+    private KeyPairGenerator createKeyPairGenerator(String algorithm) throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(algorithm);
+        keyPairGenerator.initialize(ecParameterSpec, appContext.random());
+        return keyPairGenerator;
+    }
+    
+    /** This method is thread-safe. */
     @Override
     public KeyPair generateEncryptionKeyPair() {
-        return encryptionKeyPairGenerator.generateKeyPair();
+        return encryptionKeyPairGenerator.get().generateKeyPair();
     }
     
     @Override
@@ -191,16 +279,38 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
             throw new IllegalArgumentException("<key> must be a ECPrivateKey.");
     }
 
+    /**
+     * Decoded keys are cached, so decoding the same bytes again is cheap.
+     * A new <code>PublicKeyPair</code> is returned every time; the <code>PublicKey</code>s
+     * in it are shared, which is safe because they are immutable.
+     */
     @Override
     public PublicKeyPair createPublicKeyPair(byte[] bytes) throws GeneralSecurityException {
+        ByteBuffer cacheKey = ByteBuffer.wrap(Arrays.copyOf(bytes, 2*keyLengthBytes));
+        PublicKeyPair cachedKeyPair;
+        synchronized(publicKeyCache) {
+            cachedKeyPair = publicKeyCache.get(cacheKey);
+        }
+        
         PublicKeyPair keyPair = new PublicKeyPair();
+        if (cachedKeyPair != null) {
+            keyPair.encryptionKey = cachedKeyPair.encryptionKey;
+            keyPair.signingKey = cachedKeyPair.signingKey;
+            return keyPair;
+        }
         
         ECPublicKeySpec encryptionKeySpec = createPublicKeySpec(Arrays.copyOf(bytes, keyLengthBytes));
-        keyPair.encryptionKey = ecdhKeyFactory.generatePublic(encryptionKeySpec);
+        keyPair.encryptionKey = ecdhKeyFactory.get().generatePublic(encryptionKeySpec);
         
         ECPublicKeySpec signingKeySpec = createPublicKeySpec(Arrays.copyOfRange(bytes, keyLengthBytes, 2*keyLengthBytes));
-        keyPair.signingKey = ecdsaKeyFactory.generatePublic(signingKeySpec);
+        keyPair.signingKey = ecdsaKeyFactory.get().generatePublic(signingKeySpec);
         
+        cachedKeyPair = new PublicKeyPair();
+        cachedKeyPair.encryptionKey = keyPair.encryptionKey;
+        cachedKeyPair.signingKey = keyPair.signingKey;
+        synchronized(publicKeyCache) {
+            publicKeyCache.put(cacheKey, cachedKeyPair);
+        }
         return keyPair;
     }
     
@@ -209,10 +319,10 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
         PrivateKeyPair keyPair = new PrivateKeyPair();
         
         ECPrivateKeySpec encryptionKeySpec = createPrivateKeySpec(Arrays.copyOf(bytes, keyLengthBytes));
-        keyPair.encryptionKey = ecdhKeyFactory.generatePrivate(encryptionKeySpec);
+        keyPair.encryptionKey = ecdhKeyFactory.get().generatePrivate(encryptionKeySpec);
         
         ECPrivateKeySpec signingKeySpec = createPrivateKeySpec(Arrays.copyOfRange(bytes, keyLengthBytes, 2*keyLengthBytes));
-        keyPair.signingKey = ecdsaKeyFactory.generatePrivate(signingKeySpec);
+        keyPair.signingKey = ecdsaKeyFactory.get().generatePrivate(signingKeySpec);
         
         return keyPair;
     }
@@ -282,7 +392,7 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
      * Encrypts a block of data using the following steps:
      * <p/>
      * <ol>
-     *   <li/>Generate an ephemeral EC key.<br/>
+     *   <li/>Generate an ephemeral EC key, or take one from the {@link EphemeralKeyPool}.<br/>
      *   <li/>Use that key and the public key of the recipient, generate a secret using ECDH.<br/>
      *   <li/>Use that secret as a key to encrypt the message with AES.<br/>
      *   <li/>Return the encrypted message and the ephemeral public key generated in step 1.<br/>
@@ -292,13 +402,17 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
     @Override
     public byte[] encrypt(byte[] data, PublicKey encryptionKey) throws GeneralSecurityException {
         // generate an ephemeral EC key and a shared secret
-        KeyPair ephKeyPair = encryptionKeyPairGenerator.generateKeyPair();
-        KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+        KeyPair ephKeyPair = null;
+        EphemeralKeyPool keyPool = ephemeralKeyPool;
+        if (keyPool != null)
+            ephKeyPair = keyPool.poll();
+        if (ephKeyPair == null)
+            ephKeyPair = encryptionKeyPairGenerator.get().generateKeyPair();
+        KeyAgreement keyAgreement = this.keyAgreement.get();
         keyAgreement.init(ephKeyPair.getPrivate());
         keyAgreement.doPhase(encryptionKey, true);
         byte[] sharedSecret = keyAgreement.generateSecret();
-        MessageDigest hashAlg = MessageDigest.getInstance("SHA-256");
-        byte[] secretHash = hashAlg.digest(sharedSecret);
+        byte[] secretHash = sha256.get().digest(sharedSecret);
         if (sharedSecret.length < secretHash.length)
             log.warn("Not enough data in shared secret!");
         
@@ -336,15 +450,14 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
             byte[] encodedKey = new byte[keyLengthBytes];
             byteStream.read(encodedKey);
             ECPublicKeySpec ephPublicKeySpec = createPublicKeySpec(encodedKey);
-            PublicKey ephPublicKey = ecdhKeyFactory.generatePublic(ephPublicKeySpec);
+            PublicKey ephPublicKey = ecdhKeyFactory.get().generatePublic(ephPublicKeySpec);
         
             // reconstruct the shared secret
-            KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+            KeyAgreement keyAgreement = this.keyAgreement.get();
             keyAgreement.init(privateKey);
             keyAgreement.doPhase(ephPublicKey, true);
             byte[] sharedSecret = keyAgreement.generateSecret();
-            MessageDigest hashAlg = MessageDigest.getInstance("SHA-256");
-            byte[] secretHash = hashAlg.digest(sharedSecret);
+            byte[] secretHash = sha256.get().digest(sharedSecret);
         
             // decrypt using the shared secret as an AES key
             byte[] iv = new byte[IV_SIZE];
@@ -364,6 +477,7 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
 
     @Override
     public byte[] sign(byte[] data, PrivateKey privateKey, KeyUpdateHandler keyupdateHandler) throws GeneralSecurityException {
+        Signature signatureAlg = this.signatureAlg.get();
         signatureAlg.initSign(privateKey);
         signatureAlg.update(data);
         byte[] signature = signatureAlg.sign();
@@ -376,12 +490,14 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
      */
     @Override
     public boolean verify(byte[] data, byte[] signature, PublicKey key) throws GeneralSecurityException {
+        Signature signatureAlg = this.signatureAlg.get();
         signatureAlg.initVerify(key);
         signatureAlg.update(data);
         boolean valid = signatureAlg.verify(signature);
 
         // Backwards-compatibility with old ECDSA-521 signatures that used SHA-256
-        if (!valid && altSignatureAlg != null) {
+        if (!valid && this.altSignatureAlg != null) {
+            Signature altSignatureAlg = this.altSignatureAlg.get();
             altSignatureAlg.initVerify(key);
             altSignatureAlg.update(data);
             valid = altSignatureAlg.verify(signature);
@@ -389,4 +505,23 @@ public abstract class ECDH_ECDSA extends AbstractCryptoImplementation {
 
         return valid;
     }
-}
\ No newline at end of file
+    
+    /**
+     * A <code>ThreadLocal</code> for JCA objects that are not thread-safe.
+     * The constructor of <code>ECDH_ECDSA</code> checks that the algorithms
+     * are available, so {@link #create()} is not expected to fail.
+     */
+    private abstract static class JcaThreadLocal<T> extends ThreadLocal<T> {
+        
+        @Override
+        protected T initialValue() {
+            try {
+                return create();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Can't create JCA object.", e);
+            }
+        }
+        
+        abstract T create() throws GeneralSecurityException;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.crypto;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.i2p.util.I2PAppThread;
+import net.i2p.util.Log;
+
+/**
+ * Generates ephemeral encryption key pairs in the background, so
+ * {@link ECDH_ECDSA#encrypt(byte[], java.security.PublicKey)} doesn't have to
+ * generate one while the user is waiting, for example when an email is
+ * sent to many recipients.<br/>
+ * The thread fills the pool up to its capacity and then waits until a key
+ * pair is taken. If the pool is empty, <code>ECDH_ECDSA</code> generates
+ * key pairs itself. Key pairs that are left in the pool when the thread
+ * exits can still be used.<br/>
+ * The pool is not used until it is passed to {@link ECDH_ECDSA#setEphemeralKeyPool(EphemeralKeyPool)}.
+ * <p/>
+ * Each key pair is handed out only once. This class is thread-safe.
+ */
+public class EphemeralKeyPool extends I2PAppThread {
+    static final int DEFAULT_CAPACITY = 16;
+    
+    private Log log = new Log(EphemeralKeyPool.class);
+    private ECDH_ECDSA cryptoImpl;
+    private BlockingQueue<KeyPair> keyPairs;
+    
+    public EphemeralKeyPool(ECDH_ECDSA cryptoImpl) {
+        this(cryptoImpl, DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * @param cryptoImpl
+     * @param capacity The maximum number of key pairs kept in the pool
+     */
+    public EphemeralKeyPool(ECDH_ECDSA cryptoImpl, int capacity) {
+        super("EphKeyPool-" + cryptoImpl.getId());
+        setPriority(MIN_PRIORITY);
+        this.cryptoImpl = cryptoImpl;
+        keyPairs = new ArrayBlockingQueue<KeyPair>(capacity);
+    }
+    
+    /**
+     * Removes a key pair from the pool and returns it.
+     * Returns <code>null</code> if the pool is empty.
+     */
+    public KeyPair poll() {
+        return keyPairs.poll();
+    }
+    
+    /** Returns the number of key pairs in the pool. */
+    public int size() {
+        return keyPairs.size();
+    }
+    
+    @Override
+    public void run() {
+        while (!Thread.interrupted()) {
+            try {
+                keyPairs.put(cryptoImpl.generateEncryptionKeyPair());
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {   // catch unexpected exceptions to keep the thread running
+                log.error("Exception caught in EphemeralKeyPool loop", e);
+            }
+        }
+        
+        log.debug("EphemeralKeyPool interrupted, thread exiting.");
+    }
+}
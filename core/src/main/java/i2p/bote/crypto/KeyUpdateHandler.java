@@ -25,6 +25,7 @@ import i2p.bote.fileencryption.PasswordException;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
 
 /**
  * Called when a private key in an Email Identity was changed and
@@ -32,5 +33,14 @@ import java.security.GeneralSecurityException;
  */
 public interface KeyUpdateHandler {
     
-    void updateKey() throws GeneralSecurityException, PasswordException, IOException;
+    /**
+     * Persists the new state of a private key. Implementations must not return
+     * before the new state is on disk, because the old state must never be
+     * used again.
+     * @param privateKey The key object that was changed
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     * @throws IOException
+     */
+    void updateKey(PrivateKey privateKey) throws GeneralSecurityException, PasswordException, IOException;
 }
\ No newline at end of file
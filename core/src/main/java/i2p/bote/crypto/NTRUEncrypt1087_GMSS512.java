@@ -285,7 +285,7 @@ public class NTRUEncrypt1087_GMSS512 extends AbstractCryptoImplementation {
         signer.update(data);
         byte[] signature = signer.sign();
         try {
-            keyUpdateHandler.updateKey();
+            keyUpdateHandler.updateKey(key);
         } catch (IOException e) {
             throw new KeyStoreException("Error updating GMSS key after signing.", e);
         }
@@ -0,0 +1,397 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.crypto;
+
+import i2p.bote.UniqueId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.crypto.SessionKeyManager;
+import net.i2p.data.PublicKey;
+import net.i2p.data.SessionKey;
+import net.i2p.data.SessionTag;
+import net.i2p.util.Log;
+
+/**
+ * Keeps ElGamal/AES session keys and session tags for relay packets, so consecutive
+ * relay packets to the same peer can use the cheap AES session tag path instead of
+ * a 2048-bit ElGamal operation.
+ * <p/>
+ * On the receiving side, this class remembers the tags delivered in relay packets
+ * until they are used or expire; it is passed to <code>ElGamalAESEngine.decrypt()</code>
+ * via {@link i2p.bote.Util#decrypt(byte[], net.i2p.data.PrivateKey, SessionKeyManager)}.
+ * <p/>
+ * On the sending side, tags are only used for the outer layer of a relay packet, which
+ * is decrypted by the peer the packet is sent to directly. That peer knows who sent the
+ * packet anyway; a session key shared by several packets would let the other relay peers
+ * link them.<br/>
+ * Tags are only used after the peer has confirmed the packet that delivered them and
+ * has indicated with its protocol version that it remembers tags. Peers running older
+ * versions keep getting new sessions.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class RelaySessionKeyManager extends SessionKeyManager {
+    /** The lowest protocol version that remembers session tags delivered in relay packets */
+    public static final int MIN_PROTOCOL_VERSION = 5;
+    /** The number of tags delivered in one packet */
+    public static final int TAGS_PER_DELIVERY = 8;
+    private static final int LOW_THRESHOLD = 4;   // deliver new tags when fewer than this are left
+    static final long INBOUND_TAG_LIFETIME = TimeUnit.HOURS.toMillis(24);
+    static final long OUTBOUND_TAG_LIFETIME = TimeUnit.HOURS.toMillis(20);   // shorter than INBOUND_TAG_LIFETIME to allow for delays and retries
+    private static final long SESSION_KEY_LIFETIME = TimeUnit.HOURS.toMillis(6);   // when to start a new session with a new key
+    private static final int MAX_INBOUND_TAGS = 50000;
+    private static final int MAX_OUTBOUND_SESSIONS = 1000;
+    private static final int MAX_LEGACY_PEERS = 1000;
+    private static final int MAX_SENT_TAGS = 10000;
+    private static final long LEGACY_PEER_RECHECK_INTERVAL = TimeUnit.HOURS.toMillis(24);   // peers can upgrade
+    
+    private Log log = new Log(RelaySessionKeyManager.class);
+    private I2PAppContext appContext;
+    private Map<SessionTag, KnownTag> inboundTags;   // in order of arrival, which is also the order of expiration
+    private Map<PublicKey, OutboundSession> outboundSessions;
+    private Map<UniqueId, PendingTagSet> pendingTagSets;   // tag sets waiting for confirmation by packet id, oldest first
+    private Map<PublicKey, Long> legacyPeers;   // peers that don't remember tags, and when that was found out
+    private Map<SessionTag, KnownTag> sentTags;   // tags used for encrypting, so rejected packets can be decrypted again; oldest first
+    
+    public RelaySessionKeyManager(I2PAppContext appContext) {
+        super(appContext);
+        this.appContext = appContext;
+        inboundTags = new LinkedHashMap<SessionTag, KnownTag>();
+        outboundSessions = new LinkedHashMap<PublicKey, OutboundSession>() {
+            private static final long serialVersionUID = -6470125432476213598L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PublicKey, OutboundSession> eldest) {
+                return size() > MAX_OUTBOUND_SESSIONS;
+            }
+        };
+        pendingTagSets = new LinkedHashMap<UniqueId, PendingTagSet>();
+        legacyPeers = new LinkedHashMap<PublicKey, Long>() {
+            private static final long serialVersionUID = 2876143180592460013L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PublicKey, Long> eldest) {
+                return size() > MAX_LEGACY_PEERS;
+            }
+        };
+        sentTags = new LinkedHashMap<SessionTag, KnownTag>() {
+            private static final long serialVersionUID = 4153381795405470914L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SessionTag, KnownTag> eldest) {
+                return size() > MAX_SENT_TAGS;
+            }
+        };
+    }
+    
+    /**
+     * Returns the session key, tag, and tags to deliver for encrypting a packet to a peer.
+     * If the peer has no unused tags that are valid until <code>deadline</code>, the
+     * returned {@link OutboundMessage} is for a new session.<br/>
+     * After the packet has been created, {@link #tagsSent(OutboundMessage, UniqueId)} must
+     * be called.
+     * @param target The public key of the peer that decrypts the packet
+     * @param deadline The latest time, in milliseconds since 1-1-1970, the peer is expected to decrypt the packet
+     */
+    public synchronized OutboundMessage prepareMessage(PublicKey target, long deadline) {
+        long currentTime = System.currentTimeMillis();
+        removeExpiredPendingTagSets(currentTime);
+        Long legacyTime = legacyPeers.get(target);
+        if (legacyTime!=null && currentTime-legacyTime<LEGACY_PEER_RECHECK_INTERVAL)
+            return new OutboundMessage(target, appContext.keyGenerator().generateSessionKey(), null, Collections.<SessionTag>emptySet());
+        
+        OutboundSession session = outboundSessions.get(target);
+        if (session==null || currentTime-session.creationTime>SESSION_KEY_LIFETIME) {
+            session = new OutboundSession(appContext.keyGenerator().generateSessionKey(), currentTime);
+            outboundSessions.put(target, session);
+        }
+        session.removeExpired(currentTime);
+        
+        SessionTag currentTag = session.consumeTag(deadline);
+        if (currentTag != null) {
+            removeExpiredTags(sentTags, currentTime);
+            sentTags.put(currentTag, new KnownTag(session.key, currentTime+OUTBOUND_TAG_LIFETIME));
+        }
+        Set<SessionTag> tagsForDelivery;
+        if (session.getNumTags() < LOW_THRESHOLD) {
+            tagsForDelivery = new HashSet<SessionTag>();
+            for (int i=0; i<TAGS_PER_DELIVERY; i++)
+                tagsForDelivery.add(new SessionTag(true));
+        }
+        else
+            tagsForDelivery = Collections.emptySet();
+        return new OutboundMessage(target, session.key, currentTag, tagsForDelivery);
+    }
+    
+    /**
+     * Records that a packet encrypted with the parameters from {@link #prepareMessage(PublicKey, long)}
+     * has been created, so its tags can be used once the packet is confirmed.
+     * @param message
+     * @param packetId The id of the packet that contains the encrypted data
+     */
+    public synchronized void tagsSent(OutboundMessage message, UniqueId packetId) {
+        if (message.tagsForDelivery.isEmpty())
+            return;
+        OutboundSession session = outboundSessions.get(message.target);
+        if (session==null || !session.key.equals(message.key))
+            return;
+        PendingTagSet tagSet = new PendingTagSet(message.target, message.tagsForDelivery, System.currentTimeMillis());
+        session.pendingTagSets.add(tagSet);
+        pendingTagSets.put(packetId, tagSet);
+    }
+    
+    /**
+     * Called when a peer confirms a relay packet. If the packet delivered tags and the
+     * peer remembers tags, the tags become available for encryption.
+     * @param packetId
+     * @param protocolVersion The protocol version of the confirmation
+     */
+    public synchronized void packetConfirmed(UniqueId packetId, int protocolVersion) {
+        PendingTagSet tagSet = pendingTagSets.remove(packetId);
+        if (tagSet == null)
+            return;
+        OutboundSession session = outboundSessions.get(tagSet.target);
+        
+        if (protocolVersion < MIN_PROTOCOL_VERSION) {
+            log.debug("Relay peer uses protocol version " + protocolVersion + ", not sending session tags.");
+            legacyPeers.put(tagSet.target, System.currentTimeMillis());
+            outboundSessions.remove(tagSet.target);
+        }
+        else if (session!=null && session.pendingTagSets.remove(tagSet))
+            session.ackedTagSets.add(tagSet);
+    }
+    
+    /**
+     * Forgets the session with a peer, for example because the peer could not decrypt a packet.
+     * @param target
+     */
+    public synchronized void discardSession(PublicKey target) {
+        OutboundSession session = outboundSessions.remove(target);
+        if (session != null)
+            for (PendingTagSet tagSet: session.pendingTagSets)
+                pendingTagSets.values().remove(tagSet);
+    }
+    
+    /**
+     * Returns the session key that belongs to a tag returned by {@link #prepareMessage(PublicKey, long)},
+     * so the sender can decrypt its own packet if the peer rejects it. Returns <code>null</code>
+     * if the tag is unknown, for example because it has expired or was used before a restart.<br/>
+     * Unlike the tags themselves, the keys are still known after {@link #discardSession(PublicKey)}.
+     * @param tag
+     */
+    public synchronized SessionKey getSentTagKey(SessionTag tag) {
+        KnownTag sentTag = sentTags.get(tag);
+        if (sentTag==null || sentTag.expirationTime<System.currentTimeMillis())
+            return null;
+        return sentTag.key;
+    }
+    
+    /** Returns the number of tags that can be used for encrypting to a peer right now. */
+    public synchronized int getNumAvailableTags(PublicKey target) {
+        OutboundSession session = outboundSessions.get(target);
+        if (session == null)
+            return 0;
+        session.removeExpired(System.currentTimeMillis());
+        int numTags = 0;
+        for (PendingTagSet tagSet: session.ackedTagSets)
+            numTags += tagSet.tags.size();
+        return numTags;
+    }
+    
+    /** Returns the number of tags received from other peers that haven't been used yet. */
+    public synchronized int getNumInboundTags() {
+        return inboundTags.size();
+    }
+    
+    @Override
+    public synchronized SessionKey consumeTag(SessionTag tag) {
+        KnownTag inboundTag = inboundTags.remove(tag);
+        if (inboundTag==null || inboundTag.expirationTime<System.currentTimeMillis())
+            return null;
+        return inboundTag.key;
+    }
+    
+    /**
+     * Remembers tags received from a peer. Deliveries of more than
+     * {@link #TAGS_PER_DELIVERY} tags are ignored so a single peer can't
+     * push out everybody else's tags.
+     */
+    @Override
+    public synchronized void tagsReceived(SessionKey key, Set<SessionTag> sessionTags) {
+        if (sessionTags.size() > TAGS_PER_DELIVERY) {
+            log.debug("Ignoring delivery of " + sessionTags.size() + " session tags.");
+            return;
+        }
+        
+        long currentTime = System.currentTimeMillis();
+        removeExpiredTags(inboundTags, currentTime);
+        long expirationTime = currentTime + INBOUND_TAG_LIFETIME;
+        for (SessionTag tag: sessionTags)
+            inboundTags.put(tag, new KnownTag(key, expirationTime));
+        
+        // if there are too many tags, drop the oldest ones
+        Iterator<SessionTag> iterator = inboundTags.keySet().iterator();
+        while (inboundTags.size()>MAX_INBOUND_TAGS && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+    
+    private void removeExpiredPendingTagSets(long currentTime) {
+        Iterator<PendingTagSet> iterator = pendingTagSets.values().iterator();
+        while (iterator.hasNext())
+            if (iterator.next().creationTime+OUTBOUND_TAG_LIFETIME <= currentTime)
+                iterator.remove();
+            else
+                break;   // the remaining tag sets are newer
+    }
+    
+    private void removeExpiredTags(Map<SessionTag, KnownTag> tags, long currentTime) {
+        Iterator<KnownTag> iterator = tags.values().iterator();
+        while (iterator.hasNext())
+            if (iterator.next().expirationTime < currentTime)
+                iterator.remove();
+            else
+                break;   // the remaining tags expire later
+    }
+    
+    /** The parameters for encrypting one packet with <code>ElGamalAESEngine</code>. */
+    public static class OutboundMessage {
+        private PublicKey target;
+        private SessionKey key;
+        private SessionTag currentTag;
+        private Set<SessionTag> tagsForDelivery;
+        
+        OutboundMessage(PublicKey target, SessionKey key, SessionTag currentTag, Set<SessionTag> tagsForDelivery) {
+            this.target = target;
+            this.key = key;
+            this.currentTag = currentTag;
+            this.tagsForDelivery = tagsForDelivery;
+        }
+        
+        public PublicKey getTarget() {
+            return target;
+        }
+        
+        public SessionKey getKey() {
+            return key;
+        }
+        
+        /** Returns the tag to encrypt with, or <code>null</code> for a new session. */
+        public SessionTag getCurrentTag() {
+            return currentTag;
+        }
+        
+        /** Returns the tags to deliver to the peer; the set can be empty. */
+        public Set<SessionTag> getTagsForDelivery() {
+            return tagsForDelivery;
+        }
+    }
+    
+    /** A session key and the tags delivered with it. */
+    private static class OutboundSession {
+        SessionKey key;
+        long creationTime;
+        List<PendingTagSet> pendingTagSets;   // not confirmed yet
+        List<PendingTagSet> ackedTagSets;   // confirmed, oldest first
+        
+        OutboundSession(SessionKey key, long creationTime) {
+            this.key = key;
+            this.creationTime = creationTime;
+            pendingTagSets = new ArrayList<PendingTagSet>();
+            ackedTagSets = new ArrayList<PendingTagSet>();
+        }
+        
+        /**
+         * Removes and returns the oldest confirmed tag that is still valid at
+         * <code>deadline</code>, or returns <code>null</code> if there is none.
+         */
+        SessionTag consumeTag(long deadline) {
+            for (PendingTagSet tagSet: ackedTagSets)
+                if (tagSet.creationTime+OUTBOUND_TAG_LIFETIME > deadline) {
+                    Iterator<SessionTag> iterator = tagSet.tags.iterator();
+                    SessionTag tag = iterator.next();
+                    iterator.remove();
+                    if (tagSet.tags.isEmpty())
+                        ackedTagSets.remove(tagSet);
+                    return tag;
+                }
+            return null;
+        }
+        
+        /** Returns the number of tags that are confirmed or waiting for confirmation. */
+        int getNumTags() {
+            int numTags = 0;
+            for (PendingTagSet tagSet: pendingTagSets)
+                numTags += tagSet.tags.size();
+            for (PendingTagSet tagSet: ackedTagSets)
+                numTags += tagSet.tags.size();
+            return numTags;
+        }
+        
+        void removeExpired(long currentTime) {
+            removeExpired(pendingTagSets, currentTime);
+            removeExpired(ackedTagSets, currentTime);
+        }
+        
+        private void removeExpired(List<PendingTagSet> tagSets, long currentTime) {
+            Iterator<PendingTagSet> iterator = tagSets.iterator();
+            while (iterator.hasNext())
+                if (iterator.next().creationTime+OUTBOUND_TAG_LIFETIME <= currentTime)
+                    iterator.remove();
+        }
+    }
+    
+    /** Tags delivered in one packet. */
+    private static class PendingTagSet {
+        PublicKey target;
+        Set<SessionTag> tags;
+        long creationTime;
+        
+        PendingTagSet(PublicKey target, Set<SessionTag> tags, long creationTime) {
+            this.target = target;
+            this.tags = new HashSet<SessionTag>(tags);
+            this.creationTime = creationTime;
+        }
+    }
+    
+    /** The session key for a tag received from a peer or used for encrypting to a peer. */
+    private static class KnownTag {
+        SessionKey key;
+        long expirationTime;
+        
+        KnownTag(SessionKey key, long expirationTime) {
+            this.key = key;
+            this.expirationTime = expirationTime;
+        }
+    }
+}
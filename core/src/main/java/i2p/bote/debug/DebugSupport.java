@@ -27,6 +27,7 @@ import i2p.bote.fileencryption.EncryptedInputStream;
 import i2p.bote.fileencryption.FileEncryptionUtil;
 import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.fileencryption.PasswordHolder;
+import i2p.bote.folder.RecordStore;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -69,8 +70,8 @@ public class DebugSupport {
         
         // make a list of all encrypted files
         List<File> files = new ArrayList<File>();
-        files.add(configuration.getIdentitiesFile());
-        files.add(configuration.getAddressBookFile());
+        files.addAll(new RecordStore(configuration.getIdentitiesDir(), passwordHolder).getFiles());
+        files.addAll(new RecordStore(configuration.getAddressBookDir(), passwordHolder).getFiles());
         File[] emailFolders = new File[] {configuration.getInboxDir(), configuration.getOutboxDir(), configuration.getSentFolderDir(), configuration.getTrashFolderDir()};;
         for (File dir: emailFolders)
             files.addAll(Arrays.asList(dir.listFiles()));
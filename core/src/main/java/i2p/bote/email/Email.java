@@ -319,6 +319,7 @@ public class Email extends MimeMessage {
     public void sign(EmailIdentity senderIdentity, KeyUpdateHandler keyUpdateHandler) throws MessagingException, GeneralSecurityException, PasswordException {
         removeHeader(SIGNATURE_HEADER);   // make sure there is no existing signature which would make the new signature invalid
         removeHeader(SIGNATURE_VALID_HEADER);   // remove the signature validity flag before signing
+        metadata.removeSignatureValid();
         CryptoImplementation cryptoImpl = senderIdentity.getCryptoImpl();
         PrivateKey privateSigningKey = senderIdentity.getPrivateSigningKey();
         byte[] signature = cryptoImpl.sign(toByteArray(), privateSigningKey, keyUpdateHandler);
@@ -357,19 +358,33 @@ public class Email extends MimeMessage {
     
     /**
      * Verifies the signature and sets the <code>SIGNATURE_VALID_HEADER</code>
-     * header field accordingly.
+     * header field accordingly. The result is also stored in the metadata.
      */
     public void setSignatureFlag() {
+        setSignatureFlag(null);
+    }
+    
+    /**
+     * Like {@link #setSignatureFlag()}, but uses a given Email Destination
+     * for the sender rather than decoding it from the "from" address.
+     * @param senderDestination The sender's Email Destination, or <code>null</code>
+     * to decode it from the "from" address
+     * @see SignatureVerifier
+     */
+    void setSignatureFlag(EmailDestination senderDestination) {
         try {
             removeHeader(SIGNATURE_VALID_HEADER);   // remove the signature validity flag before verifying
-            boolean valid = verifySignature();
+            metadata.removeSignatureValid();
+            boolean valid = verifySignature(senderDestination);
             setHeader(SIGNATURE_VALID_HEADER, String.valueOf(valid));
+            metadata.setSignatureValid(valid);
         } catch (MessagingException e) {
             log.error("Cannot get header field: " + SIGNATURE_VALID_HEADER, e);
         }
     }
     
     public void removeSignatureFlag() {
+        metadata.removeSignatureValid();
         try {
             removeHeader(SIGNATURE_VALID_HEADER);
         } catch (MessagingException e) {
@@ -379,18 +394,26 @@ public class Email extends MimeMessage {
     
     /**
      * Verifies that the email contains a valid signature.<br/>
-     * If the <code>SIGNATURE_VALID_HEADER</code> is present, its value is
-     * used.<br/>
+     * If the metadata contains the result of an earlier verification, it is
+     * used. Otherwise, if the <code>SIGNATURE_VALID_HEADER</code> is present,
+     * its value is used.<br/>
      * If not, the value of the <code>SIGNATURE_HEADER</code> header
      * field is verified (which is more CPU intensive).
      * @return <code>true</code> if the signature is valid; <code>false</code>
      * if it is invalid or an error occurred.
      */
     public boolean isSignatureValid() {
+        Boolean verified = metadata.getSignatureValid();
+        if (verified != null)
+            return verified;
+        
         try {
             String[] sigValidFlag = getHeader(SIGNATURE_VALID_HEADER);
-            if (sigValidFlag==null || sigValidFlag.length==0)
-                return verifySignature();
+            if (sigValidFlag==null || sigValidFlag.length==0) {
+                boolean valid = verifySignature(null);
+                metadata.setSignatureValid(valid);   // don't verify again next time
+                return valid;
+            }
             else
                 return "true".equalsIgnoreCase(sigValidFlag[0]);
         } catch (MessagingException e) {
@@ -404,10 +427,12 @@ public class Email extends MimeMessage {
      * contains a valid signature.<br/>
      * The <code>SIGNATURE_VALID_HEADER</code> header field must not be
      * present when this method is called.
+     * @param senderDestination The sender's Email Destination, or <code>null</code>
+     * to decode it from the "from" address
      * @return <code>true</code> if the signature is valid; <code>false</code>
      * if it is invalid or missing, or an error occurred.
      */
-    private boolean verifySignature() {
+    private boolean verifySignature(EmailDestination senderDestination) {
         String[] signatureHeaders;
         try {
             signatureHeaders = getHeader(SIGNATURE_HEADER);
@@ -439,7 +464,8 @@ public class Email extends MimeMessage {
         try {
             removeHeader(SIGNATURE_HEADER);   // remove the signature before verifying
             byte[] signature = Base64.decode(base64Signature);
-            EmailDestination senderDestination = new EmailDestination(getOneFromAddress());
+            if (senderDestination == null)
+                senderDestination = new EmailDestination(getOneFromAddress());
             return cryptoImpl.verify(toByteArray(), signature, senderDestination.getPublicSigningKey());
         } catch (Exception e) {
             log.error("Cannot verify email signature. Email: [" + this + "]", e);
@@ -45,6 +45,8 @@ public class EmailDestination {
     protected CryptoImplementation cryptoImpl;
     protected PublicKey publicEncryptionKey;
     protected PublicKey publicSigningKey;
+    private String base64Key;   // cached return value of getKey()
+    private Hash hash;   // cached return value of getHash()
     
     protected EmailDestination() {
     }
@@ -145,18 +147,27 @@ public class EmailDestination {
         return cryptoImpl.toByteArray(keys);
     }
     
+    /**
+     * Returns the SHA-256 hash of the two public keys. The hash is computed
+     * once and cached, because the public keys never change.
+     */
     public Hash getHash() {
-        // TODO cache the hash value?
-        return SHA256Generator.getInstance().calculateHash(toByteArray());
+        if (hash == null)
+            hash = SHA256Generator.getInstance().calculateHash(toByteArray());
+        return hash;
     }
     
     /**
-     * Returns the two public keys in Base64 representation.
+     * Returns the two public keys in Base64 representation. Like the hash,
+     * the Base64 string is computed once and cached.
      */
     public String getKey() {
+        if (base64Key != null)
+            return base64Key;
         PublicKeyPair keys = new PublicKeyPair(publicEncryptionKey, publicSigningKey);
         try {
-            return cryptoImpl.toBase64(keys);
+            base64Key = cryptoImpl.toBase64(keys);
+            return base64Key;
         } catch (GeneralSecurityException e) {
             log.error("Can't get email destination keys.", e);
             return "<Error>: " + e.getLocalizedMessage();
@@ -51,6 +51,7 @@ public class EmailIdentity extends EmailDestination {
     private String description;   // optional
     private String emailAddress;   // optional
     private byte[] picture;
+    private PictureSource pictureSource;   // non-null if the picture hasn't been loaded yet
     private String text;
     private Fingerprint fingerprint;
     private boolean published;
@@ -65,19 +66,21 @@ public class EmailIdentity extends EmailDestination {
      * @throws IllegalDestinationParametersException if <code>cryptoImpl</code> and <code>vanityPrefix</code> aren't compatible
      */
     public EmailIdentity(CryptoImplementation cryptoImpl, String vanityPrefix) throws GeneralSecurityException, IllegalDestinationParametersException {
+        this(cryptoImpl, generateEncryptionKeys(cryptoImpl, vanityPrefix));
+    }
+
+    /**
+     * Creates an <code>EmailIdentity</code> from an existing encryption key pair and a new,
+     * random signing key pair. This is used for vanity Destinations which are generated
+     * by a {@link VanityGenerator}.
+     * @param cryptoImpl
+     * @param encryptionKeys An encryption key pair generated by <code>cryptoImpl</code>
+     * @throws GeneralSecurityException
+     */
+    public EmailIdentity(CryptoImplementation cryptoImpl, KeyPair encryptionKeys) throws GeneralSecurityException {
         super();
         this.cryptoImpl = cryptoImpl;
         
-        if ("".equals(vanityPrefix))
-            vanityPrefix = null;
-        if (vanityPrefix!=null && !cryptoImpl.getBase64InitialCharacters().contains(vanityPrefix.substring(0, 1))) {
-            throw new IllegalDestinationParametersException(vanityPrefix.charAt(0), cryptoImpl.getBase64InitialCharacters());
-        }
-        
-        KeyPair encryptionKeys;
-        do {
-            encryptionKeys = cryptoImpl.generateEncryptionKeyPair();
-        } while (vanityPrefix!=null && !cryptoImpl.encryptionKeyToBase64(encryptionKeys.getPublic()).startsWith(vanityPrefix));
         KeyPair signingKeys = cryptoImpl.generateSigningKeyPair();
         
         publicEncryptionKey = encryptionKeys.getPublic();
@@ -88,6 +91,19 @@ public class EmailIdentity extends EmailDestination {
         identityConfig = new IdentityConfigImpl();
     }
 
+    private static KeyPair generateEncryptionKeys(CryptoImplementation cryptoImpl, String vanityPrefix) throws GeneralSecurityException, IllegalDestinationParametersException {
+        if (vanityPrefix==null || vanityPrefix.isEmpty())
+            return cryptoImpl.generateEncryptionKeyPair();
+        
+        VanityGenerator generator = new VanityGenerator(cryptoImpl, vanityPrefix);
+        generator.start();
+        try {
+            return generator.getKeyPair();
+        } finally {
+            generator.cancel();
+        }
+    }
+
     /**
      * Creates a <code>EmailIdentity</code> from a Base64-encoded string.
      * The format can be any format supported by one of the {@link CryptoImplementation}s;
@@ -127,6 +143,11 @@ public class EmailIdentity extends EmailDestination {
     public PrivateKey getPrivateSigningKey() {
         return privateSigningKey;
     }
+    
+    /** Replaces the private signing key with a newer state of the same key. Used by {@link Identities}. */
+    void setPrivateSigningKey(PrivateKey privateSigningKey) {
+        this.privateSigningKey = privateSigningKey;
+    }
 
     public void setPublicName(String publicName) {
         this.publicName = publicName;
@@ -162,20 +183,23 @@ public class EmailIdentity extends EmailDestination {
 
     public void setPicture(byte[] picture) {
         this.picture = picture;
+        pictureSource = null;
     }
     
     public byte[] getPicture() {
+        loadPictureIfNeeded();
         return picture;
     }
 
     public void setPictureBase64(String pictureBase64) {
         if (pictureBase64 == null)
-            picture = null;
+            setPicture(null);
         else
-            picture = Base64.decode(pictureBase64.toCharArray());
+            setPicture(Base64.decode(pictureBase64.toCharArray()));
     }
 
     public String getPictureBase64() {
+        byte[] picture = getPicture();
         if (picture == null)
             return null;
         return new String(Base64.encode(picture));
@@ -183,7 +207,37 @@ public class EmailIdentity extends EmailDestination {
 
     /** @see Util#getPictureType(byte[]) */
     public String getPictureType() {
-        return Util.getPictureType(picture);
+        return Util.getPictureType(getPicture());
+    }
+    
+    /**
+     * Sets a {@link PictureSource} that the picture is loaded from the first
+     * time it is requested, replacing the current picture.
+     * @param pictureSource
+     */
+    public void setPictureSource(PictureSource pictureSource) {
+        picture = null;
+        this.pictureSource = pictureSource;
+    }
+    
+    /**
+     * Returns the {@link PictureSource} the picture will be loaded from, or
+     * <code>null</code> if the picture is in memory.
+     */
+    public PictureSource getPictureSource() {
+        return pictureSource;
+    }
+    
+    /** Loads the picture from the <code>PictureSource</code> if there is one */
+    private synchronized void loadPictureIfNeeded() {
+        if (pictureSource != null) {
+            byte[] loadedPicture = pictureSource.loadPicture();
+            // keep the source if loading failed, so the picture isn't lost when the identity is saved
+            if (loadedPicture != null) {
+                picture = loadedPicture;
+                pictureSource = null;
+            }
+        }
     }
     
     public void setText(String text) {
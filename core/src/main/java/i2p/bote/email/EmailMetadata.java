@@ -55,12 +55,13 @@ import net.i2p.util.Log;
  */
 public class EmailMetadata extends Properties {
     private static final long serialVersionUID = 9058161682262839810L;
-    private static final String PROPERTY_RECENT = "recent";
-    private static final String PROPERTY_UNREAD = "new";
+    public static final String PROPERTY_RECENT = "recent";
+    public static final String PROPERTY_UNREAD = "new";
     private static final String PROPERTY_CREATE_TIME = "createTime";
     private static final String PROPERTY_RECEIVED_DATE = "receivedDate";
-    private static final String PROPERTY_REPLIED = "replied";
+    public static final String PROPERTY_REPLIED = "replied";
     private static final String PROPERTY_DELETED = "deleted";
+    private static final String PROPERTY_SIGNATURE_VALID = "signatureValid";
     private static final String PROPERTY_DESTINATION = "destination";
     private static final String PACKET = "packet";
     private static final String DHT_KEY = "dhtKey";
@@ -172,6 +173,31 @@ public class EmailMetadata extends Properties {
         return "true".equals(deletedStr);
     }
     
+    /**
+     * Stores the result of verifying the email's signature, so the signature
+     * doesn't have to be verified again when the email is displayed.
+     * @param valid
+     */
+    public void setSignatureValid(boolean valid) {
+        setProperty(PROPERTY_SIGNATURE_VALID, valid ? "true" : "false");
+    }
+    
+    /**
+     * Returns the result of the last signature verification, or <code>null</code>
+     * if the signature has not been verified.
+     */
+    public Boolean getSignatureValid() {
+        String validStr = getProperty(PROPERTY_SIGNATURE_VALID);
+        if (validStr == null)
+            return null;
+        return "true".equals(validStr);
+    }
+    
+    /** Forgets the result of the last signature verification. */
+    public void removeSignatureValid() {
+        remove(PROPERTY_SIGNATURE_VALID);
+    }
+    
     /**
      * Adds metadata about an email packet that has been stored in the DHT
      * and is waiting to be picked up and deleted.
@@ -27,6 +27,16 @@ import i2p.bote.packet.dht.Contact;
 
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.Hash;
@@ -51,6 +61,11 @@ public class Fingerprint {
     private final static int NUM_FINGERPRINT_BYTES = 32;   // length of the raw fingerprint
     private final static int NUM_WORDS_IN_FINGERPRINT = 8;   // #words generated from the raw fingerprint
     private final static int NUM_WORDS_IN_LIST = 1 << 13;   // must be a power of 2
+    private final static long MAX_SALT_OFFSET = (1L << (8*NUM_SALT_BYTES)) - 1;   // tried every salt when this is reached
+    // each scrypt evaluation uses 128*r*N = 16 MB, so don't use too many threads on low-memory devices
+    private final static int NUM_SEARCH_THREADS = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+    private final static int SEARCH_THREAD_STACK_SIZE = 256 * 1024;
+    private static ExecutorService searchExecutor;
     
     private Hash nameHash;
     private EmailDestination destination;
@@ -77,15 +92,90 @@ public class Fingerprint {
     }
     
     private static Fingerprint generate(Hash nameHash, EmailDestination destination) throws GeneralSecurityException {
-        byte[] input = Util.concat(nameHash.toByteArray(), destination.toByteArray());
         RandomSource randomSource = I2PAppContext.getGlobalContext().random();
-        while (true) {
-            byte[] salt = new byte[NUM_SALT_BYTES];
-            randomSource.nextBytes(salt);
-            byte[] fingerprint = SCrypt.scrypt(input, salt, SCRYPT_PARAMETERS.N, SCRYPT_PARAMETERS.r, SCRYPT_PARAMETERS.p, NUM_FINGERPRINT_BYTES);
-            if (fingerprint[NUM_FINGERPRINT_BYTES-1]==0 && (fingerprint[NUM_FINGERPRINT_BYTES-2]&3)==0)
-                return new Fingerprint(nameHash, destination, salt);
+        return generate(nameHash, destination, randomSource.nextInt(), NUM_SEARCH_THREADS);
+    }
+    
+    /**
+     * Searches for a valid salt on <code>numThreads</code> threads, starting at <code>firstSalt</code>.
+     * Thread <code>i</code> tries the salts <code>firstSalt+i</code>, <code>firstSalt+i+numThreads</code>,
+     * <code>firstSalt+i+2*numThreads</code>, etc., so no salt is tried twice.<br/>
+     * The result is the first valid salt after <code>firstSalt</code>, regardless of the number of threads
+     * and the order in which they finish, so it is deterministic for a given <code>firstSalt</code>.
+     * @param nameHash
+     * @param destination
+     * @param firstSalt
+     * @param numThreads
+     * @throws GeneralSecurityException
+     */
+    static Fingerprint generate(final Hash nameHash, final EmailDestination destination, final int firstSalt, final int numThreads) throws GeneralSecurityException {
+        final byte[] input = Util.concat(nameHash.toByteArray(), destination.toByteArray());
+        final AtomicLong bestOffset = new AtomicLong(Long.MAX_VALUE);   // offset from firstSalt of the lowest valid salt found so far
+        
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int i=0; i<numThreads; i++) {
+            final int threadIndex = i;
+            results.add(getSearchExecutor().submit(new Callable<Void>() {
+                @Override
+                public Void call() throws GeneralSecurityException {
+                    // stop when a valid salt at a lower offset has been found by any thread
+                    for (long offset=threadIndex; offset<bestOffset.get() && offset<=MAX_SALT_OFFSET; offset+=numThreads) {
+                        if (Thread.currentThread().isInterrupted())
+                            return null;
+                        byte[] salt = toSalt(firstSalt, offset);
+                        byte[] fingerprint = SCrypt.scrypt(input, salt, SCRYPT_PARAMETERS.N, SCRYPT_PARAMETERS.r, SCRYPT_PARAMETERS.p, NUM_FINGERPRINT_BYTES);
+                        if (fingerprint[NUM_FINGERPRINT_BYTES-1]==0 && (fingerprint[NUM_FINGERPRINT_BYTES-2]&3)==0) {
+                            long best;
+                            do {
+                                best = bestOffset.get();
+                            } while (offset<best && !bestOffset.compareAndSet(best, offset));
+                            return null;
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        
+        try {
+            for (Future<?> result: results)
+                result.get();
+        } catch (InterruptedException e) {
+            for (Future<?> result: results)
+                result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted while generating fingerprint", e);
+        } catch (ExecutionException e) {
+            for (Future<?> result: results)
+                result.cancel(true);
+            if (e.getCause() instanceof GeneralSecurityException)
+                throw (GeneralSecurityException)e.getCause();
+            throw new GeneralSecurityException("Can't generate fingerprint", e.getCause());
+        }
+        
+        long offset = bestOffset.get();
+        if (offset == Long.MAX_VALUE)
+            throw new GeneralSecurityException("No valid fingerprint salt exists for this destination.");   // practically impossible
+        return new Fingerprint(nameHash, destination, toSalt(firstSalt, offset));
+    }
+    
+    /** Converts <code>firstSalt+offset</code> to a big-endian byte array, wrapping around at 2<sup>32</sup>. */
+    private static byte[] toSalt(int firstSalt, long offset) {
+        return ByteBuffer.allocate(NUM_SALT_BYTES).putInt((int)(firstSalt + offset)).array();
+    }
+    
+    /**
+     * Returns the executor all fingerprint searches share. Threads are created on demand
+     * and terminate after being idle for a while, so the executor doesn't need to be shut down.
+     */
+    private static synchronized ExecutorService getSearchExecutor() {
+        if (searchExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(NUM_SEARCH_THREADS, NUM_SEARCH_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), Util.createThreadFactory("FingerprintGen", SEARCH_THREAD_STACK_SIZE));
+            executor.allowCoreThreadTimeOut(true);
+            searchExecutor = executor;
         }
+        return searchExecutor;
     }
     
     public byte[] getSalt() {
@@ -22,48 +22,62 @@
 package i2p.bote.email;
 
 import i2p.bote.I2PBote;
+import i2p.bote.Util;
 import i2p.bote.crypto.KeyUpdateHandler;
-import i2p.bote.fileencryption.DerivedKey;
-import i2p.bote.fileencryption.EncryptedInputStream;
-import i2p.bote.fileencryption.EncryptedOutputStream;
-import i2p.bote.fileencryption.FileEncryptionUtil;
 import i2p.bote.fileencryption.PasswordCache;
 import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.fileencryption.PasswordHolder;
+import i2p.bote.fileencryption.ReEncryptor;
+import i2p.bote.folder.RecordStore;
+import i2p.bote.util.DestinationIndex;
 import i2p.bote.util.ExportableData;
 import i2p.bote.util.SortedProperties;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
 import net.i2p.data.Hash;
 import net.i2p.util.Log;
-import net.i2p.util.SecureFileOutputStream;
 
 import com.lambdaworks.codec.Base64;
 
 /**
  * Holds a set of {@link EmailIdentity} objects that are sorted by name.<br/>
- * The Email Identities can be written to, and read from, a password-encrypted file.
+ * The Email Identities are stored in a password-encrypted {@link RecordStore},
+ * one record per identity, so saving only rewrites the identities that have
+ * changed. Pictures are stored separately and are only read when they are
+ * needed.
+ * <p/>
+ * Lookups by Email Destination, destination hash, or name use a
+ * {@link DestinationIndex}. When the name of an identity is changed,
+ * {@link #identityUpdated(String)} must be called to update the index.
+ * <p/>
+ * When a signature changes a private key, only the new key is written, to a
+ * {@link KeyStateJournal} in the record store directory. The journal is folded
+ * into the records the next time the identities are saved, or when it contains
+ * more than {@link #MAX_JOURNAL_RECORDS} records.
  */
 public class Identities extends ExportableData implements KeyUpdateHandler {
+    static final int MAX_JOURNAL_RECORDS = 20;
+    
+    private static final String JOURNAL_FILE_NAME = "keystate.journal";   // relative to the identities directory
+    private static final String PICTURE_FIELD = "picture";
     private static final String IDENTITY_PREFIX = "identity";
     private static final String PREF_KEY = "key";
     private static final String PREF_PUBLIC_NAME = "publicName";
@@ -73,25 +87,44 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
     private static final String PREF_TEXT = "text";
     private static final String PREF_PUBLISHED = "published";
     private static final String PREF_DEFAULT = "default";
+    private static final String PREF_IS_DEFAULT = "isDefault";   // used in records instead of PREF_DEFAULT
     private static final String CONFIGURATION_PREFIX = "configuration.";
 
     private Log log = new Log(Identities.class);
-    private File identitiesFile;
+    private File identitiesDir;
     private PasswordHolder passwordHolder;
     private Collection<IdentitiesListener> identitiesListeners;
-    private SortedSet<EmailIdentity> identities;   // null until file has been read successfully
+    private SortedSet<EmailIdentity> identities;   // null until the records have been read successfully
+    private DestinationIndex<EmailIdentity> destinationIndex;   // contains the same identities as the sorted set
     private EmailIdentity defaultIdentity;
+    private RecordStore recordStore;
+    private KeyStateJournal keyStateJournal;
+    private Set<String> savedIdentities;   // keys of the identities contained in the record store
 
     /**
-     * Constructs a new empty <code>Identities</code> object. The <code>identitiesFile</code>
-     * is lazy-loaded.
-     * @param identitiesFile
+     * Constructs a new empty <code>Identities</code> object. The identities
+     * in <code>identitiesDir</code> are lazy-loaded.
+     * @param identitiesDir
      * @param passwordHolder
      */
-    public Identities(File identitiesFile, PasswordHolder passwordHolder) {
-        this.identitiesFile = identitiesFile;
+    public Identities(File identitiesDir, PasswordHolder passwordHolder) {
+        this.identitiesDir = identitiesDir;
         this.passwordHolder = passwordHolder;
         identitiesListeners = new ArrayList<IdentitiesListener>();
+        destinationIndex = new IdentityIndex();
+        recordStore = new RecordStore(identitiesDir, passwordHolder);
+        keyStateJournal = new KeyStateJournal(getJournalFile(identitiesDir), passwordHolder);
+        savedIdentities = new HashSet<String>();
+    }
+    
+    /** Returns the location of the key state journal for a given identities directory. */
+    public static File getJournalFile(File identitiesDir) {
+        return new File(identitiesDir, JOURNAL_FILE_NAME);
+    }
+
+    /** Returns the ID of the record that stores a given identity. */
+    static String getRecordId(EmailDestination destination) {
+        return Util.toBase32(destination.getHash());
     }
 
     protected void initializeIfNeeded() throws PasswordException, IOException, GeneralSecurityException {
@@ -100,84 +133,106 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
     }
     
     /**
-     * Reads <code>Identities</code> from the encrypted identities file. Each identity
-     * is defined by one line that contains two to four tab-separated fields:<br/>
-     * Email Identity key, Public Name, Description, and Email Address.
-     * The first two are mandatory, the last two are optional.<br/>
-     * <p/>
-     * Additionally, the file can set a default Email Identity by including a
-     * line that starts with "Default ", followed by an Email Destination key.<br/>
-     * The destination key must match one of the Email Identities defined in
-     * the file.
+     * Reads <code>Identities</code> from the record store. Each record contains
+     * the keys, name, and settings of one Email Identity, and a flag that marks
+     * the default identity. Pictures are not read until they are needed.
      * <p/>
      * An Email Identity key consists of two public keys and two private keys, whereas
      * an Email Destination consists only of two public keys.
+     * <p/>
+     * Private keys that were changed since the records were last written are read
+     * from the key state journal.
      * @throws PasswordException 
      * @throws IOException 
      * @throws GeneralSecurityException 
      */
     private void readIdentities() throws PasswordException, IOException, GeneralSecurityException {
-        log.debug("Reading identities file: <" + identitiesFile.getAbsolutePath() + ">");
+        log.debug("Reading identities from <" + identitiesDir.getAbsolutePath() + ">");
         
-        if (!identitiesFile.exists()) {
-            log.debug("Identities file does not exist: <" + identitiesFile.getAbsolutePath() + ">");
-            identities = new TreeSet<EmailIdentity>(new IdentityComparator());
-            return;
+        Map<String, Properties> records = recordStore.readAll();
+        SortedSet<EmailIdentity> identities = new TreeSet<EmailIdentity>(new IdentityComparator());
+        EmailIdentity defaultIdentity = null;
+        for (Entry<String, Properties> entry: records.entrySet()) {
+            Properties record = entry.getValue();
+            EmailIdentity identity = readIdentity(record, "");
+            identity.setPictureSource(recordStore.getPictureSource(entry.getKey(), PICTURE_FIELD));
+            if ("true".equalsIgnoreCase(record.getProperty(PREF_IS_DEFAULT))) {
+                identity.setDefaultIdentity(true);
+                defaultIdentity = identity;
+            }
+            identities.add(identity);
         }
         
-        BufferedReader input = null;
-        try {
-            InputStream encryptedStream = new EncryptedInputStream(new FileInputStream(identitiesFile), passwordHolder);
-            input = new BufferedReader(new InputStreamReader(encryptedStream));
-            
-            // No PasswordException occurred, so read the input stream
-            Properties properties = new Properties();
-            properties.load(new InputStreamReader(encryptedStream));
+        this.identities = identities;
+        this.defaultIdentity = defaultIdentity;
+        destinationIndex.clear();
+        for (EmailIdentity identity: identities)
+            destinationIndex.add(identity);
+        
+        // the journal is kept even if there are no records, so it can be applied to imported identities
+        applyKeyStateJournal();
+        savedIdentities.clear();
+        for (EmailIdentity identity: identities)
+            savedIdentities.add(identity.getKey());
+    }
 
-            loadFromProperties(properties, false, false);
+    /** Replaces private signing keys with the newest states from the key state journal. */
+    private void applyKeyStateJournal() throws PasswordException, IOException, GeneralSecurityException {
+        Map<String, String> keyStates = keyStateJournal.read();
+        for (EmailIdentity identity: identities) {
+            String fullKey = keyStates.remove(identity.getKey());
+            if (fullKey != null)
+                identity.setPrivateSigningKey(new EmailIdentity(fullKey).getPrivateSigningKey());
         }
-        finally {
-            if (input != null)
-                try {
-                    input.close();
-                }
-                catch (IOException e) {
-                    log.error("Error closing input stream.", e);
-                }
+        if (!keyStates.isEmpty())
+            log.debug("Ignoring " + keyStates.size() + " key states for identities that are not in the record store.");
+    }
+
+    /**
+     * Imports identities in the export format and saves them. The newest key
+     * states from the key state journal are applied to the imported identities
+     * first, so an imported identity cannot sign with a key state that has
+     * been used before.
+     */
+    @Override
+    public boolean importFromProperties(Properties properties, boolean append, boolean replace) throws PasswordException, IOException, GeneralSecurityException {
+        synchronized(passwordHolder) {
+            initializeIfNeeded();
+            
+            if (loadFromProperties(properties, append, replace)) {
+                applyKeyStateJournal();
+                save();
+                return true;
+            } else
+                return false;
         }
     }
 
     protected boolean loadFromProperties(Properties properties, boolean append, boolean replace) throws GeneralSecurityException {
         String defaultIdentityStr = properties.getProperty(PREF_DEFAULT);
-        if (identities == null || !append)
+        if (identities == null || !append) {
             identities = new TreeSet<EmailIdentity>(new IdentityComparator());
+            destinationIndex.clear();
+        }
         int index = 0;
         while (true) {
             String prefix = IDENTITY_PREFIX + index + ".";
-            String key = properties.getProperty(prefix + PREF_KEY);
-            if (key == null)
+            if (properties.getProperty(prefix + PREF_KEY) == null)
                 break;
 
-            EmailIdentity identity = new EmailIdentity(key);
-            identity.setDescription(properties.getProperty(prefix + PREF_DESCRIPTION));
+            EmailIdentity identity = readIdentity(properties, prefix);
             String pictureBase64 = properties.getProperty(prefix + PREF_PICTURE);
             if (pictureBase64!=null && !pictureBase64.isEmpty())
                 identity.setPictureBase64(pictureBase64);
-            identity.setText(properties.getProperty(prefix + PREF_TEXT));
-            identity.setPublished("true".equalsIgnoreCase(properties.getProperty(prefix + PREF_PUBLISHED)));
-            String name = properties.getProperty(prefix + PREF_PUBLIC_NAME);
-            identity.setPublicName(name);
-            String salt = properties.getProperty(prefix + PREF_SALT);
-            if (salt != null) {
-                Hash nameHash = EmailIdentity.calculateHash(name);
-                Fingerprint fingerprint = new Fingerprint(nameHash, identity, Base64.decode(salt.toCharArray()));
-                identity.setFingerprint(fingerprint);
-            }
-            identity.loadConfig(properties, prefix + CONFIGURATION_PREFIX, true);
 
-            if (append && replace && identities.contains(identity))
-                identities.remove(identity);
-            identities.add(identity);
+            // an identity that is already present is kept unless it is to be replaced
+            EmailIdentity existing = destinationIndex.get(identity.getKey());
+            if (existing == null || replace) {
+                if (existing != null)
+                    removeFromSortedSet(existing);
+                identities.add(identity);
+                destinationIndex.add(identity);
+            }
 
             if (identity.getKey().equals(defaultIdentityStr)) {
                 identity.setDefaultIdentity(true);
@@ -189,19 +244,71 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
         return index > 0;
     }
 
-    /** Saves all identities to file. */
+    /**
+     * Creates an <code>EmailIdentity</code> from properties whose names start
+     * with a given prefix. The picture is not read.
+     */
+    private EmailIdentity readIdentity(Properties properties, String prefix) throws GeneralSecurityException {
+        EmailIdentity identity = new EmailIdentity(properties.getProperty(prefix + PREF_KEY));
+        identity.setDescription(properties.getProperty(prefix + PREF_DESCRIPTION));
+        identity.setText(properties.getProperty(prefix + PREF_TEXT));
+        identity.setPublished("true".equalsIgnoreCase(properties.getProperty(prefix + PREF_PUBLISHED)));
+        String name = properties.getProperty(prefix + PREF_PUBLIC_NAME);
+        identity.setPublicName(name);
+        String salt = properties.getProperty(prefix + PREF_SALT);
+        if (salt != null) {
+            Hash nameHash = EmailIdentity.calculateHash(name);
+            Fingerprint fingerprint = new Fingerprint(nameHash, identity, Base64.decode(salt.toCharArray()));
+            identity.setFingerprint(fingerprint);
+        }
+        identity.loadConfig(properties, prefix + CONFIGURATION_PREFIX, true);
+        return identity;
+    }
+
+    /**
+     * Saves all identities that have changed since they were last read or saved,
+     * deletes the records of removed identities, and deletes the key state journal.<br/>
+     * All changes are committed together, so a crash cannot leave a partially
+     * saved set of identities behind (see {@link RecordStore}).
+     */
     public void save() throws IOException, GeneralSecurityException, PasswordException {
-        initializeIfNeeded();
+        synchronized(passwordHolder) {
+            initializeIfNeeded();
             
-        OutputStream encryptedStream = new EncryptedOutputStream(new SecureFileOutputStream(identitiesFile), passwordHolder);
-        try {
-            Properties properties = saveToProperties();
-            properties.store(new OutputStreamWriter(encryptedStream, "UTF-8"), null);
-        } catch (IOException e) {
-            log.error("Can't save email identities to file <" + identitiesFile.getAbsolutePath() + ">.", e);
-            throw e;
-        } finally {
-            encryptedStream.close();
+            RecordStore.Transaction transaction = recordStore.beginTransaction();
+            Set<String> recordIds = new HashSet<String>();
+            for (EmailIdentity identity: identities) {
+                String recordId = getRecordId(identity);
+                recordIds.add(recordId);
+                
+                Properties record = new Properties();
+                writeIdentity(identity, record, "");
+                if (identity.isDefaultIdentity())
+                    record.setProperty(PREF_IS_DEFAULT, "true");
+                transaction.putRecord(recordId, record);
+                
+                // a picture that hasn't been loaded can't have changed
+                if (identity.getPictureSource() == null) {
+                    byte[] picture = identity.getPicture();
+                    transaction.putLargeField(recordId, PICTURE_FIELD, picture==null||picture.length==0 ? null : picture);
+                }
+            }
+            for (String recordId: recordStore.getRecordIds())
+                if (!recordIds.contains(recordId))
+                    transaction.deleteRecord(recordId);
+            
+            try {
+                transaction.commit();
+            } catch (IOException e) {
+                log.error("Can't save email identities to <" + identitiesDir.getAbsolutePath() + ">.", e);
+                throw e;
+            }
+            
+            savedIdentities.clear();
+            for (EmailIdentity identity: identities)
+                savedIdentities.add(identity.getKey());
+            // all key states in the journal are in the record store now
+            keyStateJournal.delete();
         }
     }
 
@@ -214,20 +321,9 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
                 defaultIdentityStr = identity.getKey();
 
             String prefix = IDENTITY_PREFIX + index + ".";
-            String name = identity.getPublicName();
-            properties.setProperty(prefix + PREF_PUBLIC_NAME, name==null ? "" : name);
-            properties.setProperty(prefix + PREF_KEY, identity.getFullKey());
-            Fingerprint fingerprint = identity.getFingerprint();
-            byte[] salt = fingerprint==null ? null : fingerprint.getSalt();
-            properties.setProperty(prefix + PREF_SALT, salt==null ? "" : new String(Base64.encode(salt)));
-            String description = identity.getDescription();
-            properties.setProperty(prefix + PREF_DESCRIPTION, (description==null ? "" : description));
+            writeIdentity(identity, properties, prefix);
             String pictureBase64 = identity.getPictureBase64();
             properties.setProperty(prefix + PREF_PICTURE, (pictureBase64==null ? "" : pictureBase64));
-            String text = identity.getText();
-            properties.setProperty(prefix + PREF_TEXT, (text==null ? "" : text));
-            properties.setProperty(prefix + PREF_PUBLISHED, identity.isPublished() ? "true" : "false");
-            properties.putAll(identity.saveConfig(prefix + CONFIGURATION_PREFIX));
             
             index++;
         }
@@ -238,12 +334,35 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
         return properties;
     }
     
+    /**
+     * Writes an <code>EmailIdentity</code> to properties whose names start with
+     * a given prefix. The picture is not written.
+     */
+    private void writeIdentity(EmailIdentity identity, Properties properties, String prefix) throws GeneralSecurityException {
+        String name = identity.getPublicName();
+        properties.setProperty(prefix + PREF_PUBLIC_NAME, name==null ? "" : name);
+        properties.setProperty(prefix + PREF_KEY, identity.getFullKey());
+        Fingerprint fingerprint = identity.getFingerprint();
+        byte[] salt = fingerprint==null ? null : fingerprint.getSalt();
+        properties.setProperty(prefix + PREF_SALT, salt==null ? "" : new String(Base64.encode(salt)));
+        String description = identity.getDescription();
+        properties.setProperty(prefix + PREF_DESCRIPTION, (description==null ? "" : description));
+        String text = identity.getText();
+        properties.setProperty(prefix + PREF_TEXT, (text==null ? "" : text));
+        properties.setProperty(prefix + PREF_PUBLISHED, identity.isPublished() ? "true" : "false");
+        properties.putAll(identity.saveConfig(prefix + CONFIGURATION_PREFIX));
+    }
+    
     public void add(EmailIdentity identity) throws PasswordException, IOException, GeneralSecurityException {
         initializeIfNeeded();
         
         if (identities.isEmpty())
             identity.setDefaultIdentity(true);
+        EmailIdentity existing = destinationIndex.get(identity.getKey());
+        if (existing != null)
+            removeFromSortedSet(existing);
         identities.add(identity);
+        destinationIndex.add(identity);
 
         for (IdentitiesListener listener : identitiesListeners)
             listener.identityAdded(identity.getKey());
@@ -252,31 +371,38 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
     public void remove(String key) throws PasswordException, IOException, GeneralSecurityException {
         initializeIfNeeded();
         
-        EmailIdentity identity = get(key);
+        EmailIdentity identity = destinationIndex.remove(key);
         if (identity != null) {
-            identities.remove(identity);
+            removeFromSortedSet(identity);
             
             // if we deleted the default identity, set a new default
             if (identity.isDefaultIdentity() && !identities.isEmpty())
                 identities.iterator().next().setDefaultIdentity(true);
             
-            // when the last identity is deleted, remove the file; see isEmpty()
-            if (identities.isEmpty() && !identitiesFile.delete())
-                log.error("Can't delete file: " + identitiesFile.getAbsolutePath());
-
             for (IdentitiesListener listener : identitiesListeners)
                 listener.identityRemoved(key);
         }
     }
     
-    public void changePassword(byte[] oldPassword, DerivedKey newKey) throws FileNotFoundException, IOException, GeneralSecurityException, PasswordException {
-        if (identitiesFile.exists())
-            FileEncryptionUtil.changePassword(identitiesFile, oldPassword, newKey);
+    /**
+     * Schedules the identity records for re-encryption, and re-encrypts the
+     * key state journal.
+     * @param reEncryptor
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public void changePassword(ReEncryptor reEncryptor) throws IOException, GeneralSecurityException, PasswordException {
+        recordStore.changePassword(reEncryptor);
+        keyStateJournal.changePassword(reEncryptor);
     }
     
     public void clearPasswordProtectedData() {
         // TODO overwrite private keys
         identities = null;
+        destinationIndex.clear();
+        savedIdentities.clear();
+        recordStore.clearPasswordProtectedData();
     }
     
     /**
@@ -330,11 +456,7 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
         if (identities == null)
             return null;
         
-        for (EmailIdentity identity: identities)
-            if (identity.getPublicEncryptionKey().equals(destination.getPublicEncryptionKey())
-                    && identity.getPublicSigningKey().equals(destination.getPublicSigningKey()))
-                return identity;
-        return null;
+        return destinationIndex.get(destination.getKey());
     }
     
     /**
@@ -352,10 +474,37 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
         if (identities == null)
             return null;
         
-        for (EmailIdentity identity: identities)
-            if (identity.getKey().equals(key))
-                return identity;
-        return null;
+        return destinationIndex.get(key);
+    }
+    
+    /**
+     * Looks up an {@link EmailIdentity} by the hash of its Email Destination
+     * (see {@link EmailDestination#getHash()}).<br/>
+     * Returns <code>null</code> if nothing is found.
+     * @param destinationHash
+     * @throws PasswordException
+     * @throws GeneralSecurityException 
+     * @throws IOException 
+     */
+    public EmailIdentity getByHash(Hash destinationHash) throws PasswordException, IOException, GeneralSecurityException {
+        initializeIfNeeded();
+        
+        if (identities == null)
+            return null;
+        
+        return destinationIndex.getByHash(destinationHash);
+    }
+    
+    /**
+     * Returns all identities with a given public name, ignoring case.
+     * @param name
+     * @throws PasswordException
+     * @throws GeneralSecurityException 
+     * @throws IOException 
+     */
+    public List<EmailIdentity> getByName(String name) throws PasswordException, IOException, GeneralSecurityException {
+        initializeIfNeeded();
+        return destinationIndex.getByName(name);
     }
     
     public Collection<EmailIdentity> getAll() throws PasswordException, IOException, GeneralSecurityException {
@@ -364,16 +513,16 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
     }
     
     /**
-     * This method relies on the fact that the identities file only exists when
-     * there is at least one identity. It does not attempt to read the file and
-     * does not throw {@link PasswordException}.
+     * This method does not attempt to decrypt the identities and does not
+     * throw {@link PasswordException}. If the identities haven't been read yet,
+     * it looks for records in the record store.
      * @return <code>true</code> if there are no identities, <code>false</code> otherwise
      */
     public boolean isNone() {
         if (identities != null)
             return identities.isEmpty();
         else
-            return !identitiesFile.exists();
+            return !recordStore.hasRecords();
     }
     
     /**
@@ -388,14 +537,10 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
     public boolean contains(String base64Dest) throws PasswordException, IOException, GeneralSecurityException {
         initializeIfNeeded();
         
-        if (identities==null || base64Dest==null)
+        if (identities == null)
             return false;
         
-        for (EmailIdentity identity: identities)
-            if (base64Dest.equals(identity.toBase64()))
-                return true;
-        
-        return false;
+        return destinationIndex.contains(base64Dest);
     }
     
     public int size() throws PasswordException, IOException, GeneralSecurityException {
@@ -434,6 +579,31 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
         return identities.iterator();
     }
 
+    /**
+     * Removes an identity from the sorted set. This works even if the name has
+     * changed since the identity was added, which <code>TreeSet.remove()</code> doesn't.
+     */
+    private void removeFromSortedSet(EmailIdentity identity) {
+        if (!identities.remove(identity))
+            for (Iterator<EmailIdentity> iterator=identities.iterator(); iterator.hasNext(); )
+                if (iterator.next() == identity) {
+                    iterator.remove();
+                    break;
+                }
+    }
+    
+    private static class IdentityIndex extends DestinationIndex<EmailIdentity> {
+        @Override
+        protected EmailDestination getDestination(EmailIdentity identity) {
+            return identity;
+        }
+        
+        @Override
+        protected String getName(EmailIdentity identity) {
+            return identity.getPublicName();
+        }
+    }
+
     /**
      * Compares two email identities by name and email destination.
      */
@@ -464,12 +634,46 @@ public class Identities extends ExportableData implements KeyUpdateHandler {
         }
     }
 
+    /**
+     * Appends the new state of a private signing key to the key state journal.
+     * If the identity isn't in the record store yet, or the journal has grown
+     * too large, the identities are saved instead.
+     */
     @Override
-    public void updateKey() throws GeneralSecurityException, PasswordException, IOException {
-        save();
+    public void updateKey(PrivateKey privateKey) throws GeneralSecurityException, PasswordException, IOException {
+        synchronized(passwordHolder) {
+            initializeIfNeeded();
+            
+            EmailIdentity identity = null;
+            for (EmailIdentity candidate: identities)
+                if (candidate.getPrivateSigningKey() == privateKey) {
+                    identity = candidate;
+                    break;
+                }
+            
+            if (identity==null || !savedIdentities.contains(identity.getKey()))
+                save();
+            else {
+                keyStateJournal.append(identity);
+                if (keyStateJournal.getNumRecords() > MAX_JOURNAL_RECORDS)
+                    save();
+            }
+        }
     }
 
+    /**
+     * Re-sorts and re-indexes an identity after its name has changed, and
+     * notifies listeners.
+     * @param key
+     */
     public void identityUpdated(String key) {
+        EmailIdentity identity = destinationIndex.get(key);
+        if (identity != null) {
+            removeFromSortedSet(identity);
+            identities.add(identity);
+            destinationIndex.update(identity);
+        }
+        
         for (IdentitiesListener listener : identitiesListeners)
             listener.identityUpdated(key);
     }
@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package i2p.bote.email;
+
+import i2p.bote.fileencryption.DerivedKey;
+import i2p.bote.fileencryption.EncryptedInputStream;
+import i2p.bote.fileencryption.EncryptedOutputStream;
+import i2p.bote.fileencryption.PasswordException;
+import i2p.bote.fileencryption.PasswordHolder;
+import i2p.bote.fileencryption.ReEncryptor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ * An append-only file that records the current private keys of Email Identities
+ * whose signing key changes with every signature (see
+ * {@link i2p.bote.crypto.NTRUEncrypt1087_GMSS512}), so a signature doesn't
+ * require rewriting the whole identities file.<br/>
+ * {@link Identities} replays the journal on top of the identities file when it
+ * reads the file, and deletes the journal when it writes the file.
+ * <p/>
+ * A record is forced to disk before {@link #append(EmailIdentity)} returns.
+ * Because a signature is only handed out after the new key state has been
+ * persisted, a key state that was used for a signature cannot be read back
+ * after a crash. A record that was only partially written is cut off the
+ * end of the file the next time the journal is read.
+ * <p/>
+ * File format: a sequence of records, each consisting of a 4-byte length
+ * followed by the record data, encrypted with the identities password
+ * (see {@link EncryptedOutputStream}). Decrypted, a record contains:
+ * <pre>
+ * Field           Length          Description
+ * ---------------------------------------------------------------------------
+ * Version         1 byte          Record format version (currently 1)
+ * Identity        UTF string      The Base64 key of the Email Identity
+ *                                 (see {@link EmailIdentity#getKey()})
+ * Key length      4 bytes         Length of the full key in bytes
+ * Full key        variable        The Base64 public and private keys, UTF-8
+ *                                 encoded (see {@link EmailIdentity#getFullKey()})
+ * </pre>
+ * If there is more than one record for an identity, the last one is valid.
+ * <p/>
+ * This class is thread-safe. Like {@link i2p.bote.folder.MetadataJournal}, it
+ * synchronizes on the {@link PasswordHolder} so it cannot deadlock with a
+ * password change.
+ */
+class KeyStateJournal {
+    private static final int RECORD_FORMAT_VERSION = 1;
+    
+    private Log log = new Log(KeyStateJournal.class);
+    private File journalFile;
+    private PasswordHolder passwordHolder;
+    private int numRecords = -1;   // the number of records in the journal file; -1 if not known yet
+    
+    KeyStateJournal(File journalFile, PasswordHolder passwordHolder) {
+        this.journalFile = journalFile;
+        this.passwordHolder = passwordHolder;
+    }
+    
+    /**
+     * Reads all records from the journal file and returns the newest full key
+     * for each identity. If the last record is incomplete, it is removed from
+     * the file.
+     * @return a map from identity keys ({@link EmailIdentity#getKey()}) to full keys
+     *         ({@link EmailIdentity#getFullKey()})
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    Map<String, String> read() throws IOException, GeneralSecurityException, PasswordException {
+        synchronized(passwordHolder) {
+            return read(null);
+        }
+    }
+    
+    /**
+     * Appends the current full key of an Email Identity to the journal file and
+     * waits for the record to be written to disk.
+     * @param identity
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    void append(EmailIdentity identity) throws IOException, GeneralSecurityException, PasswordException {
+        byte[] record = encrypt(identity.getKey(), identity.getFullKey(), null);
+        
+        synchronized(passwordHolder) {
+            if (numRecords < 0)
+                read(null);
+            
+            SecureFileOutputStream fileStream = new SecureFileOutputStream(journalFile, true);
+            try {
+                DataOutputStream output = new DataOutputStream(fileStream);
+                output.writeInt(record.length);
+                output.write(record);
+                output.flush();
+                fileStream.getFD().sync();
+            }
+            finally {
+                fileStream.close();
+            }
+            numRecords++;
+        }
+    }
+    
+    /**
+     * Returns the number of records in the journal file.
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    int getNumRecords() throws IOException, GeneralSecurityException, PasswordException {
+        synchronized(passwordHolder) {
+            if (numRecords < 0)
+                read(null);
+            return numRecords;
+        }
+    }
+    
+    /**
+     * Deletes the journal file. This method should be called after all key
+     * states in the journal have been written to the identities file.
+     */
+    void delete() {
+        synchronized(passwordHolder) {
+            if (journalFile.exists() && !journalFile.delete())
+                log.error("Can't delete key state journal: <" + journalFile.getAbsolutePath() + ">");
+            numRecords = 0;
+        }
+    }
+    
+    /**
+     * Re-encrypts the journal file with a new password. The new file
+     * contains one record per identity.
+     * @param reEncryptor
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    void changePassword(ReEncryptor reEncryptor) throws IOException, GeneralSecurityException, PasswordException {
+        synchronized(passwordHolder) {
+            if (reEncryptor.isDone(journalFile) || !journalFile.exists())
+                return;
+            
+            Map<String, String> keys = read(reEncryptor);
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            DataOutputStream dataStream = new DataOutputStream(byteStream);
+            for (Map.Entry<String, String> entry: keys.entrySet()) {
+                byte[] record = encrypt(entry.getKey(), entry.getValue(), reEncryptor.getNewKey());
+                dataStream.writeInt(record.length);
+                dataStream.write(record);
+            }
+            reEncryptor.replace(journalFile, byteStream.toByteArray());
+            numRecords = keys.size();
+        }
+    }
+    
+    /**
+     * @param reEncryptor For decrypting with the old password during a password change,
+     *         or <code>null</code> to use the {@link PasswordHolder}
+     */
+    private Map<String, String> read(ReEncryptor reEncryptor) throws IOException, GeneralSecurityException, PasswordException {
+        Map<String, String> keys = new LinkedHashMap<String, String>();
+        numRecords = 0;
+        if (!journalFile.exists())
+            return keys;
+        
+        log.debug("Reading key state journal: <" + journalFile.getAbsolutePath() + ">");
+        long validLength = 0;   // the length of the complete records
+        boolean incompleteRecord = false;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                }
+                catch (EOFException e) {
+                    // a partially written length field counts as an incomplete record
+                    incompleteRecord = validLength < journalFile.length();
+                    break;
+                }
+                byte[] encryptedRecord = new byte[length];
+                try {
+                    input.readFully(encryptedRecord);
+                }
+                catch (EOFException e) {
+                    incompleteRecord = true;
+                    break;
+                }
+                
+                validLength += 4 + length;
+                numRecords++;
+                // don't skip unreadable records; falling back to an older key state could mean reusing it
+                decrypt(encryptedRecord, reEncryptor, keys);
+            }
+        }
+        finally {
+            input.close();
+        }
+        
+        // cut off the incomplete record so new records aren't appended to it
+        if (incompleteRecord && reEncryptor==null) {
+            log.warn("Removing incomplete record from the end of the key state journal: <" + journalFile.getAbsolutePath() + ">");
+            RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+            try {
+                file.setLength(validLength);
+                file.getFD().sync();
+            }
+            finally {
+                file.close();
+            }
+        }
+        
+        return keys;
+    }
+    
+    /** Decrypts a record and adds its contents to a map */
+    private void decrypt(byte[] encryptedRecord, ReEncryptor reEncryptor, Map<String, String> keys) throws IOException, GeneralSecurityException, PasswordException {
+        InputStream decryptedStream;
+        if (reEncryptor == null)
+            decryptedStream = new EncryptedInputStream(new ByteArrayInputStream(encryptedRecord), passwordHolder);
+        else
+            decryptedStream = new ByteArrayInputStream(reEncryptor.decrypt(encryptedRecord));
+        DataInputStream dataStream = new DataInputStream(decryptedStream);
+        
+        int version = dataStream.read();
+        if (version != RECORD_FORMAT_VERSION)
+            throw new IOException("Unsupported key state journal record version: " + version);
+        String identityKey = dataStream.readUTF();
+        byte[] fullKey = new byte[dataStream.readInt()];
+        dataStream.readFully(fullKey);
+        
+        // remove first so the map is ordered by the time of the last update
+        keys.remove(identityKey);
+        keys.put(identityKey, new String(fullKey, "UTF-8"));
+    }
+    
+    /**
+     * Encrypts an identity key and a full key into a record.
+     * @param key The key to encrypt with, or <code>null</code> to use the {@link PasswordHolder}
+     */
+    private byte[] encrypt(String identityKey, String fullKey, DerivedKey key) throws IOException, GeneralSecurityException, PasswordException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        OutputStream encryptedStream;
+        if (key == null)
+            encryptedStream = new EncryptedOutputStream(byteStream, passwordHolder);
+        else
+            encryptedStream = new EncryptedOutputStream(byteStream, key);
+        DataOutputStream dataStream = new DataOutputStream(encryptedStream);
+        
+        dataStream.write(RECORD_FORMAT_VERSION);
+        dataStream.writeUTF(identityKey);
+        byte[] fullKeyBytes = fullKey.getBytes("UTF-8");
+        dataStream.writeInt(fullKeyBytes.length);
+        dataStream.write(fullKeyBytes);
+        dataStream.close();
+        return byteStream.toByteArray();
+    }
+}
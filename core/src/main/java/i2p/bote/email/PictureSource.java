@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.email;
+
+/**
+ * Supplies a picture that has not been loaded into memory yet. Used by
+ * {@link EmailIdentity} and {@link i2p.bote.packet.dht.Contact} so pictures
+ * are only read from disk when they are needed.
+ */
+public interface PictureSource {
+
+    /**
+     * Returns the picture, or <code>null</code> if there is no picture or it
+     * can't be read.
+     */
+    byte[] loadPicture();
+}
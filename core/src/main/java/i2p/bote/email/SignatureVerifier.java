@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.email;
+
+import i2p.bote.Util;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+
+import net.i2p.util.Log;
+
+/**
+ * Verifies the signatures of incoming emails on a bounded pool of threads,
+ * so a batch of emails that arrive together is verified in parallel.<br/>
+ * The result is stored in the email's header and metadata (see {@link Email#setSignatureFlag()}),
+ * so an email is not verified again when it is displayed.
+ * <p/>
+ * Decoding the sender's Email Destination is expensive for some
+ * {@link i2p.bote.crypto.CryptoImplementation}s, and the same senders tend to
+ * send many emails, so decoded destinations are cached by sender address.
+ * <p/>
+ * This class is thread-safe, but each <code>Email</code> must only be passed to
+ * it by one thread at a time, and must not be modified until it has been verified.
+ */
+public class SignatureVerifier {
+    private static final int MAX_CACHED_DESTINATIONS = 256;
+    private static final int THREAD_STACK_SIZE = 256 * 1024;
+    
+    private Log log = new Log(SignatureVerifier.class);
+    private ExecutorService executor;
+    private Map<String, EmailDestination> senderDestinations;   // maps "from" addresses to decoded destinations, least recently used first
+    
+    /** Creates a <code>SignatureVerifier</code> with one thread per processor. */
+    public SignatureVerifier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * @param numThreads The maximum number of signatures that are verified at the same time
+     */
+    public SignatureVerifier(int numThreads) {
+        // threads terminate when idle
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(numThreads, numThreads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+                Util.createThreadFactory("VerifySig", THREAD_STACK_SIZE));
+        threadPool.allowCoreThreadTimeOut(true);
+        executor = threadPool;
+        
+        senderDestinations = new LinkedHashMap<String, EmailDestination>(16, 0.75f, true) {
+            private static final long serialVersionUID = -6270339170153962946L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, EmailDestination> eldest) {
+                return size() > MAX_CACHED_DESTINATIONS;
+            }
+        };
+    }
+    
+    /**
+     * Verifies the signatures of a number of emails in parallel and sets the
+     * signature flag of each email. Returns when all emails have been verified.
+     * @param emails
+     * @throws InterruptedException
+     */
+    public void verifyAll(Collection<Email> emails) throws InterruptedException {
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (final Email email: emails)
+            results.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    verify(email);
+                }
+            }));
+        
+        for (Future<?> result: results)
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                log.error("Exception while verifying an email signature.", e.getCause());
+            }
+    }
+    
+    /**
+     * Verifies the signature of an email on the current thread and sets the
+     * signature flag.
+     * @param email
+     */
+    public void verify(Email email) {
+        email.setSignatureFlag(getSenderDestination(email));
+    }
+    
+    /**
+     * Returns the decoded Email Destination of an email's sender, or <code>null</code>
+     * if the email has no valid sender. In the latter case, the signature will not
+     * verify either.
+     */
+    private EmailDestination getSenderDestination(Email email) {
+        String sender;
+        try {
+            sender = email.getOneFromAddress();
+        } catch (MessagingException e) {
+            log.debug("Can't read sender address.", e);
+            return null;
+        }
+        if (sender == null)
+            return null;
+        
+        synchronized(senderDestinations) {
+            EmailDestination destination = senderDestinations.get(sender);
+            if (destination != null)
+                return destination;
+        }
+        try {
+            EmailDestination destination = new EmailDestination(sender);
+            synchronized(senderDestinations) {
+                senderDestinations.put(sender, destination);
+            }
+            return destination;
+        } catch (GeneralSecurityException e) {
+            log.debug("Can't decode sender destination: <" + sender + ">", e);
+            return null;
+        }
+    }
+    
+    /** Stops the threads. Emails that are waiting to be verified are not verified. */
+    public void shutDown() {
+        executor.shutdownNow();
+    }
+}
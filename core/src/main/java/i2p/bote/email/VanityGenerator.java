@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.email;
+
+import i2p.bote.Util;
+import i2p.bote.crypto.CryptoImplementation;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyException;
+import java.security.KeyPair;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.util.Log;
+
+/**
+ * Generates encryption key pairs until one is found whose Base64-encoded public key
+ * starts with a given prefix. Key pairs are generated on several threads at once,
+ * so all processor cores can be used.<br/>
+ * The search can be cancelled, and the number of attempts per second and an
+ * estimate of the remaining time are available while it is running.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class VanityGenerator {
+    private static final int THREAD_STACK_SIZE = 256 * 1024;
+    private static final int BASE64_CHARS = 64;
+
+    private Log log = new Log(VanityGenerator.class);
+    private CryptoImplementation cryptoImpl;
+    private String prefix;
+    private int numThreads;
+    private ExecutorService executor;
+    private AtomicLong numAttempts;
+    private CountDownLatch doneSignal;
+    private volatile boolean cancelled;
+    private KeyPair keyPair;
+    private GeneralSecurityException failure;
+    private long startTime;
+
+    /**
+     * Creates a <code>VanityGenerator</code> that uses one thread per processor.
+     * @param cryptoImpl
+     * @param prefix Base64 chars the public encryption key should start with
+     * @throws IllegalDestinationParametersException if <code>cryptoImpl</code> and <code>prefix</code> aren't compatible
+     */
+    public VanityGenerator(CryptoImplementation cryptoImpl, String prefix) throws IllegalDestinationParametersException {
+        this(cryptoImpl, prefix, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param cryptoImpl
+     * @param prefix Base64 chars the public encryption key should start with
+     * @param numThreads The number of threads to generate keys on
+     * @throws IllegalDestinationParametersException if <code>cryptoImpl</code> and <code>prefix</code> aren't compatible
+     */
+    public VanityGenerator(CryptoImplementation cryptoImpl, String prefix, int numThreads) throws IllegalDestinationParametersException {
+        if (prefix==null || prefix.isEmpty())
+            throw new IllegalArgumentException("The vanity prefix must contain at least one character.");
+        if (numThreads < 1)
+            throw new IllegalArgumentException("Invalid number of threads: " + numThreads);
+        String initialChars = cryptoImpl.getBase64InitialCharacters();
+        if (!initialChars.contains(prefix.substring(0, 1)))
+            throw new IllegalDestinationParametersException(prefix.charAt(0), initialChars);
+        
+        this.cryptoImpl = cryptoImpl;
+        this.prefix = prefix;
+        this.numThreads = numThreads;
+        numAttempts = new AtomicLong();
+        doneSignal = new CountDownLatch(1);
+    }
+
+    /** Starts generating keys in the background. This method can only be called once. */
+    public synchronized void start() {
+        if (executor != null)
+            throw new IllegalStateException("VanityGenerator has been started already.");
+        startTime = System.currentTimeMillis();
+        executor = Executors.newFixedThreadPool(numThreads, Util.createThreadFactory("VanityGen", THREAD_STACK_SIZE));
+        for (int i=0; i<numThreads; i++)
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    search();
+                }
+            });
+        executor.shutdown();
+    }
+
+    private void search() {
+        try {
+            while (!isDone() && !Thread.currentThread().isInterrupted()) {
+                KeyPair encryptionKeys = cryptoImpl.generateEncryptionKeyPair();
+                numAttempts.incrementAndGet();
+                if (cryptoImpl.encryptionKeyToBase64(encryptionKeys.getPublic()).startsWith(prefix)) {
+                    finish(encryptionKeys, null);
+                    return;
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            log.error("Can't generate encryption key pair for CryptoImplementation <" + cryptoImpl.getName() + ">", e);
+            finish(null, e);
+        }
+    }
+
+    /** Records the result of the search and stops all threads, unless another thread did so first. */
+    private synchronized void finish(KeyPair keyPair, GeneralSecurityException failure) {
+        if (isDone())
+            return;
+        this.keyPair = keyPair;
+        this.failure = failure;
+        doneSignal.countDown();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Stops the search. Threads that are waiting in {@link #getKeyPair()} are woken up.
+     * Has no effect if a matching key pair has been found already.
+     */
+    public synchronized void cancel() {
+        if (isDone())
+            return;
+        cancelled = true;
+        doneSignal.countDown();
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** Returns <code>true</code> if a key pair has been found, the search failed, or it was cancelled. */
+    public boolean isDone() {
+        return doneSignal.getCount() == 0;
+    }
+
+    /**
+     * Waits for the search to finish.
+     * @param timeout
+     * @param unit
+     * @return <code>true</code> if the search is done, <code>false</code> if the timeout elapsed first
+     * @throws InterruptedException
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return doneSignal.await(timeout, unit);
+    }
+
+    /**
+     * Waits for the search to finish and returns the key pair that was found.
+     * @throws KeyException if the search was cancelled or the current thread was interrupted
+     * @throws GeneralSecurityException if key generation failed
+     */
+    public KeyPair getKeyPair() throws GeneralSecurityException {
+        try {
+            doneSignal.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeyException("Interrupted while generating a vanity key pair", e);
+        }
+        synchronized(this) {
+            if (failure != null)
+                throw failure;
+            if (keyPair == null)
+                throw new KeyException("Vanity key pair generation was cancelled.");
+            return keyPair;
+        }
+    }
+
+    /** Returns the number of key pairs generated so far. */
+    public long getNumAttempts() {
+        return numAttempts.get();
+    }
+
+    /** Returns the number of key pairs generated per second since {@link #start()} was called. */
+    public synchronized double getAttemptsPerSecond() {
+        if (executor == null)
+            return 0;
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (elapsed <= 0)
+            return 0;
+        return numAttempts.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * Returns the average number of key pairs that have to be generated to find one
+     * that matches the prefix, assuming the first Base64 char is uniformly distributed
+     * over {@link CryptoImplementation#getBase64InitialCharacters()} and the others over
+     * all 64 Base64 chars.
+     */
+    public double getExpectedAttempts() {
+        double expected = cryptoImpl.getBase64InitialCharacters().length();
+        for (int i=1; i<prefix.length(); i++)
+            expected *= BASE64_CHARS;
+        return expected;
+    }
+
+    /**
+     * Returns the estimated number of milliseconds until a matching key pair is found,
+     * or <code>-1</code> if no estimate is available yet.<br/>
+     * Because every attempt is independent of the previous ones, the estimate does not
+     * decrease as the search goes on; it only changes with the attempt rate.
+     */
+    public long getEstimatedTimeRemaining() {
+        if (isDone())
+            return 0;
+        double attemptsPerSecond = getAttemptsPerSecond();
+        if (attemptsPerSecond <= 0)
+            return -1;
+        return (long)(getExpectedAttempts() / attemptsPerSecond * 1000);
+    }
+}
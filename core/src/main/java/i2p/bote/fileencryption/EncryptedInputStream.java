@@ -58,8 +58,7 @@ public class EncryptedInputStream extends FilterInputStream {
         if (password == null)
             throw new PasswordException();
         
-        DerivedKey cachedKey = passwordHolder.getKey();
-        byte[] bytes = readInputStream(upstream, password, cachedKey);
+        byte[] bytes = readInputStream(upstream, password, passwordHolder);
         decryptedData = new ByteArrayInputStream(bytes);
     }
     
@@ -70,18 +69,20 @@ public class EncryptedInputStream extends FilterInputStream {
     }
     
     /**
-     * If <code>cachedKey</code> is not <code>null</code>, this method assumes the
-     * key has been generated from a valid password.
+     * If <code>passwordHolder</code> has a cached key for the salt and <code>scrypt</code>
+     * parameters of the data, this method assumes the key has been generated from a
+     * valid password. Otherwise, a key is derived from <code>password</code>, and
+     * offered to the <code>passwordHolder</code> if the data can be decrypted with it.
      * @param inputStream
      * @param password
-     * @param cachedKey
+     * @param passwordHolder A <code>PasswordHolder</code> to get cached keys from, or <code>null</code>
      * @return the decrypted data
      * @throws IOException
      * @throws GeneralSecurityException
      * @throws PasswordException
      */
     @SuppressWarnings("deprecation") // for net.i2p.crypto.AESEngine
-    private byte[] readInputStream(InputStream inputStream, byte[] password, DerivedKey cachedKey) throws IOException, GeneralSecurityException, PasswordException {
+    private byte[] readInputStream(InputStream inputStream, byte[] password, PasswordHolder passwordHolder) throws IOException, GeneralSecurityException, PasswordException {
         byte[] startOfFile = new byte[START_OF_FILE.length];
         inputStream.read(startOfFile);
         if (!Arrays.equals(START_OF_FILE, startOfFile))
@@ -95,9 +96,10 @@ public class EncryptedInputStream extends FilterInputStream {
         byte[] salt = new byte[SALT_LENGTH];
         inputStream.read(salt);
         
-        // use the cached key if it is suitable, otherwise compute the key
+        // use a cached key if there is one for the salt, otherwise compute the key
+        DerivedKey cachedKey = passwordHolder==null ? null : passwordHolder.getCachedKey(salt, scryptParams);
         byte[] keyBytes;
-        if (cachedKey!=null && Arrays.equals(salt, cachedKey.salt) && scryptParams.equals(cachedKey.scryptParams))
+        if (cachedKey != null)
             keyBytes = cachedKey.key;
         else
             keyBytes = FileEncryptionUtil.getEncryptionKey(password, salt, scryptParams);
@@ -121,6 +123,10 @@ public class EncryptedInputStream extends FilterInputStream {
                 // we're assuming password and key are correct.
                 throw new GeneralSecurityException("Can't decrypt using cached key.");
         
+        // the new key is known to be correct now, so other files with the same salt don't need scrypt
+        if (cachedKey==null && passwordHolder!=null)
+            passwordHolder.cacheKey(password, new DerivedKey(salt, scryptParams, keyBytes));
+        
         return decryptedData;
     }
     
@@ -35,12 +35,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.util.Log;
 
 import com.lambdaworks.crypto.SCrypt;
 
 public class FileEncryptionUtil {
+    private static AtomicInteger numKeyDerivations = new AtomicInteger();   // for testing
 
     /**
      * Generates a symmetric encryption key from a password and salt.
@@ -54,10 +56,16 @@ public class FileEncryptionUtil {
         if (password==null || password.length<=0)
             password = DEFAULT_PASSWORD;
        
+        numKeyDerivations.incrementAndGet();
         byte[] key = SCrypt.scrypt(password, salt, sCryptParams.N, sCryptParams.r, sCryptParams.p, KEY_LENGTH);
         return key;
     }
     
+    /** Returns the number of times {@link #getEncryptionKey(byte[], byte[], SCryptParameters)} has run <code>scrypt</code>. For testing. */
+    static int getNumKeyDerivations() {
+        return numKeyDerivations.get();
+    }
+    
     static DerivedKey getEncryptionKey(byte[] password, File derivParamFile) throws GeneralSecurityException, IOException {
         DataInputStream inputStream = null;
         try {
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.fileencryption;
+
+import static i2p.bote.fileencryption.FileEncryptionConstants.FORMAT_VERSION;
+import static i2p.bote.fileencryption.FileEncryptionConstants.SALT_LENGTH;
+import static i2p.bote.fileencryption.FileEncryptionConstants.START_OF_FILE;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The inputs to <code>scrypt</code> besides the password. Used as a key
+ * for caching {@link DerivedKey}s.
+ */
+class KeyParameters {
+    byte[] salt;
+    SCryptParameters scryptParams;
+    
+    KeyParameters(byte[] salt, SCryptParameters scryptParams) {
+        this.salt = salt;
+        this.scryptParams = scryptParams;
+    }
+    
+    /**
+     * Reads the salt and <code>scrypt</code> parameters from the header of data
+     * written by {@link EncryptedOutputStream}. Returns <code>null</code> if the
+     * data doesn't start with a valid header.
+     * @param inputStream
+     * @throws IOException
+     */
+    static KeyParameters readHeader(DataInputStream inputStream) throws IOException {
+        try {
+            byte[] startOfFile = new byte[START_OF_FILE.length];
+            inputStream.readFully(startOfFile);
+            int format = inputStream.read();
+            if (!Arrays.equals(START_OF_FILE, startOfFile) || format!=FORMAT_VERSION)
+                return null;
+            SCryptParameters scryptParams = new SCryptParameters(inputStream);
+            byte[] salt = new byte[SALT_LENGTH];
+            inputStream.readFully(salt);
+            return new KeyParameters(salt, scryptParams);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+    
+    /** Returns <code>true</code> if a key was derived using these parameters. */
+    boolean matches(DerivedKey key) {
+        return Arrays.equals(salt, key.salt) && scryptParams.equals(key.scryptParams);
+    }
+    
+    @Override
+    public boolean equals(Object anotherObject) {
+        if (!(anotherObject instanceof KeyParameters))
+            return false;
+        KeyParameters otherParameters = (KeyParameters)anotherObject;
+        return Arrays.equals(salt, otherParameters.salt) && scryptParams.equals(otherParameters.scryptParams);
+    }
+    
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(salt) ^ scryptParams.hashCode();
+    }
+}
@@ -31,7 +31,10 @@ import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import net.i2p.I2PAppContext;
@@ -43,11 +46,24 @@ import net.i2p.util.SecureFileOutputStream;
  * Stores a password in memory so the user doesn't have to re-enter it.
  * Also caches key derivation parameters (salt and <code>scrypt</code> parameters)
  * so the key derivation function only needs to run once.
+ * <p/>
+ * Files encrypted with a different salt than the current one (for example,
+ * files restored from a backup) would normally require running <code>scrypt</code>
+ * for every file. To avoid this, keys for up to {@link #MAX_CACHED_KEYS} other
+ * salts are cached once they have successfully decrypted a file. The least
+ * recently used key is evicted first. All keys are zeroed out when they are
+ * evicted, and when the password is changed or expires.
+ * <p/>
+ * {@link ReKeyThread} re-encrypts files that use other salts, so the cache
+ * should only be needed until it has run.
  */
 public class PasswordCache extends I2PAppThread implements PasswordHolder {
+    static final int MAX_CACHED_KEYS = 16;
+    
     private Log log = new Log(PasswordCache.class);
     private byte[] password;
     private DerivedKey derivedKey;
+    private Map<KeyParameters, DerivedKey> otherKeys;   // keys for salts other than the one in derivedKey, least recently used first
     private long lastReset;
     private Configuration configuration;
     private Collection<PasswordCacheListener> cacheListeners;
@@ -60,6 +76,17 @@ public class PasswordCache extends I2PAppThread implements PasswordHolder {
         super("PasswordCache");
         this.configuration = configuration;
         cacheListeners = new ArrayList<PasswordCacheListener>();
+        otherKeys = new LinkedHashMap<KeyParameters, DerivedKey>(MAX_CACHED_KEYS, 0.75f, true) {
+            private static final long serialVersionUID = -3097614225538711042L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<KeyParameters, DerivedKey> eldest) {
+                if (size() <= MAX_CACHED_KEYS)
+                    return false;
+                eldest.getValue().clear();
+                return true;
+            }
+        };
     }
     
     /**
@@ -71,11 +98,12 @@ public class PasswordCache extends I2PAppThread implements PasswordHolder {
         synchronized(this) {
             resetExpiration();
             this.password = password;
-            // clear the old key
+            // clear the old keys
             if (derivedKey != null) {
                 derivedKey.clear();
                 derivedKey = null;
             }
+            clearOtherKeys();
         }
         
         for (PasswordCacheListener listener: cacheListeners)
@@ -126,6 +154,14 @@ public class PasswordCache extends I2PAppThread implements PasswordHolder {
      */
     public synchronized byte[] getPassword() {
         resetExpiration();
+        return peekPassword();
+    }
+    
+    /**
+     * Like {@link #getPassword()} but doesn't reset the expiration timer,
+     * so background tasks can use the password without keeping it in the cache.
+     */
+    synchronized byte[] peekPassword() {
         if ((password==null || password.length<=0) && !configuration.getPasswordFile().exists())
             return FileEncryptionConstants.DEFAULT_PASSWORD;
         else
@@ -138,6 +174,47 @@ public class PasswordCache extends I2PAppThread implements PasswordHolder {
             createDerivedKey();
         return derivedKey;
     }
+    
+    /**
+     * Returns the current key if it matches the salt and <code>scrypt</code> parameters,
+     * or a cached key for another salt. Cached keys for other salts are returned
+     * as copies, so they stay intact if they are evicted while in use.
+     */
+    @Override
+    public synchronized DerivedKey getCachedKey(byte[] salt, SCryptParameters scryptParams) throws IOException, GeneralSecurityException {
+        KeyParameters parameters = new KeyParameters(salt, scryptParams);
+        DerivedKey currentKey = getKey();
+        if (parameters.matches(currentKey))
+            return currentKey;
+        
+        DerivedKey otherKey = otherKeys.get(parameters);
+        return otherKey==null ? null : otherKey.clone();
+    }
+    
+    @Override
+    public synchronized void cacheKey(byte[] password, DerivedKey key) {
+        // don't cache a key for a password that has been replaced in the meantime
+        if (!Arrays.equals(password, peekPassword()))
+            return;
+        if (derivedKey!=null && new KeyParameters(key.salt, key.scryptParams).matches(derivedKey))
+            return;
+        
+        // the map key gets its own copy of the salt because clearing a DerivedKey zeroes out its salt
+        DerivedKey oldKey = otherKeys.put(new KeyParameters(key.salt.clone(), key.scryptParams), key.clone());
+        if (oldKey != null)
+            oldKey.clear();
+    }
+    
+    /** Returns the number of cached keys for salts other than the current one. For testing. */
+    synchronized int getNumCachedKeys() {
+        return otherKeys.size();
+    }
+    
+    private void clearOtherKeys() {
+        for (DerivedKey key: otherKeys.values())
+            key.clear();
+        otherKeys.clear();
+    }
 
     private void resetExpiration() {
         lastReset = System.currentTimeMillis();
@@ -162,6 +239,7 @@ public class PasswordCache extends I2PAppThread implements PasswordHolder {
                 derivedKey.clear();
                 derivedKey = null;
             }
+            clearOtherKeys();
         }
         
         for (PasswordCacheListener listener: cacheListeners)
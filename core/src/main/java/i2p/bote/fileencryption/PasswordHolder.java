@@ -29,4 +29,23 @@ public interface PasswordHolder {
     byte[] getPassword();
     
     DerivedKey getKey() throws IOException, GeneralSecurityException;
+    
+    /**
+     * Returns a key derived from the password with a given salt and <code>scrypt</code>
+     * parameters if one is available without running <code>scrypt</code>, or
+     * <code>null</code> otherwise.
+     * @param salt
+     * @param scryptParams
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    DerivedKey getCachedKey(byte[] salt, SCryptParameters scryptParams) throws IOException, GeneralSecurityException;
+    
+    /**
+     * Offers a key for caching. The key must have been derived from <code>password</code>
+     * and must have successfully decrypted data.
+     * @param password The password the key was derived from
+     * @param key
+     */
+    void cacheKey(byte[] password, DerivedKey key);
 }
\ No newline at end of file
@@ -0,0 +1,461 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.fileencryption;
+
+import static i2p.bote.fileencryption.FileEncryptionConstants.PASSWORD_FILE_PLAIN_TEXT;
+import i2p.bote.Util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.i2p.data.Base64;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ * Re-encrypts files with a new password, using one thread per CPU core.
+ * <p/>
+ * The key for the new password is derived once by the caller and passed in
+ * as a {@link DerivedKey}. Keys for the old password are derived once per
+ * salt (normally there is only one, see {@link PasswordCache}) and reused
+ * for all files, rather than running <code>scrypt</code> for every file.
+ * <p/>
+ * Every file that has been re-encrypted is recorded in a progress file, so
+ * if the process is interrupted, it can be resumed by changing the password
+ * again with the same old and new passwords. When resuming, files that are
+ * encrypted as a whole are skipped if their header shows they are encrypted
+ * with the new password; the progress file is only trusted for files made up
+ * of several encrypted records, and for temporary files.<br/>
+ * The first line of the progress file contains a known string encrypted with
+ * the new key, which is used to check that a resumed password change uses
+ * the same new password. The remaining lines are absolute file names.
+ * <p/>
+ * Each file is written to a temporary file first, then recorded in the progress
+ * file, and then the temporary file is renamed. The temporary file and the progress
+ * file are synced to disk before the rename. This way, an interruption never
+ * leaves a partially written file, and there is never any doubt about which
+ * password a file is encrypted with: if a file is recorded in the progress
+ * file, either it or its temporary file is encrypted with the new password.
+ * <p/>
+ * Usage: call {@link #submit(File)} for each file, then {@link #await()}, then
+ * {@link #complete()} once the new password is in effect. {@link #shutdown()}
+ * must be called in any case.
+ */
+public class ReEncryptor {
+    private static final String TEMP_FILE_EXTENSION = ".reenc";
+    
+    private Log log = new Log(ReEncryptor.class);
+    private byte[] oldPassword;
+    private byte[] newPassword;
+    private DerivedKey newKey;
+    private File progressFile;
+    private SecureFileOutputStream progressStream;
+    private Writer progressWriter;
+    private Set<String> doneFiles;   // absolute names of files that are known to be re-encrypted
+    private Map<KeyParameters, DerivedKey> oldKeys;
+    private Map<KeyParameters, DerivedKey> newKeys;
+    private int numKeyDerivations;
+    private ExecutorService executor;
+    private List<Future<Void>> results;
+    
+    /**
+     * Creates a <code>ReEncryptor</code>. If there is a progress file from an
+     * interrupted password change, it is read.
+     * @param oldPassword
+     * @param newPassword
+     * @param newKey A key derived from <code>newPassword</code>
+     * @param progressFile
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException if the progress file belongs to a password change to a different new password
+     */
+    public ReEncryptor(byte[] oldPassword, byte[] newPassword, DerivedKey newKey, File progressFile) throws IOException, GeneralSecurityException, PasswordException {
+        this(oldPassword, newPassword, newKey, progressFile, Runtime.getRuntime().availableProcessors());
+    }
+    
+    ReEncryptor(byte[] oldPassword, byte[] newPassword, DerivedKey newKey, File progressFile, int numThreads) throws IOException, GeneralSecurityException, PasswordException {
+        this.oldPassword = oldPassword;
+        this.newPassword = newPassword;
+        this.newKey = newKey;
+        this.progressFile = progressFile;
+        doneFiles = Collections.synchronizedSet(new HashSet<String>());
+        oldKeys = new HashMap<KeyParameters, DerivedKey>();
+        newKeys = new HashMap<KeyParameters, DerivedKey>();
+        newKeys.put(new KeyParameters(newKey.salt, newKey.scryptParams), newKey);
+        results = new ArrayList<Future<Void>>();
+        
+        if (progressFile.exists())
+            readProgressFile();
+        else
+            createProgressFile();
+        progressStream = new SecureFileOutputStream(progressFile, true);
+        progressWriter = new BufferedWriter(new OutputStreamWriter(progressStream));
+        
+        executor = Executors.newFixedThreadPool(numThreads, Util.createThreadFactory("ReEncryptor", 256*1024));
+    }
+    
+    private void createProgressFile() throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        OutputStream encryptedStream = new EncryptedOutputStream(byteStream, newKey);
+        encryptedStream.write(PASSWORD_FILE_PLAIN_TEXT);
+        encryptedStream.close();
+        
+        Writer writer = new OutputStreamWriter(new SecureFileOutputStream(progressFile));
+        try {
+            writer.write(Base64.encode(byteStream.toByteArray()) + System.getProperty("line.separator"));
+        }
+        finally {
+            writer.close();
+        }
+    }
+    
+    private void readProgressFile() throws IOException, GeneralSecurityException, PasswordException {
+        log.info("Resuming an interrupted password change. Progress file: <" + progressFile.getAbsolutePath() + ">");
+        BufferedReader reader = new BufferedReader(new FileReader(progressFile));
+        try {
+            String verifierString = reader.readLine();
+            byte[] verifier = verifierString==null ? null : Base64.decode(verifierString);
+            if (verifier == null)
+                throw new IOException("Invalid progress file: <" + progressFile.getAbsolutePath() + ">");
+            try {
+                byte[] decryptedVerifier = decrypt(verifier, newPassword, newKeys);
+                if (!Arrays.equals(PASSWORD_FILE_PLAIN_TEXT, decryptedVerifier))
+                    throw new GeneralSecurityException("Verifier mismatch.");
+            }
+            catch (GeneralSecurityException e) {
+                throw new PasswordException("The interrupted password change must be completed with the same new password.");
+            }
+            
+            while (true) {
+                String filename = reader.readLine();
+                if (filename == null)   // EOF
+                    break;
+                // the last line may be incomplete, but then it won't match an existing file name
+                doneFiles.add(filename);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        
+        // start a new line in case the last one is incomplete
+        Writer writer = new OutputStreamWriter(new SecureFileOutputStream(progressFile, true));
+        try {
+            writer.write(System.getProperty("line.separator"));
+        }
+        finally {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Schedules a file for re-encryption. If the file has been re-encrypted
+     * already, nothing happens.
+     * @param file
+     */
+    public void submit(final File file) {
+        Future<Void> result = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException, GeneralSecurityException, PasswordException {
+                if (!isDone(file))
+                    reEncrypt(file);
+                return null;
+            }
+        });
+        synchronized(results) {
+            results.add(result);
+        }
+    }
+    
+    /**
+     * Waits for all submitted files to be re-encrypted. If any file could not
+     * be re-encrypted, the first exception that occurred is thrown after all
+     * other files have been processed.
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public void await() throws IOException, GeneralSecurityException, PasswordException {
+        List<Future<Void>> pendingResults;
+        synchronized(results) {
+            pendingResults = new ArrayList<Future<Void>>(results);
+            results.clear();
+        }
+        
+        Throwable firstError = null;
+        for (Future<Void> result: pendingResults)
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                log.error("Can't re-encrypt file.", e.getCause());
+                if (firstError == null)
+                    firstError = e.getCause();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for files to be re-encrypted.");
+            }
+        
+        if (firstError instanceof IOException)
+            throw (IOException)firstError;
+        if (firstError instanceof GeneralSecurityException)
+            throw (GeneralSecurityException)firstError;
+        if (firstError instanceof PasswordException)
+            throw (PasswordException)firstError;
+        if (firstError instanceof RuntimeException)
+            throw (RuntimeException)firstError;
+        if (firstError instanceof Error)
+            throw (Error)firstError;
+    }
+    
+    /**
+     * Deletes the progress file. This method should be called after all
+     * files have been re-encrypted and the new password has been saved.
+     */
+    public void complete() {
+        shutdown();
+        if (!progressFile.delete())
+            log.error("Can't delete file: <" + progressFile.getAbsolutePath() + ">");
+    }
+    
+    /** Stops the worker threads and closes the progress file. */
+    public void shutdown() {
+        executor.shutdownNow();
+        synchronized(progressWriter) {
+            try {
+                progressWriter.close();
+            } catch (IOException e) {
+                log.error("Can't close progress file: <" + progressFile.getAbsolutePath() + ">", e);
+            }
+        }
+    }
+    
+    /**
+     * Returns <code>true</code> if there is an unfinished password change.
+     * @param progressFile
+     */
+    public static boolean isInterrupted(File progressFile) {
+        return progressFile.exists();
+    }
+    
+    public DerivedKey getNewKey() {
+        return newKey;
+    }
+    
+    /**
+     * Returns <code>true</code> if a file has been re-encrypted already.
+     * If the password change was interrupted before the file was renamed
+     * from its temporary name, the file is renamed.<br/>
+     * For files that are encrypted as a whole, the header is checked; for other
+     * files, such as journals, the progress file is used.
+     * @param file
+     * @throws IOException
+     */
+    public boolean isDone(File file) throws IOException {
+        boolean recorded = doneFiles.contains(file.getAbsolutePath());
+        File tempFile = getTempFile(file);
+        if (recorded && tempFile.exists()) {
+            rename(tempFile, file);
+            return true;
+        }
+        if (!file.exists())
+            return recorded;
+        
+        KeyParameters parameters = readHeader(file);
+        if (parameters == null)   // not encrypted as a whole
+            return recorded;
+        synchronized(newKeys) {
+            // newKeys contains the key of the interrupted password change if it used a different salt
+            return newKeys.containsKey(parameters);
+        }
+    }
+    
+    /**
+     * Decrypts data that was encrypted with the old password. Together with
+     * {@link #replace(File, byte[])}, this method is useful for files that are
+     * not encrypted as a whole and cannot be passed to {@link #submit(File)}.
+     * @param encryptedData
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public byte[] decrypt(byte[] encryptedData) throws IOException, GeneralSecurityException, PasswordException {
+        return decrypt(encryptedData, oldPassword, oldKeys);
+    }
+    
+    /**
+     * Replaces the contents of a file with data encrypted with the new password,
+     * and records the file as done.
+     * @param file
+     * @param newContents
+     * @throws IOException
+     * @see #decrypt(byte[])
+     */
+    public void replace(File file, byte[] newContents) throws IOException {
+        File tempFile = getTempFile(file);
+        SecureFileOutputStream outputStream = new SecureFileOutputStream(tempFile);
+        try {
+            outputStream.write(newContents);
+            outputStream.getFD().sync();   // the file must be complete before it is recorded as done
+        }
+        finally {
+            outputStream.close();
+        }
+        
+        markDone(file);
+        rename(tempFile, file);
+    }
+    
+    /** Returns the number of times a key was derived from the old password. For testing. */
+    int getNumKeyDerivations() {
+        synchronized(oldKeys) {
+            return numKeyDerivations;
+        }
+    }
+    
+    private void reEncrypt(File file) throws IOException, GeneralSecurityException, PasswordException {
+        byte[] decryptedData = decrypt(readFile(file), oldPassword, oldKeys);
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        OutputStream encryptedStream = new EncryptedOutputStream(byteStream, newKey);
+        encryptedStream.write(decryptedData);
+        encryptedStream.close();
+        replace(file, byteStream.toByteArray());
+    }
+    
+    private File getTempFile(File file) {
+        return new File(file.getAbsolutePath() + TEMP_FILE_EXTENSION);
+    }
+    
+    private void rename(File tempFile, File file) throws IOException {
+        // renameTo() can't overwrite on all platforms; if it fails, delete the old file first
+        if (!tempFile.renameTo(file))
+            if (!file.delete() || !tempFile.renameTo(file))
+                throw new IOException("Can't rename <" + tempFile.getAbsolutePath() + "> to <" + file.getAbsolutePath() + ">");
+    }
+    
+    /** Returns the key parameters of a file, or <code>null</code> if the file is not encrypted as a whole */
+    private KeyParameters readHeader(File file) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+        try {
+            return KeyParameters.readHeader(inputStream);
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+    
+    private byte[] readFile(File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            return Util.readBytes(inputStream);
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+    
+    private void markDone(File file) throws IOException {
+        doneFiles.add(file.getAbsolutePath());
+        synchronized(progressWriter) {
+            progressWriter.write(file.getAbsolutePath() + System.getProperty("line.separator"));
+            progressWriter.flush();
+            progressStream.getFD().sync();   // the entry must be on disk before the temp file is renamed
+        }
+    }
+    
+    /**
+     * Decrypts data using a key from <code>keyCache</code>. If the cache doesn't
+     * contain a key for the salt and <code>scrypt</code> parameters the data was
+     * encrypted with, a new key is derived from <code>password</code> and cached.
+     * @throws GeneralSecurityException if the data was not encrypted with <code>password</code>
+     */
+    private byte[] decrypt(byte[] encryptedData, final byte[] password, Map<KeyParameters, DerivedKey> keyCache) throws IOException, GeneralSecurityException, PasswordException {
+        // read the salt and scrypt parameters from the header
+        KeyParameters parameters = KeyParameters.readHeader(new DataInputStream(new ByteArrayInputStream(encryptedData)));
+        if (parameters == null)
+            throw new IOException("Not an encrypted file, or unknown format.");
+        
+        final DerivedKey key = getKey(password, parameters, keyCache);
+        PasswordHolder passwordHolder = new PasswordHolder() {
+            @Override
+            public byte[] getPassword() {
+                return password;
+            }
+            
+            @Override
+            public DerivedKey getKey() {
+                return key;
+            }
+            
+            @Override
+            public DerivedKey getCachedKey(byte[] salt, SCryptParameters scryptParams) {
+                return key;
+            }
+            
+            @Override
+            public void cacheKey(byte[] password, DerivedKey key) {
+            }
+        };
+        
+        InputStream inputStream = new EncryptedInputStream(new ByteArrayInputStream(encryptedData), passwordHolder);
+        return Util.readBytes(inputStream);
+    }
+    
+    private DerivedKey getKey(byte[] password, KeyParameters parameters, Map<KeyParameters, DerivedKey> keyCache) throws GeneralSecurityException {
+        // synchronize so each key is only derived once
+        synchronized(keyCache) {
+            DerivedKey key = keyCache.get(parameters);
+            if (key == null) {
+                byte[] keyBytes = FileEncryptionUtil.getEncryptionKey(password, parameters.salt, parameters.scryptParams);
+                key = new DerivedKey(parameters.salt, parameters.scryptParams, keyBytes);
+                keyCache.put(parameters, key);
+                if (keyCache == oldKeys)
+                    numKeyDerivations++;
+            }
+            return key;
+        }
+    }
+}
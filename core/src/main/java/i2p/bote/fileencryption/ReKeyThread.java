@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.fileencryption;
+
+import i2p.bote.Util;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.util.I2PAppThread;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ * Re-encrypts files whose salt or <code>scrypt</code> parameters differ from
+ * the current key in the {@link PasswordCache}, so that over time all files
+ * can be decrypted without running <code>scrypt</code> again. Files with other
+ * salts can be left behind by restoring a backup, importing data, or an
+ * interrupted migration.
+ * <p/>
+ * The thread only runs while the password is in the cache, and it doesn't keep
+ * the password from expiring. Each file is re-encrypted while holding the lock
+ * on the <code>PasswordCache</code>, so it can't interfere with a password
+ * change. {@link i2p.bote.folder.EmailFolder} and {@link i2p.bote.folder.RecordStore}
+ * hold the same lock while writing files, so a file can't be replaced with an
+ * outdated copy. The files in the directories passed to this class must only be
+ * written by classes that lock the <code>PasswordCache</code>.
+ */
+public class ReKeyThread extends I2PAppThread {
+    private static final int INITIAL_DELAY = 5;   // time before the first pass, in minutes
+    private static final int INTERVAL = 60;   // time between two passes, in minutes
+    private static final int PAUSE = 100;   // time between two re-encrypted files, in milliseconds
+    private static final String TEMP_FILE_EXTENSION = ".rekey";
+    
+    private Log log = new Log(ReKeyThread.class);
+    private PasswordCache passwordCache;
+    private PasswordHolder passwordHolder;
+    private List<File> directories;
+    private List<String> fileExtensions;
+    private Set<String> undecryptableFiles;   // absolute names of files that can't be decrypted with the current password
+    
+    /**
+     * @param passwordCache The <code>PasswordCache</code> the files in <code>directories</code> are written with
+     * @param directories The directories to scan; subdirectories are not included
+     * @param fileExtensions The extensions of the files in a directory that are re-encrypted.
+     * Only files that consist of one {@link EncryptedOutputStream} should be included,
+     * not journals or other files made up of several encrypted records.
+     */
+    public ReKeyThread(final PasswordCache passwordCache, Collection<File> directories, Collection<String> fileExtensions) {
+        super("ReKeyThread");
+        setPriority(MIN_PRIORITY);
+        this.passwordCache = passwordCache;
+        this.directories = new ArrayList<File>(directories);
+        this.fileExtensions = new ArrayList<String>(fileExtensions);
+        undecryptableFiles = new HashSet<String>();
+        
+        // a PasswordHolder that doesn't reset the expiration timer
+        passwordHolder = new PasswordHolder() {
+            @Override
+            public byte[] getPassword() {
+                return passwordCache.peekPassword();
+            }
+            
+            @Override
+            public DerivedKey getKey() throws IOException, GeneralSecurityException {
+                return passwordCache.getKey();
+            }
+            
+            @Override
+            public DerivedKey getCachedKey(byte[] salt, SCryptParameters scryptParams) throws IOException, GeneralSecurityException {
+                return passwordCache.getCachedKey(salt, scryptParams);
+            }
+            
+            @Override
+            public void cacheKey(byte[] password, DerivedKey key) {
+                passwordCache.cacheKey(password, key);
+            }
+        };
+    }
+    
+    @Override
+    public void run() {
+        try {
+            TimeUnit.MINUTES.sleep(INITIAL_DELAY);
+            while (!Thread.interrupted()) {
+                try {
+                    int numFiles = reKeyAll();
+                    if (numFiles > 0)
+                        log.info("Re-encrypted " + numFiles + " files with the current key.");
+                } catch (RuntimeException e) {   // catch unexpected exceptions to keep the thread running
+                    log.error("Exception caught in ReKeyThread loop", e);
+                }
+                TimeUnit.MINUTES.sleep(INTERVAL);
+            }
+        } catch (InterruptedException e) {
+        }
+        
+        log.debug("ReKeyThread interrupted, thread exiting.");
+    }
+    
+    /**
+     * Makes one pass over all files and re-encrypts the ones that don't use the
+     * current key. Stops early if the password is not in the cache.
+     * @return the number of files that were re-encrypted
+     * @throws InterruptedException
+     */
+    int reKeyAll() throws InterruptedException {
+        int numFiles = 0;
+        for (File directory: directories)
+            for (File file: listFiles(directory)) {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                if (undecryptableFiles.contains(file.getAbsolutePath()))
+                    continue;
+                
+                try {
+                    if (reKey(file)) {
+                        numFiles++;
+                        TimeUnit.MILLISECONDS.sleep(PAUSE);
+                    }
+                } catch (PasswordException e) {
+                    if (passwordCache.peekPassword() == null) {
+                        log.debug("Password not in cache, stopping.");
+                        return numFiles;
+                    }
+                    log.debug("File is not encrypted with the current password: <" + file.getAbsolutePath() + ">");
+                    undecryptableFiles.add(file.getAbsolutePath());
+                } catch (IOException e) {
+                    log.error("Can't re-encrypt file: <" + file.getAbsolutePath() + ">", e);
+                } catch (GeneralSecurityException e) {
+                    log.error("Can't re-encrypt file: <" + file.getAbsolutePath() + ">", e);
+                    undecryptableFiles.add(file.getAbsolutePath());
+                }
+            }
+        return numFiles;
+    }
+    
+    /**
+     * Re-encrypts a file with the current key if it was encrypted with a different
+     * salt or different <code>scrypt</code> parameters.
+     * @param file
+     * @return <code>true</code> if the file was re-encrypted, <code>false</code> otherwise
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    boolean reKey(File file) throws IOException, GeneralSecurityException, PasswordException {
+        synchronized(passwordCache) {
+            if (passwordCache.peekPassword() == null)
+                throw new PasswordException();
+            
+            KeyParameters parameters = readHeader(file);
+            DerivedKey currentKey = passwordCache.getKey();
+            if (parameters==null || parameters.matches(currentKey))
+                return false;
+            
+            InputStream inputStream = new EncryptedInputStream(new FileInputStream(file), passwordHolder);
+            byte[] decryptedData;
+            try {
+                decryptedData = Util.readBytes(inputStream);
+            } finally {
+                inputStream.close();
+            }
+            
+            File tempFile = new File(file.getAbsolutePath() + TEMP_FILE_EXTENSION);
+            OutputStream outputStream = new EncryptedOutputStream(new SecureFileOutputStream(tempFile), currentKey);
+            try {
+                outputStream.write(decryptedData);
+            } finally {
+                outputStream.close();
+            }
+            
+            // renameTo() can't overwrite on all platforms; if it fails, delete the old file first
+            if (!tempFile.renameTo(file))
+                if (!file.delete() || !tempFile.renameTo(file))
+                    throw new IOException("Can't rename <" + tempFile.getAbsolutePath() + "> to <" + file.getAbsolutePath() + ">");
+            return true;
+        }
+    }
+    
+    /** Returns the key parameters of a file, or <code>null</code> if the file is not encrypted as a whole */
+    private KeyParameters readHeader(File file) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+        try {
+            return KeyParameters.readHeader(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+    
+    /** Returns the files in a directory that have one of the file extensions */
+    private List<File> listFiles(File directory) {
+        List<File> files = new ArrayList<File>();
+        File[] filesInDir = directory.listFiles();
+        if (filesInDir != null)
+            for (File file: filesInDir)
+                if (file.isFile() && hasExtension(file))
+                    files.add(file);
+        return files;
+    }
+    
+    private boolean hasExtension(File file) {
+        for (String extension: fileExtensions)
+            if (file.getName().endsWith(extension))
+                return true;
+        return false;
+    }
+}
@@ -27,12 +27,12 @@ import i2p.bote.email.AddressDisplayFilter;
 import i2p.bote.email.Email;
 import i2p.bote.email.EmailAttribute;
 import i2p.bote.email.EmailMetadata;
-import i2p.bote.fileencryption.DerivedKey;
 import i2p.bote.fileencryption.EncryptedInputStream;
 import i2p.bote.fileencryption.EncryptedOutputStream;
-import i2p.bote.fileencryption.FileEncryptionUtil;
 import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.fileencryption.PasswordHolder;
+import i2p.bote.fileencryption.ReEncryptor;
+import i2p.bote.fileencryption.ReKeyThread;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -51,6 +51,7 @@ import java.util.List;
 
 import javax.mail.MessagingException;
 
+import net.i2p.data.Hash;
 import net.i2p.util.Log;
 import net.i2p.util.SecureFileOutputStream;
 
@@ -58,19 +59,29 @@ import net.i2p.util.SecureFileOutputStream;
  * Stores emails in a directory on the file system.<br/>
  * Two files are stored for each email; one email file with the name
  * <code>&lt;message ID&gt;.mail</code>, and a metadata file with the name
- * <code>&lt;message ID&gt;.meta</code>.
+ * <code>&lt;message ID&gt;.meta</code>.<br/>
+ * Flag changes ("new", "replied", "recent") are not written to the metadata
+ * file right away; they are recorded in a {@link MetadataJournal} and applied
+ * when the metadata is read. They become part of the metadata file the next
+ * time it is written.<br/>
+ * Email and metadata files are written while holding the lock on the
+ * {@link PasswordHolder}, like in {@link RecordStore}, so the {@link ReKeyThread}
+ * can't replace a file with an outdated copy.
  */
 public class EmailFolder extends Folder<Email> {
-    private static final String EMAIL_FILE_EXTENSION = ".mail";
-    private static final String METADATA_FILE_EXTENSION = ".meta";
+    public static final String EMAIL_FILE_EXTENSION = ".mail";
+    public static final String METADATA_FILE_EXTENSION = ".meta";
+    private static final String JOURNAL_FILE_NAME = "metadata.journal";
     
     private Log log = new Log(EmailFolder.class);
     private PasswordHolder passwordHolder;
     private Collection<FolderListener> folderListeners;
+    private MetadataJournal journal;
     
     public EmailFolder(File storageDir, PasswordHolder passwordHolder) {
         super(storageDir, EMAIL_FILE_EXTENSION);
         this.passwordHolder = passwordHolder;
+        journal = new MetadataJournal(new File(storageDir, JOURNAL_FILE_NAME), passwordHolder);
         folderListeners = new ArrayList<FolderListener>();
     }
 
@@ -84,21 +95,23 @@ public class EmailFolder extends Folder<Email> {
      * @throws GeneralSecurityException 
      */
     public void add(Email email) throws IOException, MessagingException, PasswordException, GeneralSecurityException {
-        // check if an email exists already with that message id
-        if (getEmailFile(email.getMessageID()).exists()) {
-            log.debug("Not storing email because there is an existing one with the same message ID: <" + email.getMessageID()+ ">");
-            return;
-        }
-        
-        // write out the email file
-        File emailFile = getEmailFile(email);
-        log.info("Mail folder <" + storageDir + ">: storing email file: <" + emailFile.getAbsolutePath() + ">");
-        OutputStream emailOutputStream = new BufferedOutputStream(new EncryptedOutputStream(new SecureFileOutputStream(emailFile), passwordHolder));
-        try {
-            email.writeTo(emailOutputStream);
-        }
-        finally {
-            emailOutputStream.close();
+        synchronized(passwordHolder) {
+            // check if an email exists already with that message id
+            if (getEmailFile(email.getMessageID()).exists()) {
+                log.debug("Not storing email because there is an existing one with the same message ID: <" + email.getMessageID()+ ">");
+                return;
+            }
+            
+            // write out the email file
+            File emailFile = getEmailFile(email);
+            log.info("Mail folder <" + storageDir + ">: storing email file: <" + emailFile.getAbsolutePath() + ">");
+            OutputStream emailOutputStream = new BufferedOutputStream(new EncryptedOutputStream(new SecureFileOutputStream(emailFile), passwordHolder));
+            try {
+                email.writeTo(emailOutputStream);
+            }
+            finally {
+                emailOutputStream.close();
+            }
         }
         
         saveMetadata(email);
@@ -107,13 +120,19 @@ public class EmailFolder extends Folder<Email> {
             listener.elementAdded(email.getMessageID());
     }
     
-    public void changePassword(byte[] oldPassword, DerivedKey newKey) throws FileNotFoundException, IOException, GeneralSecurityException, PasswordException {
+    /**
+     * Schedules all email and metadata files for re-encryption, and re-encrypts the
+     * metadata journal. Call {@link ReEncryptor#await()} to wait for the files.
+     * @param reEncryptor
+     */
+    public void changePassword(ReEncryptor reEncryptor) throws IOException, GeneralSecurityException, PasswordException {
         for (File emailFile: getFilenames()) {   // getFilenames() only returns email files but not metadata files
-            FileEncryptionUtil.changePassword(emailFile, oldPassword, newKey);
+            reEncryptor.submit(emailFile);
             File metadataFile = getMetadataFile(emailFile);
             if (metadataFile.exists())
-                FileEncryptionUtil.changePassword(metadataFile, oldPassword, newKey);
+                reEncryptor.submit(metadataFile);
         }
+        journal.changePassword(reEncryptor);
     }
     
     /**
@@ -251,7 +270,8 @@ public class EmailFolder extends Folder<Email> {
 
     /**
      * Moves an email from this folder to another. First the email file is
-     * moved; if a metadata file exists, it is moved as well.
+     * moved; if a metadata file exists, it is moved as well.<br/>
+     * Journaled flag changes are written to the metadata file before it is moved.
      * @param messageId
      * @param newFolder
      * @return <code>true</code> if successful, <code>false</code> if not
@@ -262,30 +282,42 @@ public class EmailFolder extends Folder<Email> {
             log.error("Cannot move email with message ID " + messageId + " to folder [" + newFolder + "]: email file doesn't exist in directory <" + getStorageDirectory() + ">.");
             return false;
         }
-        File newEmailFile = new File(newFolder.getStorageDirectory(), oldEmailFile.getName());
-        boolean success;
+        
         try {
-            success = move(oldEmailFile, newEmailFile);
+            if (journal.hasChanges(messageId)) {
+                saveMetadata(getMetadata(messageId), getMetadataFile(messageId));
+                journal.forget(messageId);
+            }
         }
-        catch (IOException e) {
-            log.error("Cannot move email file <" + oldEmailFile.getAbsolutePath() + "> to <" + newEmailFile.getAbsolutePath() + ">", e);
-            success = false;
+        catch (Exception e) {
+            log.error("Can't write journaled metadata changes for message ID <" + messageId + ">", e);
         }
-
-        // We don't want to move the metadata file if we couldn't move the email file
-        if (!success)
-            return false;
-
-        File oldMetaFile = getMetadataFile(oldEmailFile);
-        if (oldMetaFile.exists()) {
-            File newMetaFile = getMetadataFile(newEmailFile);
+        boolean success;
+        synchronized(passwordHolder) {
+            File newEmailFile = new File(newFolder.getStorageDirectory(), oldEmailFile.getName());
             try {
-                success &= move(oldMetaFile, newMetaFile);
+                success = move(oldEmailFile, newEmailFile);
             }
             catch (IOException e) {
-                log.error("Cannot move metadata file <" + oldMetaFile.getAbsolutePath() + "> to <" + newMetaFile.getAbsolutePath() + ">", e);
+                log.error("Cannot move email file <" + oldEmailFile.getAbsolutePath() + "> to <" + newEmailFile.getAbsolutePath() + ">", e);
                 success = false;
             }
+            
+            // We don't want to move the metadata file if we couldn't move the email file
+            if (!success)
+                return false;
+            
+            File oldMetaFile = getMetadataFile(oldEmailFile);
+            if (oldMetaFile.exists()) {
+                File newMetaFile = getMetadataFile(newEmailFile);
+                try {
+                    success &= move(oldMetaFile, newMetaFile);
+                }
+                catch (IOException e) {
+                    log.error("Cannot move metadata file <" + oldMetaFile.getAbsolutePath() + "> to <" + newMetaFile.getAbsolutePath() + ">", e);
+                    success = false;
+                }
+            }
         }
 
         if (success) {
@@ -340,6 +372,10 @@ public class EmailFolder extends Folder<Email> {
         return new File(storageDir, messageId + METADATA_FILE_EXTENSION);
     }
     
+    private String getMessageId(File emailFile) {
+        return emailFile.getName().substring(0, 44);
+    }
+    
     private File getMetadataFile(File emailFile) {
         File parent = emailFile.getParentFile();
         String filename = emailFile.getName();
@@ -356,10 +392,19 @@ public class EmailFolder extends Folder<Email> {
      */
     private EmailMetadata getMetadata(String messageId) throws GeneralSecurityException, PasswordException {
         File file = getMetadataFile(messageId);
-        if (!file.exists())
-            return new EmailMetadata();
+        if (!file.exists()) {
+            EmailMetadata metadata = new EmailMetadata();
+            try {
+                journal.applyTo(messageId, metadata);
+            } catch (IOException e) {
+                log.error("Can't read metadata journal for message ID <" + messageId + ">", e);
+            }
+            return metadata;
+        }
         try {
-            return getMetadata(file);
+            EmailMetadata metadata = getMetadata(file);
+            journal.applyTo(messageId, metadata);
+            return metadata;
         } catch (IOException e) {
             log.error("Can't read metadata file: <" + file.getAbsolutePath() + ">", e);
             return new EmailMetadata();
@@ -382,18 +427,20 @@ public class EmailFolder extends Folder<Email> {
         for (File emailFile: getFilenames()) {
             // getFilenames() only returns email files but not metadata files
             File metaFile = getMetadataFile(emailFile);
-            if (metaFile.exists())
-                try {
-                    EmailMetadata metadata = getMetadata(metaFile);
-                    if (metadata.isUnread())
-                        numNew++;
-                } catch (IOException e) {
-                    log.error("Can't read metadata file: <" + metaFile.getAbsolutePath() + ">", e);
-                } catch (GeneralSecurityException gse) {
-                	log.error("Can't access metadata file: <" + metaFile.getAbsolutePath() + ">", gse);
-                }
-            else
-                numNew++;
+            try {
+                EmailMetadata metadata;
+                if (metaFile.exists())
+                    metadata = getMetadata(metaFile);
+                else
+                    metadata = new EmailMetadata();
+                journal.applyTo(getMessageId(emailFile), metadata);
+                if (metadata.isUnread())
+                    numNew++;
+            } catch (IOException e) {
+                log.error("Can't read metadata file: <" + metaFile.getAbsolutePath() + ">", e);
+            } catch (GeneralSecurityException gse) {
+            	log.error("Can't access metadata file: <" + metaFile.getAbsolutePath() + ">", gse);
+            }
         }
         
         return numNew;
@@ -408,13 +455,7 @@ public class EmailFolder extends Folder<Email> {
     }
 
     public void setRecent(String messageId, boolean isRecent) throws PasswordException, GeneralSecurityException {
-        EmailMetadata metadata = getMetadata(messageId);
-        metadata.setRecent(isRecent);
-        try {
-            saveMetadata(metadata, getMetadataFile(messageId));
-        } catch (IOException e) {
-            log.error("Can't read metadata file for message ID <" + messageId + ">", e);
-        }
+        setFlag(Collections.singleton(messageId), EmailMetadata.PROPERTY_RECENT, isRecent);
     }
     
     /**
@@ -426,52 +467,95 @@ public class EmailFolder extends Folder<Email> {
      * @throws PasswordException 
      */
     public void setNew(String messageId, boolean isNew) throws PasswordException, GeneralSecurityException {
-        EmailMetadata metadata = getMetadata(messageId);
-        metadata.setUnread(isNew);
-        try {
-            saveMetadata(metadata, getMetadataFile(messageId));
-        } catch (IOException e) {
-            log.error("Can't read metadata file for message ID <" + messageId + ">", e);
-        }
+        setFlag(Collections.singleton(messageId), EmailMetadata.PROPERTY_UNREAD, isNew);
     }
     
     public void setNew(Email email, boolean isNew) throws PasswordException, GeneralSecurityException {
         EmailMetadata metadata = email.getMetadata();
         metadata.setUnread(isNew);
-        try {
-            saveMetadata(email);
-        } catch (IOException e) {
-            log.error("Can't read metadata file for message ID <" + email.getMessageID() + ">", e);
-        }
+        setNew(email.getMessageID(), isNew);
+    }
+    
+    /**
+     * Flags a number of emails "new" or "old". The change is written to disk
+     * in one operation, no matter how many emails there are.
+     * @param messageIds
+     * @param isNew
+     * @throws GeneralSecurityException 
+     * @throws PasswordException 
+     * @see #setNew(String, boolean)
+     */
+    public void setNew(Collection<String> messageIds, boolean isNew) throws PasswordException, GeneralSecurityException {
+        setFlag(messageIds, EmailMetadata.PROPERTY_UNREAD, isNew);
     }
     
     public void setReplied(String messageId, boolean replied) throws PasswordException, GeneralSecurityException {
-        EmailMetadata metadata = getMetadata(messageId);
-        metadata.setReplied(replied);
+        setFlag(Collections.singleton(messageId), EmailMetadata.PROPERTY_REPLIED, replied);
+    }
+    
+    /** Records a flag change in the metadata journal and notifies {@link FolderListener}s. */
+    private void setFlag(Collection<String> messageIds, String property, boolean value) throws PasswordException, GeneralSecurityException {
         try {
-            saveMetadata(metadata, getMetadataFile(messageId));
+            journal.setProperty(messageIds, property, String.valueOf(value));
         } catch (IOException e) {
-            log.error("Can't read metadata file for message ID <" + messageId + ">", e);
+            log.error("Can't write to the metadata journal in folder <" + storageDir + ">", e);
+            return;
         }
+        
+        for (FolderListener listener: folderListeners)
+            listener.elementUpdated();
     }
     
     public void saveMetadata(Email email) throws PasswordException, FileNotFoundException, IOException, GeneralSecurityException {
         EmailMetadata metadata = email.getMetadata();
         File metaFile = getMetadataFile(email.getMessageID());
         saveMetadata(metadata, metaFile);
+        
+        // the metadata file is up to date now, so the journaled changes aren't needed anymore
+        journal.forget(email.getMessageID());
+    }
+    
+    /**
+     * Marks email packets as delivered in an email's metadata, without reading the email itself.
+     * If <code>dhtKeys</code> is empty, this method only checks if the email exists.
+     * @param messageId
+     * @param dhtKeys DHT keys of email packets that have been deleted from the DHT
+     * @return <code>false</code> if the email is not in this folder, <code>true</code> otherwise
+     * @throws PasswordException
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public boolean setPacketsDelivered(String messageId, Collection<Hash> dhtKeys) throws PasswordException, IOException, GeneralSecurityException {
+        if (!getEmailFile(messageId).exists())
+            return false;
+        if (dhtKeys.isEmpty())
+            return true;
+        
+        synchronized(passwordHolder) {   // don't let another thread write the metadata file between reading and writing it
+            EmailMetadata metadata = getMetadata(messageId);
+            for (Hash dhtKey: dhtKeys)
+                metadata.setPacketDelivered(dhtKey, true);
+            saveMetadata(metadata, getMetadataFile(messageId));
+            
+            // the journaled changes are part of the metadata file now
+            journal.forget(messageId);
+        }
+        return true;
     }
     
     private void saveMetadata(EmailMetadata metadata, File file) throws PasswordException, FileNotFoundException, IOException, GeneralSecurityException {
         log.info("Mail folder <" + storageDir + ">: storing metadata file: <" + file.getAbsolutePath() + ">");
-        OutputStream emailOutputStream = new BufferedOutputStream(new EncryptedOutputStream(new SecureFileOutputStream(file), passwordHolder));
-        try {
-            metadata.writeTo(emailOutputStream);
-        } catch (IOException e) {
-            log.error("Can't write metadata to file <" + file.getAbsolutePath() + ">", e);
-            throw e;
-        } finally {
-            if (emailOutputStream != null)
-                emailOutputStream.close();
+        synchronized(passwordHolder) {
+            OutputStream emailOutputStream = new BufferedOutputStream(new EncryptedOutputStream(new SecureFileOutputStream(file), passwordHolder));
+            try {
+                metadata.writeTo(emailOutputStream);
+            } catch (IOException e) {
+                log.error("Can't write metadata to file <" + file.getAbsolutePath() + ">", e);
+                throw e;
+            } finally {
+                if (emailOutputStream != null)
+                    emailOutputStream.close();
+            }
         }
 
         for (FolderListener listener: folderListeners)
@@ -485,16 +569,24 @@ public class EmailFolder extends Folder<Email> {
      * @return <code>true</code> if the email was deleted, <code>false</code> otherwise
      */
     public boolean delete(String messageId) {
-        File metadataFile = getMetadataFile(messageId);
-        if (metadataFile.exists())
-            metadataFile.delete();
-        
-        File emailFile = getEmailFile(messageId);
         boolean deleted;
-        if (emailFile != null)
-            deleted = emailFile.delete();
-        else
-            deleted = false;
+        synchronized(passwordHolder) {
+            File metadataFile = getMetadataFile(messageId);
+            if (metadataFile.exists())
+                metadataFile.delete();
+            try {
+                journal.forget(messageId);
+            }
+            catch (Exception e) {
+                log.error("Can't remove message ID <" + messageId + "> from the metadata journal.", e);
+            }
+            
+            File emailFile = getEmailFile(messageId);
+            if (emailFile != null)
+                deleted = emailFile.delete();
+            else
+                deleted = false;
+        }
         
         for (FolderListener listener: folderListeners)
             listener.elementRemoved(messageId);
@@ -521,8 +613,9 @@ public class EmailFolder extends Folder<Email> {
                 metadataStream = new BufferedInputStream(new EncryptedInputStream(new FileInputStream(metadataFile), passwordHolder));
             Email email = new Email(emailStream, metadataStream, passwordHolder);
             
-            String messageIdString = emailFile.getName().substring(0, 44);
+            String messageIdString = getMessageId(emailFile);
             email.setMessageID(messageIdString);
+            journal.applyTo(messageIdString, email.getMetadata());
             
             return email;
         } finally {
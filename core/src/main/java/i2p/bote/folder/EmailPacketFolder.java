@@ -33,7 +33,7 @@ import i2p.bote.packet.dht.EmailPacketDeleteRequest;
 import i2p.bote.packet.dht.EncryptedEmailPacket;
 
 import java.io.File;
-import java.util.Iterator;
+import java.util.List;
 
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
@@ -52,12 +52,15 @@ import net.i2p.util.Log;
  */
 public class EmailPacketFolder extends DeletionAwareDhtFolder<EncryptedEmailPacket> implements PacketListener, ExpirationListener {
     private Log log = new Log(EmailPacketFolder.class);
+    private ExpirationIndex<String> expirationIndex;   // filenames by store time
+    private boolean expirationIndexLoaded;
 
     public EmailPacketFolder(File storageDir) {
         super(storageDir);
+        expirationIndex = new ExpirationIndex<String>(EXPIRATION_TIME_MILLISECONDS);
     }
 
-    /** Overridden to set a time stamp on the packet */
+    /** Overridden to set a time stamp on the packet, and to add the packet to the expiration index */
     @Override
     public void store(DhtStorablePacket packetToStore) {
         if (!(packetToStore instanceof EncryptedEmailPacket))
@@ -68,6 +71,20 @@ public class EmailPacketFolder extends DeletionAwareDhtFolder<EncryptedEmailPack
         if (emailPacket.getStoreTime() == 0)
             emailPacket.setStoreTime(System.currentTimeMillis());
         super.store(packetToStore);
+        expirationIndex.add(getFilename(emailPacket.getDhtKey()), emailPacket.getStoreTime());
+    }
+    
+    /** Overridden to remove the packet from the expiration index */
+    @Override
+    public void delete(Hash dhtKey) {
+        super.delete(dhtKey);
+        expirationIndex.remove(getFilename(dhtKey));
+    }
+    
+    /** Overridden to remove packets deleted through an iterator from the expiration index */
+    @Override
+    protected void fileDeleted(File file) {
+        expirationIndex.remove(file.getName());
     }
     
     /** Overridden to erase the time stamp because there is no need for other peers to see it. */
@@ -138,14 +155,51 @@ public class EmailPacketFolder extends DeletionAwareDhtFolder<EncryptedEmailPack
 
     @Override
     public synchronized void deleteExpired() {
-        long currentTimeMillis = System.currentTimeMillis();
-        for (Iterator<EncryptedEmailPacket> iterator=iterator(); iterator.hasNext();) {
-            EncryptedEmailPacket emailPacket = iterator.next();
-            if (currentTimeMillis > emailPacket.getStoreTime() + EXPIRATION_TIME_MILLISECONDS) {
-                log.debug("Deleting expired email packet: <" + emailPacket + ">");
-                iterator.remove();
+        deleteExpired(Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Files that have disappeared without going through this class don't count
+     * towards <code>maxItems</code>.
+     */
+    @Override
+    public synchronized int deleteExpired(int maxItems) {
+        loadExpirationIndex();
+        int numDeleted = 0;
+        long currentTime = System.currentTimeMillis();
+        List<String> expiredFilenames;
+        while (numDeleted<maxItems && !(expiredFilenames=expirationIndex.pollExpired(currentTime, maxItems-numDeleted)).isEmpty())
+            for (String filename: expiredFilenames) {
+                File packetFile = new File(storageDir, filename);
+                if (!packetFile.exists())
+                    continue;
+                log.debug("Deleting expired email packet: <" + filename + ">");
+                if (packetFile.delete())
+                    numDeleted++;
+                else
+                    log.error("Can't delete file: <" + packetFile.getAbsolutePath() + ">");
             }
-        }
+        return numDeleted;
+    }
+    
+    @Override
+    public synchronized int getNumExpired() {
+        loadExpirationIndex();
+        return expirationIndex.getNumExpired(System.currentTimeMillis());
+    }
+    
+    /**
+     * Reads the store times of all packets in the folder into the expiration index.
+     * This is only done once; after that, the index is kept up to date by
+     * {@link #store(DhtStorablePacket)}, {@link #delete(Hash)}, and {@link #fileDeleted(File)}.
+     */
+    private void loadExpirationIndex() {
+        if (expirationIndexLoaded)
+            return;
+        for (EncryptedEmailPacket emailPacket: this)
+            expirationIndex.add(getFilename(emailPacket.getDhtKey()), emailPacket.getStoreTime());
+        log.debug("Expiration index loaded, " + expirationIndex.size() + " email packets.");
+        expirationIndexLoaded = true;
     }
     
     private String getDeletionFileName(Hash dhtKey) {
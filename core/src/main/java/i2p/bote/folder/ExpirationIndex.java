@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.folder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An in-memory index of expiration times, organized as a timer wheel.<br/>
+ * Keys are grouped into buckets of fixed duration by the time they expire,
+ * so expired keys can be found without looking at keys that expire later,
+ * and without reading anything from disk.
+ * <p/>
+ * This class is thread-safe.
+ * @param <K> The type of key that identifies an expiring item
+ */
+public class ExpirationIndex<K> {
+    private static final long DEFAULT_BUCKET_DURATION = 60 * 60 * 1000L;   // one hour per bucket
+
+    private long lifetime;
+    private long bucketDuration;
+    private SortedMap<Long, Set<K>> buckets;   // maps bucket numbers to the keys in the bucket
+    private Map<K, Long> expirationTimes;
+
+    /**
+     * @param lifetime The number of milliseconds after the store time at which an item expires
+     */
+    public ExpirationIndex(long lifetime) {
+        this(lifetime, DEFAULT_BUCKET_DURATION);
+    }
+
+    /**
+     * @param lifetime The number of milliseconds after the store time at which an item expires
+     * @param bucketDuration The time span, in milliseconds, covered by one bucket
+     */
+    public ExpirationIndex(long lifetime, long bucketDuration) {
+        if (bucketDuration <= 0)
+            throw new IllegalArgumentException("Bucket duration must be positive: " + bucketDuration);
+        this.lifetime = lifetime;
+        this.bucketDuration = bucketDuration;
+        buckets = new TreeMap<Long, Set<K>>();
+        expirationTimes = new HashMap<K, Long>();
+    }
+
+    /**
+     * Adds a key to the index. If the key exists in the index already,
+     * its expiration time is replaced.
+     * @param key
+     * @param storeTime The time the item was stored, in milliseconds since 1-1-1970
+     */
+    public synchronized void add(K key, long storeTime) {
+        remove(key);
+        long expirationTime = storeTime + lifetime;
+        expirationTimes.put(key, expirationTime);
+
+        long bucketNumber = getBucketNumber(expirationTime);
+        Set<K> bucket = buckets.get(bucketNumber);
+        if (bucket == null) {
+            bucket = new LinkedHashSet<K>();
+            buckets.put(bucketNumber, bucket);
+        }
+        bucket.add(key);
+    }
+
+    /**
+     * Removes a key from the index. If the key is not in the index, nothing happens.
+     * @param key
+     */
+    public synchronized void remove(K key) {
+        Long expirationTime = expirationTimes.remove(key);
+        if (expirationTime == null)
+            return;
+
+        long bucketNumber = getBucketNumber(expirationTime);
+        Set<K> bucket = buckets.get(bucketNumber);
+        if (bucket != null) {
+            bucket.remove(key);
+            if (bucket.isEmpty())
+                buckets.remove(bucketNumber);
+        }
+    }
+
+    /**
+     * Removes up to <code>maxKeys</code> expired keys from the index and returns them,
+     * oldest buckets first.
+     * @param currentTime The current time in milliseconds since 1-1-1970
+     * @param maxKeys
+     */
+    public synchronized List<K> pollExpired(long currentTime, int maxKeys) {
+        List<K> expiredKeys = new ArrayList<K>();
+        SortedMap<Long, Set<K>> dueBuckets = buckets.headMap(getBucketNumber(currentTime) + 1);
+        Iterator<Set<K>> bucketIterator = dueBuckets.values().iterator();
+        while (bucketIterator.hasNext() && expiredKeys.size()<maxKeys) {
+            Set<K> bucket = bucketIterator.next();
+            Iterator<K> keyIterator = bucket.iterator();
+            while (keyIterator.hasNext() && expiredKeys.size()<maxKeys) {
+                K key = keyIterator.next();
+                // only the newest bucket can contain keys that haven't expired yet
+                if (currentTime > expirationTimes.get(key)) {
+                    keyIterator.remove();
+                    expirationTimes.remove(key);
+                    expiredKeys.add(key);
+                }
+            }
+            if (bucket.isEmpty())
+                bucketIterator.remove();
+        }
+        return expiredKeys;
+    }
+
+    /**
+     * Returns the number of keys in the index that have expired.
+     * @param currentTime The current time in milliseconds since 1-1-1970
+     */
+    public synchronized int getNumExpired(long currentTime) {
+        long currentBucketNumber = getBucketNumber(currentTime);
+        int numExpired = 0;
+        for (Set<K> bucket: buckets.headMap(currentBucketNumber).values())
+            numExpired += bucket.size();
+        Set<K> currentBucket = buckets.get(currentBucketNumber);
+        if (currentBucket != null)
+            for (K key: currentBucket)
+                if (currentTime > expirationTimes.get(key))
+                    numExpired++;
+        return numExpired;
+    }
+
+    /** Returns the total number of keys in the index. */
+    public synchronized int size() {
+        return expirationTimes.size();
+    }
+
+    public synchronized void clear() {
+        buckets.clear();
+        expirationTimes.clear();
+    }
+
+    private long getBucketNumber(long time) {
+        // round towards negative infinity so negative times end up in the right bucket
+        long bucketNumber = time / bucketDuration;
+        if (time<0 && time%bucketDuration!=0)
+            bucketNumber--;
+        return bucketNumber;
+    }
+}
@@ -21,10 +21,25 @@
 
 package i2p.bote.folder;
 
-/** Interface for folders whose content expires */
+/**
+ * Interface for folders whose content expires.<br/>
+ * Implementations are expected to keep track of expiration times in memory
+ * (see {@link ExpirationIndex}) so expired items can be found without
+ * reading the whole folder.
+ */
 public interface ExpirationListener {
     final static long EXPIRATION_TIME_MILLISECONDS = 100 * 24 * 3600 * 1000L;   // keep for up to 100 days
 
     /** Deletes any expired content */
     void deleteExpired();
+    
+    /**
+     * Deletes up to <code>maxItems</code> expired items, oldest first.
+     * @param maxItems
+     * @return the number of items that were deleted
+     */
+    int deleteExpired(int maxItems);
+    
+    /** Returns the number of items that have expired but have not been deleted yet. */
+    int getNumExpired();
 }
\ No newline at end of file
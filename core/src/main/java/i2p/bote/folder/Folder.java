@@ -192,12 +192,22 @@ public abstract class Folder<T> {
             public void remove() {
                 if (lastFile == null)
                     throw new IllegalStateException("remove() was called before next()");
-                if (!lastFile.delete())
+                if (lastFile.delete())
+                    fileDeleted(lastFile);
+                else
                     log.error("Can't delete file: <" + lastFile.getAbsolutePath() + ">");
             }
         };
     }
     
+    /**
+     * Called after {@link FolderIterator#remove()} has deleted a file, so subclasses
+     * that keep track of their files in memory can update their records.
+     * @param file
+     */
+    protected void fileDeleted(File file) {
+    }
+    
     /**
      * Reads a file from the filesystem and returns it as an object of type <code>T</code>.
      * @param file
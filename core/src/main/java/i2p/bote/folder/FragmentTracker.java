@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.folder;
+
+import i2p.bote.UniqueId;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ * Keeps track of which fragments of each incomplete email have been received,
+ * so completion of an email can be detected without listing the folder.
+ * <p/>
+ * The state is persisted in a manifest file which is appended to for every
+ * fragment, and rewritten when it contains too many entries for emails that
+ * have been completed in the meantime.<br/>
+ * File format: one line per fragment, consisting of the base64-encoded message ID,
+ * the fragment index, and the number of fragments, separated by spaces.
+ * <p/>
+ * The manifest is only a hint; {@link IncompleteEmailFolder} reconciles it with
+ * the packet files present at startup.
+ */
+public class FragmentTracker {
+    private Log log = new Log(FragmentTracker.class);
+    private File manifestFile;
+    private Map<UniqueId, Fragments> messages;
+    private int numManifestLines;   // the number of lines in the manifest file, including obsolete ones
+    
+    /**
+     * Reads the manifest file if it exists.
+     * @param manifestFile
+     */
+    public FragmentTracker(File manifestFile) {
+        this.manifestFile = manifestFile;
+        messages = new HashMap<UniqueId, Fragments>();
+        read();
+    }
+    
+    private void read() {
+        if (!manifestFile.exists())
+            return;
+        
+        log.debug("Reading fragment manifest: <" + manifestFile.getAbsolutePath() + ">");
+        BufferedReader input = null;
+        try {
+            input = new BufferedReader(new FileReader(manifestFile));
+            while (true) {
+                String line = input.readLine();
+                if (line == null)   // EOF
+                    break;
+                numManifestLines++;
+                
+                String[] parts = line.split(" ");
+                if (parts.length != 3) {
+                    log.error("Invalid line in fragment manifest: <" + line + ">");
+                    continue;
+                }
+                try {
+                    UniqueId messageId = new UniqueId(parts[0]);
+                    int fragmentIndex = Integer.parseInt(parts[1]);
+                    int numFragments = Integer.parseInt(parts[2]);
+                    put(messageId, fragmentIndex, numFragments);
+                } catch (RuntimeException e) {
+                    log.error("Invalid line in fragment manifest: <" + line + ">", e);
+                }
+            }
+        }
+        catch (IOException e) {
+            log.error("Can't read fragment manifest.", e);
+        }
+        finally {
+            if (input != null)
+                try {
+                    input.close();
+                }
+                catch (IOException e) {
+                    log.error("Error closing BufferedReader.", e);
+                }
+        }
+    }
+    
+    /**
+     * Records a fragment and appends it to the manifest. Invalid fragments
+     * (see {@link #isValid(UniqueId, int, int)}) are dropped.
+     * @param messageId
+     * @param fragmentIndex
+     * @param numFragments
+     * @return <code>true</code> if all fragments of the email have been received,
+     * <code>false</code> otherwise
+     */
+    public synchronized boolean add(UniqueId messageId, int fragmentIndex, int numFragments) {
+        boolean isNew = put(messageId, fragmentIndex, numFragments);
+        if (isNew)
+            append(messageId, fragmentIndex, numFragments);
+        return isComplete(messageId);
+    }
+    
+    /**
+     * Returns <code>false</code> and logs a warning if a fragment index is out of range,
+     * or if the number of fragments differs from the one in the email's other fragments.
+     * @param messageId
+     * @param fragmentIndex
+     * @param numFragments
+     */
+    public synchronized boolean isValid(UniqueId messageId, int fragmentIndex, int numFragments) {
+        if (fragmentIndex<0 || fragmentIndex>=numFragments) {
+            log.warn("Dropping fragment with invalid index: " + fragmentIndex + ", numFragments=" + numFragments + ", message ID=" + messageId);
+            return false;
+        }
+        Fragments fragments = messages.get(messageId);
+        if (fragments!=null && fragments.numFragments!=numFragments) {
+            log.warn("Dropping fragment " + fragmentIndex + " of message ID " + messageId + ": numFragments=" + numFragments + ", but earlier fragments had " + fragments.numFragments);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Adds a fragment to the in-memory state.
+     * @return <code>true</code> if the fragment was valid and not known before
+     */
+    private boolean put(UniqueId messageId, int fragmentIndex, int numFragments) {
+        if (!isValid(messageId, fragmentIndex, numFragments))
+            return false;
+        
+        Fragments fragments = messages.get(messageId);
+        if (fragments == null) {
+            fragments = new Fragments(numFragments);
+            messages.put(messageId, fragments);
+        }
+        if (fragments.received.get(fragmentIndex))
+            return false;
+        fragments.received.set(fragmentIndex);
+        fragments.numReceived++;
+        return true;
+    }
+    
+    public synchronized boolean isComplete(UniqueId messageId) {
+        Fragments fragments = messages.get(messageId);
+        return fragments!=null && fragments.numReceived>=fragments.numFragments;
+    }
+    
+    public synchronized boolean contains(UniqueId messageId, int fragmentIndex) {
+        Fragments fragments = messages.get(messageId);
+        return fragments!=null && fragments.received.get(fragmentIndex);
+    }
+    
+    /**
+     * Returns the total number of fragments of an email,
+     * or zero if no fragment of the email has been received.
+     * @param messageId
+     */
+    public synchronized int getNumFragments(UniqueId messageId) {
+        Fragments fragments = messages.get(messageId);
+        return fragments==null ? 0 : fragments.numFragments;
+    }
+    
+    /**
+     * Returns the indices of all fragments received for an email.
+     * @param messageId
+     */
+    public synchronized Collection<Integer> getFragmentIndices(UniqueId messageId) {
+        Collection<Integer> indices = new ArrayList<Integer>();
+        Fragments fragments = messages.get(messageId);
+        if (fragments != null)
+            for (int i=fragments.received.nextSetBit(0); i>=0; i=fragments.received.nextSetBit(i+1))
+                indices.add(i);
+        return indices;
+    }
+    
+    /** Returns the message IDs of all emails for which at least one fragment has been received. */
+    public synchronized Collection<UniqueId> getMessageIds() {
+        return new ArrayList<UniqueId>(messages.keySet());
+    }
+    
+    /** Returns the number of emails for which at least one fragment has been received. */
+    public synchronized int getNumMessages() {
+        return messages.size();
+    }
+    
+    /**
+     * Removes a single fragment. This is used when the packet file for a fragment
+     * turns out to be missing.
+     * @param messageId
+     * @param fragmentIndex
+     */
+    public synchronized void remove(UniqueId messageId, int fragmentIndex) {
+        Fragments fragments = messages.get(messageId);
+        if (fragments==null || !fragments.received.get(fragmentIndex))
+            return;
+        fragments.received.clear(fragmentIndex);
+        fragments.numReceived--;
+        if (fragments.numReceived == 0)
+            messages.remove(messageId);
+    }
+    
+    /**
+     * Removes all fragments of an email. The manifest file is rewritten
+     * if it contains mostly obsolete entries.
+     * @param messageId
+     */
+    public synchronized void remove(UniqueId messageId) {
+        messages.remove(messageId);
+        
+        int numLiveFragments = 0;
+        for (Fragments fragments: messages.values())
+            numLiveFragments += fragments.numReceived;
+        if (numManifestLines > 2*numLiveFragments)
+            compact();
+    }
+    
+    /**
+     * Rewrites the manifest so it only contains fragments that are currently known.
+     * If there are no incomplete emails, the manifest file is deleted.
+     */
+    public synchronized void compact() {
+        if (messages.isEmpty()) {
+            if (manifestFile.exists() && !manifestFile.delete())
+                log.error("Can't delete fragment manifest: <" + manifestFile.getAbsolutePath() + ">");
+            numManifestLines = 0;
+            return;
+        }
+        
+        // write to a temp file first so a crash doesn't destroy the manifest
+        File tempFile = new File(manifestFile.getAbsolutePath() + ".tmp");
+        Writer writer = null;
+        int numLines = 0;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new SecureFileOutputStream(tempFile)));
+            for (Map.Entry<UniqueId, Fragments> entry: messages.entrySet()) {
+                Fragments fragments = entry.getValue();
+                for (int i=fragments.received.nextSetBit(0); i>=0; i=fragments.received.nextSetBit(i+1)) {
+                    writer.write(createLine(entry.getKey(), i, fragments.numFragments));
+                    numLines++;
+                }
+            }
+        }
+        catch (IOException e) {
+            log.error("Can't write fragment manifest.", e);
+            return;
+        }
+        finally {
+            if (writer != null)
+                try {
+                    writer.close();
+                }
+                catch (IOException e) {
+                    log.error("Error closing Writer.", e);
+                }
+        }
+        
+        if (manifestFile.exists() && !manifestFile.delete())
+            log.error("Can't delete fragment manifest: <" + manifestFile.getAbsolutePath() + ">");
+        if (tempFile.renameTo(manifestFile))
+            numManifestLines = numLines;
+        else
+            log.error("Can't rename <" + tempFile.getAbsolutePath() + "> to <" + manifestFile.getAbsolutePath() + ">");
+    }
+    
+    private void append(UniqueId messageId, int fragmentIndex, int numFragments) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new SecureFileOutputStream(manifestFile, true));
+            writer.write(createLine(messageId, fragmentIndex, numFragments));
+            numManifestLines++;
+        }
+        catch (IOException e) {
+            log.error("Can't append to fragment manifest: <" + manifestFile.getAbsolutePath() + ">", e);
+        }
+        finally {
+            if (writer != null)
+                try {
+                    writer.close();
+                }
+                catch (IOException e) {
+                    log.error("Error closing Writer.", e);
+                }
+        }
+    }
+    
+    private String createLine(UniqueId messageId, int fragmentIndex, int numFragments) {
+        return messageId.toBase64() + " " + fragmentIndex + " " + numFragments + System.getProperty("line.separator");
+    }
+    
+    private static class Fragments {
+        int numFragments;
+        int numReceived;
+        BitSet received;
+        
+        Fragments(int numFragments) {
+            this.numFragments = numFragments;
+            received = new BitSet(numFragments);
+        }
+    }
+}
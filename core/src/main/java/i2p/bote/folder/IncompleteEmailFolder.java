@@ -22,7 +22,10 @@
 package i2p.bote.folder;
 
 import i2p.bote.UniqueId;
+import i2p.bote.Util;
 import i2p.bote.email.Email;
+import i2p.bote.email.SignatureVerifier;
+import i2p.bote.fileencryption.PasswordCacheListener;
 import i2p.bote.packet.DataPacket;
 import i2p.bote.packet.I2PBotePacket;
 import i2p.bote.packet.MalformedPacketException;
@@ -31,145 +34,334 @@ import i2p.bote.packet.dht.UnencryptedEmailPacket;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.i2p.util.Log;
 
 /**
  * File name format: <code>&lt;message id&gt;_&lt;fragment index&gt;.pkt</code>
+ * <p/>
+ * Received fragments are tracked in memory by a {@link FragmentTracker}, so the
+ * folder doesn't need to be listed when a packet arrives. When all fragments of
+ * an email have been received, the email is assembled in a background thread.
+ * <p/>
+ * Emails that are completed while the background thread is busy are assembled
+ * together, and their signatures are verified in parallel by a {@link SignatureVerifier}
+ * before they are added to the inbox in the order they were completed.<br/>
+ * An email stays in the <code>FragmentTracker</code> until it has been stored in
+ * the inbox, so it is assembled again after a restart if storing fails.
+ * <p/>
+ * Complete emails found when the folder is loaded are not assembled until
+ * {@link #passwordProvided()} is called, because the inbox can't be written
+ * before the password is known.
  */
-public class IncompleteEmailFolder extends PacketFolder<UnencryptedEmailPacket> {
+public class IncompleteEmailFolder extends PacketFolder<UnencryptedEmailPacket> implements PasswordCacheListener {
+    private static final String MANIFEST_FILE_NAME = "fragments.txt";
+    private static final int ASSEMBLER_THREAD_STACK_SIZE = 256 * 1024;
+    
     private Log log = new Log(IncompleteEmailFolder.class);
     private EmailFolder inbox;
     private MessageIdCache messageIdCache;
     private Collection<NewEmailListener> newEmailListeners;
+    private FragmentTracker fragmentTracker;
+    private ExecutorService assembler;
+    private Queue<PendingEmail> pendingEmails;   // completed emails that haven't been assembled yet
+    private SignatureVerifier signatureVerifier;
+    private Queue<UniqueId> unstoredEmails;   // complete emails that haven't been stored in the inbox yet, because the password wasn't available or storing failed
 
     public IncompleteEmailFolder(File storageDir, MessageIdCache messageIdCache, EmailFolder inbox) {
+        this(storageDir, messageIdCache, inbox, new SignatureVerifier());
+    }
+    
+    public IncompleteEmailFolder(File storageDir, MessageIdCache messageIdCache, EmailFolder inbox, SignatureVerifier signatureVerifier) {
         super(storageDir);
         this.inbox = inbox;
         this.messageIdCache = messageIdCache;
-        newEmailListeners = new ArrayList<NewEmailListener>();
+        this.signatureVerifier = signatureVerifier;
+        pendingEmails = new ConcurrentLinkedQueue<PendingEmail>();
+        unstoredEmails = new ConcurrentLinkedQueue<UniqueId>();
+        newEmailListeners = new CopyOnWriteArrayList<NewEmailListener>();
+        
+        // a single thread so emails are assembled in the order they were completed; the thread terminates when idle
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+                Util.createThreadFactory("AssembleEmail", ASSEMBLER_THREAD_STACK_SIZE));
+        executor.allowCoreThreadTimeOut(true);
+        assembler = executor;
+        
+        loadFragments();
     }
 
-    public synchronized int getNumIncompleteEmails() {
-        Set<String> messages = new HashSet<String>();
-        File[] packets = getFilenames();
-        for (int i = 0; i < packets.length; i++) {
-            File packet = packets[i];
-            String messageId = packet.getName().split("_")[0];
-            messages.add(messageId);
+    /**
+     * Initializes the <code>FragmentTracker</code> from the manifest file and checks it
+     * against the packet files in the folder. Packet files that are not in the manifest
+     * (because of a crash, for example) are read and added to the manifest.<br/>
+     * Emails that are complete but weren't stored in the inbox before a restart are
+     * assembled when the password is provided.
+     */
+    private void loadFragments() {
+        fragmentTracker = new FragmentTracker(new File(storageDir, MANIFEST_FILE_NAME));
+        
+        // find all fragments that have a packet file
+        Map<UniqueId, Set<Integer>> fragmentsOnDisk = new HashMap<UniqueId, Set<Integer>>();
+        for (File file: getFilenames()) {
+            UniqueId messageId;
+            int fragmentIndex;
+            try {
+                String[] parts = file.getName().substring(0, file.getName().length()-PACKET_FILE_EXTENSION.length()).split("_");
+                messageId = new UniqueId(parts[0]);
+                fragmentIndex = Integer.parseInt(parts[1]);
+            } catch (RuntimeException e) {
+                log.error("Invalid file name in IncompleteEmailFolder: <" + file.getAbsolutePath() + ">", e);
+                continue;
+            }
+            
+            if (!fragmentTracker.contains(messageId, fragmentIndex)) {
+                // not in the manifest; get the number of fragments from the packet
+                try {
+                    UnencryptedEmailPacket packet = createFolderElement(file);
+                    fragmentTracker.add(messageId, fragmentIndex, packet.getNumFragments());
+                } catch (Exception e) {
+                    log.error("Can't read email packet: <" + file.getAbsolutePath() + ">", e);
+                    continue;
+                }
+                if (!fragmentTracker.contains(messageId, fragmentIndex)) {
+                    // the packet doesn't match the email's other fragments
+                    if (!file.delete())
+                        log.error("Can't delete email packet: <" + file.getAbsolutePath() + ">");
+                    continue;
+                }
+            }
+            
+            Set<Integer> indices = fragmentsOnDisk.get(messageId);
+            if (indices == null) {
+                indices = new HashSet<Integer>();
+                fragmentsOnDisk.put(messageId, indices);
+            }
+            indices.add(fragmentIndex);
         }
-        return messages.size();
+        
+        // remove fragments whose packet files no longer exist
+        for (UniqueId messageId: fragmentTracker.getMessageIds()) {
+            Set<Integer> indices = fragmentsOnDisk.get(messageId);
+            for (int fragmentIndex: fragmentTracker.getFragmentIndices(messageId))
+                if (indices==null || !indices.contains(fragmentIndex))
+                    fragmentTracker.remove(messageId, fragmentIndex);
+        }
+        fragmentTracker.compact();
+        
+        for (UniqueId messageId: fragmentTracker.getMessageIds())
+            if (fragmentTracker.isComplete(messageId)) {
+                if (!messageIdCache.contains(messageId))
+                    messageIdCache.add(messageId);
+                unstoredEmails.add(messageId);
+            }
+    }
+    
+    /**
+     * Hands all complete emails that haven't been stored in the inbox off to the
+     * assembler thread.
+     */
+    public synchronized void assembleUnstoredEmails() {
+        UniqueId messageId;
+        while ((messageId = unstoredEmails.poll()) != null)
+            assemble(messageId);
+    }
+    
+    /** Assembles the emails that couldn't be stored while the inbox was locked. */
+    @Override
+    public void passwordProvided() {
+        assembleUnstoredEmails();
+    }
+    
+    @Override
+    public void passwordCleared() {
+    }
+    
+    public synchronized int getNumIncompleteEmails() {
+        return fragmentTracker.getNumMessages();
     }
     
     /**
      * Stores an <code>UnencryptedEmailPacket</code> in the folder and returns <code>true</code>
-     * if an email was completed as a result of adding the packet.
+     * if an email was completed as a result of adding the packet.<br/>
+     * The email is assembled and added to the inbox asynchronously.
      * @param packetToStore
      * @see i2p.bote.folder.PacketFolder#add(I2PBotePacket, String)
      */
     public synchronized boolean addEmailPacket(UnencryptedEmailPacket packetToStore) {
+        // retry emails that couldn't be stored in the inbox
+        assembleUnstoredEmails();
+        
         UniqueId messageId = packetToStore.getMessageId();
         // if a previously assembled (completed) email contained the message ID, ignore the email packet
         if (messageIdCache.contains(messageId)) {
             log.debug("Discarding email packet because the message ID matches a previously received email. Packet: " + packetToStore);
             return false;
         }
+        if (!fragmentTracker.isValid(messageId, packetToStore.getFragmentIndex(), packetToStore.getNumFragments()))
+            return false;
         
-        add(packetToStore, getFilename(packetToStore));
-        
-        // TODO possible optimization: if getNumFragments == 1, no need to check for other packet files
-        File[] finishedPacketFiles = getAllMatchingFiles(messageId);
+        add(packetToStore, getFilename(messageId, packetToStore.getFragmentIndex()));
+        boolean complete = fragmentTracker.add(messageId, packetToStore.getFragmentIndex(), packetToStore.getNumFragments());
         
         // if all packets of the email are available, assemble them into an email
-        if (finishedPacketFiles.length == packetToStore.getNumFragments()) {
-            assemble(finishedPacketFiles);
+        if (complete) {
             messageIdCache.add(messageId);
+            assemble(messageId);
             return true;
         }
         return false;
     }
     
-    private String getFilename(UnencryptedEmailPacket packet) {
-        String fragIndex = String.format("%03d", packet.getFragmentIndex());
-        return packet.getMessageId() + "_" + fragIndex + PacketFolder.PACKET_FILE_EXTENSION;
+    private String getFilename(UniqueId messageId, int fragmentIndex) {
+        String fragIndex = String.format("%03d", fragmentIndex);
+        return messageId + "_" + fragIndex + PacketFolder.PACKET_FILE_EXTENSION;
     }
 
-    private void assemble(File[] packetFiles) {
-        // No need to do this in a separate thread, just call run()
-        new AssembleTask(packetFiles, inbox).run();
-    }
-    
     /**
-     * Returns all filenames that match a given message ID. Not to be confused with
-     * the {@link #retrieve(net.i2p.data.Hash)} method, which takes a DHT key.
+     * Hands an email off to the assembler thread. The email is removed from the
+     * <code>FragmentTracker</code> when it has been stored in the inbox, or when
+     * its packets turn out to be unusable.
      * @param messageId
      */
-    private File[] getAllMatchingFiles(UniqueId messageId) {
-        final String base64Id = messageId.toBase64();
+    private void assemble(UniqueId messageId) {
+        int numFragments = fragmentTracker.getNumFragments(messageId);
+        if (numFragments == 0)
+            return;
+        File[] packetFiles = new File[numFragments];
+        for (int i=0; i<numFragments; i++)
+            packetFiles[i] = new File(storageDir, getFilename(messageId, i));
+        pendingEmails.add(new PendingEmail(messageId, packetFiles));
+        assembler.execute(new AssembleTask());
+    }
+    
+    private static class PendingEmail {
+        UniqueId messageId;
+        File[] packetFiles;   // sorted by fragment index
         
-        return storageDir.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.startsWith(base64Id);
-            }
-        });
+        PendingEmail(UniqueId messageId, File[] packetFiles) {
+            this.messageId = messageId;
+            this.packetFiles = packetFiles;
+        }
     }
     
     /**
-     * Makes a set of {@link UnencryptedEmailPacket}s into an {@link Email}, stores the email in the inbox,
-     * and deletes the packet files.
+     * Makes sets of {@link UnencryptedEmailPacket}s into {@link Email}s, stores the emails in the inbox,
+     * and deletes the packet files.<br/>
+     * Each task assembles all emails that are pending when it runs, so a task can find
+     * nothing to do if an earlier task has assembled its email already.
      */
     private class AssembleTask implements Runnable {
-        File[] packetFiles;
-        
-        public AssembleTask(File[] packetFiles, EmailFolder inbox) {
-            this.packetFiles = packetFiles;
-        }
 
         @Override
         public void run() {
+            List<PendingEmail> assembledEmails = new ArrayList<PendingEmail>();
+            List<Email> emails = new ArrayList<Email>();
+            PendingEmail pendingEmail;
+            while ((pendingEmail = pendingEmails.poll()) != null) {
+                Email email = assemble(pendingEmail.packetFiles);
+                if (email != null) {
+                    assembledEmails.add(pendingEmail);
+                    emails.add(email);
+                }
+                else {
+                    // trying again won't help, and new packets for the email are ignored because the message ID is cached
+                    log.error("Discarding email packets that can't be assembled, message ID = " + pendingEmail.messageId);
+                    deletePacketFiles(pendingEmail);
+                    fragmentTracker.remove(pendingEmail.messageId);
+                }
+            }
+            if (emails.isEmpty())
+                return;
+            
+            // incoming emails have no signature flag, so set it now; if it exists, don't trust but overwrite
+            try {
+                if (emails.size() == 1)
+                    signatureVerifier.verify(emails.get(0));
+                else
+                    signatureVerifier.verifyAll(emails);
+            } catch (InterruptedException e) {
+                log.debug("Interrupted while verifying email signatures, emails will be assembled after a restart.", e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            
+            for (int i=0; i<emails.size(); i++)
+                store(emails.get(i), assembledEmails.get(i));
+        }
+        
+        /**
+         * Reads the packet files of an email and assembles the email.
+         * Returns <code>null</code> if an error occurred.
+         * @param packetFiles The packet files, sorted by fragment index
+         */
+        private Email assemble(File[] packetFiles) {
             UnencryptedEmailPacket[] packets = getEmailPackets(packetFiles).toArray(new UnencryptedEmailPacket[0]);
+            if (packets.length != packetFiles.length) {
+                log.error("Can't assemble email: expected " + packetFiles.length + " email packets, found " + packets.length);
+                return null;
+            }
             
-            // sort by fragment index
-            Arrays.sort(packets, new Comparator<UnencryptedEmailPacket>() {
-                @Override
-                public int compare(UnencryptedEmailPacket packet1, UnencryptedEmailPacket packet2) {
-                    return Integer.valueOf(packet1.getFragmentIndex()).compareTo(packet2.getFragmentIndex());
-                }
-            });
-
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
             try {
                 for (UnencryptedEmailPacket packet: packets)
                     outputStream.write(packet.getContent());
                 Email email = new Email(outputStream.toByteArray());
                 email.setMessageID(packets[0].getMessageId());   // all packets in the array have the same message ID
-                email.setSignatureFlag();   // incoming emails have no signature flag, so set it now; if it exists, don't trust but overwrite
+                return email;
+            }
+            catch (Exception e) {
+                log.error("Error assembling email.", e);
+                return null;
+            }
+        }
+        
+        /**
+         * Stores an email in the inbox, deletes its packet files, removes it from the
+         * <code>FragmentTracker</code>, and notifies listeners. If the email can't be stored,
+         * it is assembled again when the next packet arrives.<br/>
+         * The packet files are deleted before the <code>FragmentTracker</code> entry, so a
+         * crash in between can't leave packet files that are not in the manifest and would
+         * be assembled into a second copy of the email.
+         */
+        private void store(Email email, PendingEmail pendingEmail) {
+            try {
                 email.getMetadata().setReceivedDate(new Date());
                 inbox.add(email);
-
-                // notify listeners
-                for (NewEmailListener listener : newEmailListeners)
-                    listener.emailReceived(email.getMessageID());
-                
-                // delete packets
-                for (File file: packetFiles)
-                    if (!file.delete())
-                        log.warn("Email packet file not deleted: <" + file.getAbsolutePath() + ">");
             }
             catch (Exception e) {
-                log.error("Error assembling/storing email, or deleting email packets. ", e);
+                log.error("Error storing email, will try again when the next email packet arrives.", e);
+                unstoredEmails.add(pendingEmail.messageId);
                 return;
             }
+            
+            deletePacketFiles(pendingEmail);
+            fragmentTracker.remove(pendingEmail.messageId);
+            
+            // notify listeners
+            for (NewEmailListener listener : newEmailListeners)
+                listener.emailReceived(email.getMessageID());
+        }
+        
+        private void deletePacketFiles(PendingEmail pendingEmail) {
+            for (File file: pendingEmail.packetFiles)
+                if (file.exists() && !file.delete())
+                    log.warn("Email packet file not deleted: <" + file.getAbsolutePath() + ">");
         }
         
         private Collection<UnencryptedEmailPacket> getEmailPackets(File[] files) {
@@ -34,8 +34,12 @@ import i2p.bote.packet.dht.IndexPacketDeleteRequest;
 import i2p.bote.packet.dht.IndexPacketEntry;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
@@ -48,9 +52,12 @@ import net.i2p.util.Log;
  */
 public class IndexPacketFolder extends DeletionAwareDhtFolder<IndexPacket> implements PacketListener, ExpirationListener {
     private final Log log = new Log(IndexPacketFolder.class);
+    private ExpirationIndex<EntryKey> expirationIndex;   // index packet entries by store time
+    private boolean expirationIndexLoaded;
 
     public IndexPacketFolder(File storageDir) {
         super(storageDir);
+        expirationIndex = new ExpirationIndex<EntryKey>(EXPIRATION_TIME_MILLISECONDS);
     }
 
     /** Overridden to merge the packet with an existing one, and to set time stamps on the packet entries */
@@ -84,6 +91,7 @@ public class IndexPacketFolder extends DeletionAwareDhtFolder<IndexPacket> imple
     private synchronized void remove(IndexPacket indexPacket, Hash emailPacketKey, UniqueId delAuthorization) {
         log.debug("Removing DHT key " + emailPacketKey + " from Index Packet for Email Dest " + indexPacket.getDhtKey());
         indexPacket.remove(emailPacketKey);
+        expirationIndex.remove(new EntryKey(indexPacket.getDhtKey(), emailPacketKey));
         // DEL_FILE_PREFIX + getFilename(indexPacket)
         String delFileName = getDeletionFileName(indexPacket.getDhtKey());
         addToDeletedPackets(delFileName, emailPacketKey, delAuthorization);
@@ -95,23 +103,82 @@ public class IndexPacketFolder extends DeletionAwareDhtFolder<IndexPacket> imple
      */
     @Override
     public synchronized void deleteExpired() {
+        deleteExpired(Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Removes up to <code>maxItems</code> expired index packet entries. Each index packet
+     * that contains at least one of the entries is read and written only once.<br/>
+     * Does not add Deletion Records.
+     */
+    @Override
+    public synchronized int deleteExpired(int maxItems) {
+        loadExpirationIndex();
         long currentTime = System.currentTimeMillis();
-        for (IndexPacket indexPacket: this) {
+        
+        // group expired entries by index packet
+        Map<Hash, List<Hash>> expiredEntries = new HashMap<Hash, List<Hash>>();
+        for (EntryKey key: expirationIndex.pollExpired(currentTime, maxItems)) {
+            List<Hash> emailPacketKeys = expiredEntries.get(key.destinationHash);
+            if (emailPacketKeys == null) {
+                emailPacketKeys = new ArrayList<Hash>();
+                expiredEntries.put(key.destinationHash, emailPacketKeys);
+            }
+            emailPacketKeys.add(key.emailPacketKey);
+        }
+        
+        int numDeleted = 0;
+        for (Map.Entry<Hash, List<Hash>> mapEntry: expiredEntries.entrySet()) {
+            DhtStorablePacket packet = super.retrieve(mapEntry.getKey());   // use super.retrieve() because we need the time stamps
+            if (!(packet instanceof IndexPacket))
+                continue;   // the file has been deleted
+            IndexPacket indexPacket = (IndexPacket)packet;
+            
             boolean removed = false;   // true if at least one entry was removed
-            synchronized(indexPacket) {
-                Iterator<IndexPacketEntry> iterator = indexPacket.iterator();
-                while (iterator.hasNext()) {
-                    IndexPacketEntry entry = iterator.next();
-                    if (currentTime > entry.storeTime + EXPIRATION_TIME_MILLISECONDS) {
-                        log.debug("Deleting expired index packet entry: file=<" + getFilename(indexPacket.getDhtKey()) + ">, emailPktKey=" + entry.emailPacketKey.toBase64());
-                        iterator.remove();
-                        removed = true;
-                    }
+            for (Hash emailPacketKey: mapEntry.getValue()) {
+                IndexPacketEntry entry = indexPacket.getEntry(emailPacketKey);
+                if (entry == null)
+                    continue;
+                if (currentTime > entry.storeTime + EXPIRATION_TIME_MILLISECONDS) {
+                    log.debug("Deleting expired index packet entry: file=<" + getFilename(indexPacket.getDhtKey()) + ">, emailPktKey=" + emailPacketKey.toBase64());
+                    indexPacket.remove(emailPacketKey);
+                    removed = true;
+                    numDeleted++;
                 }
-                if (removed)
-                    super.store(indexPacket);   // don't merge, but overwrite the file with the entry/entries removed
+                else
+                    // the index was out of date; use the time stamp from the file
+                    expirationIndex.add(new EntryKey(indexPacket.getDhtKey(), emailPacketKey), entry.storeTime);
             }
+            if (removed)
+                super.store(indexPacket);   // don't merge, but overwrite the file with the entry/entries removed
         }
+        return numDeleted;
+    }
+    
+    @Override
+    public synchronized int getNumExpired() {
+        loadExpirationIndex();
+        return expirationIndex.getNumExpired(System.currentTimeMillis());
+    }
+    
+    /**
+     * Reads the time stamps of all index packet entries in the folder into the expiration index.
+     * This is only done once; after that, the index is kept up to date when packets are stored
+     * or entries are deleted.
+     */
+    private void loadExpirationIndex() {
+        if (expirationIndexLoaded)
+            return;
+        for (IndexPacket indexPacket: this)
+            addToExpirationIndex(indexPacket);
+        log.debug("Expiration index loaded, " + expirationIndex.size() + " index packet entries.");
+        expirationIndexLoaded = true;
+    }
+    
+    private void addToExpirationIndex(IndexPacket indexPacket) {
+        Hash destinationHash = indexPacket.getDhtKey();
+        for (IndexPacketEntry entry: indexPacket)
+            expirationIndex.add(new EntryKey(destinationHash, entry.emailPacketKey), entry.storeTime);
     }
     
     /** Overridden to put each index packet entry in its own index packet */
@@ -201,6 +268,7 @@ public class IndexPacketFolder extends DeletionAwareDhtFolder<IndexPacket> imple
             log.error("Packet of type " + existingPacket.getClass().getSimpleName() + " found in IndexPacketFolder.");
         
         super.store(indexPacketToStore);   // don't merge, but overwrite
+        addToExpirationIndex(indexPacketToStore);
         return delRequest;
     }
         
@@ -257,4 +325,28 @@ public class IndexPacketFolder extends DeletionAwareDhtFolder<IndexPacket> imple
         else if (storedPacket != null)
             log.debug("IndexPacket expected for DHT key <" + destHash + ">, found " + storedPacket.getClass().getSimpleName());
     }
+    
+    /** Identifies an entry in the expiration index */
+    private static class EntryKey {
+        Hash destinationHash;
+        Hash emailPacketKey;
+        
+        EntryKey(Hash destinationHash, Hash emailPacketKey) {
+            this.destinationHash = destinationHash;
+            this.emailPacketKey = emailPacketKey;
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * destinationHash.hashCode() + emailPacketKey.hashCode();
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof EntryKey))
+                return false;
+            EntryKey other = (EntryKey)obj;
+            return destinationHash.equals(other.destinationHash) && emailPacketKey.equals(other.emailPacketKey);
+        }
+    }
 }
\ No newline at end of file
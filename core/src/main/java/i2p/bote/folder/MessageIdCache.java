@@ -30,9 +30,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import net.i2p.util.Log;
 import net.i2p.util.SecureFileOutputStream;
@@ -41,17 +41,27 @@ import net.i2p.util.SecureFileOutputStream;
  * Email packets are sometimes delivered again after the email has already
  * been received, because some storage nodes were offline the first time.
  * This class stores message IDs of received emails to avoid this problem.
- * 
+ * <p/>
+ * Message IDs are kept in memory in a <code>LinkedHashSet</code>, so lookups
+ * take constant time. When the cache is full, the oldest message ID is evicted.
+ * <p/>
  * File format: one message ID per line, sorted by the time the email was first
- * assembled, oldest to newest.
+ * assembled, oldest to newest. New message IDs are appended to the file; evicted
+ * ones are not removed from the file until it is compacted, which happens when
+ * the file has grown to twice the cache size. When the file is read, only the
+ * newest <code>cacheSize</code> entries are kept, so evictions don't need to
+ * be written out.
  * 
  * @see IncompleteEmailFolder
  */
 public class MessageIdCache {
+    private static final int BASE64_ID_LENGTH = 44;   // the length of a base64-encoded UniqueId
+    
     private Log log = new Log(MessageIdCache.class);
     private File cacheFile;
     private int cacheSize;
-    private List<UniqueId> idList;
+    private Set<UniqueId> idSet;
+    private int numFileEntries;   // the number of lines in the cache file, including evicted IDs
     
     public MessageIdCache(File cacheFile, int sizecacheSize) {
         this.cacheFile = cacheFile;
@@ -60,13 +70,20 @@ public class MessageIdCache {
     }
     
     private void read(File cacheFile) {
-        idList = Collections.synchronizedList(new ArrayList<UniqueId>());
+        idSet = new LinkedHashSet<UniqueId>();
+        
+        // if there was a crash during compaction, use the temp file
+        File tempFile = new File(cacheFile.getAbsolutePath() + ".tmp");
+        if (!cacheFile.exists() && tempFile.exists() && !tempFile.renameTo(cacheFile))
+            log.error("Can't rename <" + tempFile.getAbsolutePath() + "> to <" + cacheFile.getAbsolutePath() + ">");
+        
         if (!cacheFile.exists()) {
             log.debug("Message ID cache file doesn't exist: <" + cacheFile.getAbsolutePath() + ">");
             return;
         }
         
         log.debug("Reading message ID cache file: <" + cacheFile.getAbsolutePath() + ">");
+        boolean invalidLineFound = false;
         BufferedReader input = null;
         try {
             input = new BufferedReader(new FileReader(cacheFile));
@@ -75,9 +92,16 @@ public class MessageIdCache {
                 String idString = input.readLine();
                 if (idString == null)   // EOF
                     break;
+                numFileEntries++;
                 
+                // the last line may be incomplete if there was a crash while appending to the file
+                if (idString.length() != BASE64_ID_LENGTH) {
+                    log.warn("Ignoring invalid line in message ID cache file: <" + idString + ">");
+                    invalidLineFound = true;
+                    continue;
+                }
                 UniqueId id = new UniqueId(idString);
-                idList.add(id);
+                addToSet(id);
             }
             
         }
@@ -93,19 +117,29 @@ public class MessageIdCache {
                     log.error("Error closing BufferedReader.", e);
                 }
         }
+        
+        // rewrite the file so new IDs aren't appended to an incomplete line
+        if (invalidLineFound)
+            compact();
     }
     
-    private void write(File cacheFile) {
-        log.debug("Writing message ID cache file: <" + cacheFile.getAbsolutePath() + ">");
+    /**
+     * Writes all message IDs that are currently in the cache to a temporary file
+     * and replaces the cache file with it.
+     */
+    private void compact() {
+        log.debug("Compacting message ID cache file: <" + cacheFile.getAbsolutePath() + ">");
+        File tempFile = new File(cacheFile.getAbsolutePath() + ".tmp");
         String newLine = System.getProperty("line.separator");
         Writer writer = null;
         try {
-            writer = new BufferedWriter(new OutputStreamWriter(new SecureFileOutputStream(cacheFile.getAbsolutePath())));
-            for (UniqueId id: idList)
+            writer = new BufferedWriter(new OutputStreamWriter(new SecureFileOutputStream(tempFile.getAbsolutePath())));
+            for (UniqueId id: idSet)
                 writer.write(id.toBase64() + newLine);
         }
         catch (IOException e) {
             log.error("Can't write message ID cache file.", e);
+            return;
         }
         finally {
             if (writer != null)
@@ -116,18 +150,58 @@ public class MessageIdCache {
                     log.error("Error closing Writer.", e);
                 }
         }
+        
+        // File.renameTo() can't overwrite on all platforms, so delete the old file first.
+        // If there is a crash in between, the temp file is used on the next start.
+        if (cacheFile.exists() && !cacheFile.delete())
+            log.error("Can't delete message ID cache file: <" + cacheFile.getAbsolutePath() + ">");
+        if (tempFile.renameTo(cacheFile))
+            numFileEntries = idSet.size();
+        else
+            log.error("Can't rename <" + tempFile.getAbsolutePath() + "> to <" + cacheFile.getAbsolutePath() + ">");
+    }
+    
+    /** Appends a message ID to the cache file */
+    private void append(UniqueId messageId) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new SecureFileOutputStream(cacheFile, true));
+            writer.write(messageId.toBase64() + System.getProperty("line.separator"));
+            numFileEntries++;
+        }
+        catch (IOException e) {
+            log.error("Can't append to message ID cache file.", e);
+        }
+        finally {
+            if (writer != null)
+                try {
+                    writer.close();
+                }
+                catch (IOException e) {
+                    log.error("Error closing Writer.", e);
+                }
+        }
+    }
+    
+    /** Adds a message ID to the in-memory set, evicting the oldest ones if the cache is full */
+    private void addToSet(UniqueId messageId) {
+        idSet.remove(messageId);   // if the ID exists, move it to the end
+        Iterator<UniqueId> iterator = idSet.iterator();
+        while (idSet.size() > cacheSize) {
+            iterator.next();
+            iterator.remove();
+        }
+        idSet.add(messageId);
     }
     
-    void add(UniqueId messageId) {
-        while (idList.size() > cacheSize)
-            idList.remove(0);
-        idList.add(messageId);
-        // should not be too big a performance hit to write out the cache here because
-        // this method only gets called when a genuinely new email is received
-        write(cacheFile);
+    synchronized void add(UniqueId messageId) {
+        addToSet(messageId);
+        append(messageId);
+        if (numFileEntries > 2 * (cacheSize+1))
+            compact();
     }
     
-    boolean contains(UniqueId messageId) {
-        return idList.contains(messageId);
+    synchronized boolean contains(UniqueId messageId) {
+        return idSet.contains(messageId);
     }
 }
\ No newline at end of file
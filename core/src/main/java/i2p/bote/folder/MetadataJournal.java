@@ -0,0 +1,456 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.folder;
+
+import i2p.bote.fileencryption.DerivedKey;
+import i2p.bote.fileencryption.EncryptedInputStream;
+import i2p.bote.fileencryption.EncryptedOutputStream;
+import i2p.bote.fileencryption.PasswordException;
+import i2p.bote.fileencryption.PasswordHolder;
+import i2p.bote.fileencryption.ReEncryptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ * Records changes to email metadata, such as the "new" or "replied" flags,
+ * in a single append-only file per folder, so a flag change doesn't require
+ * rewriting the email's metadata file.<br/>
+ * Changes are kept in memory after the journal has been read, and are applied
+ * on top of the metadata file when an email is read (see {@link #applyTo(String, Properties)}).
+ * Once the metadata file has been rewritten with the changes, the changes for
+ * that email can be dropped from the journal via {@link #forget(String)}.
+ * <p/>
+ * File format: a sequence of records, each consisting of a 4-byte length
+ * followed by the record data, encrypted with the folder's password
+ * (see {@link EncryptedOutputStream}). Decrypted, a record contains:
+ * <pre>
+ * Field           Length          Description
+ * ---------------------------------------------------------------------------
+ * Version         1 byte          Record format version (currently 1)
+ * Num entries     4 bytes         Number of entries in the record
+ * For each entry:
+ *   Message ID    UTF string      The message ID of the email
+ *   Property      UTF string      Metadata property name, or an empty string
+ *                                 to drop all earlier changes to the email
+ *   Value         UTF string      The new property value (empty if the
+ *                                 property name is empty)
+ * </pre>
+ * Because all entries in a record are written in one append, changing a flag
+ * on many emails at once takes one file operation.<br/>
+ * When the journal contains more than {@link #MAX_RECORDS} records, it is
+ * compacted into a single record containing the current state. A record
+ * that was only partially written because of a crash is ignored.
+ * <p/>
+ * This class is thread-safe. It synchronizes on the {@link PasswordHolder} rather than
+ * on itself, so it cannot deadlock with a password change, which locks the
+ * <code>PasswordHolder</code> while it re-encrypts the journal.
+ */
+public class MetadataJournal {
+    static final int MAX_RECORDS = 50;
+    private static final int RECORD_FORMAT_VERSION = 1;
+    private static final String RESET = "";   // property name for dropping all changes to an email
+    
+    private Log log = new Log(MetadataJournal.class);
+    private File journalFile;
+    private PasswordHolder passwordHolder;
+    private Map<String, Properties> changes;   // maps message IDs to changed properties; null if not loaded yet
+    private int numRecords;   // the number of records in the journal file
+    
+    public MetadataJournal(File journalFile, PasswordHolder passwordHolder) {
+        this.journalFile = journalFile;
+        this.passwordHolder = passwordHolder;
+    }
+    
+    /**
+     * Sets a metadata property on one or more emails. The change is written
+     * to the journal file as a single record.
+     * @param messageIds
+     * @param property The name of the {@link i2p.bote.email.EmailMetadata} property
+     * @param value The new value; must not be <code>null</code>
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public void setProperty(Collection<String> messageIds, String property, String value) throws IOException, GeneralSecurityException, PasswordException {
+        if (RESET.equals(property))
+            throw new IllegalArgumentException("Property name must not be empty.");
+        if (value == null)
+            throw new IllegalArgumentException("Property value must not be null.");
+        if (messageIds.isEmpty())
+            return;
+        
+        synchronized(passwordHolder) {
+            load();
+            List<Entry> entries = new ArrayList<Entry>();
+            for (String messageId: messageIds)
+                entries.add(new Entry(messageId, property, value));
+            append(entries);
+            for (Entry entry: entries)
+                apply(entry, changes);
+            
+            if (numRecords > MAX_RECORDS)
+                compact();
+        }
+    }
+    
+    /**
+     * Copies all journaled changes for an email into a metadata object.
+     * @param messageId
+     * @param metadata
+     * @return <code>true</code> if there were any changes for the email, <code>false</code> otherwise
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public boolean applyTo(String messageId, Properties metadata) throws IOException, GeneralSecurityException, PasswordException {
+        synchronized(passwordHolder) {
+            load();
+            Properties emailChanges = changes.get(messageId);
+            if (emailChanges == null)
+                return false;
+            metadata.putAll(emailChanges);
+            return true;
+        }
+    }
+    
+    /**
+     * Returns <code>true</code> if the journal contains changes for a given email.
+     * @param messageId
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public boolean hasChanges(String messageId) throws IOException, GeneralSecurityException, PasswordException {
+        synchronized(passwordHolder) {
+            load();
+            return changes.containsKey(messageId);
+        }
+    }
+    
+    /**
+     * Drops all changes for an email from the journal. This method should be
+     * called when the email's metadata file has been rewritten, or when the email
+     * has been deleted or moved to another folder.<br/>
+     * If the journal contains no other changes, the journal file is deleted.
+     * @param messageId
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public void forget(String messageId) throws IOException, GeneralSecurityException, PasswordException {
+        synchronized(passwordHolder) {
+            load();
+            if (changes.remove(messageId) == null)
+                return;
+            
+            if (changes.isEmpty())
+                delete();
+            else {
+                append(Collections.singletonList(new Entry(messageId, RESET, "")));
+                if (numRecords > MAX_RECORDS)
+                    compact();
+            }
+        }
+    }
+    
+    /**
+     * Re-encrypts the journal file with a new password.
+     * @param reEncryptor
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public void changePassword(ReEncryptor reEncryptor) throws IOException, GeneralSecurityException, PasswordException {
+        synchronized(passwordHolder) {
+            if (reEncryptor.isDone(journalFile))
+                return;
+            if (changes == null) {
+                if (!journalFile.exists())
+                    return;
+                changes = read(reEncryptor);
+            }
+            if (changes.isEmpty())
+                delete();
+            else {
+                reEncryptor.replace(journalFile, toFileContents(toEntries(changes), reEncryptor.getNewKey()));
+                numRecords = 1;
+            }
+        }
+    }
+    
+    /** Reads the journal file if it hasn't been read yet. */
+    private void load() throws IOException, GeneralSecurityException, PasswordException {
+        if (changes != null)
+            return;
+        
+        // if there was a crash during compaction, use the temp file
+        File tempFile = getTempFile();
+        if (!journalFile.exists() && tempFile.exists() && !tempFile.renameTo(journalFile))
+            log.error("Can't rename <" + tempFile.getAbsolutePath() + "> to <" + journalFile.getAbsolutePath() + ">");
+        
+        changes = read(null);
+    }
+    
+    /**
+     * Reads all records from the journal file. If the last record is incomplete,
+     * the file is rewritten without it.
+     * @param reEncryptor For decrypting with the old password during a password change,
+     *         or <code>null</code> to use the {@link PasswordHolder}
+     * @return a map from message IDs to changed properties
+     */
+    private Map<String, Properties> read(ReEncryptor reEncryptor) throws IOException, GeneralSecurityException, PasswordException {
+        Map<String, Properties> changes = new LinkedHashMap<String, Properties>();
+        numRecords = 0;
+        if (!journalFile.exists())
+            return changes;
+        
+        log.debug("Reading metadata journal: <" + journalFile.getAbsolutePath() + ">");
+        long fileLength = journalFile.length();
+        long validLength = 0;   // the length of the complete records
+        boolean incompleteRecord = false;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                }
+                catch (EOFException e) {
+                    // a partially written length field counts as an incomplete record
+                    incompleteRecord = validLength < fileLength;
+                    break;
+                }
+                // a length that goes past the end of the file means the record wasn't written completely
+                if (length<0 || length>fileLength-validLength-4) {
+                    incompleteRecord = true;
+                    break;
+                }
+                byte[] encryptedRecord = new byte[length];
+                try {
+                    input.readFully(encryptedRecord);
+                }
+                catch (EOFException e) {
+                    incompleteRecord = true;
+                    break;
+                }
+                
+                validLength += 4 + length;
+                numRecords++;
+                try {
+                    for (Entry entry: decrypt(encryptedRecord, reEncryptor))
+                        apply(entry, changes);
+                }
+                catch (IOException e) {
+                    log.error("Ignoring unreadable record in metadata journal: <" + journalFile.getAbsolutePath() + ">", e);
+                }
+                catch (GeneralSecurityException e) {
+                    log.error("Ignoring unreadable record in metadata journal: <" + journalFile.getAbsolutePath() + ">", e);
+                }
+            }
+        }
+        finally {
+            input.close();
+        }
+        
+        // rewrite the file so new records aren't appended to an incomplete one
+        if (incompleteRecord && reEncryptor==null) {
+            log.warn("Removing incomplete record from the end of the metadata journal: <" + journalFile.getAbsolutePath() + ">");
+            if (changes.isEmpty())
+                delete();
+            else
+                write(toEntries(changes));
+        }
+        
+        return changes;
+    }
+    
+    private List<Entry> decrypt(byte[] encryptedRecord, ReEncryptor reEncryptor) throws IOException, GeneralSecurityException, PasswordException {
+        InputStream decryptedStream;
+        if (reEncryptor == null)
+            decryptedStream = new EncryptedInputStream(new ByteArrayInputStream(encryptedRecord), passwordHolder);
+        else
+            decryptedStream = new ByteArrayInputStream(reEncryptor.decrypt(encryptedRecord));
+        DataInputStream dataStream = new DataInputStream(decryptedStream);
+        
+        int version = dataStream.read();
+        if (version != RECORD_FORMAT_VERSION)
+            throw new IOException("Unsupported metadata journal record version: " + version);
+        int numEntries = dataStream.readInt();
+        List<Entry> entries = new ArrayList<Entry>();
+        for (int i=0; i<numEntries; i++) {
+            String messageId = dataStream.readUTF();
+            String property = dataStream.readUTF();
+            String value = dataStream.readUTF();
+            entries.add(new Entry(messageId, property, value));
+        }
+        return entries;
+    }
+    
+    /**
+     * Encrypts a list of entries into a record.
+     * @param entries
+     * @param key The key to encrypt with, or <code>null</code> to use the {@link PasswordHolder}
+     */
+    private byte[] encrypt(List<Entry> entries, DerivedKey key) throws IOException, GeneralSecurityException, PasswordException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        OutputStream encryptedStream;
+        if (key == null)
+            encryptedStream = new EncryptedOutputStream(byteStream, passwordHolder);
+        else
+            encryptedStream = new EncryptedOutputStream(byteStream, key);
+        DataOutputStream dataStream = new DataOutputStream(encryptedStream);
+        
+        dataStream.write(RECORD_FORMAT_VERSION);
+        dataStream.writeInt(entries.size());
+        for (Entry entry: entries) {
+            dataStream.writeUTF(entry.messageId);
+            dataStream.writeUTF(entry.property);
+            dataStream.writeUTF(entry.value);
+        }
+        dataStream.close();
+        return byteStream.toByteArray();
+    }
+    
+    /** Appends one record to the journal file */
+    private void append(List<Entry> entries) throws IOException, GeneralSecurityException, PasswordException {
+        byte[] record = encrypt(entries, null);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new SecureFileOutputStream(journalFile, true)));
+        try {
+            output.writeInt(record.length);
+            output.write(record);
+        }
+        finally {
+            output.close();
+        }
+        numRecords++;
+    }
+    
+    /**
+     * Returns the contents of a journal file consisting of a single record.
+     * @param entries
+     * @param key The key to encrypt with, or <code>null</code> to use the {@link PasswordHolder}
+     */
+    private byte[] toFileContents(List<Entry> entries, DerivedKey key) throws IOException, GeneralSecurityException, PasswordException {
+        byte[] record = encrypt(entries, key);
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream dataStream = new DataOutputStream(byteStream);
+        dataStream.writeInt(record.length);
+        dataStream.write(record);
+        return byteStream.toByteArray();
+    }
+    
+    /**
+     * Replaces the journal file with a single record containing the current state.
+     * @param entries
+     */
+    private void write(List<Entry> entries) throws IOException, GeneralSecurityException, PasswordException {
+        byte[] contents = toFileContents(entries, null);
+        File tempFile = getTempFile();
+        OutputStream output = new SecureFileOutputStream(tempFile);
+        try {
+            output.write(contents);
+        }
+        finally {
+            output.close();
+        }
+        
+        // File.renameTo() can't overwrite on all platforms, so delete the old file first.
+        // If there is a crash in between, the temp file is used on the next start.
+        if (journalFile.exists() && !journalFile.delete())
+            log.error("Can't delete metadata journal: <" + journalFile.getAbsolutePath() + ">");
+        if (tempFile.renameTo(journalFile))
+            numRecords = 1;
+        else
+            throw new IOException("Can't rename <" + tempFile.getAbsolutePath() + "> to <" + journalFile.getAbsolutePath() + ">");
+    }
+    
+    private void compact() throws IOException, GeneralSecurityException, PasswordException {
+        log.debug("Compacting metadata journal: <" + journalFile.getAbsolutePath() + ">");
+        write(toEntries(changes));
+    }
+    
+    private void delete() {
+        if (journalFile.exists() && !journalFile.delete())
+            log.error("Can't delete metadata journal: <" + journalFile.getAbsolutePath() + ">");
+        numRecords = 0;
+    }
+    
+    private File getTempFile() {
+        return new File(journalFile.getAbsolutePath() + ".tmp");
+    }
+    
+    private static void apply(Entry entry, Map<String, Properties> changes) {
+        if (RESET.equals(entry.property)) {
+            changes.remove(entry.messageId);
+            return;
+        }
+        
+        Properties emailChanges = changes.get(entry.messageId);
+        if (emailChanges == null) {
+            emailChanges = new Properties();
+            changes.put(entry.messageId, emailChanges);
+        }
+        emailChanges.setProperty(entry.property, entry.value);
+    }
+    
+    private static List<Entry> toEntries(Map<String, Properties> changes) {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Map.Entry<String, Properties> emailChanges: changes.entrySet())
+            for (String property: emailChanges.getValue().stringPropertyNames())
+                entries.add(new Entry(emailChanges.getKey(), property, emailChanges.getValue().getProperty(property)));
+        return entries;
+    }
+    
+    private static class Entry {
+        String messageId;
+        String property;
+        String value;
+        
+        Entry(String messageId, String property, String value) {
+            this.messageId = messageId;
+            this.property = property;
+            this.value = value;
+        }
+    }
+}
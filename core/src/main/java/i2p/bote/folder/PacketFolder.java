@@ -85,7 +85,9 @@ public class PacketFolder<PacketType extends I2PBotePacket> extends Folder<Packe
             return (PacketType)I2PBotePacket.createPacket(file);
         } catch (MalformedPacketException e) {
             log.error("Found malformed packet, deleting file: " + file.getAbsolutePath() + " (file size=" + file.length() + ")", e);
-            if (!file.delete())
+            if (file.delete())
+                fileDeleted(file);
+            else
                 log.error("Can't delete malformed packet");
             return null;
         }
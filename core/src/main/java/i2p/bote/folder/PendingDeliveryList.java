@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.folder;
+
+import i2p.bote.Util;
+import i2p.bote.email.EmailMetadata.PacketInfo;
+import i2p.bote.fileencryption.EncryptedInputStream;
+import i2p.bote.fileencryption.EncryptedOutputStream;
+import i2p.bote.fileencryption.PasswordException;
+import i2p.bote.fileencryption.PasswordHolder;
+import i2p.bote.fileencryption.ReEncryptor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.i2p.data.DataFormatException;
+import net.i2p.data.Hash;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ * A list of sent email packets that haven't been confirmed as delivered,
+ * so the delivery check doesn't have to decrypt every email in the sent folder.<br/>
+ * Each line of the (encrypted) file contains a message ID, the DHT key of an
+ * email packet, and the packet's delete verification hash, separated by tabs.
+ * <p/>
+ * Whether packets sent before the list was introduced have been added is recorded
+ * in a separate, empty marker file, because the list file itself can be created by
+ * an email being sent before that has happened.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class PendingDeliveryList {
+    private Log log = new Log(PendingDeliveryList.class);
+    private File file;
+    private File importMarkerFile;   // exists if the sent folder has been imported
+    private PasswordHolder passwordHolder;
+    private List<PendingDelivery> deliveries;   // null until the file has been read
+
+    public PendingDeliveryList(File file, PasswordHolder passwordHolder) {
+        this.file = file;
+        importMarkerFile = new File(file.getAbsolutePath() + ".imported");
+        this.passwordHolder = passwordHolder;
+    }
+    
+    /** Returns <code>false</code> if the file has never been written. */
+    public boolean exists() {
+        return file.exists();
+    }
+    
+    /**
+     * Returns <code>true</code> if {@link #setImportDone()} has been called, i.e.
+     * packets sent before the list was introduced have been added to it.
+     */
+    public boolean isImportDone() {
+        return importMarkerFile.exists();
+    }
+    
+    /**
+     * Records that packets sent before the list was introduced have been added.
+     * @throws IOException
+     */
+    public void setImportDone() throws IOException {
+        if (!importMarkerFile.exists() && !importMarkerFile.createNewFile())
+            throw new IOException("Can't create file: <" + importMarkerFile.getAbsolutePath() + ">");
+    }
+    
+    /**
+     * Adds the packets of a sent email and saves the list.
+     * @param messageId
+     * @param packets
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public void add(String messageId, Collection<PacketInfo> packets) throws IOException, GeneralSecurityException, PasswordException {
+        addAll(Collections.singletonMap(messageId, packets));
+    }
+    
+    /**
+     * Adds the packets of several sent emails and saves the list. Packets that are
+     * in the list already are not added again.
+     * The file is created even if there is nothing to add.
+     * @param packets Maps message IDs to email packets
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public synchronized void addAll(Map<String, Collection<PacketInfo>> packets) throws IOException, GeneralSecurityException, PasswordException {
+        initializeIfNeeded();
+        Set<Hash> dhtKeys = new HashSet<Hash>();
+        for (PendingDelivery delivery: deliveries)
+            dhtKeys.add(delivery.dhtKey);
+        for (Map.Entry<String, Collection<PacketInfo>> entry: packets.entrySet())
+            for (PacketInfo packet: entry.getValue())
+                if (dhtKeys.add(packet.dhtKey))
+                    deliveries.add(new PendingDelivery(entry.getKey(), packet.dhtKey, packet.delVerificationHash));
+        save();
+    }
+    
+    /** Returns a copy of all pending deliveries. */
+    public synchronized List<PendingDelivery> getAll() throws IOException, GeneralSecurityException, PasswordException {
+        initializeIfNeeded();
+        return new ArrayList<PendingDelivery>(deliveries);
+    }
+    
+    /**
+     * Removes deliveries from the list and saves it.
+     * @param deliveriesToRemove
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public synchronized void remove(Collection<PendingDelivery> deliveriesToRemove) throws IOException, GeneralSecurityException, PasswordException {
+        initializeIfNeeded();
+        Set<Hash> dhtKeys = new HashSet<Hash>();
+        for (PendingDelivery delivery: deliveriesToRemove)
+            dhtKeys.add(delivery.dhtKey);
+        boolean changed = false;
+        for (Iterator<PendingDelivery> iterator=deliveries.iterator(); iterator.hasNext(); )
+            if (dhtKeys.contains(iterator.next().dhtKey)) {
+                iterator.remove();
+                changed = true;
+            }
+        if (changed)
+            save();
+    }
+    
+    /**
+     * Schedules the file for re-encryption.
+     * @param reEncryptor
+     */
+    public void changePassword(ReEncryptor reEncryptor) {
+        if (file.exists())
+            reEncryptor.submit(file);
+    }
+    
+    private void initializeIfNeeded() throws IOException, GeneralSecurityException, PasswordException {
+        if (deliveries == null)
+            deliveries = read();
+    }
+    
+    private List<PendingDelivery> read() throws IOException, GeneralSecurityException, PasswordException {
+        List<PendingDelivery> deliveries = new ArrayList<PendingDelivery>();
+        if (!file.exists())
+            return deliveries;
+        
+        BufferedReader input = new BufferedReader(new InputStreamReader(new EncryptedInputStream(new FileInputStream(file), passwordHolder), "UTF-8"));
+        try {
+            while (true) {
+                String line = input.readLine();
+                if (line == null)
+                    break;
+                String[] fields = line.split("\t");
+                if (fields.length != 3) {
+                    log.error("Invalid line in pending deliveries file: <" + line + ">");
+                    continue;
+                }
+                try {
+                    deliveries.add(new PendingDelivery(fields[0], Util.createHash(fields[1]), Util.createHash(fields[2])));
+                } catch (DataFormatException e) {
+                    log.error("Invalid DHT key or verification hash in pending deliveries file: <" + line + ">", e);
+                }
+            }
+        } finally {
+            input.close();
+        }
+        return deliveries;
+    }
+    
+    /** Writes the list to a temporary file first, so the old list is kept if writing fails. */
+    private void save() throws IOException, GeneralSecurityException, PasswordException {
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        Writer output = new BufferedWriter(new OutputStreamWriter(new EncryptedOutputStream(new SecureFileOutputStream(tempFile), passwordHolder), "UTF-8"));
+        try {
+            for (PendingDelivery delivery: deliveries)
+                output.write(delivery.messageId + "\t" + delivery.dhtKey.toBase64() + "\t" + delivery.delVerificationHash.toBase64() + "\n");
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            // renameTo() fails on some platforms if the target file exists
+            file.delete();
+            if (!tempFile.renameTo(file))
+                throw new IOException("Can't rename <" + tempFile.getAbsolutePath() + "> to <" + file.getAbsolutePath() + ">");
+        }
+    }
+    
+    /** An email packet that hasn't been confirmed as delivered. */
+    public static class PendingDelivery {
+        public final String messageId;
+        public final Hash dhtKey;
+        public final Hash delVerificationHash;
+        
+        public PendingDelivery(String messageId, Hash dhtKey, Hash delVerificationHash) {
+            this.messageId = messageId;
+            this.dhtKey = dhtKey;
+            this.delVerificationHash = delVerificationHash;
+        }
+    }
+}
@@ -0,0 +1,536 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.folder;
+
+import i2p.bote.Util;
+import i2p.bote.email.PictureSource;
+import i2p.bote.fileencryption.EncryptedInputStream;
+import i2p.bote.fileencryption.EncryptedOutputStream;
+import i2p.bote.fileencryption.PasswordException;
+import i2p.bote.fileencryption.PasswordHolder;
+import i2p.bote.fileencryption.ReEncryptor;
+import i2p.bote.util.SortedProperties;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ * Stores a set of password-encrypted records in a directory, one file per record,
+ * so changing one record doesn't require rewriting the others.<br/>
+ * A record is a set of properties which is read into memory by {@link #readAll()}.
+ * Large values such as pictures can be stored separately as "large fields",
+ * which are only read when {@link #readLargeField(String, String)} is called.
+ * <p/>
+ * Changes are made through a {@link Transaction} and become visible all at once
+ * when the transaction is committed:
+ * <ol>
+ * <li>All new files are written under a temporary name and forced to disk.</li>
+ * <li>A commit file listing the files to replace and to delete is written and
+ *     forced to disk. The last line of the file marks it as complete.</li>
+ * <li>The temporary files are renamed, deleted files are removed, and the
+ *     commit file is deleted.</li>
+ * </ol>
+ * If there is a crash during step 3, the changes are completed the next time the
+ * store is accessed. If there is a crash before the commit file is complete, the
+ * temporary files are deleted and the store is left in its previous state.
+ * <p/>
+ * The store remembers a digest of every record and large field it has read or
+ * written, and a transaction only writes records and fields whose contents have
+ * changed.
+ * <p/>
+ * File names:
+ * <pre>
+ * &lt;id&gt;.record            A record
+ * &lt;id&gt;.&lt;name&gt;.field      A large field belonging to record &lt;id&gt;
+ * &lt;file name&gt;.new        A file that has been written but not committed
+ * commit                 The list of changes in the current commit
+ * </pre>
+ * Record IDs and field names must be valid file names and must not contain a period.
+ * <p/>
+ * This class is thread-safe. Like {@link MetadataJournal}, it synchronizes on the
+ * {@link PasswordHolder} so it cannot deadlock with a password change.
+ */
+public class RecordStore {
+    public static final String RECORD_SUFFIX = ".record";
+    public static final String FIELD_SUFFIX = ".field";
+    private static final String NEW_SUFFIX = ".new";
+    private static final String COMMIT_FILE_NAME = "commit";
+    private static final String REPLACE = "R ";
+    private static final String DELETE = "D ";
+    private static final String END_OF_COMMIT = "END";
+    
+    private Log log = new Log(RecordStore.class);
+    private File storeDir;
+    private PasswordHolder passwordHolder;
+    private Map<String, byte[]> digests;   // maps names of committed files to digests of their contents
+    
+    /**
+     * @param storeDir The directory that contains the records; it is created when the first transaction is committed
+     * @param passwordHolder
+     */
+    public RecordStore(File storeDir, PasswordHolder passwordHolder) {
+        this.storeDir = storeDir;
+        this.passwordHolder = passwordHolder;
+        digests = new HashMap<String, byte[]>();
+    }
+    
+    /**
+     * Reads all records, completing an interrupted commit first if necessary.
+     * @return a map from record IDs to record contents
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public Map<String, Properties> readAll() throws IOException, GeneralSecurityException, PasswordException {
+        synchronized(passwordHolder) {
+            recover();
+            
+            Map<String, Properties> records = new TreeMap<String, Properties>();
+            for (File file: listFiles(RECORD_SUFFIX)) {
+                String fileName = file.getName();
+                Properties record = new Properties();
+                InputStream input = new EncryptedInputStream(new FileInputStream(file), passwordHolder);
+                try {
+                    record.load(new InputStreamReader(input, "UTF-8"));
+                }
+                finally {
+                    input.close();
+                }
+                records.put(fileName.substring(0, fileName.length()-RECORD_SUFFIX.length()), record);
+                digests.put(fileName, getDigest(record));
+            }
+            return records;
+        }
+    }
+    
+    /**
+     * Returns <code>true</code> if a record has a large field with a given name.
+     * This method does not require a password.
+     * @param recordId
+     * @param fieldName
+     */
+    public boolean hasLargeField(String recordId, String fieldName) {
+        synchronized(passwordHolder) {
+            return new File(storeDir, getFieldFileName(recordId, fieldName)).exists();
+        }
+    }
+    
+    /**
+     * Reads a large field. Returns <code>null</code> if the field doesn't exist.
+     * @param recordId
+     * @param fieldName
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws PasswordException
+     */
+    public byte[] readLargeField(String recordId, String fieldName) throws IOException, GeneralSecurityException, PasswordException {
+        synchronized(passwordHolder) {
+            String fileName = getFieldFileName(recordId, fieldName);
+            File file = new File(storeDir, fileName);
+            if (!file.exists())
+                return null;
+            
+            InputStream input = new EncryptedInputStream(new FileInputStream(file), passwordHolder);
+            try {
+                byte[] value = Util.readBytes(input);
+                digests.put(fileName, getDigest(value));
+                return value;
+            }
+            finally {
+                input.close();
+            }
+        }
+    }
+    
+    /**
+     * Returns a {@link PictureSource} that reads a large field, or <code>null</code>
+     * if the field doesn't exist. This method does not require a password.
+     * @param recordId
+     * @param fieldName
+     */
+    public PictureSource getPictureSource(final String recordId, final String fieldName) {
+        if (!hasLargeField(recordId, fieldName))
+            return null;
+        
+        return new PictureSource() {
+            @Override
+            public byte[] loadPicture() {
+                try {
+                    return readLargeField(recordId, fieldName);
+                } catch (Exception e) {
+                    log.error("Can't read field <" + fieldName + "> of record <" + recordId + ">", e);
+                    return null;
+                }
+            }
+        };
+    }
+    
+    /**
+     * Returns the IDs of all records in the store. This method does not require a password.
+     */
+    public Set<String> getRecordIds() {
+        synchronized(passwordHolder) {
+            recover();
+            Set<String> recordIds = new TreeSet<String>();
+            for (File file: listFiles(RECORD_SUFFIX)) {
+                String fileName = file.getName();
+                recordIds.add(fileName.substring(0, fileName.length()-RECORD_SUFFIX.length()));
+            }
+            return recordIds;
+        }
+    }
+    
+    /**
+     * Returns <code>true</code> if the store contains at least one record.
+     * This method does not require a password.
+     */
+    public boolean hasRecords() {
+        return !getRecordIds().isEmpty();
+    }
+    
+    /**
+     * Returns all record and large field files.
+     */
+    public List<File> getFiles() {
+        synchronized(passwordHolder) {
+            recover();
+            List<File> files = new ArrayList<File>();
+            files.addAll(listFiles(RECORD_SUFFIX));
+            files.addAll(listFiles(FIELD_SUFFIX));
+            return files;
+        }
+    }
+    
+    public Transaction beginTransaction() {
+        return new Transaction();
+    }
+    
+    /**
+     * Schedules all record and large field files for re-encryption.
+     * @param reEncryptor
+     */
+    public void changePassword(ReEncryptor reEncryptor) {
+        for (File file: getFiles())
+            reEncryptor.submit(file);
+    }
+    
+    /**
+     * Forgets the digests of all records and large fields, so the next transaction
+     * writes everything it is given. Should be called when the decrypted records
+     * are removed from memory.
+     */
+    public void clearPasswordProtectedData() {
+        synchronized(passwordHolder) {
+            digests.clear();
+        }
+    }
+    
+    /**
+     * Completes a commit that was interrupted after the commit file was written,
+     * or discards it if the commit file is incomplete. Also deletes uncommitted files.
+     */
+    private void recover() {
+        File commitFile = new File(storeDir, COMMIT_FILE_NAME);
+        if (commitFile.exists()) {
+            try {
+                List<String> changes = readCommitFile(commitFile);
+                if (changes.isEmpty() || !END_OF_COMMIT.equals(changes.get(changes.size()-1)))
+                    log.warn("Discarding incomplete commit in <" + storeDir.getAbsolutePath() + ">");
+                else {
+                    log.info("Completing interrupted commit in <" + storeDir.getAbsolutePath() + ">");
+                    apply(changes);
+                }
+            }
+            catch (IOException e) {
+                log.error("Can't read commit file: <" + commitFile.getAbsolutePath() + ">", e);
+            }
+            if (!commitFile.delete())
+                log.error("Can't delete commit file: <" + commitFile.getAbsolutePath() + ">");
+        }
+        
+        for (File file: listFiles(NEW_SUFFIX))
+            if (!file.delete())
+                log.error("Can't delete uncommitted file: <" + file.getAbsolutePath() + ">");
+    }
+    
+    private List<String> readCommitFile(File commitFile) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader input = new BufferedReader(new InputStreamReader(new FileInputStream(commitFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = input.readLine()) != null)
+                lines.add(line);
+        }
+        finally {
+            input.close();
+        }
+        return lines;
+    }
+    
+    /**
+     * Carries out the renames and deletions in a commit file. Changes that have
+     * been carried out already are skipped, so this method can be repeated.
+     */
+    private void apply(List<String> changes) throws IOException {
+        for (String change: changes)
+            if (change.startsWith(REPLACE)) {
+                File file = new File(storeDir, change.substring(REPLACE.length()));
+                File newFile = new File(storeDir, file.getName() + NEW_SUFFIX);
+                if (!newFile.exists())
+                    continue;
+                // File.renameTo() can't overwrite on all platforms, so delete the old file if the first attempt fails
+                if (!newFile.renameTo(file)) {
+                    if (file.exists() && !file.delete())
+                        log.error("Can't delete file: <" + file.getAbsolutePath() + ">");
+                    if (!newFile.renameTo(file))
+                        throw new IOException("Can't rename <" + newFile.getAbsolutePath() + "> to <" + file.getAbsolutePath() + ">");
+                }
+            }
+            else if (change.startsWith(DELETE)) {
+                File file = new File(storeDir, change.substring(DELETE.length()));
+                if (file.exists() && !file.delete())
+                    throw new IOException("Can't delete file: <" + file.getAbsolutePath() + ">");
+            }
+    }
+    
+    private List<File> listFiles(final String suffix) {
+        File[] files = storeDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+        if (files == null)
+            return new ArrayList<File>();
+        return Arrays.asList(files);
+    }
+    
+    private static String getRecordFileName(String recordId) {
+        return recordId + RECORD_SUFFIX;
+    }
+    
+    private static String getFieldFileName(String recordId, String fieldName) {
+        return recordId + "." + fieldName + FIELD_SUFFIX;
+    }
+    
+    /** Calculates a digest over the keys and values of a record in a well-defined order */
+    private static byte[] getDigest(Properties record) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        for (String key: new TreeSet<String>(record.stringPropertyNames())) {
+            byteStream.write(key.getBytes("UTF-8"));
+            byteStream.write(0);
+            byteStream.write(record.getProperty(key).getBytes("UTF-8"));
+            byteStream.write(0);
+        }
+        return getDigest(byteStream.toByteArray());
+    }
+    
+    private static byte[] getDigest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 not available.", e);
+        }
+    }
+    
+    /**
+     * A set of changes to a <code>RecordStore</code> that are committed together.
+     * Record contents are encrypted when they are added to the transaction.
+     * <p/>
+     * This class is not thread-safe.
+     */
+    public class Transaction {
+        private Map<String, byte[]> changes;   // maps file names to encrypted contents, or null for files to delete
+        private Map<String, byte[]> newDigests;
+        
+        private Transaction() {
+            changes = new LinkedHashMap<String, byte[]>();
+            newDigests = new HashMap<String, byte[]>();
+        }
+        
+        /**
+         * Adds or replaces a record. Nothing is written if the record hasn't changed.
+         * @param recordId
+         * @param record
+         * @throws IOException
+         * @throws GeneralSecurityException
+         * @throws PasswordException
+         */
+        public void putRecord(String recordId, Properties record) throws IOException, GeneralSecurityException, PasswordException {
+            String fileName = getRecordFileName(recordId);
+            byte[] digest = getDigest(record);
+            if (isUnchanged(fileName, digest) && !changes.containsKey(fileName))
+                return;
+            
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            Writer writer = new OutputStreamWriter(new EncryptedOutputStream(byteStream, passwordHolder), "UTF-8");
+            try {
+                SortedProperties sortedRecord = new SortedProperties();
+                sortedRecord.putAll(record);
+                sortedRecord.store(writer, null);
+            }
+            finally {
+                writer.close();
+            }
+            changes.put(fileName, byteStream.toByteArray());
+            newDigests.put(fileName, digest);
+        }
+        
+        /**
+         * Sets the value of a large field, or deletes the field if <code>value</code>
+         * is <code>null</code>. Nothing is written if the value hasn't changed.
+         * @param recordId
+         * @param fieldName
+         * @param value
+         * @throws IOException
+         * @throws GeneralSecurityException
+         * @throws PasswordException
+         */
+        public void putLargeField(String recordId, String fieldName, byte[] value) throws IOException, GeneralSecurityException, PasswordException {
+            String fileName = getFieldFileName(recordId, fieldName);
+            if (value == null) {
+                if (new File(storeDir, fileName).exists())
+                    changes.put(fileName, null);
+                else
+                    changes.remove(fileName);
+                return;
+            }
+            
+            byte[] digest = getDigest(value);
+            if (isUnchanged(fileName, digest) && !changes.containsKey(fileName))
+                return;
+            
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            EncryptedOutputStream encryptedStream = new EncryptedOutputStream(byteStream, passwordHolder);
+            try {
+                encryptedStream.write(value);
+            }
+            finally {
+                encryptedStream.close();
+            }
+            changes.put(fileName, byteStream.toByteArray());
+            newDigests.put(fileName, digest);
+        }
+        
+        /**
+         * Deletes a record and all its large fields.
+         * @param recordId
+         */
+        public void deleteRecord(String recordId) {
+            changes.put(getRecordFileName(recordId), null);
+            String fieldPrefix = recordId + ".";
+            for (File file: listFiles(FIELD_SUFFIX))
+                if (file.getName().startsWith(fieldPrefix))
+                    changes.put(file.getName(), null);
+        }
+        
+        /**
+         * Writes all changes to disk. When this method returns normally, the changes
+         * are durable. If it throws an exception, the store is left in its previous
+         * state, or the commit is completed the next time the store is accessed.
+         * @throws IOException
+         */
+        public void commit() throws IOException {
+            synchronized(passwordHolder) {
+                if (changes.isEmpty())
+                    return;
+                
+                recover();
+                if (!storeDir.exists() && !storeDir.mkdirs())
+                    throw new IOException("Can't create directory: <" + storeDir.getAbsolutePath() + ">");
+                
+                // write new files and the commit file
+                StringBuilder commitFileContents = new StringBuilder();
+                List<String> commitLines = new ArrayList<String>();
+                for (Map.Entry<String, byte[]> change: changes.entrySet()) {
+                    String fileName = change.getKey();
+                    byte[] contents = change.getValue();
+                    String line;
+                    if (contents == null)
+                        line = DELETE + fileName;
+                    else {
+                        writeAndSync(new File(storeDir, fileName + NEW_SUFFIX), contents);
+                        line = REPLACE + fileName;
+                    }
+                    commitLines.add(line);
+                    commitFileContents.append(line).append('\n');
+                }
+                commitLines.add(END_OF_COMMIT);
+                commitFileContents.append(END_OF_COMMIT).append('\n');
+                File commitFile = new File(storeDir, COMMIT_FILE_NAME);
+                writeAndSync(commitFile, commitFileContents.toString().getBytes("UTF-8"));
+                
+                // carry out the changes
+                apply(commitLines);
+                if (!commitFile.delete())
+                    log.error("Can't delete commit file: <" + commitFile.getAbsolutePath() + ">");
+                
+                for (String fileName: changes.keySet())
+                    digests.remove(fileName);
+                digests.putAll(newDigests);
+                changes.clear();
+                newDigests.clear();
+            }
+        }
+        
+        private boolean isUnchanged(String fileName, byte[] digest) {
+            synchronized(passwordHolder) {
+                return Arrays.equals(digest, digests.get(fileName)) && new File(storeDir, fileName).exists();
+            }
+        }
+        
+        private void writeAndSync(File file, byte[] contents) throws IOException {
+            SecureFileOutputStream output = new SecureFileOutputStream(file);
+            try {
+                output.write(contents);
+                output.flush();
+                output.getFD().sync();
+            }
+            finally {
+                output.close();
+            }
+        }
+    }
+}
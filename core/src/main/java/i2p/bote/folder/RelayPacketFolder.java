@@ -24,8 +24,12 @@ package i2p.bote.folder;
 import i2p.bote.packet.relay.RelayRequest;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import net.i2p.crypto.SHA256Generator;
 import net.i2p.data.Hash;
@@ -34,40 +38,72 @@ import net.i2p.util.Log;
 /**
  * A <code>PacketFolder</code> that uses filenames that consist of
  * the packet's scheduled send time and the SHA256 hash of the packet.
+ * <p/>
+ * Packets that are still in the folder 100 days after the scheduled
+ * send time are deleted.
  */
-public class RelayPacketFolder extends PacketFolder<RelayRequest> {
+public class RelayPacketFolder extends PacketFolder<RelayRequest> implements ExpirationListener {
     private final Log log = new Log(RelayPacketFolder.class);
+    private ExpirationIndex<String> expirationIndex;   // filenames by send time
+    private boolean expirationIndexLoaded;
 
     public RelayPacketFolder(File storageDir) {
         super(storageDir);
+        expirationIndex = new ExpirationIndex<String>(EXPIRATION_TIME_MILLISECONDS);
     }
 
     /**
-     * Stores a <code>RelayRequest</code> in the folder.
+     * Stores a <code>RelayRequest</code> in the folder and sets its send time,
+     * so it can be removed with {@link #remove(RelayRequest)}.
      * @param packet
      */
     public void add(RelayRequest packet) {
+        add(Collections.singleton(packet));
+    }
+    
+    /**
+     * Stores several <code>RelayRequest</code>s in the folder. The directory is
+     * only listed once, so this is faster than adding the packets one by one.
+     * @param packets
+     */
+    public void add(Collection<RelayRequest> packets) {
         // make the packet's hash part of the filename and don't save if a file with the same hash exists already
-        byte[] bytes = packet.toByteArray();
-        Hash packetHash = SHA256Generator.getInstance().calculateHash(bytes);
-        String base64Hash = packetHash.toBase64();
-        if (!fileExistsForHash(base64Hash)) {
-            long sendTime = System.currentTimeMillis() + packet.getDelay();
-            String filename = sendTime + "_" + base64Hash + PACKET_FILE_EXTENSION;
-            add(packet, filename);
-            return;
+        Set<String> existingHashes = new HashSet<String>();
+        for (File file: getFilenames())
+            existingHashes.add(getBase64Hash(file.getName()));
+        for (RelayRequest packet: packets) {
+            byte[] bytes = packet.toByteArray();
+            Hash packetHash = SHA256Generator.getInstance().calculateHash(bytes);
+            String base64Hash = packetHash.toBase64();
+            if (existingHashes.add(base64Hash)) {
+                long sendTime = System.currentTimeMillis() + packet.getDelay();
+                String filename = sendTime + "_" + base64Hash + PACKET_FILE_EXTENSION;
+                add(packet, filename);
+                packet.setSendTime(sendTime);
+                expirationIndex.add(filename, sendTime);
+            }
         }
     }
     
-    private boolean fileExistsForHash(final String base64Hash) {
-        File[] files = storageDir.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.contains(base64Hash);
-            }
-        });
-        
-        return files.length > 0;
+    /**
+     * Deletes the file a <code>RelayRequest</code> was read from.
+     * @param packet A packet that was read from this folder
+     * @return <code>true</code> if the file was deleted, <code>false</code> if it
+     * didn't exist or couldn't be deleted
+     */
+    public synchronized boolean remove(RelayRequest packet) {
+        String base64Hash = SHA256Generator.getInstance().calculateHash(packet.toByteArray()).toBase64();
+        String filename = packet.getSendTime() + "_" + base64Hash + PACKET_FILE_EXTENSION;
+        File file = new File(storageDir, filename);
+        expirationIndex.remove(filename);
+        if (!file.exists())
+            return false;
+        if (file.delete())
+            return true;
+        else {
+            log.error("Can't delete file: <" + file.getAbsolutePath() + ">");
+            return false;
+        }
     }
     
     @Override
@@ -84,8 +120,72 @@ public class RelayPacketFolder extends PacketFolder<RelayRequest> {
         return packet;
     }
     
+    @Override
+    public synchronized void deleteExpired() {
+        deleteExpired(Integer.MAX_VALUE);
+    }
+    
+    /** Overridden to remove packets deleted through an iterator from the expiration index */
+    @Override
+    protected void fileDeleted(File file) {
+        expirationIndex.remove(file.getName());
+    }
+    
+    /**
+     * Files that have disappeared without going through this class don't count
+     * towards <code>maxItems</code>.
+     */
+    @Override
+    public synchronized int deleteExpired(int maxItems) {
+        loadExpirationIndex();
+        int numDeleted = 0;
+        long currentTime = System.currentTimeMillis();
+        List<String> expiredFilenames;
+        while (numDeleted<maxItems && !(expiredFilenames=expirationIndex.pollExpired(currentTime, maxItems-numDeleted)).isEmpty())
+            for (String filename: expiredFilenames) {
+                File file = new File(storageDir, filename);
+                if (!file.exists())
+                    continue;
+                log.debug("Deleting expired relay packet: <" + filename + ">");
+                if (file.delete())
+                    numDeleted++;
+                else
+                    log.error("Can't delete file: <" + file.getAbsolutePath() + ">");
+            }
+        return numDeleted;
+    }
+    
+    @Override
+    public synchronized int getNumExpired() {
+        loadExpirationIndex();
+        return expirationIndex.getNumExpired(System.currentTimeMillis());
+    }
+    
+    /**
+     * Adds all packets in the folder to the expiration index. The send time is
+     * read from the filename, so packet files don't need to be parsed.
+     */
+    private void loadExpirationIndex() {
+        if (expirationIndexLoaded)
+            return;
+        for (File file: getFilenames())
+            try {
+                expirationIndex.add(file.getName(), getSendTime(file.getName()));
+            } catch (NumberFormatException e) {
+                log.error("Invalid send time in filename: <" + file.getAbsolutePath() + ">", e);
+            }
+        expirationIndexLoaded = true;
+    }
+    
     private long getSendTime(String filename) throws NumberFormatException {
         String[] parts = filename.split("_");
         return Long.valueOf(parts[0]);
     }
+    
+    /** Returns the part of a filename between the send time and the file extension. */
+    private String getBase64Hash(String filename) {
+        int startIndex = filename.indexOf('_') + 1;
+        int endIndex = filename.endsWith(PACKET_FILE_EXTENSION) ? filename.length()-PACKET_FILE_EXTENSION.length() : filename.length();
+        return filename.substring(startIndex, Math.max(startIndex, endIndex));
+    }
 }
\ No newline at end of file
@@ -50,7 +50,9 @@ import java.util.regex.PatternSyntaxException;
 import net.i2p.util.Log;
 
 /**
- * Migrates the identities file and the address book to the 0.2.8 format.<br/>
+ * Migrates the identities file and the address book to the 0.2.8 format.
+ * Migrated data is written to the record stores, and the old files are
+ * deleted by {@link MigrateToRecordStore}.<br/>
  * It cannot be called at startup like {@link MigrateTo026} and
  * {@link MigrateTo027} because it operates on password-protected data.
  */
@@ -128,7 +130,7 @@ class MigrateTo028 {
         else if (!identitiesSet.isEmpty())
             identitiesSet.iterator().next().setDefaultIdentity(true);
         
-        Identities identities = new Identities(configuration.getIdentitiesFile(), passwordHolder);
+        Identities identities = new Identities(configuration.getIdentitiesDir(), passwordHolder);
         for (EmailIdentity identity: identitiesSet)
             identities.add(identity);
         identities.save();
@@ -200,7 +202,7 @@ class MigrateTo028 {
     }
     
     private void migrateAddressBook(List<String> lines, Configuration configuration, PasswordHolder passwordHolder) throws IOException, GeneralSecurityException, PasswordException {
-        AddressBook addressBook = new AddressBook(configuration.getAddressBookFile(), passwordHolder);
+        AddressBook addressBook = new AddressBook(configuration.getAddressBookDir(), passwordHolder);
         for (String line: lines) {
             String[] fields = line.split("\\t", 2);
             try {
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.migration;
+
+import i2p.bote.Configuration;
+import i2p.bote.addressbook.AddressBook;
+import i2p.bote.email.Identities;
+import i2p.bote.fileencryption.EncryptedInputStream;
+import i2p.bote.fileencryption.PasswordException;
+import i2p.bote.fileencryption.PasswordHolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+
+import net.i2p.util.Log;
+
+/**
+ * Moves the identities and the address book from the single-file format to
+ * record stores (see {@link i2p.bote.folder.RecordStore}).<br/>
+ * Unlike the other migrations, this one is not tied to a version number.
+ * It runs whenever one of the old files exists, which is cheap to check.
+ * Each step can be repeated, so the migration can be interrupted at any point.
+ */
+class MigrateToRecordStore {
+    private Log log = new Log(MigrateToRecordStore.class);
+    
+    public void migrateIfNeeded(Configuration configuration, PasswordHolder passwordHolder) throws IOException, GeneralSecurityException, PasswordException {
+        migrateIdentitiesIfNeeded(configuration, passwordHolder);
+        migrateAddressBookIfNeeded(configuration, passwordHolder);
+    }
+    
+    private void migrateIdentitiesIfNeeded(Configuration configuration, PasswordHolder passwordHolder) throws IOException, GeneralSecurityException, PasswordException {
+        File identitiesFile = configuration.getIdentitiesFile();
+        File identitiesDir = configuration.getIdentitiesDir();
+        moveKeyStateJournal(identitiesFile, identitiesDir);
+        if (!identitiesFile.exists())
+            return;
+        
+        // the records may have been written before the old file was deleted
+        Identities identities = new Identities(identitiesDir, passwordHolder);
+        if (identities.isNone()) {
+            log.info("Migrating <" + identitiesFile.getAbsolutePath() + "> to <" + identitiesDir.getAbsolutePath() + ">");
+            identities.importFromProperties(readOldFile(identitiesFile, passwordHolder), false, false);
+        }
+        deleteOldFile(identitiesFile);
+    }
+    
+    /**
+     * Moves the key state journal that belonged to the old identities file into
+     * the identities directory, so the newest key states are applied when the
+     * identities are imported.
+     */
+    private void moveKeyStateJournal(File identitiesFile, File identitiesDir) throws IOException {
+        File oldJournalFile = new File(identitiesFile.getAbsolutePath() + ".journal");
+        File newJournalFile = Identities.getJournalFile(identitiesDir);
+        if (!oldJournalFile.exists() || newJournalFile.exists())
+            return;
+        
+        if (!identitiesDir.exists() && !identitiesDir.mkdirs())
+            throw new IOException("Can't create directory: <" + identitiesDir.getAbsolutePath() + ">");
+        if (!oldJournalFile.renameTo(newJournalFile))
+            throw new IOException("Can't rename <" + oldJournalFile.getAbsolutePath() + "> to <" + newJournalFile.getAbsolutePath() + ">");
+    }
+    
+    private void migrateAddressBookIfNeeded(Configuration configuration, PasswordHolder passwordHolder) throws IOException, GeneralSecurityException, PasswordException {
+        File addressBookFile = configuration.getAddressBookFile();
+        if (!addressBookFile.exists())
+            return;
+        
+        // the records may have been written before the old file was deleted
+        File addressBookDir = configuration.getAddressBookDir();
+        AddressBook addressBook = new AddressBook(addressBookDir, passwordHolder);
+        if (addressBook.isNone()) {
+            log.info("Migrating <" + addressBookFile.getAbsolutePath() + "> to <" + addressBookDir.getAbsolutePath() + ">");
+            addressBook.importFromProperties(readOldFile(addressBookFile, passwordHolder), false, false);
+        }
+        deleteOldFile(addressBookFile);
+    }
+    
+    private Properties readOldFile(File oldFile, PasswordHolder passwordHolder) throws IOException, GeneralSecurityException, PasswordException {
+        InputStream input = new EncryptedInputStream(new FileInputStream(oldFile), passwordHolder);
+        try {
+            Properties properties = new Properties();
+            properties.load(new InputStreamReader(input, "UTF-8"));
+            return properties;
+        }
+        finally {
+            input.close();
+        }
+    }
+    
+    private void deleteOldFile(File oldFile) {
+        if (!oldFile.delete())
+            log.error("Can't delete file: <" + oldFile.getAbsolutePath() + ">");
+    }
+}
@@ -55,6 +55,7 @@ public class Migrator {
     public void migrateNonPasswordedDataIfNeeded() {
         if (VersionComparator.comp(lastMigrationVersion, currentVersion) >= 0) {
             log.debug("No plaintext migration needed.");
+            migrateToRecordStoreIfNeeded(new PasswordCache(configuration));
             return;
         }
 
@@ -79,6 +80,7 @@ public class Migrator {
             if (migrationSucceeded) {
                 log.debug("Migration successful, setting last successful migration to <" + currentVersion + ">.");
                 setLastSuccessfulMigration(currentVersion);
+                migrateToRecordStoreIfNeeded(new PasswordCache(configuration));
             }
         }
         catch (Exception e) {
@@ -94,6 +96,7 @@ public class Migrator {
     public void migratePasswordedDataIfNeeded(PasswordHolder passwordHolder) {
         if (VersionComparator.comp(lastMigrationVersion, currentVersion) >= 0) {
             log.debug("No encrypted-file migration needed.");
+            migrateToRecordStoreIfNeeded(passwordHolder);
             return;
         }
 
@@ -104,12 +107,30 @@ public class Migrator {
             // we're assuming migrateNonPasswordedDataIfNeeded() ran already
             log.debug("Encrypted-file migration successful, setting last successful migration to <" + currentVersion + ">.");
             setLastSuccessfulMigration(currentVersion);
+            migrateToRecordStoreIfNeeded(passwordHolder);
         }
         catch (Exception e) {
             log.error("Error migrating to the latest version.", e);
         }
     }
 
+    /**
+     * Moves the identities and the address book into record stores if they
+     * are still in the old single-file format. This is not tied to a version
+     * number because it must run after the files have been converted to the
+     * 0.2.8 format, which may be deferred until the password is entered.
+     * @param passwordHolder
+     */
+    private void migrateToRecordStoreIfNeeded(PasswordHolder passwordHolder) {
+        try {
+            new MigrateToRecordStore().migrateIfNeeded(configuration, passwordHolder);
+        } catch (PasswordException e) {
+            log.debug("Non-default password in use, deferring migration to record stores to after password entry");
+        } catch (Exception e) {
+            log.error("Error migrating to record stores.", e);
+        }
+    }
+
     /**
      * Returns the version to which the I2P-Bote data directory was last migrated to.
      * If there has never been a migration, zero is returned.
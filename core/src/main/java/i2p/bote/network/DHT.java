@@ -25,6 +25,7 @@ import i2p.bote.UniqueId;
 import i2p.bote.packet.dht.DhtStorablePacket;
 import i2p.bote.packet.dht.EncryptedEmailPacket;
 
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 import net.i2p.data.Hash;
@@ -45,6 +46,15 @@ public interface DHT {
      */
     UniqueId findDeleteAuthorizationKey(Hash dhtKey, Hash verificationHash) throws InterruptedException;
     
+    /**
+     * Looks up Delete Authorizations for several {@link EncryptedEmailPacket}s at once.
+     * DHT keys that are close to each other share one closest-nodes lookup, so this is
+     * faster than calling {@link #findDeleteAuthorizationKey(Hash, Hash)} for each key.
+     * @param verificationHashes Maps DHT keys to verification hashes
+     * @return The valid Delete Authorizations that were found, by DHT key
+     */
+    Map<Hash, UniqueId> findDeleteAuthorizationKeys(Map<Hash, Hash> verificationHashes) throws InterruptedException;
+    
     /**
      * Registers a <code>DhtStorageHandler</code> that handles incoming storage requests of a certain
      * type (but not its subclasses).
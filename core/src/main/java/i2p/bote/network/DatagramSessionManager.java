@@ -0,0 +1,431 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network;
+
+import i2p.bote.UniqueId;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.ResponsePacket;
+import i2p.bote.packet.dht.FindClosePeersPacket;
+import i2p.bote.packet.dht.RetrieveRequest;
+import i2p.bote.packet.relay.PeerListRequest;
+import i2p.bote.packet.relay.RelayRequest;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Destination;
+import net.i2p.util.Log;
+
+/**
+ * Lets datagrams to and from peers that have been authenticated once be sent as raw
+ * I2P datagrams with a MAC, instead of signed repliable datagrams. A DSA signature and
+ * verification per datagram is the biggest CPU cost of DHT traffic; a MAC is much cheaper.
+ * <p/>
+ * How it works:
+ * <ol>
+ *   <li/>Once a peer has sent us a packet with protocol version {@link #MIN_PROTOCOL_VERSION}
+ *        or higher, the next signed datagram to the peer carries a <i>session offer</i>:
+ *        a random session ID and MAC key, prepended to the packet (see {@link #addSessionOffer(byte[], UniqueId, Destination)}).
+ *        The datagram is signed, and I2P encrypts it end-to-end, so the peer knows the
+ *        offer came from us and nobody else can read the key.
+ *   <li/>The peer remembers the session (see {@link #processSignedPayload(byte[], Destination)}).
+ *   <li/>When the peer responds to a packet that carried the offer, the session is confirmed,
+ *        and later packets to the peer are sent as raw datagrams containing the session ID,
+ *        a MAC over the session ID and the packet, and the packet itself
+ *        (see {@link #createRawDatagram(byte[], Destination)}).
+ *   <li/>The peer looks up the sender by session ID and checks the MAC
+ *        (see {@link #verifyRawDatagram(byte[])}).
+ * </ol>
+ * Each side sets up its own session for the packets it sends. Outbound sessions are
+ * replaced after {@link #OUTBOUND_SESSION_LIFETIME}. A peer that has lost a session,
+ * for example because of a restart, drops raw datagrams without responding, so if a
+ * request sent as a raw datagram isn't answered within {@link #RAW_RESPONSE_TIMEOUT},
+ * the session is discarded and packets are sent as signed datagrams with a new offer.
+ * Peers with older protocol versions are never sent a session offer and keep getting
+ * signed datagrams.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class DatagramSessionManager {
+    /** The lowest protocol version that understands session offers and raw datagrams */
+    public static final int MIN_PROTOCOL_VERSION = 6;
+    static final int SESSION_ID_LENGTH = 8;
+    static final int MAC_LENGTH = 16;   // HMAC-SHA256, truncated
+    static final int RAW_HEADER_LENGTH = SESSION_ID_LENGTH + MAC_LENGTH;
+    private static final int KEY_LENGTH = 32;
+    private static final byte[] OFFER_PREFIX = new byte[] {(byte)0x6D, (byte)0x30, (byte)0x53, (byte)0x4F};   // differs from the CommunicationPacket prefix in byte 2
+    private static final int OFFER_LENGTH = OFFER_PREFIX.length + SESSION_ID_LENGTH + KEY_LENGTH;
+    static final long OUTBOUND_SESSION_LIFETIME = TimeUnit.MINUTES.toMillis(10);
+    static final long INBOUND_SESSION_LIFETIME = TimeUnit.MINUTES.toMillis(20);   // longer than OUTBOUND_SESSION_LIFETIME so the sender always switches first
+    static final long RAW_RESPONSE_TIMEOUT = TimeUnit.MINUTES.toMillis(1);   // time after which an unanswered raw request invalidates the session
+    private static final int MAX_OFFER_PACKETS = 8;   // the number of packet IDs remembered per unconfirmed session
+    private static final int MAX_UNANSWERED_REQUESTS = 64;   // the number of unanswered raw requests remembered per session
+    private static final int MAX_PEERS = 2000;
+    private static final int MAX_INBOUND_SESSIONS = 5000;
+    
+    private Log log = new Log(DatagramSessionManager.class);
+    private I2PAppContext appContext;
+    private Map<Destination, Integer> peerVersions;   // the highest protocol version seen from each peer, least recently used first
+    private Map<Destination, OutboundSession> outboundSessions;   // least recently used first
+    private Map<Long, InboundSession> inboundSessions;   // maps session IDs to sessions, oldest first
+    private ThreadLocal<Mac> hmac;
+    
+    public DatagramSessionManager(I2PAppContext appContext) {
+        this.appContext = appContext;
+        
+        peerVersions = new LinkedHashMap<Destination, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = -3524683307717624121L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Destination, Integer> eldest) {
+                return size() > MAX_PEERS;
+            }
+        };
+        outboundSessions = new LinkedHashMap<Destination, OutboundSession>(16, 0.75f, true) {
+            private static final long serialVersionUID = 6152374937380113906L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Destination, OutboundSession> eldest) {
+                return size() > MAX_PEERS;
+            }
+        };
+        inboundSessions = new LinkedHashMap<Long, InboundSession>() {
+            private static final long serialVersionUID = -1389460470632150277L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, InboundSession> eldest) {
+                return size() > MAX_INBOUND_SESSIONS;
+            }
+        };
+        
+        hmac = new ThreadLocal<Mac>() {   // one per thread because Mac isn't thread-safe
+            @Override
+            protected Mac initialValue() {
+                try {
+                    return Mac.getInstance("HmacSHA256");
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Can't create HmacSHA256 instance.", e);
+                }
+            }
+        };
+    }
+    
+    /**
+     * Updates protocol versions and confirms sessions. Should be called for every
+     * packet received from a peer.
+     * @param packet
+     * @param sender
+     */
+    public void packetReceived(CommunicationPacket packet, Destination sender) {
+        peerVersionSeen(sender, packet.getProtocolVersion());
+        if (packet instanceof ResponsePacket)
+            packetConfirmed(sender, packet.getPacketId());
+    }
+    
+    synchronized void peerVersionSeen(Destination peer, int protocolVersion) {
+        Integer knownVersion = peerVersions.get(peer);
+        if (knownVersion==null || protocolVersion>knownVersion)
+            peerVersions.put(peer, protocolVersion);
+    }
+    
+    /**
+     * Marks the outbound session to a peer as confirmed if the packet ID belongs to a
+     * packet that carried the session offer, or marks a request sent as a raw datagram
+     * as answered.
+     * @param peer
+     * @param packetId The packet ID of a request the peer has responded to
+     */
+    synchronized void packetConfirmed(Destination peer, UniqueId packetId) {
+        OutboundSession session = outboundSessions.get(peer);
+        if (session == null)
+            return;
+        if (session.confirmed)
+            session.unansweredRequests.remove(packetId);
+        else if (session.offerPacketIds.containsKey(packetId)) {
+            session.confirmed = true;
+            session.offerPacketIds.clear();
+            log.debug("Datagram session confirmed by peer " + peer.calculateHash().toBase64());
+        }
+    }
+    
+    /**
+     * Should be called after a packet has been sent as a raw datagram. If the packet is a
+     * request the peer always responds to, and no response arrives within
+     * {@link #RAW_RESPONSE_TIMEOUT}, the peer has probably lost the session, and
+     * {@link #createRawDatagram(byte[], Destination)} stops using it.<br/>
+     * Other packets are ignored because their lack of a response says nothing about the session.
+     * @param peer
+     * @param packet
+     */
+    public void rawPacketSent(Destination peer, CommunicationPacket packet) {
+        rawPacketSent(peer, packet, System.currentTimeMillis());
+    }
+    
+    void rawPacketSent(Destination peer, CommunicationPacket packet, long sendTime) {
+        if (isAnsweredRequest(packet))
+            rawRequestSent(peer, packet.getPacketId(), sendTime);
+    }
+    
+    /**
+     * Returns <code>true</code> if the receiver of a packet always answers it with a
+     * {@link ResponsePacket}. Store and delete requests are not answered, and deletion
+     * queries are only answered if the peer knows the delete authorization.
+     * @param packet
+     */
+    static boolean isAnsweredRequest(CommunicationPacket packet) {
+        return packet instanceof FindClosePeersPacket || packet instanceof RetrieveRequest ||
+                packet instanceof PeerListRequest || packet instanceof RelayRequest;
+    }
+    
+    synchronized void rawRequestSent(Destination peer, UniqueId packetId, long sendTime) {
+        OutboundSession session = outboundSessions.get(peer);
+        if (session!=null && session.confirmed)
+            session.unansweredRequests.put(packetId, sendTime);
+    }
+    
+    /**
+     * If the peer supports datagram sessions and there is no confirmed session yet,
+     * returns the packet data with a session offer in front of it. Otherwise, the
+     * packet data is returned unchanged.<br/>
+     * The return value must be sent as a signed datagram.
+     * @param packetData
+     * @param packetId The ID of the packet; if the peer responds to it, the session is confirmed
+     * @param peer
+     */
+    public byte[] addSessionOffer(byte[] packetData, UniqueId packetId, Destination peer) {
+        OutboundSession session;
+        synchronized(this) {
+            Integer peerVersion = peerVersions.get(peer);
+            if (peerVersion==null || peerVersion<MIN_PROTOCOL_VERSION)
+                return packetData;
+            
+            session = outboundSessions.get(peer);
+            if (session == null || session.isExpired()) {
+                session = new OutboundSession();
+                outboundSessions.put(peer, session);
+            }
+            if (session.confirmed)
+                return packetData;
+            session.offerPacketIds.put(packetId, Boolean.TRUE);
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate(OFFER_LENGTH + packetData.length);
+        buffer.put(OFFER_PREFIX);
+        buffer.putLong(session.id);
+        buffer.put(session.key);
+        buffer.put(packetData);
+        return buffer.array();
+    }
+    
+    /**
+     * Returns a raw datagram containing a packet if there is a confirmed session with the
+     * peer, or <code>null</code> if the packet must be sent as a signed datagram.
+     * @param packetData
+     * @param peer
+     */
+    public byte[] createRawDatagram(byte[] packetData, Destination peer) {
+        OutboundSession session;
+        synchronized(this) {
+            session = outboundSessions.get(peer);
+            if (session==null || !session.confirmed)
+                return null;
+            if (session.isExpired()) {
+                outboundSessions.remove(peer);
+                return null;
+            }
+            if (session.hasTimedOutRequest()) {
+                log.debug("Raw request to peer " + peer.calculateHash().toBase64() + " not answered, discarding the datagram session.");
+                outboundSessions.remove(peer);
+                return null;
+            }
+        }
+        
+        byte[] datagram = new byte[RAW_HEADER_LENGTH + packetData.length];
+        ByteBuffer.wrap(datagram).putLong(session.id);
+        System.arraycopy(packetData, 0, datagram, RAW_HEADER_LENGTH, packetData.length);
+        byte[] mac = calculateMac(session.key, datagram);
+        System.arraycopy(mac, 0, datagram, SESSION_ID_LENGTH, MAC_LENGTH);
+        return datagram;
+    }
+    
+    /**
+     * Removes and processes a session offer if the payload of a signed datagram
+     * contains one. Returns the packet data without the session offer.
+     * @param payload The payload of a datagram whose signature has been verified
+     * @param sender The sender of the datagram
+     * @return The packet data, or <code>null</code> if the session offer is malformed
+     */
+    public byte[] processSignedPayload(byte[] payload, Destination sender) {
+        if (!hasOfferPrefix(payload))
+            return payload;
+        if (payload.length < OFFER_LENGTH) {
+            log.debug("Session offer too short: " + payload.length + " bytes");
+            return null;
+        }
+        
+        ByteBuffer buffer = ByteBuffer.wrap(payload, OFFER_PREFIX.length, SESSION_ID_LENGTH + KEY_LENGTH);
+        long sessionId = buffer.getLong();
+        byte[] key = new byte[KEY_LENGTH];
+        buffer.get(key);
+        synchronized(this) {
+            InboundSession existingSession = inboundSessions.get(sessionId);
+            if (existingSession!=null && !existingSession.peer.equals(sender))
+                log.debug("Session ID collision, replacing the session.");
+            if (existingSession==null || !existingSession.peer.equals(sender) || !Arrays.equals(existingSession.key, key)) {
+                inboundSessions.remove(sessionId);
+                inboundSessions.put(sessionId, new InboundSession(sender, key));
+            }
+            removeExpiredInboundSessions();
+        }
+        return Arrays.copyOfRange(payload, OFFER_LENGTH, payload.length);
+    }
+    
+    private boolean hasOfferPrefix(byte[] payload) {
+        if (payload.length < OFFER_PREFIX.length)
+            return false;
+        for (int i=0; i<OFFER_PREFIX.length; i++)
+            if (payload[i] != OFFER_PREFIX[i])
+                return false;
+        return true;
+    }
+    
+    /** Inbound sessions are kept in the order they were created, so the expired ones are at the front. */
+    private void removeExpiredInboundSessions() {
+        long now = System.currentTimeMillis();
+        for (Iterator<InboundSession> iterator=inboundSessions.values().iterator(); iterator.hasNext(); )
+            if (iterator.next().expirationTime < now)
+                iterator.remove();
+            else
+                break;
+    }
+    
+    /**
+     * Checks the MAC of a raw datagram and returns the peer that sent it.
+     * Returns <code>null</code> if the session is unknown or the MAC is wrong.
+     * @param datagram
+     * @see #getRawPayload(byte[])
+     */
+    public Destination verifyRawDatagram(byte[] datagram) {
+        if (datagram.length < RAW_HEADER_LENGTH)
+            return null;
+        long sessionId = ByteBuffer.wrap(datagram).getLong();
+        InboundSession session;
+        synchronized(this) {
+            session = inboundSessions.get(sessionId);
+        }
+        if (session==null || session.expirationTime<System.currentTimeMillis())
+            return null;
+        
+        byte[] receivedMac = Arrays.copyOfRange(datagram, SESSION_ID_LENGTH, RAW_HEADER_LENGTH);
+        byte[] expectedMac = calculateMac(session.key, datagram);
+        if (!MessageDigest.isEqual(receivedMac, expectedMac))
+            return null;
+        return session.peer;
+    }
+    
+    /** Returns the packet data contained in a raw datagram. */
+    public static byte[] getRawPayload(byte[] datagram) {
+        return Arrays.copyOfRange(datagram, RAW_HEADER_LENGTH, datagram.length);
+    }
+    
+    /**
+     * Calculates a MAC over the session ID and the packet data in a raw datagram,
+     * and returns the first <code>MAC_LENGTH</code> bytes.
+     */
+    private byte[] calculateMac(byte[] key, byte[] datagram) {
+        Mac mac = hmac.get();
+        try {
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Can't initialize HmacSHA256.", e);
+        }
+        mac.update(datagram, 0, SESSION_ID_LENGTH);
+        mac.update(datagram, RAW_HEADER_LENGTH, datagram.length-RAW_HEADER_LENGTH);
+        return Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+    }
+    
+    private class OutboundSession {
+        long id;
+        byte[] key;
+        long expirationTime;
+        boolean confirmed;
+        Map<UniqueId, Boolean> offerPacketIds;   // the most recent packets that carried the session offer
+        Map<UniqueId, Long> unansweredRequests;   // send times of requests sent as raw datagrams, oldest first
+        
+        OutboundSession() {
+            id = appContext.random().nextLong();
+            key = new byte[KEY_LENGTH];
+            appContext.random().nextBytes(key);
+            expirationTime = System.currentTimeMillis() + OUTBOUND_SESSION_LIFETIME;
+            offerPacketIds = new LinkedHashMap<UniqueId, Boolean>() {
+                private static final long serialVersionUID = 2826390183496120714L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UniqueId, Boolean> eldest) {
+                    return size() > MAX_OFFER_PACKETS;
+                }
+            };
+            unansweredRequests = new LinkedHashMap<UniqueId, Long>() {
+                private static final long serialVersionUID = -4717280346118426695L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UniqueId, Long> eldest) {
+                    return size() > MAX_UNANSWERED_REQUESTS;
+                }
+            };
+        }
+        
+        boolean isExpired() {
+            return System.currentTimeMillis() > expirationTime;
+        }
+        
+        /** Returns <code>true</code> if the oldest unanswered raw request was sent more than <code>RAW_RESPONSE_TIMEOUT</code> ago. */
+        boolean hasTimedOutRequest() {
+            if (unansweredRequests.isEmpty())
+                return false;
+            long oldestSendTime = unansweredRequests.values().iterator().next();
+            return System.currentTimeMillis() > oldestSendTime + RAW_RESPONSE_TIMEOUT;
+        }
+    }
+    
+    private static class InboundSession {
+        Destination peer;
+        byte[] key;
+        long expirationTime;
+        
+        InboundSession(Destination peer, byte[] key) {
+            this.peer = peer;
+            this.key = key;
+            expirationTime = System.currentTimeMillis() + INBOUND_SESSION_LIFETIME;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network;
+
+import i2p.bote.Util;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+
+import com.nettgryppa.security.HashCash;
+
+/**
+ * Mints version 1 HashCash stamps of the form
+ * <code>1:bits:date:resource::rand:counter</code>.<br/>
+ * Low strengths are minted on the calling thread; for higher strengths, the counter
+ * space is searched on several threads.
+ * @see HashCashVerifier
+ */
+public class HashCashMinter {
+    static final Charset CHARSET = Charset.forName("US-ASCII");
+    static final String DATE_FORMAT = "yyMMddHHmmss";
+    private static final int MIN_PARALLEL_STRENGTH = 16;   // below this, starting threads costs more than it saves
+    private static final int NUM_MINT_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int MINT_THREAD_STACK_SIZE = 64 * 1024;
+    private static ExecutorService mintExecutor;
+    
+    /**
+     * Mints a stamp with at least <code>strength</code> leading zero bits.
+     * @param resource The string the stamp is bound to; must not contain colons
+     * @param strength
+     * @throws GeneralSecurityException
+     */
+    public static HashCash mint(String resource, int strength) throws GeneralSecurityException {
+        return mint(resource, strength, strength>=MIN_PARALLEL_STRENGTH ? NUM_MINT_THREADS : 1);
+    }
+    
+    /**
+     * Searches for a valid counter on <code>numThreads</code> threads. Thread <code>i</code>
+     * tries the counters <code>i</code>, <code>i+numThreads</code>, <code>i+2*numThreads</code>, etc.
+     * @param resource
+     * @param strength
+     * @param numThreads
+     * @throws GeneralSecurityException
+     */
+    static HashCash mint(String resource, final int strength, final int numThreads) throws GeneralSecurityException {
+        if (resource.indexOf(':') >= 0)
+            throw new IllegalArgumentException("HashCash resource must not contain colons: <" + resource + ">");
+        
+        final String prefix = "1:" + strength + ":" + formatDate(System.currentTimeMillis()) + ":" + resource + "::" + Long.toHexString(I2PAppContext.getGlobalContext().random().nextLong()) + ":";
+        final byte[] prefixBytes = prefix.getBytes(CHARSET);
+        final AtomicLong result = new AtomicLong(-1);
+        
+        if (numThreads <= 1)
+            search(prefixBytes, strength, 0, 1, result);
+        else {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (int i=0; i<numThreads; i++) {
+                final int threadIndex = i;
+                results.add(getMintExecutor().submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws GeneralSecurityException {
+                        search(prefixBytes, strength, threadIndex, numThreads, result);
+                        return null;
+                    }
+                }));
+            }
+            
+            try {
+                for (Future<?> future: results)
+                    future.get();
+            } catch (InterruptedException e) {
+                for (Future<?> future: results)
+                    future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new GeneralSecurityException("Interrupted while minting HashCash", e);
+            } catch (ExecutionException e) {
+                for (Future<?> future: results)
+                    future.cancel(true);
+                if (e.getCause() instanceof GeneralSecurityException)
+                    throw (GeneralSecurityException)e.getCause();
+                throw new GeneralSecurityException("Can't mint HashCash", e.getCause());
+            }
+        }
+        
+        long counter = result.get();
+        if (counter < 0)
+            throw new GeneralSecurityException("Interrupted while minting HashCash");
+        return new HashCash(prefix + Long.toHexString(counter));
+    }
+    
+    /**
+     * Tries counters until one is found or another thread has found one.
+     * @param prefixBytes The stamp without the counter
+     * @param strength
+     * @param firstCounter
+     * @param step
+     * @param result Set to the counter when a valid one has been found
+     * @throws GeneralSecurityException
+     */
+    private static void search(byte[] prefixBytes, int strength, long firstCounter, int step, AtomicLong result) throws GeneralSecurityException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        for (long counter=firstCounter; result.get()<0; counter+=step) {
+            if (Thread.currentThread().isInterrupted())
+                return;
+            sha1.update(prefixBytes);
+            sha1.update(Long.toHexString(counter).getBytes(CHARSET));
+            if (getLeadingZeroBits(sha1.digest()) >= strength) {
+                result.compareAndSet(-1, counter);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of leading zero bits in the SHA-1 hash of a stamp.
+     * @param sha1 A <code>MessageDigest</code> for SHA-1
+     * @param stamp
+     */
+    static int getValue(MessageDigest sha1, String stamp) {
+        return getLeadingZeroBits(sha1.digest(stamp.getBytes(CHARSET)));
+    }
+    
+    private static int getLeadingZeroBits(byte[] hash) {
+        int bits = 0;
+        for (byte b: hash) {
+            if (b == 0)
+                bits += 8;
+            else {
+                bits += Integer.numberOfLeadingZeros(b & 0xFF) - 24;
+                break;
+            }
+        }
+        return bits;
+    }
+    
+    static String formatDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+    
+    /**
+     * Returns the executor all minting threads share. Threads are created on demand
+     * and terminate after being idle for a while, so the executor doesn't need to be shut down.
+     */
+    private static synchronized ExecutorService getMintExecutor() {
+        if (mintExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(NUM_MINT_THREADS, NUM_MINT_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), Util.createThreadFactory("HashCashMint", MINT_THREAD_STACK_SIZE));
+            executor.allowCoreThreadTimeOut(true);
+            mintExecutor = executor;
+        }
+        return mintExecutor;
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network;
+
+import i2p.bote.packet.StatusCode;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.util.Log;
+
+import com.nettgryppa.security.HashCash;
+
+/**
+ * Checks HashCash stamps minted by {@link HashCashMinter}.<br/>
+ * Verification costs one SHA-1 hash regardless of the stamp's strength, and the
+ * cheap checks (format, resource, claimed strength) are done first, so invalid
+ * stamps are rejected before any expensive work is done on the packet.
+ * <p/>
+ * Stamps that have been accepted are remembered until they are too old to be
+ * accepted again, so a stamp can't be spent twice. If the packet a stamp came with
+ * is rejected without being stored, the stamp must be given back with
+ * {@link #release(HashCash)} so the sender can send the same packet again.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class HashCashVerifier {
+    // relay packets can wait in the sender's outbox and in relay folders for a long time before they are sent
+    private static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(7);
+    private static final long MAX_CLOCK_SKEW = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_SPENT_STAMPS = 100000;   // upper limit for the replay cache
+    
+    private Log log = new Log(HashCashVerifier.class);
+    private int minStrength;
+    private long maxAge;
+    private LinkedHashMap<String, Long> spentStamps;   // maps accepted stamps to the time they can be forgotten, oldest first
+    private ThreadLocal<MessageDigest> sha1;
+    
+    /**
+     * @param minStrength The minimum number of leading zero bits a stamp must have
+     */
+    public HashCashVerifier(int minStrength) {
+        this(minStrength, DEFAULT_MAX_AGE);
+    }
+    
+    /**
+     * @param minStrength The minimum number of leading zero bits a stamp must have
+     * @param maxAge The maximum age of a stamp in milliseconds
+     */
+    public HashCashVerifier(int minStrength, long maxAge) {
+        this.minStrength = minStrength;
+        this.maxAge = maxAge;
+        spentStamps = new LinkedHashMap<String, Long>() {
+            private static final long serialVersionUID = 5716364402567880413L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_SPENT_STAMPS;
+            }
+        };
+        sha1 = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance("SHA-1");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("SHA-1 is not available.", e);
+                }
+            }
+        };
+    }
+    
+    /**
+     * Checks a stamp and, if it is valid, marks it as spent.
+     * @param hashCash
+     * @param resource The resource the stamp must be bound to
+     * @return {@link StatusCode#OK} if the stamp is valid, {@link StatusCode#INSUFFICIENT_HASHCASH}
+     * if it is weaker than required, or {@link StatusCode#INVALID_HASHCASH} otherwise
+     */
+    public StatusCode verify(HashCash hashCash, String resource) {
+        if (hashCash == null)
+            return StatusCode.INVALID_HASHCASH;
+        String stamp = hashCash.toString();
+        
+        // version:bits:date:resource:extension:rand:counter
+        String[] fields = stamp.split(":", -1);
+        if (fields.length!=7 || !"1".equals(fields[0]) || !resource.equals(fields[3])) {
+            log.debug("Malformed HashCash stamp or wrong resource: <" + stamp + ">");
+            return StatusCode.INVALID_HASHCASH;
+        }
+        int claimedStrength;
+        long stampTime;
+        try {
+            claimedStrength = Integer.parseInt(fields[1]);
+            stampTime = parseDate(fields[2]);
+        } catch (NumberFormatException e) {
+            log.debug("Invalid strength in HashCash stamp: <" + stamp + ">");
+            return StatusCode.INVALID_HASHCASH;
+        } catch (ParseException e) {
+            log.debug("Invalid date in HashCash stamp: <" + stamp + ">");
+            return StatusCode.INVALID_HASHCASH;
+        }
+        if (claimedStrength < minStrength)
+            return StatusCode.INSUFFICIENT_HASHCASH;
+        long currentTime = System.currentTimeMillis();
+        if (stampTime<currentTime-maxAge || stampTime>currentTime+MAX_CLOCK_SKEW) {
+            log.debug("HashCash stamp has expired or is from the future: <" + stamp + ">");
+            return StatusCode.INVALID_HASHCASH;
+        }
+        
+        if (HashCashMinter.getValue(sha1.get(), stamp) < claimedStrength) {
+            log.debug("HashCash stamp is weaker than claimed: <" + stamp + ">");
+            return StatusCode.INVALID_HASHCASH;
+        }
+        
+        synchronized(spentStamps) {
+            forgetExpired(currentTime);
+            if (spentStamps.containsKey(stamp)) {
+                log.debug("HashCash stamp has been spent already: <" + stamp + ">");
+                return StatusCode.INVALID_HASHCASH;
+            }
+            // the stamp can be forgotten when it is too old to pass the date check
+            spentStamps.put(stamp, currentTime + maxAge + MAX_CLOCK_SKEW);
+        }
+        return StatusCode.OK;
+    }
+    
+    /**
+     * Forgets a stamp {@link #verify(HashCash, String)} has accepted, because the packet
+     * it came with was rejected without being stored (for example, with
+     * {@link StatusCode#NO_DISK_SPACE}). This lets the sender resend the same packet.
+     * @param hashCash
+     */
+    public void release(HashCash hashCash) {
+        if (hashCash == null)
+            return;
+        synchronized(spentStamps) {
+            spentStamps.remove(hashCash.toString());
+        }
+    }
+    
+    /** Returns the number of stamps in the replay cache. */
+    public int getNumSpentStamps() {
+        synchronized(spentStamps) {
+            return spentStamps.size();
+        }
+    }
+    
+    /** Entries are in the order they were added, so expired ones are at the beginning. */
+    private void forgetExpired(long currentTime) {
+        for (Iterator<Long> iterator=spentStamps.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next() >= currentTime)
+                break;
+            iterator.remove();
+        }
+    }
+    
+    private long parseDate(String date) throws ParseException {
+        if (date.length() != HashCashMinter.DATE_FORMAT.length())
+            throw new ParseException("Unsupported date format: " + date, 0);
+        SimpleDateFormat format = new SimpleDateFormat(HashCashMinter.DATE_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        format.setLenient(false);
+        return format.parse(date).getTime();
+    }
+}
@@ -46,9 +46,19 @@ import net.i2p.util.Log;
 public class I2PPacketDispatcher implements I2PSessionMuxedListener {
     private Log log = new Log(I2PPacketDispatcher.class);
     private List<PacketListener> packetListeners;
+    private DatagramSessionManager sessionManager;
 
     public I2PPacketDispatcher() {
+        this(null);
+    }
+    
+    /**
+     * @param sessionManager For authenticating raw datagrams; can be <code>null</code>,
+     * in which case only signed datagrams are accepted.
+     */
+    public I2PPacketDispatcher(DatagramSessionManager sessionManager) {
         packetListeners = new ArrayList<PacketListener>();
+        this.sessionManager = sessionManager;
     }
     
     public void addPacketListener(PacketListener listener) {
@@ -80,27 +90,57 @@ public class I2PPacketDispatcher implements I2PSessionMuxedListener {
     public void messageAvailable(I2PSession session, int msgId, long size, int proto, int fromPort, int toPort) {
         if (proto == I2PSession.PROTO_DATAGRAM)
             messageAvailable(session, msgId, size);
+        else if (proto==I2PSession.PROTO_DATAGRAM_RAW && sessionManager!=null)
+            rawMessageAvailable(session, msgId, size);
     }
-
-    @Override
-    public void messageAvailable(I2PSession session, int msgId, long size) {
-        byte[] msg = new byte[0];
+    
+    /**
+     * Handles a raw datagram. Raw datagrams are only accepted if they belong to a
+     * {@link DatagramSessionManager} session and the MAC is correct.
+     */
+    private void rawMessageAvailable(I2PSession session, int msgId, long size) {
+        byte[] msg = receiveMessage(session, msgId, size);
+        if (msg == null)
+            return;
+        
+        Destination sender = sessionManager.verifyRawDatagram(msg);
+        if (sender == null) {
+            log.debug("Ignoring raw datagram with an unknown session or an invalid MAC.");
+            return;
+        }
+        dispatchPacket(DatagramSessionManager.getRawPayload(msg), sender);
+    }
+    
+    private byte[] receiveMessage(I2PSession session, int msgId, long size) {
+        byte[] msg = null;
         try {
             msg = session.receiveMessage(msgId);
         } catch (I2PSessionException e) {
             log.error("Can't get new message from I2PSession.", e);
+            return null;
         }
-        if (msg == null) {
+        if (msg == null)
             log.error("I2PSession returned a null message: msgId=" + msgId + ", size=" + size + ", " + session);
+        return msg;
+    }
+
+    @Override
+    public void messageAvailable(I2PSession session, int msgId, long size) {
+        byte[] msg = receiveMessage(session, msgId, size);
+        if (msg == null)
             return;
-        }
         
         I2PDatagramDissector datagramDissector = new I2PDatagramDissector();
         try {
             datagramDissector.loadI2PDatagram(msg);
-            datagramDissector.verifySignature();   // TODO keep this line or remove it?
+            datagramDissector.verifySignature();
             byte[] payload = datagramDissector.extractPayload();
             Destination sender = datagramDissector.getSender();
+            if (sessionManager != null) {
+                payload = sessionManager.processSignedPayload(payload, sender);
+                if (payload == null)
+                    return;
+            }
 
             dispatchPacket(payload, sender);
         }
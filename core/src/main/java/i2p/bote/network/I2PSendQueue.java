@@ -60,6 +60,7 @@ public class I2PSendQueue extends I2PAppThread implements PacketListener {
     private Log log = new Log(I2PSendQueue.class);
     private I2PSession i2pSession;
     private I2PDatagramMaker datagramMaker;
+    private DatagramSessionManager sessionManager;
     private PacketQueue packetQueue;
     private Set<PacketBatch> runningBatches;
     private int maxBandwidth;
@@ -69,9 +70,19 @@ public class I2PSendQueue extends I2PAppThread implements PacketListener {
      * @param i2pReceiver
      */
     public I2PSendQueue(I2PSession i2pSession, I2PPacketDispatcher i2pReceiver) {
+        this(i2pSession, i2pReceiver, null);
+    }
+
+    /**
+     * @param i2pSession
+     * @param i2pReceiver
+     * @param sessionManager For sending raw datagrams to peers that support it; can be <code>null</code>
+     */
+    public I2PSendQueue(I2PSession i2pSession, I2PPacketDispatcher i2pReceiver, DatagramSessionManager sessionManager) {
         super("I2PSendQueue");
         
         this.i2pSession = i2pSession;
+        this.sessionManager = sessionManager;
         i2pReceiver.addPacketListener(this);
         packetQueue = new PacketQueue();
         runningBatches = new ConcurrentHashSet<PacketBatch>();
@@ -182,6 +193,9 @@ public class I2PSendQueue extends I2PAppThread implements PacketListener {
     // Implementation of PacketListener
     @Override
     public void packetReceived(CommunicationPacket packet, Destination sender, long receiveTime) {
+        if (sessionManager != null)
+            sessionManager.packetReceived(packet, sender);
+        
         if (packet instanceof ResponsePacket) {
             UniqueId packetId = packet.getPacketId();
             
@@ -241,7 +255,7 @@ public class I2PSendQueue extends I2PAppThread implements PacketListener {
         log.debug("Sending " + (isBatchPacket?"":"non-") + "batch packet: [" + i2pBotePacket + "] to " + Util.toShortenedBase32(scheduledPacket.destination));
         
         try {
-            sendDatagram(bytes, scheduledPacket.destination);
+            sendDatagram(bytes, i2pBotePacket, scheduledPacket.destination);
             
             // set sentTime, update queue and sentLatch, fire packet listeners
             scheduledPacket.data.setSentTime(System.currentTimeMillis());
@@ -256,7 +270,23 @@ public class I2PSendQueue extends I2PAppThread implements PacketListener {
         }
     }
     
-    private void sendDatagram(byte[] data, Destination destination) throws I2PSessionException {
+    /**
+     * Sends a packet as a raw datagram if there is a confirmed {@link DatagramSessionManager}
+     * session with the destination; otherwise, sends a signed datagram.<br/>
+     * Packets sent as raw datagrams are reported to the <code>DatagramSessionManager</code>,
+     * so it can fall back to signed datagrams if the peer doesn't respond to a request.
+     */
+    private void sendDatagram(byte[] data, CommunicationPacket packet, Destination destination) throws I2PSessionException {
+        if (sessionManager != null) {
+            byte[] rawDatagram = sessionManager.createRawDatagram(data, destination);
+            if (rawDatagram != null) {
+                i2pSession.sendMessage(destination, rawDatagram, I2PSession.PROTO_DATAGRAM_RAW, I2PSession.PORT_UNSPECIFIED, I2PSession.PORT_UNSPECIFIED);
+                sessionManager.rawPacketSent(destination, packet);
+                return;
+            }
+            data = sessionManager.addSessionOffer(data, packet.getPacketId(), destination);
+        }
+        
         byte[] replyableDatagram = datagramMaker.makeI2PDatagram(data);
         i2pSession.sendMessage(destination, replyableDatagram, I2PSession.PROTO_DATAGRAM, I2PSession.PORT_UNSPECIFIED, I2PSession.PORT_UNSPECIFIED);
     }
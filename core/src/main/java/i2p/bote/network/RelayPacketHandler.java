@@ -22,28 +22,58 @@
 package i2p.bote.network;
 
 import i2p.bote.Util;
+import i2p.bote.crypto.RelaySessionKeyManager;
 import i2p.bote.folder.RelayPacketFolder;
 import i2p.bote.packet.CommunicationPacket;
 import i2p.bote.packet.MalformedPacketException;
+import i2p.bote.packet.ResponsePacket;
+import i2p.bote.packet.StatusCode;
 import i2p.bote.packet.dht.DhtStorablePacket;
 import i2p.bote.packet.dht.StoreRequest;
 import i2p.bote.packet.relay.RelayRequest;
+import i2p.bote.packet.relay.ReturnChain;
+import i2p.bote.service.ReturnChainTracker;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.i2p.client.I2PSession;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.Destination;
+import net.i2p.util.I2PAppThread;
 import net.i2p.util.Log;
 
 /**
  * Receives {@link RelayRequest}s from other peers and forwards them
  * (for {@link RelayRequest} payloads) or stores them in the DHT
- * (for {@link DhtStorablePacket} payloads).
+ * (for {@link DhtStorablePacket} payloads). If a request for the DHT comes with a
+ * {@link ReturnChain}, a confirmation is sent back through it once the packet has
+ * been stored. Confirmations arriving at the end of a return chain are passed to
+ * the {@link ReturnChainTracker}.
+ * <p/>
+ * Nothing expensive happens on the thread that delivers the packets. The HashCash
+ * stamp is checked right away; requests with a valid stamp are decrypted by a pool
+ * of worker threads, and relay packets are written to the {@link RelayPacketFolder}
+ * in batches by this thread. All queues are bounded;
+ * when one is full, the request is answered with {@link StatusCode#NO_DISK_SPACE}
+ * so the sender can try again later instead of waiting for a confirmation.
+ * <p/>
+ * Peers older than {@link #MIN_HASHCASH_PROTOCOL_VERSION} send a placeholder stamp,
+ * so requests with a lower protocol version are accepted without checking the stamp.
  */
-public class RelayPacketHandler implements PacketListener {
+public class RelayPacketHandler extends I2PAppThread implements PacketListener {
+    /** The lowest protocol version that sends real HashCash stamps in relay requests */
+    public static final int MIN_HASHCASH_PROTOCOL_VERSION = 7;
     private static final int MAX_CONCURRENT_DHT_TASKS = 5;
+    private static final int MAX_QUEUED_DHT_TASKS = 100;
+    static final int MAX_QUEUED_DECRYPTIONS = 200;   // relay requests waiting to be decrypted
+    static final int MAX_QUEUED_WRITES = 200;   // decrypted relay packets waiting to be written to the folder
+    static final int MAX_WRITE_BATCH_SIZE = 50;
     private static final int THREAD_STACK_SIZE = 256 * 1024;
     
     private Log log = new Log(RelayPacketHandler.class);
@@ -51,48 +81,142 @@ public class RelayPacketHandler implements PacketListener {
     private DHT dht;
     private I2PSendQueue sendQueue;
     private I2PSession i2pSession;
-    private ExecutorService dhtTaskExecutor;
+    private ReturnChainTracker returnChainTracker;
+    private RelaySessionKeyManager sessionKeyManager;
+    private HashCashVerifier hashCashVerifier;
+    private ThreadPoolExecutor decryptionExecutor;
+    private ThreadPoolExecutor dhtTaskExecutor;
+    private BlockingQueue<ReceivedPacket> writeQueue;
 
-    public RelayPacketHandler(RelayPacketFolder relayPacketFolder, DHT dht, I2PSendQueue sendQueue, I2PSession i2pSession) {
+    /**
+     * @param relayPacketFolder
+     * @param dht
+     * @param sendQueue
+     * @param i2pSession
+     * @param returnChainTracker Receives confirmations that arrive at the end of a return chain
+     * @param sessionKeyManager Remembers the session tags that arrive in relay requests
+     * @param hashCashStrength The minimum strength of the HashCash stamp in a relay request
+     */
+    public RelayPacketHandler(RelayPacketFolder relayPacketFolder, DHT dht, I2PSendQueue sendQueue, I2PSession i2pSession, ReturnChainTracker returnChainTracker, RelaySessionKeyManager sessionKeyManager, int hashCashStrength) {
+        this(relayPacketFolder, dht, sendQueue, i2pSession, returnChainTracker, sessionKeyManager, hashCashStrength, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * @param relayPacketFolder
+     * @param dht
+     * @param sendQueue
+     * @param i2pSession
+     * @param returnChainTracker Receives confirmations that arrive at the end of a return chain
+     * @param sessionKeyManager Remembers the session tags that arrive in relay requests
+     * @param hashCashStrength The minimum strength of the HashCash stamp in a relay request
+     * @param numDecryptionThreads The number of threads that decrypt relay requests
+     */
+    public RelayPacketHandler(RelayPacketFolder relayPacketFolder, DHT dht, I2PSendQueue sendQueue, I2PSession i2pSession, ReturnChainTracker returnChainTracker, RelaySessionKeyManager sessionKeyManager, int hashCashStrength, int numDecryptionThreads) {
+        super("RelayPktHandler");
+        setPriority(MIN_PRIORITY);
         this.relayPacketFolder = relayPacketFolder;
         this.dht = dht;
         this.sendQueue = sendQueue;
         this.i2pSession = i2pSession;
-        dhtTaskExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_DHT_TASKS, Util.createThreadFactory("DHTStoreTask", THREAD_STACK_SIZE));
+        this.returnChainTracker = returnChainTracker;
+        this.sessionKeyManager = sessionKeyManager;
+        hashCashVerifier = new HashCashVerifier(hashCashStrength);
+        decryptionExecutor = new ThreadPoolExecutor(numDecryptionThreads, numDecryptionThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_DECRYPTIONS), Util.createThreadFactory("RelayDecrypt", THREAD_STACK_SIZE));
+        dhtTaskExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_DHT_TASKS, MAX_CONCURRENT_DHT_TASKS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_DHT_TASKS), Util.createThreadFactory("DHTStoreTask", THREAD_STACK_SIZE));
+        writeQueue = new ArrayBlockingQueue<ReceivedPacket>(MAX_QUEUED_WRITES);
     }
     
     @Override
-    public void packetReceived(CommunicationPacket packet, Destination sender, long receiveTime) {
+    public void packetReceived(CommunicationPacket packet, final Destination sender, long receiveTime) {
         if (packet instanceof RelayRequest && dht.isReady()) {
-            RelayRequest relayRequest = (RelayRequest)packet;
-            CommunicationPacket payload;
-            try {
-                payload = relayRequest.getStoredPacket(i2pSession);
-            }
-            catch (DataFormatException e) {
-                log.error("Invalid RelayRequest received from peer " + Util.toBase32(sender), e);
+            final RelayRequest relayRequest = (RelayRequest)packet;
+            
+            // check the HashCash first because it is cheap
+            StatusCode hashCashStatus = verifyHashCash(relayRequest);
+            if (hashCashStatus != StatusCode.OK) {
+                log.debug("Rejecting relay request from peer " + Util.toShortenedBase32(sender) + ": " + hashCashStatus);
+                sendQueue.sendResponse(null, sender, hashCashStatus, relayRequest.getPacketId());
                 return;
             }
-            catch (MalformedPacketException e) {
-                log.error("Invalid RelayRequest received from peer " + Util.toBase32(sender), e);
-                return;
+            
+            try {
+                decryptionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleRelayRequest(relayRequest, sender);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.debug("Too many relay requests waiting to be decrypted, rejecting packet from peer " + Util.toShortenedBase32(sender));
+                reject(sender, relayRequest);
             }
-            log.debug("Received a relay request, payload: " + payload);
-            if (payload instanceof RelayRequest) {
-                log.debug("Relay packet is of type " + payload.getClass().getSimpleName() + ", storing it in the relay packet folder.");
-                relayPacketFolder.add((RelayRequest)payload);
-                confirm(sender, relayRequest);
+        }
+    }
+    
+    /**
+     * Checks the HashCash stamp of a relay request and marks it as spent if it is valid.
+     * If the request is rejected later because it can't be stored, the stamp is
+     * released again in {@link #reject(Destination, RelayRequest)}.<br/>
+     * Requests from peers older than <code>MIN_HASHCASH_PROTOCOL_VERSION</code> are
+     * accepted because they only carry a placeholder stamp.
+     * @param relayRequest
+     * @return {@link StatusCode#OK} if the stamp is valid, or the status code to reject the request with
+     */
+    StatusCode verifyHashCash(RelayRequest relayRequest) {
+        if (relayRequest.getProtocolVersion() < MIN_HASHCASH_PROTOCOL_VERSION)
+            return StatusCode.OK;
+        return hashCashVerifier.verify(relayRequest.getHashCash(), relayRequest.getHashCashResource());
+    }
+    
+    /**
+     * Decrypts a relay request and hands the payload to the folder writer or the DHT.
+     * Runs on one of the decryption threads.
+     * @param relayRequest
+     * @param sender
+     */
+    private void handleRelayRequest(RelayRequest relayRequest, Destination sender) {
+        CommunicationPacket payload;
+        try {
+            payload = relayRequest.getStoredPacket(i2pSession, sessionKeyManager);
+        }
+        catch (DataFormatException e) {
+            log.error("Invalid RelayRequest received from peer " + Util.toBase32(sender), e);
+            return;
+        }
+        catch (MalformedPacketException e) {
+            log.error("Invalid RelayRequest received from peer " + Util.toBase32(sender), e);
+            return;
+        }
+        if (payload == null) {
+            // most likely an unknown or expired session tag; resending the packet won't help
+            log.debug("Can't decrypt relay request from peer " + Util.toShortenedBase32(sender));
+            sendQueue.sendResponse(null, sender, StatusCode.INVALID_PACKET, relayRequest.getPacketId());
+            return;
+        }
+        log.debug("Received a relay request, payload: " + payload);
+        if (payload instanceof RelayRequest) {
+            log.debug("Relay packet is of type " + payload.getClass().getSimpleName() + ", storing it in the relay packet folder.");
+            // the confirmation is sent when the packet has been written
+            if (!writeQueue.offer(new ReceivedPacket((RelayRequest)payload, sender, relayRequest))) {
+                log.debug("Too many relay packets waiting to be stored, rejecting packet from peer " + Util.toShortenedBase32(sender));
+                reject(sender, relayRequest);
             }
-            else if (payload instanceof StoreRequest) {
-                log.debug("Relay packet is of type " + payload.getClass().getSimpleName() + ", storing it in the DHT.");
-                final DhtStorablePacket dhtPacket = ((StoreRequest)payload).getPacketToStore();
-                // do dht.store() in a separate thread so we don't block the notifier thread
-                dhtTaskExecutor.submit(new Runnable() {
+        }
+        else if (payload instanceof StoreRequest) {
+            log.debug("Relay packet is of type " + payload.getClass().getSimpleName() + ", storing it in the DHT.");
+            final DhtStorablePacket dhtPacket = ((StoreRequest)payload).getPacketToStore();
+            final ReturnChain returnChain = relayRequest.getReturnChain();
+            try {
+                dhtTaskExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
                         try {
                             dht.store(dhtPacket);
                             log.debug("Finished storing DHT packet: " + dhtPacket);
+                            if (!returnChain.isEmpty())
+                                sendConfirmation(returnChain);
                         } catch (InterruptedException e) {
                             log.debug("Interrupted while storing packet in the DHT.");
                         } catch (DhtException e) {
@@ -101,13 +225,100 @@ public class RelayPacketHandler implements PacketListener {
                     }
                 });
                 confirm(sender, relayRequest);
+            } catch (RejectedExecutionException e) {
+                log.debug("Too many DHT store tasks queued, rejecting packet from peer " + Util.toShortenedBase32(sender));
+                reject(sender, relayRequest);
             }
-            else
-                log.error("Don't know how to handle relay packet of type " + payload.getClass());
+        }
+        else if (payload instanceof ResponsePacket) {
+            // the end of a return chain
+            returnChainTracker.confirmationReceived(((ResponsePacket)payload).getPacketId());
+            confirm(sender, relayRequest);
+        }
+        else
+            log.error("Don't know how to handle relay packet of type " + payload.getClass());
+    }
+    
+    /**
+     * Decrypts a return chain and stores the first packet of the return path in the
+     * relay packet folder, from where it is sent like any other relay packet.
+     * @param returnChain
+     */
+    private void sendConfirmation(ReturnChain returnChain) {
+        try {
+            RelayRequest returnRequest = returnChain.getReturnRequest(i2pSession);
+            log.debug("Sending relay confirmation to " + Util.toShortenedBase32(returnRequest.getNextDestination()));
+            relayPacketFolder.add(returnRequest);
+        } catch (DataFormatException e) {
+            log.error("Can't decrypt return chain.", e);
+        } catch (MalformedPacketException e) {
+            log.error("Invalid return chain.", e);
         }
     }
     
+    /** Writes decrypted relay packets to the folder in batches and confirms them. */
+    @Override
+    public void run() {
+        List<ReceivedPacket> batch = new ArrayList<ReceivedPacket>();
+        try {
+            while (!Thread.interrupted()) {
+                try {
+                    batch.add(writeQueue.take());
+                    writeQueue.drainTo(batch, MAX_WRITE_BATCH_SIZE - 1);
+                    
+                    List<RelayRequest> packets = new ArrayList<RelayRequest>();
+                    for (ReceivedPacket receivedPacket: batch)
+                        packets.add(receivedPacket.packet);
+                    relayPacketFolder.add(packets);
+                    
+                    for (ReceivedPacket receivedPacket: batch)
+                        confirm(receivedPacket.sender, receivedPacket.request);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (RuntimeException e) {   // catch unexpected exceptions to keep the thread running
+                    log.error("Exception caught in RelayPacketHandler loop", e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        } finally {
+            decryptionExecutor.shutdownNow();
+            dhtTaskExecutor.shutdownNow();
+        }
+        
+        log.debug("RelayPacketHandler thread interrupted, exiting.");
+    }
+    
+    /** Returns the number of decrypted relay packets waiting to be written to the folder. */
+    int getNumQueuedWrites() {
+        return writeQueue.size();
+    }
+    
     private void confirm(Destination sender, RelayRequest request) {
         sendQueue.sendResponse(sender, request.getPacketId());
     }
-}
\ No newline at end of file
+    
+    /**
+     * Tells the sender that a relay request can't be stored right now, and releases its
+     * HashCash stamp so the sender can resend the same packet later.
+     * @param sender
+     * @param request
+     */
+    void reject(Destination sender, RelayRequest request) {
+        hashCashVerifier.release(request.getHashCash());
+        sendQueue.sendResponse(null, sender, StatusCode.NO_DISK_SPACE, request.getPacketId());
+    }
+    
+    /** A decrypted relay packet together with the request it arrived in. */
+    private static class ReceivedPacket {
+        RelayRequest packet;
+        Destination sender;
+        RelayRequest request;
+        
+        ReceivedPacket(RelayRequest packet, Destination sender, RelayRequest request) {
+            this.packet = packet;
+            this.sender = sender;
+            this.request = request;
+        }
+    }
+}
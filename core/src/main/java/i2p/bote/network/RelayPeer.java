@@ -30,9 +30,16 @@ import net.i2p.data.Destination;
 /**
  * A {@link Destination} that contains information about the most
  * recent attempts to contact the peer, and whether or not it responded.
+ * <p/>
+ * Besides the raw samples, an exponentially weighted moving average of
+ * the reachability and of the response time is kept, so recent behavior
+ * counts more than old behavior.
  */
 public class RelayPeer extends Destination {
     private static final int MAX_SAMPLES = 20;   // the maximum size of the samples list
+    private static final double REACHABILITY_WEIGHT = 0.2;   // weight of a new reachability sample in the moving average
+    private static final double LATENCY_WEIGHT = 0.3;   // weight of a new latency sample in the moving average
+    private static final long REFERENCE_LATENCY = 5000;   // a peer with this latency scores half as well as one with zero latency
 
     /**
      * Contains one element for each request sent to the peer.<br/>
@@ -41,6 +48,8 @@ public class RelayPeer extends Destination {
      * The list is ordered oldest to newest.
      */
     private LinkedList<Boolean> samples;
+    private double reachability;   // moving average, between 0 and 1
+    private double latency;   // moving average in milliseconds, or -1 if unknown
 
     /**
      * Creates a new <code>RelayPeer</code> with a given I2P destination and
@@ -55,6 +64,7 @@ public class RelayPeer extends Destination {
         
         // initialize RelayPeer-specific data
         samples = new LinkedList<Boolean>();
+        latency = -1;
     }
     
     /**
@@ -63,32 +73,57 @@ public class RelayPeer extends Destination {
      *     <code>false</code> means no response.
      */
     public synchronized void addReachabilitySample(boolean didRespond) {
+        double value = didRespond ? 1 : 0;
+        if (samples.isEmpty())
+            reachability = value;
+        else
+            reachability = REACHABILITY_WEIGHT*value + (1-REACHABILITY_WEIGHT)*reachability;
+        
         samples.add(didRespond);
         while (samples.size() > MAX_SAMPLES)
             samples.removeFirst();
     }
 
+    /**
+     * Adds the time it took the peer to respond to a request.
+     * @param milliseconds
+     */
+    public synchronized void addLatencySample(long milliseconds) {
+        if (latency < 0)
+            latency = milliseconds;
+        else
+            latency = LATENCY_WEIGHT*milliseconds + (1-LATENCY_WEIGHT)*latency;
+    }
+    
     public List<Boolean> getAllSamples() {
         return Collections.unmodifiableList(samples);
     }
     
     /**
      * Returns the percentage of requests sent to this peer for which 
-     * a response was received.<br/>
+     * a response was received, weighted towards recent requests.<br/>
      * If no request has been sent to the peer yet, <code>0</code> is returned.
      */
     public synchronized int getReachability() {
-        int requestsSent = 0;
-        int responsesReceived = 0;
-        for (boolean didRespond: samples) {
-            requestsSent++;
-            if (didRespond)
-                responsesReceived++;
-        }
-        
-        if (requestsSent == 0)
-            return 0;
-        else
-            return (int)(100L * responsesReceived / requestsSent);
+        return (int)Math.round(100 * reachability);
+    }
+    
+    /**
+     * Returns the average time it took the peer to respond, weighted towards
+     * recent responses, or <code>-1</code> if the peer hasn't responded yet.
+     */
+    public synchronized long getLatency() {
+        return Math.round(latency);
+    }
+    
+    /**
+     * Returns a number between 0 and 1 that reflects how suitable the peer is as a relay.
+     * It is highest for peers that respond to all requests quickly.
+     */
+    public synchronized double getScore() {
+        double score = reachability;
+        if (latency >= 0)
+            score *= REFERENCE_LATENCY / (REFERENCE_LATENCY + latency);
+        return score;
     }
-}
\ No newline at end of file
+}
@@ -304,6 +304,22 @@ class BucketManager implements PacketListener, Iterable<KBucket> {
         return count;
     }
 
+    /**
+     * Replaces the contents of all buckets. This is meant to be called before the
+     * <code>BucketManager</code> is used, for example to restore a {@link RoutingTableSnapshot}.
+     * @param newKBuckets K-buckets in ascending order of ID range, covering the whole ID space
+     * @param siblings Peers for the s-bucket, sorted by distance to the local destination
+     * @param sectionLookupTimes The last lookup times for the sections of the s-bucket
+     */
+    synchronized void restore(List<KBucket> newKBuckets, List<KademliaPeer> siblings, long[] sectionLookupTimes) {
+        kBuckets.clear();
+        kBuckets.addAll(newKBuckets);
+        sBucket = new SBucket(localDestinationHash);
+        for (KademliaPeer peer: sBucket.restore(siblings))
+            addToKBucket(peer);
+        sBucket.restoreLastLookupTimes(sectionLookupTimes);
+    }
+    
     /**
      * @see KademliaDHT.getPeerStats()
      */
@@ -24,7 +24,6 @@ package i2p.bote.network.kademlia;
 import static i2p.bote.network.kademlia.KademliaConstants.K;
 import i2p.bote.UniqueId;
 import i2p.bote.Util;
-import i2p.bote.network.I2PPacketDispatcher;
 import i2p.bote.network.I2PSendQueue;
 import i2p.bote.network.PacketListener;
 import i2p.bote.packet.CommunicationPacket;
@@ -67,7 +66,8 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
     
     private Log log = new Log(ClosestNodesLookupTask.class);
     private Hash key;
-    private I2PPacketDispatcher i2pReceiver;
+    private LookupCoordinator lookupCoordinator;
+    private PacketListener packetListener;
     private BucketManager bucketManager;
     private I2PSendQueue sendQueue;
     private Destination localDestination;   // The I2P destination of the local node
@@ -80,15 +80,16 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
     /**
      * @param key The DHT key to look up
      * @param sendQueue For sending I2P packets
-     * @param i2pReceiver For receiving I2P packets
+     * @param lookupCoordinator For receiving responses to the requests sent by this lookup
      * @param bucketManager For looking up peers, and updating them
      */
-    public ClosestNodesLookupTask(Hash key, I2PSendQueue sendQueue, I2PPacketDispatcher i2pReceiver, BucketManager bucketManager) {
+    ClosestNodesLookupTask(Hash key, I2PSendQueue sendQueue, LookupCoordinator lookupCoordinator, BucketManager bucketManager) {
         this.key = key;
         this.sendQueue = sendQueue;
         localDestination = sendQueue.getLocalDestination();
-        this.i2pReceiver = i2pReceiver;
+        this.lookupCoordinator = lookupCoordinator;
         this.bucketManager = bucketManager;
+        packetListener = new IncomingPacketHandler();
         
         peerComparator = new HashDistanceComparator(key);
         responses = Collections.synchronizedSortedSet(new TreeSet<Destination>(peerComparator));   // nodes that have responded to a query
@@ -99,9 +100,6 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
     public List<Destination> call() throws InterruptedException {
         log.debug("Looking up nodes closest to " + key);
         
-        PacketListener packetListener = new IncomingPacketHandler();
-        i2pReceiver.addPacketListener(packetListener);
-        
         try {
             // get a list of all unlocked peers (we don't how many we really need because some may not respond)
             notQueriedYet.addAll(bucketManager.getAllUnlockedPeers());
@@ -119,6 +117,7 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
                     else {
                         FindClosePeersPacket packet = new FindClosePeersPacket(key);
                         pendingRequests.put(peer, packet);
+                        lookupCoordinator.addPendingRequest(packet.getPacketId(), packetListener);
                         sendQueue.send(packet, peer);
                     }
                     logStatus();
@@ -130,7 +129,7 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
                         Destination peer = request.getKey();
                         log.debug("FindCloseNodes request to peer " + Util.toShortenedBase32(peer) + " timed out.");
                         bucketManager.noResponse(peer);
-                        pendingRequests.remove(peer);
+                        removePendingRequest(peer);
                     }
                 
                 TimeUnit.SECONDS.sleep(1);
@@ -143,12 +142,20 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
             }
         }
         finally {
-            i2pReceiver.removePacketListener(packetListener);
+            // stop routing responses to this lookup
+            for (FindClosePeersPacket request: pendingRequests.values())
+                lookupCoordinator.removePendingRequest(request.getPacketId());
         }
         
         return getResults();
     }
     
+    private void removePendingRequest(Destination peer) {
+        FindClosePeersPacket request = pendingRequests.remove(peer);
+        if (request != null)
+            lookupCoordinator.removePendingRequest(request.getPacketId());
+    }
+    
     private void logStatus() {
         log.debug("Lookup status for key " + key.toBase64().substring(0, 8) + "...: resp=" + responses.size() +" pend=" + pendingRequests.size() + " notQ=" + notQueriedYet.size());
     }
@@ -278,12 +285,12 @@ public class ClosestNodesLookupTask implements Callable<List<Destination>> {
                         if (payload instanceof PeerList)
                             updatePeers((PeerList)payload, sender, receiveTime);
                         
-                        pendingRequests.remove(sender);
+                        removePendingRequest(sender);
                     }
                 }
             }
             else if (packet instanceof MalformedCommunicationPacket)
-                pendingRequests.remove(sender);   // since it is not generally possible to tell if an invalid comm packet is in response to a certain request, always remove invalid packets from the pending list
+                removePendingRequest(sender);   // since it is not generally possible to tell if an invalid comm packet is in response to a certain request, always remove invalid packets from the pending list
         }
         
         /**
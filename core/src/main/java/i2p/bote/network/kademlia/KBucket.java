@@ -48,7 +48,7 @@ import net.i2p.util.Log;
  * 
  * TODO use peers from the replacement cache when the bucket is not full
  */
-class KBucket extends AbstractBucket {
+class KBucket extends AbstractBucket implements RefreshTarget {
     private static final int REPLACEMENT_CACHE_MAX_SIZE = KademliaConstants.K;
     
     private Log log = new Log(KBucket.class);
@@ -57,6 +57,7 @@ class KBucket extends AbstractBucket {
     private List<KademliaPeer> replacementCache;   // Basically a FIFO. Peers are sorted most recently seen to least recently seen
     private volatile int depth;
     private volatile long lastLookupTime;
+    private volatile long lastRefreshAttempt;
 
     KBucket(BigInteger startId, BigInteger endId, int depth) {
         super(KademliaConstants.K);
@@ -78,6 +79,7 @@ class KBucket extends AbstractBucket {
      * @param lastLookupTime
      * @see getLastLookupTime
      */
+    @Override
     public void setLastLookupTime(long lastLookupTime) {
         this.lastLookupTime = lastLookupTime;
     }
@@ -87,10 +89,45 @@ class KBucket extends AbstractBucket {
      * bucket's range was last performed.
      * @return
      */
+    @Override
     public long getLastLookupTime() {
         return lastLookupTime;
     }
+    
+    @Override
+    public void setLastRefreshAttempt(long lastRefreshAttempt) {
+        this.lastRefreshAttempt = lastRefreshAttempt;
+    }
+    
+    @Override
+    public long getLastRefreshAttempt() {
+        return lastRefreshAttempt;
+    }
 
+    int getDepth() {
+        return depth;
+    }
+    
+    /**
+     * Returns a copy of the replacement cache, most recently seen peer first.
+     */
+    List<KademliaPeer> getReplacementCache() {
+        synchronized(replacementCache) {
+            return new ArrayList<KademliaPeer>(replacementCache);
+        }
+    }
+    
+    /**
+     * Fills an empty bucket with peers and replacements in the order they are given,
+     * for example when the bucket is restored from a {@link RoutingTableSnapshot}.
+     * @param peers Peers sorted most recently seen to least recently seen
+     * @param replacements Replacement peers sorted most recently seen to least recently seen
+     */
+    void restore(List<KademliaPeer> peers, List<KademliaPeer> replacements) {
+        this.peers.addAll(peers);
+        replacementCache.addAll(replacements);
+    }
+    
     /**
      * Returns <code>true</code> if the bucket needs to, AND can be split
      * so a given <code>Destination</code> can be added.
@@ -37,6 +37,9 @@ public class KademliaConstants {
     /** The amount of time after which a bucket is refreshed if a lookup hasn't been done in its ID range */
     public static final int BUCKET_REFRESH_INTERVAL = 3600 * 1000;
     
+    /** How often the routing table is written to disk, in addition to when the DHT shuts down */
+    public static final int SNAPSHOT_INTERVAL = 10 * 60 * 1000;
+    
     /** Time interval for Kademlia replication (plus or minus <code>REPLICATE_VARIANCE</code>) */
     public static final int REPLICATE_INTERVAL = 3600 * 1000;
     
@@ -57,18 +57,24 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.math.BigInteger;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import net.i2p.data.DataFormatException;
@@ -97,11 +103,22 @@ import net.i2p.util.SecureFileOutputStream;
  */
 public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
     private static final int RESPONSE_TIMEOUT = 60;   // Max. number of seconds to wait for replies to retrieve requests
+    private static final int NEIGHBOURHOOD_PREFIX_BITS = 8;   // DHT keys that have this many leading bits in common share a lookup in findDeleteAuthorizationKeys()
+    private static final int MAX_CONCURRENT_DELETION_LOOKUPS = 4;
+    private static final int LOOKUP_THREAD_STACK_SIZE = 256 * 1024;
+    private static final long LOOKUP_THREAD_KEEP_ALIVE = TimeUnit.MINUTES.toMillis(1);   // how long an idle lookup thread is kept
+    private static final int MAX_CONCURRENT_REFRESH_LOOKUPS = 4;
+    private static final long MIN_REFRESH_WAIT = TimeUnit.SECONDS.toMillis(1);   // the minimum time between two runs of refreshOldBuckets()
+    static final long REFRESH_RETRY_WAIT = TimeUnit.MINUTES.toMillis(5);   // the time before a refresh that found no peers is retried
+    private static final long MAX_REFRESH_WAIT = TimeUnit.MINUTES.toMillis(1);   // the maximum time between two checks for dead peers
     
     private Log log = new Log(KademliaDHT.class);
     private I2PSendQueue sendQueue;
     private I2PPacketDispatcher i2pReceiver;
     private File peerFile;
+    private RoutingTableSnapshot routingTableSnapshot;
+    private volatile boolean snapshotRestored;   // true if the routing table was restored from routingTableSnapshot
+    private long lastSnapshotTime;
     private DhtPeerSource externalPeerSource;
     private ReplicateThread replicateThread;   // is notified of <code>store</code> calls
     private CountDownLatch readySignal;   // switches to 0 when bootstrapping is done
@@ -109,6 +126,9 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
     private Hash localDestinationHash;
     private Set<KademliaPeer> initialPeers;
     private BucketManager bucketManager;
+    private LookupCoordinator lookupCoordinator;
+    private ThreadPoolExecutor deletionLookupExecutor;   // shared by all findDeleteAuthorizationKeys() calls
+    private ThreadPoolExecutor refreshLookupExecutor;   // used by refresh()
     private Map<Class<? extends DhtStorablePacket>, DhtStorageHandler> storageHandlers;
 
     /**
@@ -116,9 +136,10 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
      * @param sendQueue
      * @param i2pReceiver
      * @param peerFile
+     * @param routingTableFile The file the routing table is saved to and restored from
      * @param externalPeerSource Provides seedless peers
      */
-    public KademliaDHT(I2PSendQueue sendQueue, I2PPacketDispatcher i2pReceiver, File peerFile, DhtPeerSource externalPeerSource) {
+    public KademliaDHT(I2PSendQueue sendQueue, I2PPacketDispatcher i2pReceiver, File peerFile, File routingTableFile, DhtPeerSource externalPeerSource) {
         super("Kademlia");
         
         this.sendQueue = sendQueue;
@@ -143,8 +164,27 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
             log.info("Peer file doesn't exist, using built-in peers only (File not found: <" + peerFile.getAbsolutePath() + ">)");
         
         bucketManager = new BucketManager(localDestinationHash);
+        routingTableSnapshot = new RoutingTableSnapshot(routingTableFile);
+        snapshotRestored = routingTableSnapshot.read(bucketManager, localDestinationHash);
+        lastSnapshotTime = System.currentTimeMillis();
+        lookupCoordinator = new LookupCoordinator(sendQueue, bucketManager);
+        deletionLookupExecutor = createLookupExecutor(MAX_CONCURRENT_DELETION_LOOKUPS, "DelAuthLookup");
+        refreshLookupExecutor = createLookupExecutor(MAX_CONCURRENT_REFRESH_LOOKUPS, "BucketRefresh");
         storageHandlers = new ConcurrentHashMap<Class<? extends DhtStorablePacket>, DhtStorageHandler>();
-        replicateThread = new ReplicateThread(localDestination, sendQueue, i2pReceiver, bucketManager);
+        replicateThread = new ReplicateThread(localDestination, sendQueue, lookupCoordinator, bucketManager);
+    }
+    
+    /**
+     * Creates an executor for concurrent lookups that runs up to <code>numThreads</code>
+     * threads at a time and lets them die when they have been idle for a while.
+     * @param numThreads
+     * @param threadName
+     */
+    private static ThreadPoolExecutor createLookupExecutor(int numThreads, String threadName) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads, LOOKUP_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), Util.createThreadFactory(threadName, LOOKUP_THREAD_STACK_SIZE));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
     
     /**
@@ -171,14 +211,24 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
     
     /**
      * Queries the DHT for the <code>k</code> peers closest to a given key.
+     * Concurrent lookups for the same key are done only once, and the result
+     * of a recent lookup may be returned.
      * This method blocks.
-     * @see ClosestNodesLookupTask
+     * @see LookupCoordinator
      */
     private List<Destination> getClosestNodes(Hash key) throws InterruptedException {
         bucketManager.updateLastLookupTime(key);
-        
-        ClosestNodesLookupTask lookupTask = new ClosestNodesLookupTask(key, sendQueue, i2pReceiver, bucketManager);
-        return lookupTask.call();
+        return lookupCoordinator.getClosestNodes(key);
+    }
+    
+    /**
+     * Like {@link #getClosestNodes(Hash)} but always queries the network.
+     * Used for bootstrapping and refreshing buckets, which is done to find new peers.<br/>
+     * Unlike <code>getClosestNodes</code>, this method doesn't update the lookup time
+     * of any bucket; callers do that when the lookup finds peers.
+     */
+    private List<Destination> getClosestNodesUncached(Hash key) throws InterruptedException {
+        return lookupCoordinator.getClosestNodesUncached(key);
     }
 
     @Override
@@ -193,45 +243,123 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
 
     @Override
     public UniqueId findDeleteAuthorizationKey(Hash dhtKey, Hash verificationHash) throws InterruptedException {
-        final Collection<Destination> closeNodes = getClosestNodes(dhtKey);
-        log.info("Querying " + closeNodes.size() + " peers with DeletionQueries for Kademlia key " + dhtKey);
+        return findDeleteAuthorizationKeys(Collections.singletonMap(dhtKey, verificationHash)).get(dhtKey);
+    }
+    
+    /**
+     * DHT keys are grouped by their first <code>NEIGHBOURHOOD_PREFIX_BITS</code> bits.
+     * Each group needs only one closest-nodes lookup, and up to
+     * <code>MAX_CONCURRENT_DELETION_LOOKUPS</code> groups are queried at the same time.
+     */
+    @Override
+    public Map<Hash, UniqueId> findDeleteAuthorizationKeys(Map<Hash, Hash> verificationHashes) throws InterruptedException {
+        final Map<Hash, UniqueId> delAuthorizations = new ConcurrentHashMap<Hash, UniqueId>();
         
+        // check the local folder first and group the remaining keys by neighbourhood
         DhtStorageHandler storageHandler = storageHandlers.get(EncryptedEmailPacket.class);
-        if (storageHandler instanceof DeletionAwareDhtFolder) {
-            DeletionAwareDhtFolder<?> folder = (DeletionAwareDhtFolder<?>)storageHandler;
-            UniqueId delAuthorization = folder.getDeleteAuthorization(dhtKey);
-            if (delAuthorization != null)
-                return delAuthorization;
-        }
+        DeletionAwareDhtFolder<?> folder = null;
+        if (storageHandler instanceof DeletionAwareDhtFolder)
+            folder = (DeletionAwareDhtFolder<?>)storageHandler;
         else
             log.error("StorageHandler for EncryptedEmailPackets is not a DeletionAwareDhtFolder!");
+        Map<Integer, Map<Hash, Hash>> neighbourhoods = new HashMap<Integer, Map<Hash, Hash>>();
+        for (Entry<Hash, Hash> entry: verificationHashes.entrySet()) {
+            Hash dhtKey = entry.getKey();
+            UniqueId delAuthorization = folder==null ? null : folder.getDeleteAuthorization(dhtKey);
+            if (delAuthorization != null) {
+                delAuthorizations.put(dhtKey, delAuthorization);
+                continue;
+            }
+            int neighbourhood = (dhtKey.getData()[0]&0xFF) >> (8-NEIGHBOURHOOD_PREFIX_BITS);
+            Map<Hash, Hash> keys = neighbourhoods.get(neighbourhood);
+            if (keys == null) {
+                keys = new HashMap<Hash, Hash>();
+                neighbourhoods.put(neighbourhood, keys);
+            }
+            keys.put(dhtKey, entry.getValue());
+        }
         
-        // Send the DeletionQueries
-        PacketBatch batch = new PacketBatch();
-        for (Destination node: closeNodes)
-            if (!localDestination.equals(node))   // local has already been taken care of
-                batch.putPacket(new DeletionQuery(dhtKey), node);
-        sendQueue.send(batch);
-        batch.awaitSendCompletion();
-
-        // wait for replies
-        batch.awaitFirstReply(RESPONSE_TIMEOUT, TimeUnit.SECONDS);
-        log.info(batch.getResponses().size() + " response packets received for deletion query for hash " + dhtKey);
+        if (neighbourhoods.size() == 1)
+            findDeleteAuthorizationKeys(neighbourhoods.values().iterator().next(), delAuthorizations);
+        else if (neighbourhoods.size() > 1) {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            try {
+                for (final Map<Hash, Hash> keys: neighbourhoods.values())
+                    results.add(deletionLookupExecutor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws InterruptedException {
+                            findDeleteAuthorizationKeys(keys, delAuthorizations);
+                            return null;
+                        }
+                    }));
+                for (Future<Void> result: results)
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        log.error("Error looking up Delete Authorizations", e.getCause());
+                    }
+            } finally {
+                // stop lookups that are still running if the caller was interrupted
+                for (Future<Void> result: results)
+                    result.cancel(true);
+            }
+        }
         
-        sendQueue.remove(batch);
+        return delAuthorizations;
+    }
+    
+    /**
+     * Sends DeletionQueries for a group of DHT keys that are close to each other,
+     * using the closest nodes of one of the keys.
+     * @param verificationHashes Maps DHT keys to verification hashes
+     * @param delAuthorizations Valid Delete Authorizations are added to this <code>Map</code>
+     * @throws InterruptedException
+     */
+    private void findDeleteAuthorizationKeys(Map<Hash, Hash> verificationHashes, Map<Hash, UniqueId> delAuthorizations) throws InterruptedException {
+        Hash firstKey = verificationHashes.keySet().iterator().next();
+        final Collection<Destination> closeNodes = getClosestNodes(firstKey);
+        log.info("Querying " + closeNodes.size() + " peers with DeletionQueries for " + verificationHashes.size() + " Kademlia keys near " + firstKey);
         
-        Map<Destination, DataPacket> responses = batch.getResponses();
-        for (DataPacket response: responses.values())
-            if (response instanceof DeletionInfoPacket) {
-                DeletionInfoPacket delInfo = (DeletionInfoPacket)response;
-                DeletionRecord delRecord = delInfo.getEntry(dhtKey);
-                if (delRecord != null) {
-                    boolean valid = Util.isDeleteAuthorizationValid(verificationHash, delRecord.delAuthorization);
-                    if (valid)
-                        return delRecord.delAuthorization;
-                }
+        // Send the DeletionQueries. Batches only keep one response per peer, so use one batch per key.
+        Map<Hash, PacketBatch> batches = new HashMap<Hash, PacketBatch>();
+        for (Hash dhtKey: verificationHashes.keySet()) {
+            PacketBatch batch = new PacketBatch();
+            for (Destination node: closeNodes)
+                if (!localDestination.equals(node))   // local has already been taken care of
+                    batch.putPacket(new DeletionQuery(dhtKey), node);
+            sendQueue.send(batch);
+            batches.put(dhtKey, batch);
+        }
+        
+        try {
+            // wait for replies
+            long endTime = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RESPONSE_TIMEOUT);
+            for (PacketBatch batch: batches.values()) {
+                batch.awaitSendCompletion();
+                batch.awaitFirstReply(Math.max(0, endTime-System.currentTimeMillis()), TimeUnit.MILLISECONDS);
             }
-        return null;
+        } finally {
+            for (PacketBatch batch: batches.values())
+                sendQueue.remove(batch);
+        }
+        
+        for (Entry<Hash, PacketBatch> entry: batches.entrySet()) {
+            Hash dhtKey = entry.getKey();
+            Map<Destination, DataPacket> responses = entry.getValue().getResponses();
+            log.debug(responses.size() + " response packets received for deletion query for hash " + dhtKey);
+            for (DataPacket response: responses.values())
+                if (response instanceof DeletionInfoPacket) {
+                    DeletionInfoPacket delInfo = (DeletionInfoPacket)response;
+                    DeletionRecord delRecord = delInfo.getEntry(dhtKey);
+                    if (delRecord != null) {
+                        boolean valid = Util.isDeleteAuthorizationValid(verificationHashes.get(dhtKey), delRecord.delAuthorization);
+                        if (valid) {
+                            delAuthorizations.put(dhtKey, delRecord.delAuthorization);
+                            break;
+                        }
+                    }
+                }
+        }
     }
     
     @Override
@@ -390,6 +518,21 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
         outerLoop:
             while (!Thread.interrupted())
                 try {
+                    // if the routing table was restored from a snapshot, try the restored peers first
+                    if (snapshotRestored) {
+                        snapshotRestored = false;
+                        if (bucketManager.getUnlockedPeerCount() > 0) {
+                            Collection<Destination> closestNodes = getClosestNodesUncached(localDestinationHash);
+                            if (!closestNodes.isEmpty()) {
+                                bucketManager.updateLastLookupTime(localDestinationHash);
+                                log.info("Bootstrapped off the restored routing table. Number of peers = " + bucketManager.getPeerCount());
+                                break outerLoop;   // stale buckets are refreshed by refreshOldBuckets()
+                            }
+                            log.info("No response from restored peers, bootstrapping from known peers.");
+                        }
+                    }
+                    
+
                     // add any known seedless peers
                     if (externalPeerSource != null)
                         for (Destination destination: externalPeerSource.getPeers())
@@ -400,13 +543,14 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
                         bootstrapNode.responseReceived();   // unlock the peer so ClosestNodesLookupTask will give it a chance
                         bucketManager.addOrUpdate(bootstrapNode);
                         log.info("Trying " + Util.toBase32(bootstrapNode) + " for bootstrapping.");
-                        Collection<Destination> closestNodes = getClosestNodes(localDestinationHash);
+                        Collection<Destination> closestNodes = getClosestNodesUncached(localDestinationHash);
                         
                         if (closestNodes.isEmpty()) {
                             log.info("No response from bootstrap node " + Util.toBase32(bootstrapNode));
                             bucketManager.remove(bootstrapNode);
                         }
                         else {
+                            bucketManager.updateLastLookupTime(localDestinationHash);
                             log.info("Response from bootstrap node received, refreshing all buckets. Bootstrap node = " + Util.toBase32(bootstrapNode));
                             refreshAll();
                             log.info("Bootstrapping finished. Number of peers = " + bucketManager.getPeerCount());
@@ -448,22 +592,26 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
      * @throws InterruptedException 
      */
     private void refreshAll() throws InterruptedException {
+        Map<Hash, RefreshTarget> targets = new HashMap<Hash, RefreshTarget>();
         for (KBucket bucket: Util.synchronizedCopy(bucketManager))
-            refresh(bucket);
+            targets.put(createRefreshKey(bucket), bucket);
+        refresh(targets);
     }
     
     /**
-     * Refreshes all buckets whose <code>lastLookupTime</code> is too old.
+     * Refreshes all buckets whose <code>lastLookupTime</code> is too old, except those
+     * whose last refresh found no peers less than <code>REFRESH_RETRY_WAIT</code> ago.
      * @throws InterruptedException 
      */
-    private void refreshOldBuckets() throws InterruptedException {
+    void refreshOldBuckets() throws InterruptedException {
         long now = System.currentTimeMillis();
+        Map<Hash, RefreshTarget> targets = new HashMap<Hash, RefreshTarget>();
         
         // refresh k-buckets
         for (KBucket bucket: Util.synchronizedCopy(bucketManager))
-            if (now > bucket.getLastLookupTime() + KademliaConstants.BUCKET_REFRESH_INTERVAL) {
+            if (now > getNextRefreshTime(bucket)) {
                 log.info("Refreshing k-bucket: " + bucket);
-                refresh(bucket);
+                targets.put(createRefreshKey(bucket), bucket);
             }
         
         // Refresh the s-bucket by doing a lookup for a random key in each section of the bucket.
@@ -475,45 +623,101 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
         BucketSection[] sections = sBucket.getSections();
         for (int i=0; i<sections.length; i++) {
             BucketSection section = sections[i];
-            if (now > section.getLastLookupTime() + KademliaConstants.BUCKET_REFRESH_INTERVAL) {
+            if (now > getNextRefreshTime(section)) {
                 log.info("Refreshing s-bucket section " + i + " of " + sections.length + " (last refresh: " + new Date(section.getLastLookupTime()) + ")");
-                refresh(section);
+                targets.put(createRefreshKey(section), section);
             }
         }
+        
+        refresh(targets);
     }
     
-    private void refresh(KBucket bucket) throws InterruptedException {
-        Hash key = createRandomHash(bucket.getStartId(), bucket.getEndId());
-        getClosestNodes(key);
+    /**
+     * Returns the earliest time at which a k-bucket or s-bucket section will be due
+     * for a refresh.
+     */
+    long getNextRefreshTime() {
+        long nextRefreshTime = Long.MAX_VALUE;
+        for (KBucket bucket: Util.synchronizedCopy(bucketManager))
+            nextRefreshTime = Math.min(nextRefreshTime, getNextRefreshTime(bucket));
+        for (BucketSection section: bucketManager.getSBucket().getSections())
+            nextRefreshTime = Math.min(nextRefreshTime, getNextRefreshTime(section));
+        return nextRefreshTime;
     }
-
-    private void refresh(BucketSection section) throws InterruptedException {
-        Hash key = createRandomHash(section.getStart(), section.getEnd());
-        getClosestNodes(key);
+    
+    /**
+     * Returns the time at which a k-bucket or s-bucket section is due for a refresh.
+     * If the last refresh didn't find any peers, it is retried after <code>REFRESH_RETRY_WAIT</code>.
+     */
+    private long getNextRefreshTime(RefreshTarget target) {
+        return Math.max(target.getLastLookupTime() + KademliaConstants.BUCKET_REFRESH_INTERVAL,
+                target.getLastRefreshAttempt() + REFRESH_RETRY_WAIT);
+    }
+    
+    /** Returns a random key in a k-bucket's range. */
+    private Hash createRefreshKey(KBucket bucket) {
+        return KademliaUtil.createRandomHash(bucket.getStartId(), bucket.getEndId(), RandomSource.getInstance());
     }
 
+    /** Returns a random key in a s-bucket section. */
+    private Hash createRefreshKey(BucketSection section) {
+        return KademliaUtil.createRandomHash(section.getStart(), section.getEnd(), RandomSource.getInstance());
+    }
+    
     /**
-     * Returns a random value <code>r</code> such that <code>min &lt;= r &lt; max</code>.
-     * @param min
-     * @param max
+     * Does a closest nodes lookup for each key, up to <code>MAX_CONCURRENT_REFRESH_LOOKUPS</code>
+     * at a time, and waits for all lookups to finish.<br/>
+     * The <code>lastLookupTime</code> of a target is only updated if its lookup finds peers,
+     * so a target whose lookup fails, for example during a network outage, is retried
+     * after <code>REFRESH_RETRY_WAIT</code> rather than <code>BUCKET_REFRESH_INTERVAL</code>.
+     * The target has to be updated explicitly because a key can't be inside a s-bucket
+     * section of zero length.
+     * @param targets Maps lookup keys to the k-buckets and s-bucket sections they refresh
+     * @throws InterruptedException
      */
-    private Hash createRandomHash(BigInteger min, BigInteger max) {
-        BigInteger hashValue;
-        if (min.compareTo(max) >= 0)
-            hashValue = min;
-        else {
-            hashValue = new BigInteger(Hash.HASH_LENGTH*8, RandomSource.getInstance());   // a random number between 0 and 2^256-1
-            hashValue = min.add(hashValue.mod(max.subtract(min)));   // a random number equal to or greater than min, and less than max
+    private void refresh(Map<Hash, RefreshTarget> targets) throws InterruptedException {
+        if (targets.isEmpty())
+            return;
+        
+        long attemptTime = System.currentTimeMillis();
+        for (RefreshTarget target: targets.values())
+            target.setLastRefreshAttempt(attemptTime);
+        
+        if (targets.size() == 1) {
+            Entry<Hash, RefreshTarget> target = targets.entrySet().iterator().next();
+            refresh(target.getKey(), target.getValue());
+            return;
         }
-        byte[] hashArray = hashValue.toByteArray();
-        if (hashArray.length>Hash.HASH_LENGTH+1 || (hashArray.length==Hash.HASH_LENGTH+1 && hashArray[0]!=0))   // it's okay for the array length to be Hash.HASH_LENGTH if the zeroth byte only contains the sign bit
-            log.error("Hash value too big to fit in " + Hash.HASH_LENGTH + " bytes: " + hashValue);
-        byte[] hashArrayPadded = new byte[Hash.HASH_LENGTH];
-        if (hashArray.length == Hash.HASH_LENGTH + 1)
-            System.arraycopy(hashArray, 1, hashArrayPadded, 0, Hash.HASH_LENGTH);
+        
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        try {
+            for (final Entry<Hash, RefreshTarget> target: targets.entrySet())
+                results.add(refreshLookupExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        refresh(target.getKey(), target.getValue());
+                        return null;
+                    }
+                }));
+            for (Future<Void> result: results)
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    log.error("Error refreshing bucket", e.getCause());
+                }
+        } finally {
+            // stop lookups that are still running if the DHT thread was interrupted
+            for (Future<Void> result: results)
+                result.cancel(true);
+        }
+    }
+    
+    /** Does a lookup for a refresh key, and updates the target's <code>lastLookupTime</code> if peers were found. */
+    private void refresh(Hash key, RefreshTarget target) throws InterruptedException {
+        if (!getClosestNodesUncached(key).isEmpty())
+            target.setLastLookupTime(System.currentTimeMillis());
         else
-            System.arraycopy(hashArray, 0, hashArrayPadded, Hash.HASH_LENGTH-hashArray.length, hashArray.length);
-        return new Hash(hashArrayPadded);
+            log.debug("Refresh lookup for key " + key + " found no peers, retrying in " + TimeUnit.MILLISECONDS.toMinutes(REFRESH_RETRY_WAIT) + " minutes.");
     }
     
     /**
@@ -630,7 +834,8 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
             }
         }
         
-        // bucketManager is not registered as a PacketListener, so notify it here
+        // bucketManager and lookupCoordinator are not registered as PacketListeners, so notify them here
+        lookupCoordinator.packetReceived(packet, sender, receiveTime);
         bucketManager.packetReceived(packet, sender, receiveTime);
     }
     
@@ -672,7 +877,15 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
                     bootstrap();
                 }
                 refreshOldBuckets();
-                TimeUnit.MINUTES.sleep(1);
+                if (System.currentTimeMillis() > lastSnapshotTime + KademliaConstants.SNAPSHOT_INTERVAL) {
+                    routingTableSnapshot.write(bucketManager, localDestinationHash);
+                    lastSnapshotTime = System.currentTimeMillis();
+                }
+                
+                // wait until the next bucket is due, but check for dead peers at least once a minute
+                long waitTime = getNextRefreshTime() - System.currentTimeMillis();
+                waitTime = Math.max(MIN_REFRESH_WAIT, Math.min(waitTime, MAX_REFRESH_WAIT));
+                TimeUnit.MILLISECONDS.sleep(waitTime);
             } catch (InterruptedException e) {
                 break;
             } catch (RuntimeException e) {   // catch unexpected exceptions to keep the thread running
@@ -681,8 +894,11 @@ public class KademliaDHT extends I2PAppThread implements DHT, PacketListener {
         }
         
         replicateThread.interrupt();
+        deletionLookupExecutor.shutdownNow();
+        refreshLookupExecutor.shutdownNow();
         i2pReceiver.removePacketListener(this);
         writePeersSorted(peerFile);
+        routingTableSnapshot.write(bucketManager, localDestinationHash);
         log.debug("KademliaDHT thread exiting.");
     }
 }
@@ -94,4 +94,19 @@ class KademliaPeer extends Destination {
         consecutiveTimeouts = 0;
         lockedUntil = 0;
     }
+    
+    long getLockedUntil() {
+        return lockedUntil;
+    }
+    
+    /**
+     * Sets the number of consecutive timeouts and the lock expiration time,
+     * for example when a peer is restored from a {@link RoutingTableSnapshot}.
+     * @param consecutiveTimeouts
+     * @param lockedUntil Milliseconds since Jan 1, 1970
+     */
+    synchronized void setLockState(int consecutiveTimeouts, long lockedUntil) {
+        this.consecutiveTimeouts = consecutiveTimeouts;
+        this.lockedUntil = lockedUntil;
+    }
 }
\ No newline at end of file
@@ -22,6 +22,7 @@
 package i2p.bote.network.kademlia;
 
 import java.math.BigInteger;
+import java.util.Random;
 
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
@@ -40,4 +41,42 @@ class KademliaUtil {
         byte[] xoredData = DataHelper.xor(key1.getData(), key2.getData());
         return new BigInteger(1, xoredData);
     }
+    
+    /**
+     * Returns a random hash <code>h</code> such that <code>min &lt;= h &lt; max</code>,
+     * or <code>min</code> if <code>min &gt;= max</code>.<br/>
+     * Random numbers with as many bits as the width of the range are drawn until one
+     * fits, which takes less than two tries on average and, unlike reducing a 256-bit
+     * random number modulo the width, gives every key in the range the same probability.
+     * @param min
+     * @param max
+     * @param random
+     */
+    static Hash createRandomHash(BigInteger min, BigInteger max, Random random) {
+        BigInteger value;
+        if (min.compareTo(max) >= 0)
+            value = min;
+        else {
+            BigInteger width = max.subtract(min);
+            int numBits = width.bitLength();
+            BigInteger offset;
+            do {
+                offset = new BigInteger(numBits, random);
+            } while (offset.compareTo(width) >= 0);
+            value = min.add(offset);
+        }
+        return toHash(value);
+    }
+    
+    /**
+     * Converts a number between 0 and 2<sup>256</sup>-1 to a {@link Hash}.
+     * @param value
+     */
+    static Hash toHash(BigInteger value) {
+        byte[] bytes = value.toByteArray();   // may contain an extra leading byte for the sign bit
+        byte[] hashBytes = new byte[Hash.HASH_LENGTH];
+        int length = Math.min(bytes.length, Hash.HASH_LENGTH);
+        System.arraycopy(bytes, bytes.length-length, hashBytes, Hash.HASH_LENGTH-length, length);
+        return new Hash(hashBytes);
+    }
 }
\ No newline at end of file
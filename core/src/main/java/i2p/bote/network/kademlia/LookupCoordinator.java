@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network.kademlia;
+
+import i2p.bote.UniqueId;
+import i2p.bote.network.I2PSendQueue;
+import i2p.bote.network.PacketListener;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.MalformedCommunicationPacket;
+import i2p.bote.packet.ResponsePacket;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+import net.i2p.util.Log;
+
+/**
+ * Runs {@link ClosestNodesLookupTask}s on behalf of {@link KademliaDHT} and {@link ReplicateThread}.
+ * <ul>
+ *   <li/>If a lookup is requested for a key that is already being looked up, the caller
+ *        waits for the running lookup instead of starting another one.
+ *   <li/>Results of recent lookups are kept for <code>RESULT_TTL</code> and returned
+ *        to callers that allow cached results.
+ *   <li/>Responses to <code>FindClosePeersPacket</code>s are routed to the lookup that
+ *        sent the request by packet ID, so each lookup only sees its own responses.
+ *        The <code>LookupCoordinator</code> must be notified of all incoming packets
+ *        through {@link #packetReceived(CommunicationPacket, Destination, long)}.
+ * </ul>
+ * This class is thread-safe.
+ */
+class LookupCoordinator implements PacketListener {
+    static final long RESULT_TTL = TimeUnit.SECONDS.toMillis(30);
+    private static final int MAX_CACHED_RESULTS = 64;
+    
+    private Log log = new Log(LookupCoordinator.class);
+    private I2PSendQueue sendQueue;
+    private BucketManager bucketManager;
+    private ConcurrentMap<Hash, FutureTask<List<Destination>>> runningLookups;
+    private Map<Hash, CachedResult> resultCache;   // least recently used first
+    private Map<UniqueId, PacketListener> pendingRequests;   // maps request packet IDs to the lookups that sent them
+    
+    LookupCoordinator(I2PSendQueue sendQueue, BucketManager bucketManager) {
+        this.sendQueue = sendQueue;
+        this.bucketManager = bucketManager;
+        runningLookups = new ConcurrentHashMap<Hash, FutureTask<List<Destination>>>();
+        resultCache = new LinkedHashMap<Hash, CachedResult>(16, 0.75f, true) {
+            private static final long serialVersionUID = -8121870435962528391L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Hash, CachedResult> eldest) {
+                return size() > MAX_CACHED_RESULTS;
+            }
+        };
+        pendingRequests = new ConcurrentHashMap<UniqueId, PacketListener>();
+    }
+    
+    /**
+     * Returns the <code>k</code> peers closest to a key. A recent result is returned if
+     * there is one; otherwise, a lookup is done or an identical running lookup is joined.
+     * This method blocks.
+     * @param key
+     * @see ClosestNodesLookupTask
+     */
+    List<Destination> getClosestNodes(Hash key) throws InterruptedException {
+        List<Destination> cachedResult = getCachedResult(key);
+        if (cachedResult != null) {
+            log.debug("Using cached lookup result for key " + key);
+            return cachedResult;
+        }
+        return lookup(key);
+    }
+    
+    /**
+     * Like {@link #getClosestNodes(Hash)} but never uses cached results, so the
+     * network is always queried. Running lookups for the same key are still joined.
+     * This is for lookups that are done to discover peers, like bucket refreshes.
+     * @param key
+     */
+    List<Destination> getClosestNodesUncached(Hash key) throws InterruptedException {
+        return lookup(key);
+    }
+    
+    private List<Destination> lookup(final Hash key) throws InterruptedException {
+        while (true) {
+            FutureTask<List<Destination>> lookup = new FutureTask<List<Destination>>(new Callable<List<Destination>>() {
+                @Override
+                public List<Destination> call() throws InterruptedException {
+                    return new ClosestNodesLookupTask(key, sendQueue, LookupCoordinator.this, bucketManager).call();
+                }
+            });
+            FutureTask<List<Destination>> runningLookup = runningLookups.putIfAbsent(key, lookup);
+            if (runningLookup == null) {
+                // no lookup is running for the key, so do it in this thread
+                try {
+                    lookup.run();
+                }
+                finally {
+                    runningLookups.remove(key, lookup);
+                }
+                List<Destination> result = getResult(lookup);
+                if (result == null)
+                    throw new InterruptedException("Lookup interrupted for key " + key);
+                if (!result.isEmpty() && !Thread.currentThread().isInterrupted())   // partial results from an interrupted lookup aren't cached
+                    putCachedResult(key, result);
+                return new ArrayList<Destination>(result);
+            }
+            else {
+                log.debug("Joining running lookup for key " + key);
+                List<Destination> result = getResult(runningLookup);
+                if (result != null)
+                    return new ArrayList<Destination>(result);
+                // the other lookup was interrupted, so try again
+            }
+        }
+    }
+    
+    /**
+     * Returns the result of a lookup, or <code>null</code> if the lookup was interrupted.
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    private List<Destination> getResult(FutureTask<List<Destination>> lookup) throws InterruptedException {
+        try {
+            return lookup.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException)
+                return null;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new IllegalStateException("Unexpected exception in lookup", cause);
+        }
+    }
+    
+    private synchronized List<Destination> getCachedResult(Hash key) {
+        CachedResult cachedResult = resultCache.get(key);
+        if (cachedResult == null)
+            return null;
+        if (System.currentTimeMillis() > cachedResult.time + RESULT_TTL) {
+            resultCache.remove(key);
+            return null;
+        }
+        return new ArrayList<Destination>(cachedResult.peers);
+    }
+    
+    private synchronized void putCachedResult(Hash key, List<Destination> peers) {
+        resultCache.put(key, new CachedResult(peers));
+    }
+    
+    /**
+     * Routes responses to a request to a <code>PacketListener</code>.
+     * @param requestId The packet ID of the request
+     * @param listener
+     */
+    void addPendingRequest(UniqueId requestId, PacketListener listener) {
+        pendingRequests.put(requestId, listener);
+    }
+    
+    void removePendingRequest(UniqueId requestId) {
+        pendingRequests.remove(requestId);
+    }
+    
+    /** Returns the number of requests that are waiting for a response */
+    int getNumPendingRequests() {
+        return pendingRequests.size();
+    }
+    
+    @Override
+    public void packetReceived(CommunicationPacket packet, Destination sender, long receiveTime) {
+        if (packet instanceof ResponsePacket) {
+            PacketListener listener = pendingRequests.get(packet.getPacketId());
+            if (listener != null)
+                listener.packetReceived(packet, sender, receiveTime);
+        }
+        else if (packet instanceof MalformedCommunicationPacket) {
+            // it is not possible to tell which request a malformed packet responds to, so notify all lookups
+            Set<PacketListener> listeners = new HashSet<PacketListener>(pendingRequests.values());
+            for (PacketListener listener: listeners)
+                listener.packetReceived(packet, sender, receiveTime);
+        }
+    }
+    
+    private static class CachedResult {
+        List<Destination> peers;
+        long time;
+        
+        CachedResult(List<Destination> peers) {
+            this.peers = new ArrayList<Destination>(peers);
+            time = System.currentTimeMillis();
+        }
+    }
+}
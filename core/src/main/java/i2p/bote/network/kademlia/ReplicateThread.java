@@ -24,7 +24,6 @@ package i2p.bote.network.kademlia;
 import static i2p.bote.network.kademlia.KademliaConstants.REPLICATE_INTERVAL;
 import static i2p.bote.network.kademlia.KademliaConstants.REPLICATE_VARIANCE;
 import i2p.bote.network.DhtStorageHandler;
-import i2p.bote.network.I2PPacketDispatcher;
 import i2p.bote.network.I2PSendQueue;
 import i2p.bote.network.PacketListener;
 import i2p.bote.packet.CommunicationPacket;
@@ -74,7 +73,7 @@ class ReplicateThread extends I2PAppThread implements PacketListener {
     private final Log log = new Log(ReplicateThread.class);
     private Destination localDestination;
     private I2PSendQueue sendQueue;
-    private I2PPacketDispatcher i2pReceiver;
+    private LookupCoordinator lookupCoordinator;
     private BucketManager bucketManager;
     private Random rng;
     private long nextReplicationTime;
@@ -84,11 +83,11 @@ class ReplicateThread extends I2PAppThread implements PacketListener {
                                                                // to be replicated instead of the DHT item.
     private volatile boolean replicationRunning;   // true when replication is active
 
-    ReplicateThread(Destination localDestination, I2PSendQueue sendQueue, I2PPacketDispatcher i2pReceiver, BucketManager bucketManager) {
+    ReplicateThread(Destination localDestination, I2PSendQueue sendQueue, LookupCoordinator lookupCoordinator, BucketManager bucketManager) {
         super("ReplicateThd");
         this.localDestination = localDestination;
         this.sendQueue = sendQueue;
-        this.i2pReceiver = i2pReceiver;
+        this.lookupCoordinator = lookupCoordinator;
         this.bucketManager = bucketManager;
         rng = new Random();
         dhtStores = new ConcurrentHashSet<DhtStorageHandler>();
@@ -112,8 +111,7 @@ class ReplicateThread extends I2PAppThread implements PacketListener {
         
         replicationRunning = true;
         // refresh peers close to the local destination
-        ClosestNodesLookupTask lookupTask = new ClosestNodesLookupTask(localDestination.calculateHash(), sendQueue, i2pReceiver, bucketManager);
-        List<Destination> closestNodes = lookupTask.call();
+        List<Destination> closestNodes = lookupCoordinator.getClosestNodesUncached(localDestination.calculateHash());
         closestNodes.remove(localDestination);
 
         int numReplicated = 0;
@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network.kademlia;
+
+import i2p.bote.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.i2p.data.DataFormatException;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ * Saves and restores the contents of a {@link BucketManager}, so the DHT doesn't
+ * have to rebuild its routing table from scratch every time it is started.
+ * <p/>
+ * Unlike the peer file, which only lists destinations, the snapshot contains the
+ * k-bucket ranges, the order of peers within each bucket, the replacement caches,
+ * the sibling list, the last lookup time of each bucket and s-bucket section, and
+ * the "first seen" time and lock state of every peer.
+ * <p/>
+ * File format (all numbers are big-endian):
+ * <pre>
+ * Field                Length  Notes
+ * -----------------------------------------------------------------------------
+ * Format version       1       FORMAT_VERSION
+ * Local dest. hash     32      A snapshot is only restored for the same local destination
+ * Snapshot time        8       Milliseconds since Jan 1, 1970
+ * # of k-buckets       2
+ *   Start ID           32      Unsigned
+ *   End ID             32      Unsigned
+ *   Depth              2
+ *   Last lookup time   8
+ *   Peers              var     Peer list, see below
+ *   Replacements       var     Peer list
+ * Siblings             var     Peer list
+ * # of sections        1
+ *   Last lookup time   8       One per s-bucket section
+ *
+ * Peer list:
+ * # of peers           2
+ *   Destination length 2
+ *   Destination        var
+ *   First seen         8
+ *   Consec. timeouts   2
+ *   Locked until       8
+ * </pre>
+ * The file is written to a temporary file first, which then replaces the old
+ * snapshot.
+ */
+class RoutingTableSnapshot {
+    static final int FORMAT_VERSION = 1;
+    private static final int ID_LENGTH = Hash.HASH_LENGTH;
+    private static final int MAX_BUCKETS = ID_LENGTH * 8 + 1;
+    private static final int MAX_PEERS_PER_LIST = 10000;
+    private static final int MAX_DESTINATION_LENGTH = 1024;
+    
+    private Log log = new Log(RoutingTableSnapshot.class);
+    private File file;
+    private File tempFile;
+    
+    RoutingTableSnapshot(File file) {
+        this.file = file;
+        tempFile = new File(file.getAbsolutePath() + ".tmp");
+    }
+    
+    /**
+     * Writes the contents of a <code>BucketManager</code> to the snapshot file.
+     * @param bucketManager
+     * @param localDestinationHash
+     * @return <code>true</code> if the snapshot was written successfully
+     */
+    synchronized boolean write(BucketManager bucketManager, Hash localDestinationHash) {
+        // don't replace a good snapshot with an empty routing table, for example if the DHT never bootstrapped
+        if (bucketManager.getPeerCount() == 0)
+            return false;
+        
+        long startTime = System.currentTimeMillis();
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new SecureFileOutputStream(tempFile.getAbsolutePath())));
+            outputStream.writeByte(FORMAT_VERSION);
+            outputStream.write(localDestinationHash.getData());
+            outputStream.writeLong(System.currentTimeMillis());
+            
+            List<KBucket> kBuckets = new ArrayList<KBucket>();
+            for (KBucket bucket: Util.synchronizedCopy(bucketManager))
+                kBuckets.add(bucket);
+            outputStream.writeShort(kBuckets.size());
+            for (KBucket bucket: kBuckets) {
+                outputStream.write(KademliaUtil.toHash(bucket.getStartId()).getData());
+                outputStream.write(KademliaUtil.toHash(bucket.getEndId()).getData());
+                outputStream.writeShort(bucket.getDepth());
+                outputStream.writeLong(bucket.getLastLookupTime());
+                writePeers(new ArrayList<KademliaPeer>(bucket.getPeers()), outputStream);
+                writePeers(bucket.getReplacementCache(), outputStream);
+            }
+            
+            SBucket sBucket = bucketManager.getSBucket();
+            writePeers(new ArrayList<KademliaPeer>(sBucket.getPeers()), outputStream);
+            long[] sectionLookupTimes = sBucket.getLastLookupTimes();
+            outputStream.writeByte(sectionLookupTimes.length);
+            for (long time: sectionLookupTimes)
+                outputStream.writeLong(time);
+        }
+        catch (IOException e) {
+            log.error("Can't write routing table snapshot to <" + tempFile.getAbsolutePath() + ">", e);
+            return false;
+        }
+        finally {
+            if (outputStream != null)
+                try {
+                    outputStream.close();
+                }
+                catch (IOException e) {
+                    log.error("Can't close routing table snapshot file <" + tempFile.getAbsolutePath() + ">", e);
+                }
+        }
+        
+        // File.renameTo() can't overwrite on all platforms, so delete the old file first.
+        // If there is a crash in between, the temp file is used on the next start.
+        if (file.exists() && !file.delete()) {
+            log.error("Can't delete routing table snapshot: <" + file.getAbsolutePath() + ">");
+            return false;
+        }
+        if (!tempFile.renameTo(file)) {
+            log.error("Can't rename <" + tempFile.getAbsolutePath() + "> to <" + file.getAbsolutePath() + ">");
+            return false;
+        }
+        log.debug("Routing table snapshot written in " + (System.currentTimeMillis()-startTime) + " ms");
+        return true;
+    }
+    
+    private void writePeers(List<KademliaPeer> peers, DataOutputStream outputStream) throws IOException {
+        outputStream.writeShort(peers.size());
+        for (KademliaPeer peer: peers) {
+            byte[] destination = peer.toByteArray();
+            outputStream.writeShort(destination.length);
+            outputStream.write(destination);
+            outputStream.writeLong(peer.getFirstSeen());
+            outputStream.writeShort(Math.min(peer.getConsecTimeouts(), 0xFFFF));
+            outputStream.writeLong(peer.getLockedUntil());
+        }
+    }
+    
+    /**
+     * Replaces the contents of a <code>BucketManager</code> with the snapshot. If the snapshot
+     * file doesn't exist, can't be read, or belongs to a different local destination, the
+     * <code>BucketManager</code> is not changed.
+     * @param bucketManager
+     * @param localDestinationHash
+     * @return <code>true</code> if the snapshot was restored
+     */
+    synchronized boolean read(BucketManager bucketManager, Hash localDestinationHash) {
+        // if there was a crash while replacing the snapshot, use the temp file
+        if (!file.exists() && tempFile.exists() && !tempFile.renameTo(file))
+            log.error("Can't rename <" + tempFile.getAbsolutePath() + "> to <" + file.getAbsolutePath() + ">");
+        
+        if (!file.exists()) {
+            log.info("Routing table snapshot doesn't exist: <" + file.getAbsolutePath() + ">");
+            return false;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int formatVersion = inputStream.readUnsignedByte();
+            if (formatVersion != FORMAT_VERSION) {
+                log.info("Ignoring routing table snapshot with unsupported format version " + formatVersion);
+                return false;
+            }
+            byte[] snapshotDestinationHash = new byte[ID_LENGTH];
+            inputStream.readFully(snapshotDestinationHash);
+            if (!Arrays.equals(snapshotDestinationHash, localDestinationHash.getData())) {
+                log.info("Ignoring routing table snapshot for a different local destination.");
+                return false;
+            }
+            long snapshotTime = inputStream.readLong();
+            
+            int numBuckets = inputStream.readUnsignedShort();
+            if (numBuckets<1 || numBuckets>MAX_BUCKETS)
+                throw new IOException("Invalid number of k-buckets: " + numBuckets);
+            List<KBucket> kBuckets = new ArrayList<KBucket>();
+            BigInteger expectedStartId = AbstractBucket.MIN_HASH_VALUE;
+            for (int i=0; i<numBuckets; i++) {
+                BigInteger startId = readId(inputStream);
+                BigInteger endId = readId(inputStream);
+                if (!startId.equals(expectedStartId) || startId.compareTo(endId)>=0)
+                    throw new IOException("Invalid range for k-bucket " + i + ": " + startId + " - " + endId);
+                expectedStartId = endId;
+                int depth = inputStream.readUnsignedShort();
+                long lastLookupTime = inputStream.readLong();
+                KBucket bucket = new KBucket(startId, endId, depth);
+                bucket.setLastLookupTime(lastLookupTime);
+                bucket.restore(readPeers(inputStream), readPeers(inputStream));
+                kBuckets.add(bucket);
+            }
+            if (!expectedStartId.equals(AbstractBucket.MAX_HASH_VALUE))
+                throw new IOException("K-buckets don't cover the whole ID space.");
+            
+            List<KademliaPeer> siblings = readPeers(inputStream);
+            int numSections = inputStream.readUnsignedByte();
+            long[] sectionLookupTimes = new long[numSections];
+            for (int i=0; i<numSections; i++)
+                sectionLookupTimes[i] = inputStream.readLong();
+            
+            bucketManager.restore(kBuckets, siblings, sectionLookupTimes);
+            log.info("Routing table restored from snapshot taken " + (System.currentTimeMillis()-snapshotTime)/1000 + " s ago in " +
+                    (System.currentTimeMillis()-startTime) + " ms. Number of peers = " + bucketManager.getPeerCount());
+            return true;
+        }
+        catch (IOException e) {
+            log.error("Can't read routing table snapshot <" + file.getAbsolutePath() + ">", e);
+            return false;
+        }
+        catch (DataFormatException e) {
+            log.error("Invalid destination in routing table snapshot <" + file.getAbsolutePath() + ">", e);
+            return false;
+        }
+        finally {
+            if (inputStream != null)
+                try {
+                    inputStream.close();
+                }
+                catch (IOException e) {
+                    log.error("Can't close routing table snapshot file <" + file.getAbsolutePath() + ">", e);
+                }
+        }
+    }
+    
+    private List<KademliaPeer> readPeers(DataInputStream inputStream) throws IOException, DataFormatException {
+        int numPeers = inputStream.readUnsignedShort();
+        if (numPeers > MAX_PEERS_PER_LIST)
+            throw new IOException("Too many peers in list: " + numPeers);
+        List<KademliaPeer> peers = new ArrayList<KademliaPeer>();
+        for (int i=0; i<numPeers; i++) {
+            int destinationLength = inputStream.readUnsignedShort();
+            if (destinationLength > MAX_DESTINATION_LENGTH)
+                throw new IOException("Invalid destination length: " + destinationLength);
+            byte[] destinationBytes = new byte[destinationLength];
+            inputStream.readFully(destinationBytes);
+            Destination destination = new Destination();
+            destination.readBytes(destinationBytes, 0);
+            long firstSeen = inputStream.readLong();
+            int consecutiveTimeouts = inputStream.readUnsignedShort();
+            long lockedUntil = inputStream.readLong();
+            
+            KademliaPeer peer = new KademliaPeer(destination, firstSeen);
+            peer.setLockState(consecutiveTimeouts, lockedUntil);
+            peers.add(peer);
+        }
+        return peers;
+    }
+    
+    private BigInteger readId(DataInputStream inputStream) throws IOException {
+        byte[] bytes = new byte[ID_LENGTH];
+        inputStream.readFully(bytes);
+        return new BigInteger(1, bytes);
+    }
+}
@@ -22,7 +22,9 @@
 package i2p.bote.network.kademlia;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import net.i2p.data.Hash;
 import net.i2p.util.Log;
@@ -124,6 +126,43 @@ class SBucket extends AbstractBucket {
         return sections;
     }
     
+    /**
+     * Returns the time of the last lookup in each section.
+     * @see #restoreLastLookupTimes(long[])
+     */
+    long[] getLastLookupTimes() {
+        long[] times = new long[sections.length];
+        for (int i=0; i<sections.length; i++)
+            times[i] = sections[i].lastLookupTime;
+        return times;
+    }
+    
+    /**
+     * Sets the time of the last lookup in each section. If the number of sections
+     * doesn't match, nothing happens.
+     * @param times
+     */
+    void restoreLastLookupTimes(long[] times) {
+        if (times.length == sections.length)
+            for (int i=0; i<sections.length; i++)
+                sections[i].lastLookupTime = times[i];
+    }
+    
+    /**
+     * Fills an empty s-bucket with siblings, for example when the bucket is restored
+     * from a {@link RoutingTableSnapshot}. Peers that don't fit are returned.
+     * @param siblings
+     */
+    List<KademliaPeer> restore(List<KademliaPeer> siblings) {
+        List<KademliaPeer> notAdded = new ArrayList<KademliaPeer>();
+        for (KademliaPeer sibling: siblings) {
+            KademliaPeer removedOrNotAdded = addOrUpdate(sibling);
+            if (removedOrNotAdded != null)
+                notAdded.add(removedOrNotAdded);
+        }
+        return notAdded;
+    }
+    
     private BucketSection getSection(Hash key) {
         for (BucketSection section: sections)
             if (section.contains(key))
@@ -143,10 +182,11 @@ class SBucket extends AbstractBucket {
      * There are ceil(s/k) sections in the bucket.
      * A hash h is considered within a section if <code>section.start <= h < section.end</code>.
      */
-    class BucketSection {
+    class BucketSection implements RefreshTarget {
         private BigInteger start;
         private BigInteger end;
-        private long lastLookupTime;
+        private volatile long lastLookupTime;
+        private volatile long lastRefreshAttempt;
         
         private BucketSection(BigInteger start, BigInteger end, long lastLookupTime) {
             this.start = start;
@@ -154,9 +194,25 @@ class SBucket extends AbstractBucket {
             this.lastLookupTime = lastLookupTime;
         }
         
-        long getLastLookupTime() {
+        @Override
+        public long getLastLookupTime() {
             return lastLookupTime;
         }
+        
+        @Override
+        public void setLastLookupTime(long lastLookupTime) {
+            this.lastLookupTime = lastLookupTime;
+        }
+        
+        @Override
+        public long getLastRefreshAttempt() {
+            return lastRefreshAttempt;
+        }
+        
+        @Override
+        public void setLastRefreshAttempt(long lastRefreshAttempt) {
+            this.lastRefreshAttempt = lastRefreshAttempt;
+        }
 
         public BigInteger getStart() {
             return start;
@@ -27,6 +27,7 @@ import i2p.bote.crypto.KeyUpdateHandler;
 import i2p.bote.email.EmailDestination;
 import i2p.bote.email.EmailIdentity;
 import i2p.bote.email.Fingerprint;
+import i2p.bote.email.PictureSource;
 import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.packet.TypeCode;
 
@@ -58,6 +59,7 @@ public class Contact extends DhtStorablePacket {
     private Hash nameHash;   // SHA-256 hash of the UTF8-encoded name in lower case
     private EmailDestination destination;
     private byte[] picture;
+    private PictureSource pictureSource;   // non-null if the picture hasn't been loaded yet
     private String text;
     private byte[] signature;
     private Fingerprint fingerprint;
@@ -208,11 +210,21 @@ public class Contact extends DhtStorablePacket {
         return destination;
     }
     
+    public void setPicture(byte[] picture) {
+        this.picture = picture;
+        pictureSource = null;
+    }
+    
+    public byte[] getPicture() {
+        loadPictureIfNeeded();
+        return picture;
+    }
+    
     public void setPictureBase64(String pictureBase64) {
         if (pictureBase64 == null)
-            picture = null;
+            setPicture(null);
         else
-            picture = Base64.decode(pictureBase64.toCharArray());
+            setPicture(Base64.decode(pictureBase64.toCharArray()));
     }
     
     /**
@@ -220,6 +232,7 @@ public class Contact extends DhtStorablePacket {
      * (not the modified I2P encoding so the browser understands it).
      */
     public String getPictureBase64() {
+        byte[] picture = getPicture();
         if (picture == null)
             return null;
         return new String(Base64.encode(picture));
@@ -227,7 +240,37 @@ public class Contact extends DhtStorablePacket {
     
     /** @see Util#getPictureType(byte[]) */
     public String getPictureType() {
-        return Util.getPictureType(picture);
+        return Util.getPictureType(getPicture());
+    }
+    
+    /**
+     * Sets a {@link PictureSource} that the picture is loaded from the first
+     * time it is requested, replacing the current picture.
+     * @param pictureSource
+     */
+    public void setPictureSource(PictureSource pictureSource) {
+        picture = null;
+        this.pictureSource = pictureSource;
+    }
+    
+    /**
+     * Returns the {@link PictureSource} the picture will be loaded from, or
+     * <code>null</code> if the picture is in memory.
+     */
+    public PictureSource getPictureSource() {
+        return pictureSource;
+    }
+    
+    /** Loads the picture from the <code>PictureSource</code> if there is one */
+    private synchronized void loadPictureIfNeeded() {
+        if (pictureSource != null) {
+            byte[] loadedPicture = pictureSource.loadPicture();
+            // keep the source if loading failed, so the picture isn't lost when the contact is saved
+            if (loadedPicture != null) {
+                picture = loadedPicture;
+                pictureSource = null;
+            }
+        }
     }
     
     public void setText(String text) {
@@ -254,6 +297,7 @@ public class Contact extends DhtStorablePacket {
             
             dataStream.write(fingerprint.getSalt());
             
+            loadPictureIfNeeded();
             if (picture == null)
                 picture = new byte[0];
             dataStream.writeShort(picture.length);
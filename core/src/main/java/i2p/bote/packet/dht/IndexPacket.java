@@ -216,7 +216,12 @@ public class IndexPacket extends DhtStorablePacket implements Iterable<IndexPack
         return getEntry(emailPacketKey) != null;
     }
     
-    private IndexPacketEntry getEntry(Hash emailPacketKey) {
+    /**
+     * Returns the entry for an email packet DHT key, or <code>null</code>
+     * if the index packet doesn't contain the DHT key.
+     * @param emailPacketKey
+     */
+    public IndexPacketEntry getEntry(Hash emailPacketKey) {
         for (IndexPacketEntry entry: entries)
             if (entry.emailPacketKey.equals(emailPacketKey))
                 return entry;
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.packet.relay;
+
+import i2p.bote.Util;
+import i2p.bote.crypto.RelaySessionKeyManager;
+import i2p.bote.crypto.RelaySessionKeyManager.OutboundMessage;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.I2PBotePacket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.Destination;
+import net.i2p.util.Log;
+
+import com.nettgryppa.security.HashCash;
+
+/**
+ * Wraps a <code>CommunicationPacket</code> in nested {@link RelayRequest}s.<br/>
+ * Unlike nesting <code>RelayRequest</code> constructors, which serializes and
+ * copies the whole inner packet once per layer, this class serializes the payload
+ * once and then encrypts each layer in place in a single buffer that is big enough
+ * for all layers. Only the headers of the inner layers are written separately.
+ * <p/>
+ * One <code>RelayOnionEncoder</code> can be used for all redundant copies of a packet.
+ * The serialized payload is shared between copies, and so is the ElGamal/AES engine.
+ * Session keys and ElGamal blocks are never shared: every layer of every copy gets a
+ * fresh session key, because a shared key would let any relay peer that can decrypt
+ * one layer decrypt the corresponding layers of the other copies, and identical
+ * ciphertexts would make copies sent to the same peer linkable.
+ * <p/>
+ * If a {@link RelaySessionKeyManager} is given, the outermost layer, which is decrypted
+ * by the peer the packet is sent to, uses the manager's session keys and tags. All other
+ * layers always use new sessions.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class RelayOnionEncoder {
+    private static final long MAX_DELIVERY_TIME = TimeUnit.HOURS.toMillis(2);   // how long after the send time a packet may still be delivered
+    
+    private Log log = new Log(RelayOnionEncoder.class);
+    private byte[] payload;
+    private RelaySessionKeyManager sessionKeyManager;
+
+    /**
+     * @param payload The packet to relay
+     */
+    public RelayOnionEncoder(CommunicationPacket payload) {
+        this(payload, null);
+    }
+    
+    /**
+     * @param payload The packet to relay
+     * @param sessionKeyManager For encrypting the outermost layer; can be <code>null</code>
+     */
+    public RelayOnionEncoder(CommunicationPacket payload, RelaySessionKeyManager sessionKeyManager) {
+        this.payload = payload.toByteArray();
+        this.sessionKeyManager = sessionKeyManager;
+    }
+    
+    /**
+     * Creates a <code>RelayRequest</code> that is sent through a given list of relay peers.
+     * The payload is padded so the <code>RelayRequest</code> has the maximum datagram size.<br/>
+     * Returns <code>null</code> if <code>relayPeers</code> is empty.
+     * @param relayPeers The relay peers, starting with the last one (the exit node)
+     * @param minDelay The minimum delay in milliseconds
+     * @param maxDelay The maximum delay in milliseconds
+     * @param hashCashStrength The number of leading zero bits in each HashCash stamp
+     * @param returnChain A return chain for the exit node, or an empty one
+     */
+    public RelayRequest encode(List<Destination> relayPeers, long minDelay, long maxDelay, int hashCashStrength, ReturnChain returnChain) {
+        int numHops = relayPeers.size();
+        if (numHops == 0)
+            return null;
+        if (log.shouldLog(Log.DEBUG))
+            log.debug(getDebugString(relayPeers, returnChain));
+        
+        // calculate the number of pad bytes necessary to pad the payload to the maximum size possible
+        int maxSize = I2PBotePacket.MAX_DATAGRAM_SIZE - RelayRequest.getMaxOverhead(numHops) - returnChain.getSize();
+        int padBytes = Math.max(0, maxSize - payload.length);
+        
+        // Leave room for numHops encryption prefixes and numHops-1 RelayRequest headers in front of
+        // the payload, and for the pad bytes and numHops blocks of AES padding behind it.
+        ReturnChain emptyReturnChain = new ReturnChain();
+        int outerPrefixLength = Util.getEncryptionPrefixLength(false, RelaySessionKeyManager.TAGS_PER_DELIVERY);
+        int headRoom = (numHops-1)*Util.ENCRYPTION_PREFIX_LENGTH + outerPrefixLength + (numHops-1)*(RelayRequest.MAX_PREFIX_LENGTH+emptyReturnChain.getSize()) + returnChain.getSize();
+        int tailRoom = padBytes + numHops*16;
+        byte[] buffer = new byte[headRoom + payload.length + tailRoom];
+        System.arraycopy(payload, 0, buffer, headRoom, payload.length);
+        
+        // [start, start+length) is the innermost packet that hasn't been encrypted yet
+        int start = headRoom;
+        int length = payload.length;
+        for (int i=0; i<numHops; i++) {
+            Destination relayPeer = relayPeers.get(i);
+            long delay = RelayRequest.getRandomDelay(minDelay, maxDelay);
+            boolean outermost = i == numHops-1;
+            OutboundMessage message = null;
+            if (outermost && sessionKeyManager!=null) {
+                // allow for retries after the send time
+                long deadline = System.currentTimeMillis() + delay + MAX_DELIVERY_TIME;
+                message = sessionKeyManager.prepareMessage(relayPeer.getPublicKey(), deadline);
+                int dataOffset = start;
+                length = Util.encryptInPlace(buffer, start, length, message);
+                start = dataOffset - Util.getEncryptionPrefixLength(message.getCurrentTag()!=null, message.getTagsForDelivery().size());
+            }
+            else {
+                length = Util.encryptInPlace(buffer, start, length, relayPeer.getPublicKey());
+                start -= Util.ENCRYPTION_PREFIX_LENGTH;
+            }
+            
+            HashCash hashCash = RelayRequest.mintHashCash(RelayRequest.getHashCashResource(buffer, start, length), hashCashStrength);
+            // only pad the innermost packet (the payload), and only the exit node gets the return chain
+            int layerPadBytes = i==0 ? padBytes : 0;
+            ReturnChain layerReturnChain = i==0 ? returnChain : emptyReturnChain;
+            
+            if (outermost) {
+                // the outermost RelayRequest is not encrypted, so it doesn't need to be in the buffer
+                byte[] encryptedPayload = Arrays.copyOfRange(buffer, start, start+length);
+                RelayRequest request = new RelayRequest(encryptedPayload, relayPeer, delay, layerPadBytes, hashCash, layerReturnChain);
+                if (message != null)
+                    sessionKeyManager.tagsSent(message, request.getPacketId());
+                return request;
+            }
+            
+            // the buffer is all zeros behind the encrypted data, so the pad bytes are already there
+            RelayRequest request = new RelayRequest(null, relayPeer, delay, layerPadBytes, hashCash, layerReturnChain);
+            byte[] prefix = getPrefix(request, length);
+            start -= prefix.length;
+            System.arraycopy(prefix, 0, buffer, start, prefix.length);
+            length += prefix.length + layerPadBytes;
+        }
+        return null;   // not reached
+    }
+    
+    private byte[] getPrefix(RelayRequest request, int payloadLength) {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(RelayRequest.MAX_PREFIX_LENGTH);
+        try {
+            request.writePrefix(new DataOutputStream(byteStream), payloadLength);
+        } catch (IOException e) {
+            log.error("Can't write to ByteArrayOutputStream.", e);
+        }
+        return byteStream.toByteArray();
+    }
+    
+    private String getDebugString(List<Destination> relayPeers, ReturnChain returnChain) {
+        StringBuilder debugMsg = new StringBuilder("Creating relay chain: [");
+        for (int i=relayPeers.size()-1; i>=0; i--) {
+            debugMsg.append(Util.toShortenedBase32(relayPeers.get(i)));
+            if (i > 0)
+                debugMsg.append(" --> ");
+        }
+        debugMsg.append("]");
+        if (!returnChain.isEmpty())
+            debugMsg.append(" with a return chain");
+        return debugMsg.toString();
+    }
+}
@@ -22,8 +22,9 @@
 package i2p.bote.packet.relay;
 
 import i2p.bote.Util;
+import i2p.bote.crypto.RelaySessionKeyManager;
+import i2p.bote.network.HashCashMinter;
 import i2p.bote.packet.CommunicationPacket;
-import i2p.bote.packet.I2PBotePacket;
 import i2p.bote.packet.MalformedPacketException;
 import i2p.bote.packet.TypeCode;
 import i2p.bote.service.RelayPeerManager;
@@ -32,15 +33,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
 import net.i2p.client.I2PSession;
+import net.i2p.crypto.SHA256Generator;
+import net.i2p.crypto.SessionKeyManager;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.Destination;
 import net.i2p.data.PrivateKey;
 import net.i2p.data.PublicKey;
+import net.i2p.data.SessionKey;
+import net.i2p.data.SessionTag;
 import net.i2p.util.Log;
 
 import com.nettgryppa.security.HashCash;
@@ -54,6 +61,10 @@ import com.nettgryppa.security.HashCash;
  */
 @TypeCode('R')
 public class RelayRequest extends CommunicationPacket {
+    private static final int DEFAULT_HASHCASH_STRENGTH = 10;   // same as the default in Configuration
+    private static final int MAX_HASHCASH_LENGTH = 256;   // much longer than any stamp HashCashMinter creates
+    /** An upper bound for the number of bytes {@link #writePrefix(DataOutputStream, int)} writes, not counting the return chain */
+    static final int MAX_PREFIX_LENGTH = HEADER_LENGTH + 2 + MAX_HASHCASH_LENGTH + 4 + 384 + 2;
     private static Random random = new Random();
     
     private Log log = new Log(RelayRequest.class);
@@ -66,35 +77,72 @@ public class RelayRequest extends CommunicationPacket {
     private int padBytes;
 
     /**
-     * Creates a <code>RelayRequest</code> that contains an encrypted <code>CommunicationPacket</code>.
+     * Creates a <code>RelayRequest</code> that contains an encrypted <code>CommunicationPacket</code>,
+     * with a HashCash stamp of the default strength.
      * @param payload
      * @param nextDestination
      * @param delayMilliseconds The amount of time to wait before sending the packet
      * @param padBytes The number of zeros to add at the end of the packet
      */
     public RelayRequest(CommunicationPacket payload, Destination nextDestination, long delayMilliseconds, int padBytes) {
-        try {
-            hashCash = HashCash.mintCash("", 1);   // TODO
-        } catch (NoSuchAlgorithmException e) {
-            log.error("Cannot create HashCash.", e);
-        }
+        this(payload, nextDestination, delayMilliseconds, padBytes, DEFAULT_HASHCASH_STRENGTH);
+    }
+    
+    /**
+     * Creates a <code>RelayRequest</code> that contains an encrypted <code>CommunicationPacket</code>.
+     * @param payload
+     * @param nextDestination
+     * @param delayMilliseconds The amount of time to wait before sending the packet
+     * @param padBytes The number of zeros to add at the end of the packet
+     * @param hashCashStrength The number of leading zero bits in the HashCash stamp
+     */
+    public RelayRequest(CommunicationPacket payload, Destination nextDestination, long delayMilliseconds, int padBytes, int hashCashStrength) {
+        this(payload, nextDestination, delayMilliseconds, padBytes, hashCashStrength, new ReturnChain());
+    }
+    
+    public RelayRequest(CommunicationPacket payload, Destination nextDestination, long delayMilliseconds, ReturnChain returnChain) {
+        this(payload, nextDestination, delayMilliseconds, 0, DEFAULT_HASHCASH_STRENGTH, returnChain);
+    }
+    
+    /**
+     * Creates a <code>RelayRequest</code> that contains an encrypted <code>CommunicationPacket</code>
+     * and asks the receiver to send a confirmation back through a {@link ReturnChain}.
+     * @param payload
+     * @param nextDestination
+     * @param delayMilliseconds The amount of time to wait before sending the packet
+     * @param padBytes The number of zeros to add at the end of the packet
+     * @param hashCashStrength The number of leading zero bits in the HashCash stamp
+     * @param returnChain A return chain encrypted for <code>nextDestination</code>, or an empty one
+     * @throws IllegalStateException if the HashCash stamp can't be minted
+     */
+    public RelayRequest(CommunicationPacket payload, Destination nextDestination, long delayMilliseconds, int padBytes, int hashCashStrength, ReturnChain returnChain) {
         this.nextDestination = nextDestination;
         this.delayMilliseconds = delayMilliseconds;
-        returnChain = new ReturnChain();
+        this.returnChain = returnChain;
         this.payload = encrypt(payload, nextDestination);
         this.padBytes = padBytes;
+        hashCash = mintHashCash(hashCashStrength);
     }
     
-    public RelayRequest(CommunicationPacket payload, Destination nextDestination, long delayMilliseconds, ReturnChain returnChain) {
-        try {
-            hashCash = HashCash.mintCash("", 1);   // TODO
-        } catch (NoSuchAlgorithmException e) {
-            log.error("Cannot create HashCash.", e);
-        }
+    /**
+     * Creates a <code>RelayRequest</code> around a payload that has been encrypted and
+     * stamped already.
+     * @param encryptedPayload A <code>CommunicationPacket</code> encrypted for <code>nextDestination</code>,
+     * or <code>null</code> if the <code>RelayRequest</code> is only used for {@link #writePrefix(DataOutputStream, int)}
+     * @param nextDestination
+     * @param delayMilliseconds The amount of time to wait before sending the packet
+     * @param padBytes The number of zeros to add at the end of the packet
+     * @param hashCash A HashCash stamp for the encrypted payload
+     * @param returnChain A return chain encrypted for <code>nextDestination</code>, or an empty one
+     * @see RelayOnionEncoder
+     */
+    RelayRequest(byte[] encryptedPayload, Destination nextDestination, long delayMilliseconds, int padBytes, HashCash hashCash, ReturnChain returnChain) {
+        this.payload = encryptedPayload;
         this.nextDestination = nextDestination;
         this.delayMilliseconds = delayMilliseconds;
+        this.padBytes = padBytes;
+        this.hashCash = hashCash;
         this.returnChain = returnChain;
-        this.payload = encrypt(payload, nextDestination);
     }
     
     public RelayRequest(byte[] data) throws DataFormatException {
@@ -134,48 +182,55 @@ public class RelayRequest extends CommunicationPacket {
      * @param maxDelay The maximum delay in milliseconds
      */
     public static RelayRequest create(CommunicationPacket payload, RelayPeerManager peerManager, int numHops, long minDelay, long maxDelay) {
+        return create(payload, peerManager, numHops, minDelay, maxDelay, DEFAULT_HASHCASH_STRENGTH);
+    }
+    
+    /**
+     * Creates a <code>RelayRequest</code> containing <code>numHops</code> nested
+     * <code>RelayRequest</code>s, each with a HashCash stamp of the given strength.<br/>
+     * Returns <code>null</code> if <code>numHops</code> is <code>0</code>.
+     * @param payload
+     * @param peerManager For obtaining relay peers
+     * @param numHops
+     * @param minDelay The minimum delay in milliseconds
+     * @param maxDelay The maximum delay in milliseconds
+     * @param hashCashStrength The number of leading zero bits in each HashCash stamp
+     */
+    public static RelayRequest create(CommunicationPacket payload, RelayPeerManager peerManager, int numHops, long minDelay, long maxDelay, int hashCashStrength) {
         List<Destination> relayPeers = peerManager.getRandomPeers(numHops);
-        
-        Log log = new Log(RelayRequest.class);
-        if (log.shouldLog(Log.DEBUG)) {
-            StringBuilder debugMsg = new StringBuilder("Creating relay chain: [");
-            for (int i=relayPeers.size()-1; i>=0; i--) {
-                debugMsg.append(Util.toShortenedBase32(relayPeers.get(i)));
-                if (i > 0)
-                    debugMsg.append(" --> ");
-            }
-            debugMsg.append("]");
-            log.debug(debugMsg.toString());
-        }
-        
-        // calculate the number of pad bytes necessary to pad the payload to the maximum size possible
-        int maxSize = I2PBotePacket.MAX_DATAGRAM_SIZE - getMaxOverhead(numHops);
-        int padBytes = maxSize - payload.getSize();
-        if (padBytes < 0)
-            padBytes = 0;
-        
-        CommunicationPacket request = payload;
-        for (Destination relayPeer: relayPeers) {
-            // generate a random time between minDelay and maxDelay in the future
-            long delay;
-            if (minDelay == maxDelay)
-                delay = minDelay;
-            else
-                delay = minDelay + Math.abs(random.nextLong()) % Math.abs(maxDelay-minDelay);
-
-            request = new RelayRequest(request, relayPeer, delay, padBytes);
-            
-            // only pad the innermost packet (the payload)
-            padBytes = 0;
-        }
-        return (RelayRequest)request;
+        return create(payload, relayPeers, minDelay, maxDelay, hashCashStrength, new ReturnChain());
+    }
+    
+    /**
+     * Creates a <code>RelayRequest</code> that is sent through a given list of relay peers.<br/>
+     * Returns <code>null</code> if <code>relayPeers</code> is empty.
+     * @param payload
+     * @param relayPeers The relay peers, starting with the last one (the exit node)
+     * @param minDelay The minimum delay in milliseconds
+     * @param maxDelay The maximum delay in milliseconds
+     * @param hashCashStrength The number of leading zero bits in each HashCash stamp
+     * @param returnChain A return chain for the exit node, or an empty one
+     * @see ReturnChain#create(i2p.bote.UniqueId, Destination, List, Destination, long, long, int)
+     */
+    public static RelayRequest create(CommunicationPacket payload, List<Destination> relayPeers, long minDelay, long maxDelay, int hashCashStrength, ReturnChain returnChain) {
+        return new RelayOnionEncoder(payload).encode(relayPeers, minDelay, maxDelay, hashCashStrength, returnChain);
+    }
+    
+    /** Returns a random time between <code>minDelay</code> and <code>maxDelay</code>. */
+    static long getRandomDelay(long minDelay, long maxDelay) {
+        if (minDelay == maxDelay)
+            return minDelay;
+        else
+            return minDelay + Math.abs(random.nextLong()) % Math.abs(maxDelay-minDelay);
     }
     
     public static int getMaxOverhead(int numHops) {
         if (numHops <= 0)
             return 0;
         else
-            return 1049 + (numHops-1)*1040;
+            // includes 64 bytes per hop for the HashCash resource, rand and counter fields,
+            // and the session tags that can be delivered in the outermost layer
+            return 1113 + (numHops-1)*1104 + RelaySessionKeyManager.TAGS_PER_DELIVERY*SessionTag.BYTE_LENGTH;
     }
     
     public Destination getNextDestination() {
@@ -201,9 +256,48 @@ public class RelayRequest extends CommunicationPacket {
         return sendTime;
     }
 
+    /** Returns the return chain, which is empty unless the sender wants a confirmation. */
+    public ReturnChain getReturnChain() {
+        return returnChain;
+    }
+    
     public HashCash getHashCash() {
         return hashCash;
     }
+    
+    /**
+     * Returns the string the HashCash stamp must be bound to, which is the
+     * Base64-encoded SHA-256 hash of the encrypted payload. This ties the stamp
+     * to the packet, so it can't be reused for a different payload.
+     */
+    public String getHashCashResource() {
+        return getHashCashResource(payload, 0, payload.length);
+    }
+    
+    /**
+     * Returns the HashCash resource for an encrypted payload that is part of a larger array.
+     * @see #getHashCashResource()
+     */
+    static String getHashCashResource(byte[] encryptedPayload, int offset, int length) {
+        return SHA256Generator.getInstance().calculateHash(encryptedPayload, offset, length).toBase64();
+    }
+    
+    private HashCash mintHashCash(int strength) {
+        return mintHashCash(getHashCashResource(), strength);
+    }
+    
+    /**
+     * Mints a HashCash stamp.
+     * @throws IllegalStateException if no stamp can be minted, for example because the thread was interrupted.
+     * A <code>RelayRequest</code> can't be sent without a stamp.
+     */
+    static HashCash mintHashCash(String resource, int strength) {
+        try {
+            return HashCashMinter.mint(resource, strength);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot create HashCash.", e);
+        }
+    }
 
     public byte[] getPayload() {
         return payload;
@@ -216,7 +310,53 @@ public class RelayRequest extends CommunicationPacket {
      * @throws DataFormatException 
      */
     public CommunicationPacket getStoredPacket(I2PSession i2pSession) throws DataFormatException, MalformedPacketException {
-        return decrypt(i2pSession);
+        return decrypt(i2pSession, null);
+    }
+    
+    /**
+     * Returns the payload packet like {@link #getStoredPacket(I2PSession)} does, but can
+     * also decrypt payloads that were encrypted with a session tag.
+     * @param i2pSession An <code>I2PSession</code> that contains the private key necessary to decrypt the payload
+     * @param sessionKeyManager Contains the session tags received so far, and receives new ones
+     * @throws MalformedPacketException 
+     * @throws DataFormatException 
+     */
+    public CommunicationPacket getStoredPacket(I2PSession i2pSession, SessionKeyManager sessionKeyManager) throws DataFormatException, MalformedPacketException {
+        return decrypt(i2pSession, sessionKeyManager);
+    }
+
+    /**
+     * Returns a copy of this packet whose payload is encrypted with a new ElGamal session
+     * instead of the session tag it was encrypted with, and which has a new HashCash stamp
+     * for the new payload. This is for packets the next peer can't decrypt because it
+     * doesn't know the tag (anymore). The copy has a new packet id and no delay, so it
+     * can be sent right away.<br/>
+     * Returns <code>null</code> if the payload wasn't encrypted with a tag from
+     * <code>sessionKeyManager</code>, or if the key for the tag isn't known anymore.
+     * @param sessionKeyManager The <code>RelaySessionKeyManager</code> the packet was encrypted with
+     * @param hashCashStrength The number of leading zero bits in the new HashCash stamp
+     */
+    public RelayRequest reEncrypt(RelaySessionKeyManager sessionKeyManager, int hashCashStrength) {
+        if (payload.length < SessionTag.BYTE_LENGTH)
+            return null;
+        SessionTag tag = new SessionTag(Arrays.copyOf(payload, SessionTag.BYTE_LENGTH));
+        SessionKey key = sessionKeyManager.getSentTagKey(tag);
+        if (key == null)
+            return null;
+
+        byte[] innerPacket;
+        try {
+            innerPacket = Util.decryptSentData(payload, tag, key);
+        } catch (DataFormatException e) {
+            log.error("Can't decrypt the payload of a relay packet that was encrypted locally.", e);
+            return null;
+        }
+        if (innerPacket == null)
+            return null;
+
+        byte[] newPayload = Util.encrypt(innerPacket, nextDestination.getPublicKey());
+        HashCash newHashCash = mintHashCash(getHashCashResource(newPayload, 0, newPayload.length), hashCashStrength);
+        return new RelayRequest(newPayload, nextDestination, 0, padBytes, newHashCash, returnChain);
     }
 
     @Override
@@ -225,19 +365,7 @@ public class RelayRequest extends CommunicationPacket {
         DataOutputStream dataStream = new DataOutputStream(byteArrayStream);
 
         try {
-            writeHeader(dataStream);
-            String hashCashString = hashCash.toString();
-            dataStream.writeShort(hashCashString.length());
-            dataStream.write(hashCashString.getBytes());
-            
-            dataStream.writeInt((int)(delayMilliseconds/1000));
-            // write the first 384 bytes (the two public keys)
-            // TODO This is NOT compatible with newer key types!
-            dataStream.write(nextDestination.toByteArray(), 0, 384);
-            
-            returnChain.writeTo(dataStream);
-            
-            dataStream.writeShort(payload.length);
+            writePrefix(dataStream, payload.length);
             dataStream.write(payload);
             
             byte[] padding = new byte[padBytes];
@@ -249,6 +377,29 @@ public class RelayRequest extends CommunicationPacket {
         return byteArrayStream.toByteArray();
     }
     
+    /**
+     * Writes everything that precedes the payload in the byte array representation,
+     * including the payload length.
+     * @param dataStream
+     * @param payloadLength
+     * @throws IOException
+     */
+    void writePrefix(DataOutputStream dataStream, int payloadLength) throws IOException {
+        writeHeader(dataStream);
+        String hashCashString = hashCash.toString();
+        dataStream.writeShort(hashCashString.length());
+        dataStream.write(hashCashString.getBytes());
+        
+        dataStream.writeInt((int)(delayMilliseconds/1000));
+        // write the first 384 bytes (the two public keys)
+        // TODO This is NOT compatible with newer key types!
+        dataStream.write(nextDestination.toByteArray(), 0, 384);
+        
+        returnChain.writeTo(dataStream);
+        
+        dataStream.writeShort(payloadLength);
+    }
+    
     private byte[] encrypt(CommunicationPacket packet, Destination destination) {
         PublicKey publicKey = destination.getPublicKey();
         byte[] data = packet.toByteArray();
@@ -257,12 +408,18 @@ public class RelayRequest extends CommunicationPacket {
 
     /**
      * Decrypts the <code>CommunicationPacket</code> inside this packet.
+     * @param i2pSession
+     * @param sessionKeyManager Can be <code>null</code> if the payload was not encrypted with a session tag
      * @throws DataFormatException 
      * @throws MalformedPacketException 
      */
-    private CommunicationPacket decrypt(I2PSession i2pSession) throws DataFormatException, MalformedPacketException {
+    private CommunicationPacket decrypt(I2PSession i2pSession, SessionKeyManager sessionKeyManager) throws DataFormatException, MalformedPacketException {
         PrivateKey privateKey = i2pSession.getDecryptionKey();
-        byte[] decryptedData = Util.decrypt(payload, privateKey);
+        byte[] decryptedData;
+        if (sessionKeyManager == null)
+            decryptedData = Util.decrypt(payload, privateKey);
+        else
+            decryptedData = Util.decrypt(payload, privateKey, sessionKeyManager);
         return CommunicationPacket.createPacket(decryptedData);
     }
 }
\ No newline at end of file
@@ -21,18 +21,43 @@
 
 package i2p.bote.packet.relay;
 
+import i2p.bote.UniqueId;
+import i2p.bote.Util;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.MalformedPacketException;
+import i2p.bote.packet.ResponsePacket;
+import i2p.bote.packet.StatusCode;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.List;
 
+import net.i2p.client.I2PSession;
+import net.i2p.data.DataFormatException;
+import net.i2p.data.Destination;
 import net.i2p.util.Log;
 
 /**
- * All this class can do at the moment is read bytes from a <code>ByteBuffer</code>
- * and write them back out.
+ * A return path for an end-to-end confirmation of a {@link RelayRequest}.<br/>
+ * The chain is built by the original sender and attached to the innermost
+ * <code>RelayRequest</code>. It contains a <code>RelayRequest</code> onion that
+ * leads back to the sender through one or more relay peers, encrypted for the
+ * relay peer that receives the innermost <code>RelayRequest</code> (the exit node),
+ * so other peers can't see where it leads.
+ * <p/>
+ * When the exit node has done what the innermost request asked for, it decrypts
+ * the chain and adds the onion to its relay packet folder, from where it is
+ * forwarded hop by hop like any other relay packet. The payload at the end of the
+ * chain is a {@link ResponsePacket} whose packet id is the confirmation id the
+ * sender chose, so the sender can match it to the original request.
+ * <p/>
+ * An empty chain means no confirmation is requested.
  */
 public class ReturnChain {
+    private static final int ENCRYPTION_OVERHEAD = 600;   // upper limit for the ElGamal/AES overhead
+    
     private Log log = new Log(ReturnChain.class);
     private byte[] buffer;
     
@@ -43,12 +68,77 @@ public class ReturnChain {
     
     public ReturnChain(ByteBuffer input) {
         int length = input.getShort() & 0xFFFF;
-        if (length != 0)
-            log.error("Length of return chain must be 0 for this protocol version!");
         buffer = new byte[length];
         input.get(buffer);
     }
     
+    private ReturnChain(byte[] buffer) {
+        this.buffer = buffer;
+    }
+    
+    /**
+     * Creates a return chain that leads from <code>exitNode</code> to <code>localDestination</code>
+     * via <code>returnPeers</code>.
+     * @param confirmationId The packet id of the confirmation that arrives at <code>localDestination</code>
+     * @param exitNode The relay peer that receives the innermost <code>RelayRequest</code>
+     * @param returnPeers The relay peers the confirmation travels through; the last one
+     * sends it to <code>localDestination</code>. Must not be empty, or the exit node would
+     * learn the sender's destination.
+     * @param localDestination
+     * @param minDelay The minimum delay at each hop in milliseconds
+     * @param maxDelay The maximum delay at each hop in milliseconds
+     * @param hashCashStrength
+     */
+    public static ReturnChain create(UniqueId confirmationId, Destination exitNode, List<Destination> returnPeers, Destination localDestination,
+            long minDelay, long maxDelay, int hashCashStrength) {
+        if (returnPeers.isEmpty())
+            throw new IllegalArgumentException("A return chain needs at least one relay peer.");
+        
+        CommunicationPacket request = ResponsePacket.create(null, StatusCode.OK, confirmationId).iterator().next();
+        request = new RelayRequest(request, localDestination, 0, 0, hashCashStrength);
+        for (Destination returnPeer: returnPeers)
+            request = new RelayRequest(request, returnPeer, RelayRequest.getRandomDelay(minDelay, maxDelay), 0, hashCashStrength);
+        
+        byte[] encryptedRequest = Util.encrypt(request.toByteArray(), exitNode.getPublicKey());
+        return new ReturnChain(encryptedRequest);
+    }
+    
+    /**
+     * Returns the maximum number of bytes a return chain with <code>numHops</code>
+     * relay peers adds to the innermost <code>RelayRequest</code>.
+     * @param numHops
+     */
+    public static int getMaxOverhead(int numHops) {
+        if (numHops <= 0)
+            return 0;
+        else
+            // one RelayRequest per return hop plus the one that delivers the confirmation
+            return ENCRYPTION_OVERHEAD + RelayRequest.getMaxOverhead(numHops+1);
+    }
+    
+    public boolean isEmpty() {
+        return buffer.length == 0;
+    }
+    
+    /**
+     * Decrypts the chain and returns the first <code>RelayRequest</code> of the return path.
+     * @param i2pSession The exit node's <code>I2PSession</code>
+     * @throws DataFormatException
+     * @throws MalformedPacketException
+     */
+    public RelayRequest getReturnRequest(I2PSession i2pSession) throws DataFormatException, MalformedPacketException {
+        byte[] decryptedData = Util.decrypt(buffer, i2pSession.getDecryptionKey());
+        CommunicationPacket packet = CommunicationPacket.createPacket(decryptedData);
+        if (packet instanceof RelayRequest)
+            return (RelayRequest)packet;
+        else
+            throw new MalformedPacketException("Expected a RelayRequest in the return chain, got " + (packet==null ? "null" : packet.getClass().getSimpleName()));
+    }
+    
+    public int getSize() {
+        return 2 + buffer.length;
+    }
+    
     public void writeTo(OutputStream output) throws IOException {
         output.write(buffer.length >> 8);
         output.write(buffer.length & 0xFF);
@@ -64,4 +154,4 @@ public class ReturnChain {
         }
         return byteStream.toByteArray();
     }
-}
\ No newline at end of file
+}
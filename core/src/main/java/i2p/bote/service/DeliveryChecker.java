@@ -29,31 +29,45 @@ import i2p.bote.email.EmailMetadata.PacketInfo;
 import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.folder.EmailFolder;
 import i2p.bote.folder.FolderIterator;
+import i2p.bote.folder.PendingDeliveryList;
+import i2p.bote.folder.PendingDeliveryList.PendingDelivery;
 import i2p.bote.network.DHT;
 import i2p.bote.network.NetworkStatusSource;
 
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.TimeUnit;
 
+import net.i2p.data.Hash;
 import net.i2p.util.I2PAppThread;
 import net.i2p.util.Log;
 
 /**
  * Periodically sends <code>DeletionQueries</code> for sent email packets and
- * updates the email's delivery status.
+ * updates the email's delivery status.<br/>
+ * Undelivered packets are read from a {@link PendingDeliveryList}, so emails in
+ * the sent folder are only touched when there is something to update.
  * @see EmailMetadata 
  */
 public class DeliveryChecker extends I2PAppThread {
     private Log log = new Log(DeliveryChecker.class);
     private DHT dht;
     private EmailFolder sentFolder;
+    private PendingDeliveryList pendingDeliveries;
     private Configuration configuration;
     private NetworkStatusSource networkStatusSource;
     
-    public DeliveryChecker(DHT dht, EmailFolder sentFolder, Configuration configuration, NetworkStatusSource networkStatusSource) {
+    public DeliveryChecker(DHT dht, EmailFolder sentFolder, PendingDeliveryList pendingDeliveries, Configuration configuration, NetworkStatusSource networkStatusSource) {
         super("DeliveryChkr");
         this.dht = dht;
         this.sentFolder = sentFolder;
+        this.pendingDeliveries = pendingDeliveries;
         this.configuration = configuration;
         this.networkStatusSource = networkStatusSource;
         setPriority(MIN_PRIORITY);
@@ -71,53 +85,102 @@ public class DeliveryChecker extends I2PAppThread {
         while (!Thread.interrupted())
             try {
                 try {
-                    if (configuration.isDeliveryCheckEnabled()) {
-                        log.debug("Processing sent emails in directory '" + sentFolder.getStorageDirectory() + "'.");
-                        FolderIterator<Email> iterator = sentFolder.iterate();
-                        while (iterator.hasNext()) {
-                            Email email = iterator.next();
-                            if (!email.getMetadata().isDelivered())
-                                checkDelivery(email);
-                        }
-                    }
+                    if (configuration.isDeliveryCheckEnabled())
+                        checkDeliveries();
                 } finally {
                     TimeUnit.MINUTES.sleep(configuration.getDeliveryCheckInterval());
                 }
             } catch (InterruptedException e) {
                 break;
             } catch (PasswordException e) {
-                log.debug("Can't scan sent folder because password is not cached.");
+                log.debug("Can't check deliveries because password is not cached.");
+            } catch (IOException e) {
+                log.error("Can't read or write the list of pending deliveries.", e);
+            } catch (GeneralSecurityException e) {
+                log.error("Can't read or write the list of pending deliveries.", e);
             } catch (RuntimeException e) {   // catch unexpected exceptions to keep the thread running
                 log.error("Exception caught in DeliveryChecker loop", e);
             }
     }
     
     /**
-     * Checks the DHT for all undelivered packets belonging to a given email.
-     * @param email
+     * Adds the undelivered packets of all emails in the sent folder to the list of
+     * pending deliveries. This is only done once, for emails that were sent before
+     * the list existed. Emails sent since then are in the list already, which
+     * ignores packets it contains.
+     */
+    private void importSentFolder() throws PasswordException, IOException, GeneralSecurityException {
+        log.debug("Adding undelivered packets in directory '" + sentFolder.getStorageDirectory() + "' to the list of pending deliveries.");
+        Map<String, Collection<PacketInfo>> packets = new HashMap<String, Collection<PacketInfo>>();
+        FolderIterator<Email> iterator = sentFolder.iterate();
+        while (iterator.hasNext()) {
+            Email email = iterator.next();
+            EmailMetadata metadata = email.getMetadata();
+            if (!metadata.isDelivered())
+                packets.put(email.getMessageID(), metadata.getUndeliveredPacketKeys());
+        }
+        pendingDeliveries.addAll(packets);
+        pendingDeliveries.setImportDone();
+    }
+    
+    /**
+     * Checks the DHT for all pending deliveries at once and updates the metadata
+     * of emails whose packets have been delivered. The sent folder is imported
+     * first if that hasn't happened yet.
      * @throws InterruptedException
      */
-    private void checkDelivery(Email email) throws InterruptedException {
-        EmailMetadata metadata = email.getMetadata();
-        Collection<PacketInfo> packets = metadata.getUndeliveredPacketKeys();
-        synchronized(sentFolder) {
-            boolean updateMetadata = false;
-            
-            for (PacketInfo packet: packets) {
-                UniqueId delAuth = dht.findDeleteAuthorizationKey(packet.dhtKey, packet.delVerificationHash);
-                if (delAuth != null) {
-                    metadata.setPacketDelivered(packet.dhtKey, true);
-                    updateMetadata = true;
-                    log.debug("Delivery of email packet with DHT key " + packet.dhtKey + " confirmed.");
-                }
+    void checkDeliveries() throws InterruptedException, PasswordException, IOException, GeneralSecurityException {
+        if (!pendingDeliveries.isImportDone())
+            importSentFolder();
+        
+        List<PendingDelivery> deliveries = pendingDeliveries.getAll();
+        if (deliveries.isEmpty())
+            return;
+        log.debug("Checking " + deliveries.size() + " undelivered email packets.");
+        
+        Map<Hash, Hash> verificationHashes = new HashMap<Hash, Hash>();
+        for (PendingDelivery delivery: deliveries)
+            verificationHashes.put(delivery.dhtKey, delivery.delVerificationHash);
+        Map<Hash, UniqueId> delAuthorizations = dht.findDeleteAuthorizationKeys(verificationHashes);
+        
+        // group deliveries by email
+        Map<String, List<PendingDelivery>> deliveriesByEmail = new HashMap<String, List<PendingDelivery>>();
+        for (PendingDelivery delivery: deliveries) {
+            List<PendingDelivery> emailDeliveries = deliveriesByEmail.get(delivery.messageId);
+            if (emailDeliveries == null) {
+                emailDeliveries = new ArrayList<PendingDelivery>();
+                deliveriesByEmail.put(delivery.messageId, emailDeliveries);
             }
-            
-            if (updateMetadata)
+            emailDeliveries.add(delivery);
+        }
+        
+        List<PendingDelivery> finished = new ArrayList<PendingDelivery>();
+        synchronized(sentFolder) {
+            for (Entry<String, List<PendingDelivery>> entry: deliveriesByEmail.entrySet()) {
+                String messageId = entry.getKey();
+                List<PendingDelivery> delivered = new ArrayList<PendingDelivery>();
+                Collection<Hash> deliveredKeys = new ArrayList<Hash>();
+                for (PendingDelivery delivery: entry.getValue())
+                    if (delAuthorizations.containsKey(delivery.dhtKey)) {
+                        delivered.add(delivery);
+                        deliveredKeys.add(delivery.dhtKey);
+                        log.debug("Delivery of email packet with DHT key " + delivery.dhtKey + " confirmed.");
+                    }
+                
                 try {
-                    sentFolder.saveMetadata(email);
-                } catch (Exception e) {
+                    if (!sentFolder.setPacketsDelivered(messageId, deliveredKeys))
+                        // the email has been deleted or moved out of the sent folder, so stop checking it
+                        finished.addAll(entry.getValue());
+                    else
+                        finished.addAll(delivered);
+                } catch (IOException e) {
+                    log.error("Can't save email metadata.", e);
+                } catch (GeneralSecurityException e) {
                     log.error("Can't save email metadata.", e);
                 }
+            }
         }
+        
+        pendingDeliveries.remove(finished);
     }
-}
\ No newline at end of file
+}
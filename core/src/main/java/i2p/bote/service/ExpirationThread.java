@@ -31,7 +31,16 @@ import java.util.concurrent.TimeUnit;
 import net.i2p.util.I2PAppThread;
 import net.i2p.util.Log;
 
+/**
+ * Deletes expired content from {@link ExpirationListener}s.<br/>
+ * Instead of deleting everything once a day, expired items are deleted continuously
+ * in small batches, so there are no I/O spikes and expired data is not kept around
+ * for long.
+ */
 public class ExpirationThread extends I2PAppThread {
+    private static final int INTERVAL = 60;   // time between two rounds, in seconds
+    private static final int MAX_ITEMS_PER_ROUND = 100;   // max number of items to delete from each listener per round
+    
     private Log log = new Log(ExpirationThread.class);
     private List<ExpirationListener> expirationListeners;
 
@@ -45,13 +54,28 @@ public class ExpirationThread extends I2PAppThread {
         expirationListeners.add(listener);
     }
     
+    /** Returns the number of items that have expired but have not been deleted yet, summed over all listeners. */
+    public int getNumExpired() {
+        int numExpired = 0;
+        synchronized(expirationListeners) {
+            for (ExpirationListener listener: expirationListeners)
+                numExpired += listener.getNumExpired();
+        }
+        return numExpired;
+    }
+    
     @Override
     public void run() {
         while (!Thread.interrupted()) {
             try {
-                for (ExpirationListener listener: expirationListeners)
-                    listener.deleteExpired();
-                TimeUnit.DAYS.sleep(1);
+                synchronized(expirationListeners) {
+                    for (ExpirationListener listener: expirationListeners) {
+                        int numDeleted = listener.deleteExpired(MAX_ITEMS_PER_ROUND);
+                        if (numDeleted > 0)
+                            log.debug("Deleted " + numDeleted + " expired items from " + listener + ", " + listener.getNumExpired() + " expired items left.");
+                    }
+                }
+                TimeUnit.SECONDS.sleep(INTERVAL);
             } catch (InterruptedException e) {
                 break;
             } catch (RuntimeException e) {   // catch unexpected exceptions to keep the thread running
@@ -22,6 +22,7 @@
 package i2p.bote.service;
 
 import i2p.bote.Configuration;
+import i2p.bote.crypto.RelaySessionKeyManager;
 import i2p.bote.email.Email;
 import i2p.bote.email.EmailDestination;
 import i2p.bote.email.EmailIdentity;
@@ -42,7 +43,9 @@ import i2p.bote.packet.dht.EncryptedEmailPacket;
 import i2p.bote.packet.dht.IndexPacket;
 import i2p.bote.packet.dht.StoreRequest;
 import i2p.bote.packet.dht.UnencryptedEmailPacket;
+import i2p.bote.packet.relay.RelayOnionEncoder;
 import i2p.bote.packet.relay.RelayRequest;
+import i2p.bote.packet.relay.ReturnChain;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
@@ -58,6 +61,7 @@ import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 
+import net.i2p.data.Destination;
 import net.i2p.util.I2PAppThread;
 import net.i2p.util.Log;
 
@@ -70,18 +74,22 @@ public class OutboxProcessor extends I2PAppThread {
     private Outbox outbox;
     private RelayPeerManager peerManager;
     private RelayPacketFolder relayPacketFolder;
+    private ReturnChainTracker returnChainTracker;
+    private RelaySessionKeyManager sessionKeyManager;
     private Identities identities;
     private Configuration configuration;
     private NetworkStatusSource networkStatusSource;
     private CountDownLatch wakeupSignal;   // tells the thread to interrupt the current wait and resume the loop
     private List<OutboxListener> outboxListeners;
     
-    public OutboxProcessor(DHT dht, Outbox outbox, RelayPeerManager peerManager, RelayPacketFolder relayPacketFolder, Identities identities, Configuration configuration, NetworkStatusSource networkStatusSource) {
+    public OutboxProcessor(DHT dht, Outbox outbox, RelayPeerManager peerManager, RelayPacketFolder relayPacketFolder, ReturnChainTracker returnChainTracker, RelaySessionKeyManager sessionKeyManager, Identities identities, Configuration configuration, NetworkStatusSource networkStatusSource) {
         super("OutboxProcsr");
         this.dht = dht;
         this.outbox = outbox;
         this.peerManager = peerManager;
         this.relayPacketFolder = relayPacketFolder;
+        this.returnChainTracker = returnChainTracker;
+        this.sessionKeyManager = sessionKeyManager;
         this.identities = identities;
         this.configuration = configuration;
         this.networkStatusSource = networkStatusSource;
@@ -260,10 +268,15 @@ public class OutboxProcessor extends I2PAppThread {
      */
     private void send(DhtStorablePacket dhtPacket, int hops, long minDelay, long maxDelay, int relayRedundancy) throws DhtException, InterruptedException {
         if (hops > 0) {
-            StoreRequest storeRequest = new StoreRequest(dhtPacket);
+            // serialize the store request once for all copies
+            RelayOnionEncoder encoder = new RelayOnionEncoder(new StoreRequest(dhtPacket), sessionKeyManager);
+            int hashCashStrength = configuration.getHashCashStrength();
             for (int i=0; i<relayRedundancy; i++) {
                 // TODO don't use the same relay peer twice if there are enough peers
-                RelayRequest packet = RelayRequest.create(storeRequest, peerManager, hops, minDelay, maxDelay);
+                List<Destination> relayPeers = peerManager.getRandomPeers(hops);
+                // the confirmation takes as many hops back as the packet takes to the exit node
+                ReturnChain returnChain = returnChainTracker.createReturnChain(relayPeers, hops, minDelay, maxDelay, hashCashStrength);
+                RelayRequest packet = encoder.encode(relayPeers, minDelay, maxDelay, hashCashStrength, returnChain);
                 relayPacketFolder.add(packet);
             }
         }
@@ -281,7 +294,7 @@ public class OutboxProcessor extends I2PAppThread {
     private int getMaxEmailPacketSize(int hops) {
         int maxSize = I2PBotePacket.MAX_DATAGRAM_SIZE - EncryptedEmailPacket.MAX_OVERHEAD;
         if (hops > 0)
-            maxSize -= RelayRequest.getMaxOverhead(hops);
+            maxSize -= RelayRequest.getMaxOverhead(hops) + ReturnChain.getMaxOverhead(hops);
         return maxSize;
     }
     
@@ -22,9 +22,10 @@
 package i2p.bote.service;
 
 import i2p.bote.Configuration;
+import i2p.bote.UniqueId;
 import i2p.bote.Util;
-import i2p.bote.folder.ExpirationListener;
-import i2p.bote.folder.PacketFolder;
+import i2p.bote.crypto.RelaySessionKeyManager;
+import i2p.bote.folder.RelayPacketFolder;
 import i2p.bote.network.I2PSendQueue;
 import i2p.bote.network.PacketListener;
 import i2p.bote.packet.CommunicationPacket;
@@ -32,7 +33,13 @@ import i2p.bote.packet.ResponsePacket;
 import i2p.bote.packet.StatusCode;
 import i2p.bote.packet.relay.RelayRequest;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -42,53 +49,82 @@ import net.i2p.util.Log;
 
 /**
  * A background thread that sends packets in the relay outbox to the I2P network.
+ * <p/>
+ * Several packets can be waiting for confirmation at the same time, up to
+ * <code>MAX_PACKETS_IN_FLIGHT_PER_PEER</code> per relay peer and
+ * <code>MAX_PACKETS_IN_FLIGHT</code> in total. Confirmations are matched to
+ * packets by packet id. A packet that isn't confirmed within
+ * <code>CONFIRMATION_TIMEOUT</code>, or that the relay peer rejects because it
+ * is busy, is sent again after the relay send pause,
+ * and the result of each attempt is reported to the {@link RelayPeerManager}.
+ * A packet the relay peer can't decrypt, because it doesn't know the session tag
+ * the packet was encrypted with, is encrypted again with a new ElGamal session and
+ * replaced in the folder.
+ * <p/>
+ * The packet folder is only read every <code>SCAN_INTERVAL</code> milliseconds;
+ * packets that become due between two scans are kept in memory.
  */
-public class RelayPacketSender extends I2PAppThread implements ExpirationListener, PacketListener {
+public class RelayPacketSender extends I2PAppThread implements PacketListener {
+    private static final int MAX_PACKETS_IN_FLIGHT = 32;
+    private static final int MAX_PACKETS_IN_FLIGHT_PER_PEER = 4;
+    private static final long CONFIRMATION_TIMEOUT = TimeUnit.MINUTES.toMillis(2);   // how long to wait for a confirmation after a packet has been sent
+    private static final long SCAN_INTERVAL = TimeUnit.MINUTES.toMillis(1);   // how often to look for new packets in the folder
+    
     private final Log log = new Log(RelayPacketSender.class);
 
     private I2PSendQueue sendQueue;
-    private PacketFolder<RelayRequest> packetFolder;
-    private int pause;   // the wait time, in minutes, before processing the folder again
-    private RelayRequest lastSentPacket;   // last relay packet sent, or null
-    private CountDownLatch confirmationReceived;   // zero if a "OK" response has been received for lastSentPacket
+    private RelayPacketFolder packetFolder;
+    private RelayPeerManager peerManager;
+    private RelaySessionKeyManager sessionKeyManager;
+    private long retryDelay;   // the wait time, in milliseconds, before sending an unconfirmed packet again
+    private int hashCashStrength;   // for re-encrypted packets
+    private final Map<UniqueId, OutgoingPacket> packets;   // due packets by packet id, including ones waiting for confirmation; also used as the lock for all fields below
+    private Map<Destination, Integer> numPacketsInFlight;   // the number of unconfirmed packets for each relay peer
+    private List<OutgoingPacket> confirmedPackets;   // packets to delete from the folder
+    private List<OutgoingPacket> rejectedPackets;   // packets to re-encrypt
     
-    public RelayPacketSender(I2PSendQueue sendQueue, PacketFolder<RelayRequest> packetFolder, Configuration configuration) {
+    /**
+     * @param sendQueue
+     * @param packetFolder
+     * @param peerManager
+     * @param sessionKeyManager Is told which packets have been confirmed, so it can start using the session tags in them,
+     * and has the session keys for re-encrypting packets a relay peer can't decrypt
+     * @param configuration
+     */
+    public RelayPacketSender(I2PSendQueue sendQueue, RelayPacketFolder packetFolder, RelayPeerManager peerManager, RelaySessionKeyManager sessionKeyManager, Configuration configuration) {
         super("RelayPktSndr");
         setPriority(MIN_PRIORITY);
         this.sendQueue = sendQueue;
         this.packetFolder = packetFolder;
-        pause = configuration.getRelaySendPause();
+        this.peerManager = peerManager;
+        this.sessionKeyManager = sessionKeyManager;
+        retryDelay = TimeUnit.MINUTES.toMillis(configuration.getRelaySendPause());
+        hashCashStrength = configuration.getHashCashStrength();
+        packets = new HashMap<UniqueId, OutgoingPacket>();
+        numPacketsInFlight = new HashMap<Destination, Integer>();
+        confirmedPackets = new ArrayList<OutgoingPacket>();
+        rejectedPackets = new ArrayList<OutgoingPacket>();
     }
     
     @Override
     public void run() {
+        long nextScanTime = 0;
         while (!Thread.interrupted()) {
             try {
-                Iterator<RelayRequest> iterator = packetFolder.iterator();
-                while (iterator.hasNext()) {
-                    RelayRequest packet = iterator.next();
-                    if (System.currentTimeMillis() >= packet.getSendTime()) {
-                        log.debug("Sending relay packet to destination " + Util.toBase32(packet.getNextDestination()));
-                        CountDownLatch sentSignal;
-                        Destination nextDestination = packet.getNextDestination();
-                        // synchronize access to lastSentPacket (which can be null, so synchronize on "this")
-                        synchronized(this) {
-                            lastSentPacket = packet;
-                            confirmationReceived = new CountDownLatch(1);
-                            sentSignal = sendQueue.send(lastSentPacket, nextDestination);
-                        }
-                        sentSignal.await();
-                        
-                        TimeUnit.MINUTES.sleep(2);
-                        // if confirmation has been received, delete the packet
-                        if (confirmationReceived.await(0, TimeUnit.SECONDS)) {
-                            log.debug("Confirmation received from relay peer " + Util.toShortenedBase32(nextDestination) + ", deleting packet: " + packet);
-                            iterator.remove();
-                        }
-                    }
+                if (System.currentTimeMillis() >= nextScanTime) {
+                    scanFolder();
+                    nextScanTime = System.currentTimeMillis() + SCAN_INTERVAL;
                 }
+                deleteConfirmedPackets();
+                reEncryptRejectedPackets();
                 
-                TimeUnit.MINUTES.sleep(pause);
+                synchronized(packets) {
+                    long currentTime = System.currentTimeMillis();
+                    checkTimeouts(currentTime);
+                    long nextEventTime = Math.min(nextScanTime, sendDuePackets(currentTime));
+                    if (confirmedPackets.isEmpty() && rejectedPackets.isEmpty() && nextEventTime>currentTime)
+                        packets.wait(nextEventTime - currentTime);   // woken up early by packetReceived()
+                }
             } catch (InterruptedException e) {
                 break;
             } catch (RuntimeException e) {   // catch unexpected exceptions to keep the thread running
@@ -99,27 +135,215 @@ public class RelayPacketSender extends I2PAppThread implements ExpirationListene
         log.debug("RelayPacketSender thread interrupted, exiting.");
     }
     
-    /** Deletes relay packets that are still in the folder 100 days after the scheduled send time */
-    @Override
-    public void deleteExpired() {
-        for (Iterator<RelayRequest> iterator=packetFolder.iterator(); iterator.hasNext();) {
-            RelayRequest packet = iterator.next();
-            if (System.currentTimeMillis() > packet.getSendTime() + EXPIRATION_TIME_MILLISECONDS)
-                iterator.remove();
+    /**
+     * Reads the packets from the folder that are due before the next scan and adds
+     * the ones that aren't being tracked yet. Packets whose file has disappeared
+     * (because they expired) are forgotten unless they are waiting for confirmation.
+     */
+    private void scanFolder() {
+        long maxSendTime = System.currentTimeMillis() + SCAN_INTERVAL;
+        List<RelayRequest> duePackets = new ArrayList<RelayRequest>();
+        for (RelayRequest packet: packetFolder)
+            if (packet!=null && packet.getSendTime()<=maxSendTime)
+                duePackets.add(packet);
+        
+        synchronized(packets) {
+            Set<UniqueId> packetIds = new HashSet<UniqueId>();
+            for (RelayRequest packet: duePackets) {
+                UniqueId packetId = packet.getPacketId();
+                packetIds.add(packetId);
+                if (!packets.containsKey(packetId))
+                    packets.put(packetId, new OutgoingPacket(packet));
+            }
+            for (Iterator<OutgoingPacket> iterator=packets.values().iterator(); iterator.hasNext(); ) {
+                OutgoingPacket outgoingPacket = iterator.next();
+                if (!outgoingPacket.isInFlight() && !packetIds.contains(outgoingPacket.packet.getPacketId()))
+                    iterator.remove();
+            }
+        }
+    }
+    
+    /**
+     * Sends all packets whose send time has come, as long as the per-peer and total
+     * limits allow it. The caller must hold the lock on <code>packets</code>.
+     * @param currentTime
+     * @return The time at which the next packet that is not in flight becomes due,
+     * or <code>Long.MAX_VALUE</code> if there is no such packet
+     */
+    private long sendDuePackets(long currentTime) {
+        int totalInFlight = 0;
+        for (int numInFlight: numPacketsInFlight.values())
+            totalInFlight += numInFlight;
+        
+        long nextSendTime = Long.MAX_VALUE;
+        for (OutgoingPacket outgoingPacket: packets.values()) {
+            if (outgoingPacket.isInFlight())
+                continue;
+            if (outgoingPacket.nextAttemptTime > currentTime) {
+                nextSendTime = Math.min(nextSendTime, outgoingPacket.nextAttemptTime);
+                continue;
+            }
+            Destination nextDestination = outgoingPacket.packet.getNextDestination();
+            if (totalInFlight>=MAX_PACKETS_IN_FLIGHT || getNumPacketsInFlight(nextDestination)>=MAX_PACKETS_IN_FLIGHT_PER_PEER)
+                continue;   // sent when a confirmation arrives or a timeout occurs
+            
+            log.debug("Sending relay packet to destination " + Util.toBase32(nextDestination) + " (attempt #" + (outgoingPacket.numAttempts+1) + ")");
+            outgoingPacket.sentSignal = sendQueue.send(outgoingPacket.packet, nextDestination);
+            outgoingPacket.sendTime = 0;
+            outgoingPacket.numAttempts++;
+            numPacketsInFlight.put(nextDestination, getNumPacketsInFlight(nextDestination) + 1);
+            totalInFlight++;
+        }
+        
+        // when a timeout can occur, check again
+        for (OutgoingPacket outgoingPacket: packets.values())
+            if (outgoingPacket.isInFlight())
+                nextSendTime = Math.min(nextSendTime, outgoingPacket.sendTime>0 ? outgoingPacket.sendTime+CONFIRMATION_TIMEOUT : currentTime+1000);
+        return nextSendTime;
+    }
+    
+    /**
+     * Takes packets that haven't been confirmed within <code>CONFIRMATION_TIMEOUT</code>
+     * out of flight and schedules them for another attempt. The caller must hold
+     * the lock on <code>packets</code>.
+     * @param currentTime
+     */
+    private void checkTimeouts(long currentTime) {
+        for (OutgoingPacket outgoingPacket: packets.values()) {
+            if (!outgoingPacket.isInFlight())
+                continue;
+            if (outgoingPacket.sendTime == 0) {
+                // the timeout starts when the packet has actually been sent
+                if (outgoingPacket.sentSignal.getCount() == 0)
+                    outgoingPacket.sendTime = currentTime;
+            }
+            else if (currentTime > outgoingPacket.sendTime+CONFIRMATION_TIMEOUT) {
+                Destination nextDestination = outgoingPacket.packet.getNextDestination();
+                log.debug("No confirmation from relay peer " + Util.toShortenedBase32(nextDestination) + ", will resend packet later: " + outgoingPacket.packet);
+                takeOutOfFlight(outgoingPacket);
+                outgoingPacket.nextAttemptTime = currentTime + retryDelay;
+                peerManager.addReachabilitySample(nextDestination, false);
+            }
+        }
+    }
+    
+    private void deleteConfirmedPackets() {
+        List<OutgoingPacket> packetsToDelete;
+        synchronized(packets) {
+            packetsToDelete = new ArrayList<OutgoingPacket>(confirmedPackets);
+            confirmedPackets.clear();
+        }
+        for (OutgoingPacket outgoingPacket: packetsToDelete) {
+            log.debug("Confirmation received from relay peer " + Util.toShortenedBase32(outgoingPacket.packet.getNextDestination()) + ", deleting packet: " + outgoingPacket.packet);
+            packetFolder.remove(outgoingPacket.packet);
         }
     }
     
+    /**
+     * Replaces packets a relay peer couldn't decrypt with copies that use a new ElGamal
+     * session, and schedules the copies for sending right away. Packets that can't be
+     * re-encrypted, because the session key is no longer known, are deleted.
+     */
+    private void reEncryptRejectedPackets() {
+        List<OutgoingPacket> packetsToReEncrypt;
+        synchronized(packets) {
+            packetsToReEncrypt = new ArrayList<OutgoingPacket>(rejectedPackets);
+            rejectedPackets.clear();
+        }
+        for (OutgoingPacket outgoingPacket: packetsToReEncrypt) {
+            RelayRequest oldPacket = outgoingPacket.packet;
+            RelayRequest newPacket = oldPacket.reEncrypt(sessionKeyManager, hashCashStrength);
+            if (newPacket == null)
+                log.error("Can't re-encrypt relay packet because the session key is unknown, deleting it: " + oldPacket);
+            else {
+                log.debug("Re-encrypted relay packet with a new session: " + oldPacket + " --> " + newPacket);
+                packetFolder.add(newPacket);
+            }
+            packetFolder.remove(oldPacket);
+            
+            synchronized(packets) {
+                packets.remove(oldPacket.getPacketId());
+                if (newPacket != null) {
+                    OutgoingPacket newOutgoingPacket = new OutgoingPacket(newPacket);
+                    newOutgoingPacket.numAttempts = outgoingPacket.numAttempts;
+                    packets.put(newPacket.getPacketId(), newOutgoingPacket);
+                }
+            }
+        }
+    }
+    
+    private int getNumPacketsInFlight(Destination peer) {
+        Integer numInFlight = numPacketsInFlight.get(peer);
+        return numInFlight==null ? 0 : numInFlight;
+    }
+    
+    private void takeOutOfFlight(OutgoingPacket outgoingPacket) {
+        Destination nextDestination = outgoingPacket.packet.getNextDestination();
+        int numInFlight = getNumPacketsInFlight(nextDestination) - 1;
+        if (numInFlight > 0)
+            numPacketsInFlight.put(nextDestination, numInFlight);
+        else
+            numPacketsInFlight.remove(nextDestination);
+        outgoingPacket.sentSignal = null;
+    }
+    
     @Override
     public void packetReceived(CommunicationPacket packet, Destination sender, long receiveTime) {
-        // synchronize access to lastSentPacket (which can be null, so synchronize on "this")
-        synchronized(this) {
-            if (lastSentPacket!=null && packet instanceof ResponsePacket) {
-                ResponsePacket responsePacket = (ResponsePacket)packet;
-                boolean packetIdMatches = lastSentPacket.getPacketId().equals(responsePacket.getPacketId());
-                boolean statusOk = StatusCode.OK == responsePacket.getStatusCode();
-                if (packetIdMatches && statusOk)
-                    confirmationReceived.countDown();
+        if (!(packet instanceof ResponsePacket))
+            return;
+        ResponsePacket responsePacket = (ResponsePacket)packet;
+        StatusCode statusCode = responsePacket.getStatusCode();
+        if (statusCode!=StatusCode.OK && statusCode!=StatusCode.NO_DISK_SPACE && statusCode!=StatusCode.INVALID_PACKET)
+            return;
+        
+        synchronized(packets) {
+            OutgoingPacket outgoingPacket = packets.get(responsePacket.getPacketId());
+            if (outgoingPacket==null || !outgoingPacket.isInFlight())
+                return;
+            if (!outgoingPacket.packet.getNextDestination().equals(sender))
+                return;
+            
+            takeOutOfFlight(outgoingPacket);
+            if (statusCode == StatusCode.OK) {
+                packets.remove(responsePacket.getPacketId());
+                confirmedPackets.add(outgoingPacket);
+            }
+            else if (statusCode == StatusCode.INVALID_PACKET) {
+                // The relay peer can't decrypt the packet, probably because it doesn't know the session tag
+                // anymore (it restarted, or it used the tag for an earlier attempt whose confirmation got lost).
+                // Sending the same data again won't help, so start a new session and re-encrypt the packet.
+                log.debug("Relay peer " + Util.toShortenedBase32(sender) + " can't decrypt packet, will re-encrypt it: " + outgoingPacket.packet);
+                outgoingPacket.nextAttemptTime = Long.MAX_VALUE;   // replaced by reEncryptRejectedPackets()
+                rejectedPackets.add(outgoingPacket);
+                sessionKeyManager.discardSession(sender.getPublicKey());
             }
+            else {
+                // the relay peer is busy, so don't wait for the confirmation timeout
+                log.debug("Relay peer " + Util.toShortenedBase32(sender) + " can't take the packet right now, will resend it later: " + outgoingPacket.packet);
+                outgoingPacket.nextAttemptTime = System.currentTimeMillis() + retryDelay;
+            }
+            packets.notifyAll();
+        }
+        if (statusCode == StatusCode.OK)
+            sessionKeyManager.packetConfirmed(responsePacket.getPacketId(), responsePacket.getProtocolVersion());
+        peerManager.addReachabilitySample(sender, true);
+    }
+    
+    /** A relay packet together with the state of its delivery attempts. */
+    private static class OutgoingPacket {
+        RelayRequest packet;
+        long nextAttemptTime;   // earliest time for the next attempt
+        CountDownLatch sentSignal;   // non-null while waiting for confirmation
+        long sendTime;   // when the packet left the send queue, or zero if it hasn't yet
+        int numAttempts;
+        
+        OutgoingPacket(RelayRequest packet) {
+            this.packet = packet;
+            nextAttemptTime = packet.getSendTime();
+        }
+        
+        boolean isInFlight() {
+            return sentSignal != null;
         }
     }
-}
\ No newline at end of file
+}
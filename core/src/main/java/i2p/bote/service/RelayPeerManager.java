@@ -21,16 +21,17 @@
 
 package i2p.bote.service;
 
+import i2p.bote.UniqueId;
 import i2p.bote.Util;
 import i2p.bote.network.BanList;
 import i2p.bote.network.I2PSendQueue;
-import i2p.bote.network.PacketBatch;
 import i2p.bote.network.PacketListener;
 import i2p.bote.network.PeerFileAnchor;
 import i2p.bote.network.RelayPeer;
 import i2p.bote.packet.CommunicationPacket;
 import i2p.bote.packet.DataPacket;
 import i2p.bote.packet.PeerList;
+import i2p.bote.packet.ResponsePacket;
 import i2p.bote.packet.relay.PeerListRequest;
 
 import java.io.BufferedWriter;
@@ -39,11 +40,20 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 
 import net.i2p.data.DataFormatException;
@@ -62,19 +72,33 @@ import net.i2p.util.SecureFileOutputStream;
  * <li/>Using relay peers for DHT bootstrapping could make it easier for
  *      malicious relay peers to mount a partitioning attack (not 100% sure about this).
  * </ul>
+ * <p/>
+ * The peer list is refreshed in the background by sending <code>PeerListRequest</code>s
+ * to all peers. Responses are processed as they arrive, and each one updates the
+ * reachability and latency of the peer that sent it. Requests that aren't answered within
+ * <code>RESPONSE_TIMEOUT</code> count as failures. Refreshes happen every
+ * <code>UPDATE_INTERVAL_SHORT</code> until <code>MIN_GOOD_PEERS</code> high-reachability
+ * peers are known, and every <code>UPDATE_INTERVAL_LONG</code> after that.
  */
 public class RelayPeerManager extends I2PAppThread implements PacketListener {
     private static final int MAX_PEERS = 50;   // maximum number of peers to keep track of
     private static final int MAX_PEERS_TO_SEND = 20;   // maximum number of peers to send in a peer list (the bigger a datagram, the less chance of it getting through)
     private static final int MIN_REACHABILITY = 80;   // percentage of requests sent to a peer / responses received back
-    private static final int UPDATE_INTERVAL_SHORT = 2;   // time in minutes between updating peers if no high-reachability peers are known
-    private static final int UPDATE_INTERVAL_LONG = 60;   // time in minutes between updating peers if at least one high-reachability peer is known
+    private static final int MIN_GOOD_PEERS = 5;   // the number of high-reachability peers below which peers are updated more often
+    private static final long UPDATE_INTERVAL_SHORT = TimeUnit.MINUTES.toMillis(2);   // time between updating peers if less than MIN_GOOD_PEERS high-reachability peers are known
+    private static final long UPDATE_INTERVAL_LONG = TimeUnit.MINUTES.toMillis(60);   // time between updating peers if enough high-reachability peers are known
+    private static final long RESPONSE_TIMEOUT = TimeUnit.MINUTES.toMillis(2);   // time after which an unanswered PeerListRequest counts as a failure
     
     private Log log = new Log(RelayPeerManager.class);
     private I2PSendQueue sendQueue;
     private Destination localDestination;
     private File peerFile;
-    private final Set<RelayPeer> peers;
+    private final Set<RelayPeer> peers;   // also used as the lock for the fields below
+    private Map<UniqueId, PendingRequest> pendingRequests;   // PeerListRequests that haven't been answered yet
+    private List<PeerSelection> pendingSelections;   // calls to getRandomPeersAsync() waiting for enough good peers
+    private long nextUpdateTime;
+    private boolean shutDown;
+    private Random random;
 
     public RelayPeerManager(I2PSendQueue sendQueue, Destination localDestination, File peerFile) {
         super("RelayPeerMgr");
@@ -83,6 +107,9 @@ public class RelayPeerManager extends I2PAppThread implements PacketListener {
         this.sendQueue = sendQueue;
         this.localDestination = localDestination;
         peers = new HashSet<RelayPeer>();
+        pendingRequests = new HashMap<UniqueId, PendingRequest>();
+        pendingSelections = new ArrayList<PeerSelection>();
+        random = new Random();
         
         // Read the updateable peer file if it exists
         if (peerFile.exists()) {
@@ -177,31 +204,86 @@ public class RelayPeerManager extends I2PAppThread implements PacketListener {
         }
     }
     
+
     /**
      * Returns <code>numPeers</code> randomly selected peers with a reachability
      * of <code>MIN_REACHABILITY</code> or higher. If less than <code>numPeers</code>
      * suitable peers are available, this method blocks until there are enough.
+     * @see #getRandomPeersAsync(int)
      */
     public List<Destination> getRandomPeers(int numPeers) {
-        while (!Thread.interrupted()) {
-            List<Destination> goodPeers = getGoodPeers();
-            if (goodPeers.size() >= numPeers) {
-                Collections.shuffle(goodPeers);
-                goodPeers = goodPeers.subList(0, numPeers);
-                return goodPeers;
-            }
-            // if not enough peers, wait and try again
-            log.debug("Not enough relay peers available, trying again in 1 minute.");
-            try {
-                TimeUnit.MINUTES.sleep(1);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            }
+        Future<List<Destination>> result = getRandomPeersAsync(numPeers);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(false);
+            Thread.currentThread().interrupt();
+        } catch (CancellationException e) {
+            log.debug("Peer selection cancelled because the RelayPeerManager is shutting down.");
+        } catch (ExecutionException e) {
+            log.error("Can't select relay peers", e.getCause());
         }
         return Collections.emptyList();   // thread is shutting down
     }
 
+    /**
+     * Selects <code>numPeers</code> peers with a reachability of <code>MIN_REACHABILITY</code>
+     * or higher, without blocking. Peers are picked at random, with peers that have a high
+     * reachability and a low latency being more likely to be picked.<br/>
+     * If less than <code>numPeers</code> suitable peers are available, the returned
+     * <code>Future</code> completes when there are enough, and the peer list is refreshed
+     * right away. It is cancelled if the <code>RelayPeerManager</code> shuts down first.
+     * @param numPeers
+     */
+    public Future<List<Destination>> getRandomPeersAsync(int numPeers) {
+        PeerSelection selection = new PeerSelection(numPeers);
+        synchronized(peers) {
+            if (shutDown)
+                selection.result.cancel(false);
+            else if (!selection.tryComplete()) {
+                log.debug("Not enough relay peers available for " + numPeers + " hops, updating peers.");
+                pendingSelections.add(selection);
+                nextUpdateTime = 0;
+                peers.notifyAll();
+            }
+        }
+        return selection.result;
+    }
+
+    /**
+     * Picks <code>numPeers</code> high-reachability peers at random, using the peer's
+     * score as a weight. The caller must hold the lock on <code>peers</code>.
+     */
+    private List<Destination> selectPeers(int numPeers) {
+        List<RelayPeer> candidates = new ArrayList<RelayPeer>();
+        for (Destination peer: getGoodPeers())
+            candidates.add((RelayPeer)peer);
+        
+        List<Destination> selectedPeers = new ArrayList<Destination>();
+        while (selectedPeers.size()<numPeers && !candidates.isEmpty()) {
+            double totalScore = 0;
+            for (RelayPeer candidate: candidates)
+                totalScore += candidate.getScore();
+            double r = random.nextDouble() * totalScore;
+            int index = 0;
+            while (index<candidates.size()-1 && r>=candidates.get(index).getScore()) {
+                r -= candidates.get(index).getScore();
+                index++;
+            }
+            selectedPeers.add(candidates.remove(index));
+        }
+        return selectedPeers;
+    }
+    
+    /** Completes the pending calls to getRandomPeersAsync() that can be satisfied. The caller must hold the lock on <code>peers</code>. */
+    private void completeSelections() {
+        for (Iterator<PeerSelection> iterator=pendingSelections.iterator(); iterator.hasNext(); ) {
+            PeerSelection selection = iterator.next();
+            if (selection.result.isDone() || selection.tryComplete())
+                iterator.remove();
+        }
+    }
+    
     /** Returns all high-reachability peers */
     private List<Destination> getGoodPeers() {
         List<Destination> goodPeers = new ArrayList<Destination>();
@@ -221,6 +303,24 @@ public class RelayPeerManager extends I2PAppThread implements PacketListener {
         return goodPeers;
     }
     
+    /**
+     * Records whether a peer confirmed a packet other than a <code>PeerListRequest</code>,
+     * for example a relay packet. Nothing happens if the peer is not a known relay peer.
+     * @param peer
+     * @param didRespond
+     */
+    public void addReachabilitySample(Destination peer, boolean didRespond) {
+        synchronized(peers) {
+            for (RelayPeer relayPeer: peers)
+                if (relayPeer.equals(peer)) {
+                    relayPeer.addReachabilitySample(didRespond);
+                    if (didRespond)
+                        completeSelections();
+                    return;
+                }
+        }
+    }
+    
     public Set<RelayPeer> getAllPeers() {
         return peers;
     }
@@ -229,66 +329,24 @@ public class RelayPeerManager extends I2PAppThread implements PacketListener {
     public void run() {
         while (!Thread.interrupted()) {
             try {
-                // ask all peers for their peer lists
-                Set<RelayPeer> peersToQuery = new HashSet<RelayPeer>(peers);
-                PacketBatch batch = new PacketBatch();
-                for (RelayPeer peer: peersToQuery)
-                    batch.putPacket(new PeerListRequest(), peer);   // don't reuse request packets because PacketBatch will not add the same one more than once
-                sendQueue.send(batch);
-                batch.awaitSendCompletion();
-                batch.awaitAllResponses(2, TimeUnit.MINUTES);
-                
-                // build a Set of destinations 
-                Set<Destination> responders = batch.getResponses().keySet();
-                // update reachability data
-                log.debug("Relay peer stats:");
-                for (RelayPeer peer: peersToQuery) {   // use peersToQuery (not peers) so new peers that have been added in the meantime are not wrongly considered unresponsive
-                    boolean didRespond = responders.contains(peer);
-                    peer.addReachabilitySample(didRespond);
-                    if (log.shouldLog(Log.DEBUG)) {
-                        StringBuilder logMessage = new StringBuilder("  ");
-                        logMessage.append(Util.toBase32(peer));
-                        logMessage.append(" ");
-                        for (boolean responded: peer.getAllSamples())
-                            logMessage.append(responded?'*':'.');
-                        log.debug(logMessage.toString());
-                    }
-                }
-                
-                // make a Set with the new peers
-                Set<Destination> receivedPeers = new HashSet<Destination>();
-                BanList banList = BanList.getInstance();
-                for (DataPacket response: batch.getResponses().values()) {
-                    if (!(response instanceof PeerList))
-                        continue;
-                    PeerList peerList = (PeerList)response;
-                    for (Destination peer: peerList.getPeers())
-                        if (!banList.isBanned(peer))
-                            receivedPeers.add(peer);
-                }
-                log.debug("Received a total of " + receivedPeers.size() + " relay peers in " + batch.getResponses().size() + " packets.");
-                
-                // replace low-reachability peers with new peers (a PeerList is supposed to contain only high-reachability peers)
                 synchronized(peers) {
-                    // add all received peers, then remove low-reachability ones (all of which are existing peers)
-                    for (Destination newPeer: receivedPeers)
-                        if (!localDestination.equals(newPeer))
-                            peers.add(new RelayPeer(newPeer));
-                    for (Iterator<RelayPeer> iterator=peers.iterator(); iterator.hasNext();) {
-                        if (peers.size() <= MAX_PEERS)
-                            break;
-                        RelayPeer peer = iterator.next();
-                        if (!peer.getAllSamples().isEmpty() && peer.getReachability()<MIN_REACHABILITY)   // don't remove the peer before it has had a chance to respond to a request
-                            iterator.remove();
+                    long currentTime = System.currentTimeMillis();
+                    checkTimeouts(currentTime);
+                    if (currentTime >= nextUpdateTime) {
+                        sendPeerListRequests(currentTime);
+                        if (getGoodPeers().size()<MIN_GOOD_PEERS || !pendingSelections.isEmpty())
+                            nextUpdateTime = currentTime + UPDATE_INTERVAL_SHORT;
+                        else
+                            nextUpdateTime = currentTime + UPDATE_INTERVAL_LONG;
                     }
+                    
+                    // wait until the next update or the next timeout, whichever comes first
+                    long wakeUpTime = nextUpdateTime;
+                    for (PendingRequest request: pendingRequests.values())
+                        wakeUpTime = Math.min(wakeUpTime, request.sentTime+RESPONSE_TIMEOUT+1);
+                    if (wakeUpTime > currentTime)
+                        peers.wait(wakeUpTime - currentTime);
                 }
-                log.debug("Number of relay peers is now " + peers.size());
-                
-                // if no good peers available, ask more often
-                if (getGoodPeers().isEmpty())
-                    TimeUnit.MINUTES.sleep(UPDATE_INTERVAL_SHORT);
-                else
-                    TimeUnit.MINUTES.sleep(UPDATE_INTERVAL_LONG);
             } catch (InterruptedException e) {
                 break;
             } catch (RuntimeException e) {   // catch unexpected exceptions to keep the thread running
@@ -296,10 +354,89 @@ public class RelayPeerManager extends I2PAppThread implements PacketListener {
             }
         }
         
-        writePeers(peerFile);
+        synchronized(peers) {
+            shutDown = true;
+            for (PeerSelection selection: pendingSelections)
+                selection.result.cancel(false);
+            pendingSelections.clear();
+            writePeers(peerFile);
+        }
         log.debug("RelayPeerManager thread exiting.");
     }
 
+    /**
+     * Asks all peers that don't have a request pending for their peer lists.
+     * The caller must hold the lock on <code>peers</code>.
+     * @param currentTime
+     */
+    private void sendPeerListRequests(long currentTime) {
+        Set<Destination> peersWithPendingRequest = new HashSet<Destination>();
+        for (PendingRequest request: pendingRequests.values())
+            peersWithPendingRequest.add(request.peer);
+        
+        List<RelayPeer> peersToQuery = new ArrayList<RelayPeer>();
+        for (RelayPeer peer: peers)
+            if (!peersWithPendingRequest.contains(peer))
+                peersToQuery.add(peer);
+        log.debug("Sending PeerListRequests to " + peersToQuery.size() + " relay peers.");
+        for (RelayPeer peer: peersToQuery) {
+            PeerListRequest request = new PeerListRequest();   // don't reuse request packets because responses are matched by packet id
+            pendingRequests.put(request.getPacketId(), new PendingRequest(peer, currentTime));
+            sendQueue.send(request, peer);
+        }
+    }
+    
+    /**
+     * Counts PeerListRequests that haven't been answered within <code>RESPONSE_TIMEOUT</code>
+     * as failures. The caller must hold the lock on <code>peers</code>.
+     * @param currentTime
+     */
+    private void checkTimeouts(long currentTime) {
+        for (Iterator<PendingRequest> iterator=pendingRequests.values().iterator(); iterator.hasNext(); ) {
+            PendingRequest request = iterator.next();
+            if (currentTime > request.sentTime+RESPONSE_TIMEOUT) {
+                request.peer.addReachabilitySample(false);
+                iterator.remove();
+                logPeerStats(request.peer);
+            }
+        }
+    }
+    
+    /**
+     * Adds peers from a <code>PeerList</code> and removes low-reachability peers if
+     * there are too many. The caller must hold the lock on <code>peers</code>.
+     * @param receivedPeers
+     */
+    private void addReceivedPeers(Collection<Destination> receivedPeers) {
+        BanList banList = BanList.getInstance();
+        // add all received peers, then remove low-reachability ones (all of which are existing peers)
+        // because a PeerList is supposed to contain only high-reachability peers
+        for (Destination newPeer: receivedPeers)
+            if (!localDestination.equals(newPeer) && !banList.isBanned(newPeer) && !peers.contains(newPeer))
+                peers.add(new RelayPeer(newPeer));
+        for (Iterator<RelayPeer> iterator=peers.iterator(); iterator.hasNext();) {
+            if (peers.size() <= MAX_PEERS)
+                break;
+            RelayPeer peer = iterator.next();
+            if (!peer.getAllSamples().isEmpty() && peer.getReachability()<MIN_REACHABILITY)   // don't remove the peer before it has had a chance to respond to a request
+                iterator.remove();
+        }
+        log.debug("Number of relay peers is now " + peers.size());
+    }
+    
+    private void logPeerStats(RelayPeer peer) {
+        if (log.shouldLog(Log.DEBUG)) {
+            StringBuilder logMessage = new StringBuilder("Relay peer ");
+            logMessage.append(Util.toBase32(peer));
+            logMessage.append(" ");
+            for (boolean responded: peer.getAllSamples())
+                logMessage.append(responded?'*':'.');
+            logMessage.append(" reachability=").append(peer.getReachability()).append("%");
+            logMessage.append(" latency=").append(peer.getLatency()).append("ms");
+            log.debug(logMessage.toString());
+        }
+    }
+    
     @Override
     public void packetReceived(CommunicationPacket packet, Destination sender, long receiveTime) {
         BanList banList = BanList.getInstance();
@@ -321,10 +458,68 @@ public class RelayPeerManager extends I2PAppThread implements PacketListener {
                 sendQueue.sendResponse(response, sender, packet.getPacketId());
             }
             
+            // process responses to our PeerListRequests
+            if (packet instanceof ResponsePacket) {
+                PendingRequest request = pendingRequests.get(packet.getPacketId());
+                if (request!=null && request.peer.equals(sender)) {
+                    pendingRequests.remove(packet.getPacketId());
+                    request.peer.addReachabilitySample(true);
+                    request.peer.addLatencySample(receiveTime - request.sentTime);
+                    logPeerStats(request.peer);
+                    
+                    DataPacket payload = ((ResponsePacket)packet).getPayload();
+                    if (payload instanceof PeerList) {
+                        Collection<Destination> receivedPeers = ((PeerList)payload).getPeers();
+                        log.debug("Received " + receivedPeers.size() + " relay peers from " + Util.toShortenedBase32(sender));
+                        addReceivedPeers(receivedPeers);
+                    }
+                }
+            }
+            
             // If there are less than MAX_PEERS/2 peers, add the sender (which can be a relay peer or a DHT peer)
             // as a relay peer. The other MAX_PEERS/2 are reserved for peers from PeerListRequests since they are preferrable.
             if (peers.size() < MAX_PEERS/2)
                 peers.add(new RelayPeer(sender));
+            
+            completeSelections();
+        }
+    }
+    
+    /** A <code>PeerListRequest</code> that is waiting for a response */
+    private static class PendingRequest {
+        RelayPeer peer;
+        long sentTime;
+        
+        PendingRequest(RelayPeer peer, long sentTime) {
+            this.peer = peer;
+            this.sentTime = sentTime;
+        }
+    }
+    
+    /** A call to {@link RelayPeerManager#getRandomPeersAsync(int)} */
+    private class PeerSelection implements Callable<List<Destination>> {
+        int numPeers;
+        FutureTask<List<Destination>> result;
+        
+        PeerSelection(int numPeers) {
+            this.numPeers = numPeers;
+            result = new FutureTask<List<Destination>>(this);
+        }
+        
+        /**
+         * Completes <code>result</code> if enough good peers are available.
+         * The caller must hold the lock on <code>peers</code>.
+         */
+        boolean tryComplete() {
+            if (getGoodPeers().size() < numPeers)
+                return false;
+            result.run();
+            return true;
+        }
+        
+        @Override
+        public List<Destination> call() {
+            return selectPeers(numPeers);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.service;
+
+import i2p.bote.UniqueId;
+import i2p.bote.packet.relay.RelayRequest;
+import i2p.bote.packet.relay.ReturnChain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.Destination;
+import net.i2p.util.Log;
+
+/**
+ * Builds {@link ReturnChain}s for outgoing {@link RelayRequest}s and matches the
+ * end-to-end confirmations that come back through them.<br/>
+ * A confirmation means every relay peer on the forward and the return path did
+ * its job, so all of them are reported to the {@link RelayPeerManager} as reachable.
+ * Confirmations that don't arrive are simply forgotten after a while, because there
+ * is no way to tell which peer dropped the packet.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class ReturnChainTracker {
+    private static final long MAX_DELAY_PER_HOP = TimeUnit.HOURS.toMillis(1);   // allowance for retries at each hop, on top of the relay delay
+    
+    private Log log = new Log(ReturnChainTracker.class);
+    private Destination localDestination;
+    private RelayPeerManager peerManager;
+    private Map<UniqueId, PendingConfirmation> pendingConfirmations;   // also used as the lock for the statistics below
+    private int numConfirmed;
+    private long totalLatency;
+
+    public ReturnChainTracker(Destination localDestination, RelayPeerManager peerManager) {
+        this.localDestination = localDestination;
+        this.peerManager = peerManager;
+        pendingConfirmations = new HashMap<UniqueId, PendingConfirmation>();
+    }
+    
+    /**
+     * Creates a return chain for a <code>RelayRequest</code> that is sent through
+     * <code>forwardPeers</code>. Returns an empty chain if there are no forward peers
+     * or no relay peers for the return path.
+     * @param forwardPeers The relay peers of the <code>RelayRequest</code>, starting with the exit node
+     * @param numReturnHops The number of relay peers on the return path
+     * @param minDelay The minimum delay at each return hop in milliseconds
+     * @param maxDelay The maximum delay at each return hop in milliseconds
+     * @param hashCashStrength
+     * @see RelayRequest#create(i2p.bote.packet.CommunicationPacket, List, long, long, int, ReturnChain)
+     */
+    public ReturnChain createReturnChain(List<Destination> forwardPeers, int numReturnHops, long minDelay, long maxDelay, int hashCashStrength) {
+        if (forwardPeers.isEmpty() || numReturnHops<=0)
+            return new ReturnChain();
+        List<Destination> returnPeers = peerManager.getRandomPeers(numReturnHops);
+        if (returnPeers.isEmpty())
+            return new ReturnChain();
+        
+        UniqueId confirmationId = new UniqueId();
+        ReturnChain returnChain = ReturnChain.create(confirmationId, forwardPeers.get(0), returnPeers, localDestination, minDelay, maxDelay, hashCashStrength);
+        
+        long currentTime = System.currentTimeMillis();
+        int numHops = forwardPeers.size() + returnPeers.size() + 1;
+        long deadline = currentTime + numHops * (maxDelay+MAX_DELAY_PER_HOP);
+        List<Destination> peers = new ArrayList<Destination>(forwardPeers);
+        peers.addAll(returnPeers);
+        synchronized(pendingConfirmations) {
+            forgetExpired(currentTime);
+            pendingConfirmations.put(confirmationId, new PendingConfirmation(currentTime, deadline, peers));
+        }
+        return returnChain;
+    }
+    
+    /**
+     * Called when a confirmation has arrived at the end of a return chain.
+     * @param confirmationId
+     * @return <code>true</code> if the confirmation was expected, <code>false</code> if
+     * it is unknown or has expired
+     */
+    public boolean confirmationReceived(UniqueId confirmationId) {
+        return confirmationReceived(confirmationId, System.currentTimeMillis());
+    }
+    
+    boolean confirmationReceived(UniqueId confirmationId, long currentTime) {
+        PendingConfirmation confirmation;
+        synchronized(pendingConfirmations) {
+            forgetExpired(currentTime);
+            confirmation = pendingConfirmations.remove(confirmationId);
+            if (confirmation == null) {
+                log.debug("Received an unknown or expired relay confirmation: " + confirmationId);
+                return false;
+            }
+            numConfirmed++;
+            totalLatency += currentTime - confirmation.creationTime;
+        }
+        
+        log.debug("End-to-end relay confirmation received after " + (currentTime-confirmation.creationTime)/1000 + " seconds.");
+        for (Destination peer: confirmation.peers)
+            peerManager.addReachabilitySample(peer, true);
+        return true;
+    }
+    
+    /** Returns the number of confirmations that haven't arrived yet. */
+    public int getNumPending() {
+        synchronized(pendingConfirmations) {
+            forgetExpired(System.currentTimeMillis());
+            return pendingConfirmations.size();
+        }
+    }
+    
+    /** Returns the number of confirmations that have arrived. */
+    public int getNumConfirmed() {
+        synchronized(pendingConfirmations) {
+            return numConfirmed;
+        }
+    }
+    
+    /**
+     * Returns the average time between creating a return chain and receiving
+     * the confirmation, in milliseconds, or <code>-1</code> if no confirmation
+     * has arrived yet.
+     */
+    public long getAverageLatency() {
+        synchronized(pendingConfirmations) {
+            return numConfirmed==0 ? -1 : totalLatency/numConfirmed;
+        }
+    }
+    
+    /** The caller must hold the lock on <code>pendingConfirmations</code>. */
+    private void forgetExpired(long currentTime) {
+        for (Iterator<PendingConfirmation> iterator=pendingConfirmations.values().iterator(); iterator.hasNext(); )
+            if (iterator.next().deadline < currentTime)
+                iterator.remove();
+    }
+    
+    private static class PendingConfirmation {
+        long creationTime;
+        long deadline;   // the confirmation is forgotten after this time
+        List<Destination> peers;   // the forward and return peers
+        
+        PendingConfirmation(long creationTime, long deadline, List<Destination> peers) {
+            this.creationTime = creationTime;
+            this.deadline = deadline;
+            this.peers = peers;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package i2p.bote.status;
 
 public enum ChangeIdentityStatus {
+    /** For vanity Destinations, the arguments are the number of keys generated per second and the estimated number of seconds remaining. */
     GENERATING_KEYS,
     SAVING_IDENTITY,
 }
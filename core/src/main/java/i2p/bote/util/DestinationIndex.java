@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package i2p.bote.util;
+
+import i2p.bote.email.EmailDestination;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import net.i2p.data.Hash;
+
+/**
+ * Hash indexes over objects that each have an {@link EmailDestination} and a
+ * name, such as Email Identities and address book contacts. Objects can be
+ * looked up by Base64 destination, by destination hash, and by name (ignoring
+ * case) without searching through all of them.<br/>
+ * An object's name may change while it is in the index, but the index has
+ * to be told about it via {@link #update(Object)}.
+ * <p/>
+ * This class is not thread-safe.
+ * @param <T> The type of the indexed objects
+ */
+public abstract class DestinationIndex<T> {
+    private Map<String, Entry<T>> byDestination;   // maps Base64 destinations to entries
+    private Map<Hash, Entry<T>> byHash;
+    private Map<String, List<T>> byName;   // maps lower-case names to the objects with that name
+    
+    public DestinationIndex() {
+        byDestination = new HashMap<String, Entry<T>>();
+        byHash = new HashMap<Hash, Entry<T>>();
+        byName = new HashMap<String, List<T>>();
+    }
+    
+    protected abstract EmailDestination getDestination(T item);
+    
+    /** May return <code>null</code>. */
+    protected abstract String getName(T item);
+    
+    /**
+     * Adds an object to the index. If an object with the same destination is
+     * in the index already, it is replaced.
+     * @param item
+     */
+    public void add(T item) {
+        EmailDestination destination = getDestination(item);
+        String base64Dest = destination.getKey();
+        remove(base64Dest);
+        
+        Entry<T> entry = new Entry<T>(item, destination.getHash(), toNameKey(getName(item)));
+        byDestination.put(base64Dest, entry);
+        byHash.put(entry.hash, entry);
+        List<T> namesakes = byName.get(entry.nameKey);
+        if (namesakes == null) {
+            namesakes = new ArrayList<T>(1);
+            byName.put(entry.nameKey, namesakes);
+        }
+        namesakes.add(item);
+    }
+    
+    /**
+     * Removes the object with a given destination from the index.
+     * @param base64Dest
+     * @return the object that was removed, or <code>null</code> if there was none
+     */
+    public T remove(String base64Dest) {
+        Entry<T> entry = byDestination.remove(base64Dest);
+        if (entry == null)
+            return null;
+        
+        byHash.remove(entry.hash);
+        List<T> namesakes = byName.get(entry.nameKey);
+        if (namesakes != null) {
+            // compare by reference; the name index doesn't depend on equals()
+            for (int i=0; i<namesakes.size(); i++)
+                if (namesakes.get(i) == entry.item) {
+                    namesakes.remove(i);
+                    break;
+                }
+            if (namesakes.isEmpty())
+                byName.remove(entry.nameKey);
+        }
+        return entry.item;
+    }
+    
+    /**
+     * Updates the name index after the name of an object has changed.
+     * @param item
+     */
+    public void update(T item) {
+        add(item);
+    }
+    
+    /**
+     * Returns the object with a given Base64 destination, or <code>null</code>.
+     * @param base64Dest
+     */
+    public T get(String base64Dest) {
+        if (base64Dest == null)
+            return null;
+        Entry<T> entry = byDestination.get(base64Dest);
+        return entry==null ? null : entry.item;
+    }
+    
+    /**
+     * Returns the object whose destination has a given hash (see
+     * {@link EmailDestination#getHash()}), or <code>null</code>.
+     * @param destinationHash
+     */
+    public T getByHash(Hash destinationHash) {
+        Entry<T> entry = byHash.get(destinationHash);
+        return entry==null ? null : entry.item;
+    }
+    
+    /**
+     * Returns all objects with a given name, ignoring case. The returned list
+     * is empty if there are none.
+     * @param name
+     */
+    public List<T> getByName(String name) {
+        List<T> namesakes = byName.get(toNameKey(name));
+        if (namesakes == null)
+            return Collections.emptyList();
+        return Collections.unmodifiableList(namesakes);
+    }
+    
+    public boolean contains(String base64Dest) {
+        return base64Dest!=null && byDestination.containsKey(base64Dest);
+    }
+    
+    public int size() {
+        return byDestination.size();
+    }
+    
+    public void clear() {
+        byDestination.clear();
+        byHash.clear();
+        byName.clear();
+    }
+    
+    private static String toNameKey(String name) {
+        return name==null ? "" : name.toLowerCase(Locale.ENGLISH);
+    }
+    
+    /** Remembers the hash and name an object was indexed under, so it can be removed after the name has changed */
+    private static class Entry<T> {
+        T item;
+        Hash hash;
+        String nameKey;
+        
+        Entry(T item, Hash hash, String nameKey) {
+            this.item = item;
+            this.hash = hash;
+            this.nameKey = nameKey;
+        }
+    }
+}
@@ -59,17 +59,35 @@ public abstract class ExportableData {
             Properties properties = new Properties();
             properties.load(new InputStreamReader(importStream));
 
-            if (loadFromProperties(properties, append, replace)) {
-                // Save the new data
-                save();
-                return true;
-            } else // No data found
-                return false;
+            return importFromProperties(properties, append, replace);
         } finally {
             importStream.close();
         }
     }
 
+    /**
+     * Imports data in the export format from a <code>Properties</code> object
+     * and saves it.
+     *
+     * @param properties
+     * @param append               Set to false if existing data should be dropped.
+     * @param replace              Set to false to ignore duplicates, true to import and replace existing.
+     * @return true if the import succeeded, false if no valid data was found.
+     * @throws PasswordException
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public boolean importFromProperties(Properties properties, boolean append, boolean replace) throws PasswordException, IOException, GeneralSecurityException {
+        initializeIfNeeded();
+
+        if (loadFromProperties(properties, append, replace)) {
+            // Save the new data
+            save();
+            return true;
+        } else // No data found
+            return false;
+    }
+
     public void export(File exportFile, String password) throws IOException, GeneralSecurityException, PasswordException {
         initializeIfNeeded();
 
@@ -36,6 +36,7 @@ import i2p.bote.email.EmailIdentity;
 import i2p.bote.email.Fingerprint;
 import i2p.bote.email.Identities;
 import i2p.bote.email.IllegalDestinationParametersException;
+import i2p.bote.email.VanityGenerator;
 import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.folder.EmailFolder;
 import i2p.bote.folder.Outbox.EmailStatus;
@@ -50,10 +51,13 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
+import java.security.KeyException;
+import java.security.KeyPair;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.crypto.Cipher;
@@ -172,7 +176,10 @@ public class GeneralHelper {
 
             lsnr.updateStatus(ChangeIdentityStatus.GENERATING_KEYS);
             try {
-                identity = new EmailIdentity(cryptoImpl, vanityPrefix);
+                if (vanityPrefix==null || vanityPrefix.isEmpty())
+                    identity = new EmailIdentity(cryptoImpl, (String)null);
+                else
+                    identity = new EmailIdentity(cryptoImpl, generateVanityKeys(cryptoImpl, vanityPrefix, lsnr));
             } catch (GeneralSecurityException e) {
                 log.error("Can't generate email identity for CryptoImplementation: <" + cryptoImpl + "> with vanity prefix: <" + vanityPrefix + ">", e);
                 throw e;
@@ -199,6 +206,34 @@ public class GeneralHelper {
             identities.setDefault(identity);
     }
 
+    /**
+     * Generates an encryption key pair for a vanity Destination on all processor cores.
+     * While the search is running, the listener is updated once per second with the
+     * number of key pairs generated per second and the estimated number of seconds
+     * remaining.<br/>
+     * If the current thread is interrupted, the search is cancelled.
+     * @throws KeyException if the search was cancelled
+     */
+    private static KeyPair generateVanityKeys(CryptoImplementation cryptoImpl, String vanityPrefix, StatusListener<ChangeIdentityStatus> lsnr) throws GeneralSecurityException, IllegalDestinationParametersException {
+        VanityGenerator generator = new VanityGenerator(cryptoImpl, vanityPrefix);
+        generator.start();
+        try {
+            while (!generator.await(1, TimeUnit.SECONDS)) {
+                long timeRemaining = generator.getEstimatedTimeRemaining();
+                if (timeRemaining >= 0)
+                    lsnr.updateStatus(ChangeIdentityStatus.GENERATING_KEYS,
+                            String.valueOf(Math.round(generator.getAttemptsPerSecond())),
+                            String.valueOf(timeRemaining / 1000));
+            }
+            return generator.getKeyPair();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeyException("Interrupted while generating a vanity key pair", e);
+        } finally {
+            generator.cancel();
+        }
+    }
+
     public static void modifyIdentity(String key, String publicName, String description, String pictureBase64, String emailAddress, Properties config, boolean setDefault) throws GeneralSecurityException, PasswordException, IOException {
         try {
             createOrModifyIdentity(false, -1, null, key, publicName, description, pictureBase64, emailAddress, config, setDefault);
@@ -290,6 +325,8 @@ public class GeneralHelper {
             contact.setName(name);
             contact.setPictureBase64(pictureBase64);
             contact.setText(text);
+            // adding the contact again re-sorts it and updates the name index
+            addressBook.add(contact);
         }
         else {
             EmailDestination destination;
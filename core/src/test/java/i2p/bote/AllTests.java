@@ -22,22 +22,40 @@
 package i2p.bote;
 
 import i2p.bote.crypto.CryptoImplementationTest;
+import i2p.bote.crypto.RelaySessionKeyManagerTest;
 import i2p.bote.email.EmailIdentityTest;
 import i2p.bote.email.EmailMetadataTest;
 import i2p.bote.email.EmailTest;
+import i2p.bote.email.FingerprintTest;
 import i2p.bote.email.IdentitiesTest;
+import i2p.bote.email.SignatureVerifierTest;
+import i2p.bote.email.VanityGeneratorTest;
 import i2p.bote.fileencryption.EncryptedStreamTest;
 import i2p.bote.fileencryption.FileEncryptionUtilTest;
 import i2p.bote.fileencryption.PasswordCacheTest;
+import i2p.bote.fileencryption.ReEncryptorTest;
+import i2p.bote.fileencryption.ReKeyThreadTest;
 import i2p.bote.folder.DirectoryEntryFolderTest;
 import i2p.bote.folder.EmailFolderTest;
 import i2p.bote.folder.EmailPacketFolderTest;
+import i2p.bote.folder.ExpirationIndexTest;
 import i2p.bote.folder.FolderTest;
 import i2p.bote.folder.IncompleteEmailFolderTest;
 import i2p.bote.folder.IndexPacketFolderTest;
+import i2p.bote.folder.MessageIdCacheTest;
+import i2p.bote.folder.MetadataJournalTest;
+import i2p.bote.folder.PendingDeliveryListTest;
+import i2p.bote.folder.RecordStoreTest;
 import i2p.bote.folder.RelayPacketFolderTest;
+import i2p.bote.network.DatagramSessionManagerTest;
+import i2p.bote.network.HashCashVerifierTest;
+import i2p.bote.network.RelayPacketHandlerTest;
 import i2p.bote.network.kademlia.BucketManagerTest;
 import i2p.bote.network.kademlia.KBucketTest;
+import i2p.bote.network.kademlia.KademliaDHTTest;
+import i2p.bote.network.kademlia.KademliaUtilTest;
+import i2p.bote.network.kademlia.LookupCoordinatorTest;
+import i2p.bote.network.kademlia.RoutingTableSnapshotTest;
 import i2p.bote.packet.I2PBotePacketTest;
 import i2p.bote.packet.PeerListTest;
 import i2p.bote.packet.ResponsePacketTest;
@@ -50,9 +68,14 @@ import i2p.bote.packet.dht.IndexPacketDeleteRequestTest;
 import i2p.bote.packet.dht.IndexPacketTest;
 import i2p.bote.packet.dht.StoreRequestTest;
 import i2p.bote.packet.dht.UnencryptedEmailPacketTest;
+import i2p.bote.packet.relay.RelayOnionEncoderTest;
 import i2p.bote.packet.relay.RelayRequestTest;
 import i2p.bote.packet.relay.ReturnChainTest;
+import i2p.bote.service.DeliveryCheckerTest;
 import i2p.bote.service.OutboxProcessorTest;
+import i2p.bote.service.RelayPacketSenderTest;
+import i2p.bote.service.RelayPeerManagerTest;
+import i2p.bote.service.ReturnChainTrackerTest;
 import junit.framework.Test;
 import junit.framework.TestSuite;
 
@@ -73,6 +96,7 @@ import org.junit.runners.Suite;
     PeerListTest.class,
     IndexPacketDeleteRequestTest.class,
     RelayRequestTest.class,
+    RelayOnionEncoderTest.class,
     ReturnChainTest.class,
     DeletionQueryTest.class,
     ContactTest.class,
@@ -82,24 +106,46 @@ import org.junit.runners.Suite;
     FolderTest.class,
     EmailFolderTest.class,
     EmailPacketFolderTest.class,
+    ExpirationIndexTest.class,
     IncompleteEmailFolderTest.class,
     IndexPacketFolderTest.class,
+    MessageIdCacheTest.class,
+    MetadataJournalTest.class,
+    PendingDeliveryListTest.class,
+    RecordStoreTest.class,
     RelayPacketFolderTest.class,
 
     // Services
     OutboxProcessorTest.class,
+    RelayPeerManagerTest.class,
+    RelayPacketSenderTest.class,
+    DeliveryCheckerTest.class,
+    RelayPacketHandlerTest.class,
+    ReturnChainTrackerTest.class,
 
     // Other
     EmailTest.class,
     EmailMetadataTest.class,
+    SignatureVerifierTest.class,
     EmailIdentityTest.class,
+    FingerprintTest.class,
     IdentitiesTest.class,
+    VanityGeneratorTest.class,
+    HashCashVerifierTest.class,
+    DatagramSessionManagerTest.class,
     KBucketTest.class,
+    KademliaUtilTest.class,
     BucketManagerTest.class,
+    RoutingTableSnapshotTest.class,
+    LookupCoordinatorTest.class,
+    KademliaDHTTest.class,
     CryptoImplementationTest.class,
+    RelaySessionKeyManagerTest.class,
     EncryptedStreamTest.class,
     FileEncryptionUtilTest.class,
-    PasswordCacheTest.class
+    PasswordCacheTest.class,
+    ReEncryptorTest.class,
+    ReKeyThreadTest.class
 })
 public class AllTests {
 
@@ -39,9 +39,11 @@ import i2p.bote.fileencryption.PasswordException;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.PrivateKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -130,11 +132,30 @@ public class TestUtil {
         new File(testDir, "password").delete();
     }
     
+    /** Reads the contents of a file */
+    public static byte[] readFile(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            return Util.readBytes(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+    
+    /** Deletes a directory and the files in it */
+    public static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file: files)
+                file.delete();
+        dir.delete();
+    }
+    
     /** Returns a <code>KeyUpdateHandler</code> that does nothing */
     public static KeyUpdateHandler createDummyKeyUpdateHandler() {
         return new KeyUpdateHandler() {
             @Override
-            public void updateKey() throws GeneralSecurityException, PasswordException, IOException {
+            public void updateKey(PrivateKey privateKey) throws GeneralSecurityException, PasswordException, IOException {
             }
         };
     }
@@ -144,7 +165,7 @@ public class TestUtil {
         Mockery mockery = new Mockery();
         final KeyUpdateHandler keyUpdateHandler = mockery.mock(KeyUpdateHandler.class);
         mockery.checking(new Expectations() {{
-            exactly(numExpectedCalls).of(keyUpdateHandler).updateKey();
+            exactly(numExpectedCalls).of(keyUpdateHandler).updateKey(with(any(PrivateKey.class)));
         }});
         return keyUpdateHandler;
     }
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package i2p.bote.addressbook;
+
+import i2p.bote.TestUtil;
+import i2p.bote.crypto.ECDH256_ECDSA256;
+import i2p.bote.email.EmailDestination;
+import i2p.bote.email.EmailIdentity;
+import i2p.bote.packet.dht.Contact;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.i2p.data.Hash;
+
+/**
+ * Measures address book lookups with thousands of contacts, and compares them
+ * to a linear search through all contacts.<br/>
+ * This is not a unit test; run it with <code>java i2p.bote.addressbook.AddressBookBenchmark [number of contacts]</code>.
+ */
+public class AddressBookBenchmark {
+    private static final int NUM_LOOKUPS = 100000;
+    
+    public static void main(String[] args) throws Exception {
+        int numContacts = args.length>0 ? Integer.valueOf(args[0]) : 5000;
+        
+        File testDir = new File(System.getProperty("java.io.tmpdir"), "AddressBookBenchmark-" + System.currentTimeMillis());
+        testDir.mkdir();
+        try {
+            AddressBook addressBook = new AddressBook(new File(testDir, "addressBook"), TestUtil.createPasswordCache(testDir));
+            List<String> destinations = new ArrayList<String>();
+            List<Hash> hashes = new ArrayList<Hash>();
+            List<String> names = new ArrayList<String>();
+            System.out.println("Generating " + numContacts + " contacts...");
+            ECDH256_ECDSA256 cryptoImpl = new ECDH256_ECDSA256();
+            for (int i=0; i<numContacts; i++) {
+                EmailDestination destination = new EmailDestination(new EmailIdentity(cryptoImpl, (String)null).getKey());
+                String name = "Contact " + i;
+                addressBook.add(new Contact(name, destination));
+                destinations.add(destination.getKey());
+                hashes.add(destination.getHash());
+                names.add(name);
+            }
+            
+            Random random = new Random(0);
+            long startTime = System.nanoTime();
+            for (int i=0; i<NUM_LOOKUPS; i++)
+                addressBook.get(destinations.get(random.nextInt(numContacts)));
+            print("get(String)", startTime, NUM_LOOKUPS);
+            
+            startTime = System.nanoTime();
+            for (int i=0; i<NUM_LOOKUPS; i++)
+                addressBook.getByHash(hashes.get(random.nextInt(numContacts)));
+            print("get(Hash)", startTime, NUM_LOOKUPS);
+            
+            startTime = System.nanoTime();
+            for (int i=0; i<NUM_LOOKUPS; i++)
+                addressBook.getByName(names.get(random.nextInt(numContacts)));
+            print("getByName(String)", startTime, NUM_LOOKUPS);
+            
+            startTime = System.nanoTime();
+            for (int i=0; i<NUM_LOOKUPS; i++)
+                addressBook.contains(destinations.get(random.nextInt(numContacts)));
+            print("contains(String)", startTime, NUM_LOOKUPS);
+            
+            // the way lookups worked before the index
+            int numLinearLookups = NUM_LOOKUPS / 100;
+            startTime = System.nanoTime();
+            for (int i=0; i<numLinearLookups; i++) {
+                String destination = destinations.get(random.nextInt(numContacts));
+                for (Contact contact: addressBook.getAll())
+                    if (destination.equals(contact.getBase64Dest()))
+                        break;
+            }
+            print("linear search", startTime, numLinearLookups);
+        }
+        finally {
+            TestUtil.deleteGeneratedFiles(testDir);
+            testDir.delete();
+        }
+    }
+    
+    private static void print(String operation, long startTime, int numLookups) {
+        double microsPerLookup = (System.nanoTime()-startTime) / 1000.0 / numLookups;
+        System.out.println(String.format("  %-20s %10.3f us/lookup", operation, microsPerLookup));
+    }
+}
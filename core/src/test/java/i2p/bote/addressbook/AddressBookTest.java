@@ -8,19 +8,27 @@ import org.junit.Test;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.SortedSet;
 
 import i2p.bote.TestUtil;
+import i2p.bote.email.EmailDestination;
 import i2p.bote.fileencryption.PasswordHolder;
 import i2p.bote.packet.dht.Contact;
 
 import static org.hamcrest.Matchers.isIn;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 public class AddressBookTest {
     private File testDir;
-    private File addressBookFile;
+    private File addressBookDir;
     private PasswordHolder passwordHolder;
     private AddressBook addressBook;
 
@@ -28,19 +36,19 @@ public class AddressBookTest {
     public void setUp() throws Exception {
         File tmpDir = new File(System.getProperty("java.io.tmpdir"));
         testDir = new File(tmpDir, "AddressBookTest-" + System.currentTimeMillis());
-        addressBookFile = new File(testDir, "addressBook");
+        addressBookDir = new File(testDir, "addressBook");
         assertTrue("Can't create directory: " + testDir.getAbsolutePath(), testDir.mkdir());
         passwordHolder = TestUtil.createPasswordCache(testDir);
 
-        addressBook = new AddressBook(addressBookFile, passwordHolder);
+        addressBook = new AddressBook(addressBookDir, passwordHolder);
         for (TestUtil.TestIdentity identity : TestUtil.createTestIdentities())
             addressBook.add(new Contact(identity.identity.getPublicName(), identity.identity));
     }
 
     @After
     public void tearDown() throws Exception {
-        // Current tests don't cause this to be written out
-        //assertTrue("Can't delete file: " + addressBookFile.getAbsolutePath(), addressBookFile.delete());
+        TestUtil.deleteDirectory(addressBookDir);
+        assertFalse("Can't delete directory: " + addressBookDir.getAbsolutePath(), addressBookDir.exists());
         File derivParamsFile = TestUtil.createConfiguration(testDir).getKeyDerivationParametersFile();
         assertTrue("Can't delete file: " + derivParamsFile, derivParamsFile.delete());
         assertTrue("Can't delete directory: " + testDir.getAbsolutePath(), testDir.delete());
@@ -51,8 +59,8 @@ public class AddressBookTest {
         File exportFile = new File(testDir, "ExportImportTest-" + System.currentTimeMillis() + ".txt");
         addressBook.export(exportFile, null);
 
-        File tmpAddressBookFile = new File(testDir, "ExportImportAB-" + System.currentTimeMillis());
-        AddressBook tmpAddressBook = new AddressBook(tmpAddressBookFile, passwordHolder);
+        File tmpAddressBookDir = new File(testDir, "ExportImportAB-" + System.currentTimeMillis());
+        AddressBook tmpAddressBook = new AddressBook(tmpAddressBookDir, passwordHolder);
         FileInputStream fis = new FileInputStream(exportFile);
         try {
             tmpAddressBook.importFromFileDescriptor(fis.getFD(), null, false, false);
@@ -72,7 +80,75 @@ public class AddressBookTest {
             } catch (IOException e) {
             }
             assertTrue("Can't delete file: " + exportFile.getAbsolutePath(), exportFile.delete());
-            assertTrue("Can't delete file: " + tmpAddressBookFile.getAbsolutePath(), tmpAddressBookFile.delete());
+            TestUtil.deleteDirectory(tmpAddressBookDir);
+            assertFalse("Can't delete directory: " + tmpAddressBookDir.getAbsolutePath(), tmpAddressBookDir.exists());
         }
     }
+
+    /** Checks that lookups by destination, hash and name stay consistent with adds, removes and renames */
+    @Test
+    public void testLookup() throws Exception {
+        for (Contact contact: addressBook.getAll()) {
+            assertSame(contact, addressBook.get(contact.getBase64Dest()));
+            assertSame(contact, addressBook.getByHash(contact.getDestination().getHash()));
+            assertTrue(addressBook.contains(contact.getBase64Dest()));
+            assertTrue(addressBook.getByName(contact.getName().toLowerCase()).contains(contact));
+        }
+        
+        Contact contact = addressBook.getAll().first();
+        String oldName = contact.getName();
+        contact.setName("zzz");
+        addressBook.add(contact);
+        assertTrue(addressBook.getByName(oldName).isEmpty());
+        assertSame(contact, addressBook.getByName("ZZZ").get(0));
+        assertSame(contact, addressBook.getAll().last());
+        
+        int size = addressBook.size();
+        addressBook.remove(contact.getBase64Dest());
+        assertNull(addressBook.get(contact.getBase64Dest()));
+        assertNull(addressBook.getByHash(contact.getDestination().getHash()));
+        assertTrue(addressBook.getByName("zzz").isEmpty());
+        assertFalse(addressBook.contains(contact.getBase64Dest()));
+        assertEquals(size-1, addressBook.size());
+        
+        // adding a contact with the same destination replaces the old one
+        Contact copy = new Contact("Copy", new EmailDestination(contact.getBase64Dest()));
+        addressBook.add(contact);
+        addressBook.add(copy);
+        assertEquals(size, addressBook.size());
+        assertSame(copy, addressBook.get(contact.getBase64Dest()));
+        assertTrue(addressBook.getByName("zzz").isEmpty());
+    }
+    
+    /** Checks that saving only rewrites changed contacts, and that pictures are read when they are needed */
+    @Test
+    public void testSave() throws Exception {
+        Iterator<Contact> iterator = addressBook.getAll().iterator();
+        Contact changedContact = iterator.next();
+        Contact unchangedContact = iterator.next();
+        byte[] picture = new byte[] {(byte)0x89, 'P', 'N', 'G', 1, 2, 3};
+        unchangedContact.setPicture(picture);
+        addressBook.save();
+        byte[] changedRecord = TestUtil.readFile(getRecordFile(changedContact));
+        byte[] unchangedRecord = TestUtil.readFile(getRecordFile(unchangedContact));
+        
+        AddressBook newAddressBook = new AddressBook(addressBookDir, passwordHolder);
+        newAddressBook.get(changedContact.getBase64Dest()).setText("changed");
+        Contact newUnchangedContact = newAddressBook.get(unchangedContact.getBase64Dest());
+        assertTrue(newUnchangedContact.getPictureSource() != null);
+        newAddressBook.save();
+        assertTrue(newUnchangedContact.getPictureSource() != null);
+        assertFalse(Arrays.equals(changedRecord, TestUtil.readFile(getRecordFile(changedContact))));
+        assertArrayEquals(unchangedRecord, TestUtil.readFile(getRecordFile(unchangedContact)));
+        assertArrayEquals(picture, newUnchangedContact.getPicture());
+        
+        newAddressBook = new AddressBook(addressBookDir, passwordHolder);
+        assertEquals("changed", newAddressBook.get(changedContact.getBase64Dest()).getText());
+        assertArrayEquals(picture, newAddressBook.get(unchangedContact.getBase64Dest()).getPicture());
+        assertEquals(addressBook.size(), newAddressBook.size());
+    }
+    
+    private File getRecordFile(Contact contact) {
+        return new File(addressBookDir, AddressBook.getRecordId(contact.getDestination()) + ".record");
+    }
 }
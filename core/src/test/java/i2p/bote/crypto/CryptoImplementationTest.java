@@ -23,6 +23,8 @@ package i2p.bote.crypto;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import i2p.bote.TestUtil;
 import i2p.bote.TestUtil.TestIdentity;
@@ -32,8 +34,15 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.data.Base64;
 
 import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.junit.Before;
@@ -129,4 +138,95 @@ public class CryptoImplementationTest {
             }
         }
     }
-}
\ No newline at end of file
+    
+    /** Encrypts, decrypts, signs, and verifies from several threads at once */
+    @Test
+    public void eccConcurrentUse() throws Exception {
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final TestIdentity testIdentity: testIdentities) {
+            if (!(testIdentity.cryptoImpl instanceof ECDH_ECDSA))
+                continue;
+            for (int i=0; i<4; i++) {
+                final byte[] message = testMessages.get(i);
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            CryptoImplementation cryptoImpl = testIdentity.cryptoImpl;
+                            KeyPair encryptionKeys = testIdentity.encryptionKeys;
+                            KeyPair signingKeys = testIdentity.signingKeys;
+                            for (int j=0; j<10; j++) {
+                                byte[] encrypted = cryptoImpl.encrypt(message, encryptionKeys.getPublic());
+                                assertArrayEquals(message, cryptoImpl.decrypt(encrypted, encryptionKeys.getPublic(), encryptionKeys.getPrivate()));
+                                byte[] signature = cryptoImpl.sign(message, signingKeys.getPrivate(), TestUtil.createDummyKeyUpdateHandler());
+                                assertTrue(cryptoImpl.verify(message, signature, signingKeys.getPublic()));
+                            }
+                        } catch (Throwable t) {
+                            errors.add(t);
+                        }
+                    }
+                };
+                threads.add(thread);
+                thread.start();
+            }
+        }
+        
+        for (Thread thread: threads)
+            thread.join();
+        assertTrue("Errors in concurrent threads: " + errors, errors.isEmpty());
+    }
+    
+    @Test
+    public void eccPublicKeyCache() throws GeneralSecurityException {
+        for (TestIdentity testIdentity: testIdentities) {
+            if (!(testIdentity.cryptoImpl instanceof ECDH_ECDSA))
+                continue;
+            CryptoImplementation cryptoImpl = testIdentity.cryptoImpl;
+            
+            PublicKeyPair keyPair1 = cryptoImpl.createPublicKeyPair(testIdentity.base64PublicKeyPair);
+            PublicKeyPair keyPair2 = cryptoImpl.createPublicKeyPair(testIdentity.base64PublicKeyPair);
+            assertNotSame(keyPair1, keyPair2);
+            assertSame(keyPair1.encryptionKey, keyPair2.encryptionKey);
+            assertSame(keyPair1.signingKey, keyPair2.signingKey);
+            
+            // changing a returned key pair must not affect the cache
+            keyPair1.encryptionKey = null;
+            PublicKeyPair keyPair3 = cryptoImpl.createPublicKeyPair(testIdentity.base64PublicKeyPair);
+            assertEquals(testIdentity.base64PublicKeyPair, cryptoImpl.toBase64(keyPair3));
+        }
+    }
+    
+    @Test
+    public void eccEphemeralKeyPool() throws Exception {
+        for (TestIdentity testIdentity: testIdentities) {
+            if (!(testIdentity.cryptoImpl instanceof ECDH_ECDSA))
+                continue;
+            ECDH_ECDSA cryptoImpl = (ECDH_ECDSA)testIdentity.cryptoImpl;
+            KeyPair encryptionKeys = testIdentity.encryptionKeys;
+            
+            EphemeralKeyPool keyPool = new EphemeralKeyPool(cryptoImpl, 4);
+            cryptoImpl.setEphemeralKeyPool(keyPool);
+            keyPool.start();
+            try {
+                long deadline = System.currentTimeMillis() + 10000;
+                while (keyPool.size()<4 && System.currentTimeMillis()<deadline)
+                    TimeUnit.MILLISECONDS.sleep(10);
+                assertEquals(4, keyPool.size());
+                
+                // every message should use a different ephemeral key
+                Set<String> ephemeralKeys = new HashSet<String>();
+                for (byte[] original: testMessages) {
+                    byte[] encrypted = cryptoImpl.encrypt(original, encryptionKeys.getPublic());
+                    ephemeralKeys.add(Base64.encode(Arrays.copyOf(encrypted, cryptoImpl.keyLengthBytes)));
+                    assertArrayEquals(original, cryptoImpl.decrypt(encrypted, encryptionKeys.getPublic(), encryptionKeys.getPrivate()));
+                }
+                assertEquals(testMessages.size(), ephemeralKeys.size());
+            } finally {
+                cryptoImpl.setEphemeralKeyPool(null);
+                keyPool.interrupt();
+                keyPool.join();
+            }
+        }
+    }
+}
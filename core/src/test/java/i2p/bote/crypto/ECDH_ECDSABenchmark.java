@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.crypto;
+
+import i2p.bote.TestUtil;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time per operation for encryption, decryption, signing, verification,
+ * and public key decoding with {@link ECDH256_ECDSA256} and {@link ECDH521_ECDSA521}.
+ * Encryption is measured with and without a full {@link EphemeralKeyPool}, and key
+ * decoding is measured for new keys and for keys that are in the cache.<br/>
+ * This is not a unit test; run it with <code>java i2p.bote.crypto.ECDH_ECDSABenchmark [number of operations]</code>.
+ */
+public class ECDH_ECDSABenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numOperations = args.length>0 ? Integer.valueOf(args[0]) : 200;
+        
+        List<ECDH_ECDSA> cryptoImpls = Arrays.asList(new ECDH256_ECDSA256(), new ECDH521_ECDSA521());
+        for (ECDH_ECDSA cryptoImpl: cryptoImpls)
+            benchmark(cryptoImpl, numOperations);
+    }
+    
+    private static void benchmark(ECDH_ECDSA cryptoImpl, int numOperations) throws Exception {
+        byte[] data = new byte[10 * 1024];
+        new Random(0).nextBytes(data);
+        KeyPair encryptionKeys = cryptoImpl.generateEncryptionKeyPair();
+        KeyPair signingKeys = cryptoImpl.generateSigningKeyPair();
+        
+        // warm up
+        for (int i=0; i<20; i++) {
+            byte[] encrypted = cryptoImpl.encrypt(data, encryptionKeys.getPublic());
+            cryptoImpl.decrypt(encrypted, encryptionKeys.getPublic(), encryptionKeys.getPrivate());
+            byte[] signature = cryptoImpl.sign(data, signingKeys.getPrivate(), TestUtil.createDummyKeyUpdateHandler());
+            cryptoImpl.verify(data, signature, signingKeys.getPublic());
+        }
+        
+        List<byte[]> encryptedData = new ArrayList<byte[]>();
+        long startTime = System.nanoTime();
+        for (int i=0; i<numOperations; i++)
+            encryptedData.add(cryptoImpl.encrypt(data, encryptionKeys.getPublic()));
+        double encryptMillis = (System.nanoTime()-startTime) / 1e6 / numOperations;
+        
+        // fill the pool before measuring so no keys are generated during the measurement
+        EphemeralKeyPool keyPool = new EphemeralKeyPool(cryptoImpl, numOperations);
+        keyPool.start();
+        while (keyPool.size() < numOperations)
+            TimeUnit.MILLISECONDS.sleep(10);
+        keyPool.interrupt();
+        keyPool.join();
+        cryptoImpl.setEphemeralKeyPool(keyPool);
+        startTime = System.nanoTime();
+        for (int i=0; i<numOperations; i++)
+            cryptoImpl.encrypt(data, encryptionKeys.getPublic());
+        double pooledEncryptMillis = (System.nanoTime()-startTime) / 1e6 / numOperations;
+        cryptoImpl.setEphemeralKeyPool(null);
+        
+        startTime = System.nanoTime();
+        for (byte[] encrypted: encryptedData)
+            cryptoImpl.decrypt(encrypted, encryptionKeys.getPublic(), encryptionKeys.getPrivate());
+        double decryptMillis = (System.nanoTime()-startTime) / 1e6 / numOperations;
+        
+        List<byte[]> signatures = new ArrayList<byte[]>();
+        startTime = System.nanoTime();
+        for (int i=0; i<numOperations; i++)
+            signatures.add(cryptoImpl.sign(data, signingKeys.getPrivate(), TestUtil.createDummyKeyUpdateHandler()));
+        double signMillis = (System.nanoTime()-startTime) / 1e6 / numOperations;
+        
+        startTime = System.nanoTime();
+        for (byte[] signature: signatures)
+            if (!cryptoImpl.verify(data, signature, signingKeys.getPublic()))
+                System.out.println("Verification failed!");
+        double verifyMillis = (System.nanoTime()-startTime) / 1e6 / numOperations;
+        
+        List<byte[]> encodedKeys = new ArrayList<byte[]>();
+        for (int i=0; i<numOperations; i++) {
+            PublicKeyPair keyPair = new PublicKeyPair();
+            keyPair.encryptionKey = cryptoImpl.generateEncryptionKeyPair().getPublic();
+            keyPair.signingKey = cryptoImpl.generateSigningKeyPair().getPublic();
+            encodedKeys.add(cryptoImpl.toByteArray(keyPair));
+        }
+        startTime = System.nanoTime();
+        for (byte[] encodedKey: encodedKeys)
+            cryptoImpl.createPublicKeyPair(encodedKey);
+        double decodeMillis = (System.nanoTime()-startTime) / 1e6 / numOperations;
+        // decode the most recent keys again; they are still in the cache if numOperations is not too large
+        List<byte[]> recentKeys = encodedKeys.subList(Math.max(0, encodedKeys.size()-100), encodedKeys.size());
+        startTime = System.nanoTime();
+        for (byte[] encodedKey: recentKeys)
+            cryptoImpl.createPublicKeyPair(encodedKey);
+        double cachedDecodeMillis = (System.nanoTime()-startTime) / 1e6 / recentKeys.size();
+        
+        System.out.println(cryptoImpl.getName() + ", " + numOperations + " operations of each type, 10 KB messages:");
+        System.out.println(String.format("  encrypt:                  %7.3f ms", encryptMillis));
+        System.out.println(String.format("  encrypt with pooled keys: %7.3f ms", pooledEncryptMillis));
+        System.out.println(String.format("  decrypt:                  %7.3f ms", decryptMillis));
+        System.out.println(String.format("  sign:                     %7.3f ms", signMillis));
+        System.out.println(String.format("  verify:                   %7.3f ms", verifyMillis));
+        System.out.println(String.format("  decode new public key:    %7.3f ms", decodeMillis));
+        System.out.println(String.format("  decode cached public key: %7.3f ms", cachedDecodeMillis));
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.crypto;
+
+import i2p.bote.UniqueId;
+import i2p.bote.Util;
+import i2p.bote.crypto.RelaySessionKeyManager.OutboundMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.data.PrivateKey;
+import net.i2p.data.PublicKey;
+
+/**
+ * Compares encryption and decryption of 10 KB relay payloads to a single peer with a
+ * new ElGamal session for every packet, and with session tags from a {@link RelaySessionKeyManager}.
+ * Decryption uses the existing <code>ElGamalAESEngine</code> code either way.<br/>
+ * This is not a unit test; run it with <code>java i2p.bote.crypto.RelaySessionKeyManagerBenchmark [number of packets]</code>.
+ */
+public class RelaySessionKeyManagerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numPackets = args.length>0 ? Integer.valueOf(args[0]) : 200;
+        
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        ByteArrayOutputStream keyStream = new ByteArrayOutputStream();
+        i2pClient.createDestination(keyStream);
+        I2PSession i2pSession = i2pClient.createSession(new ByteArrayInputStream(keyStream.toByteArray()), null);
+        PublicKey publicKey = i2pSession.getMyDestination().getPublicKey();
+        PrivateKey privateKey = i2pSession.getDecryptionKey();
+        byte[] data = new byte[10 * 1024];
+        new Random(0).nextBytes(data);
+        
+        // new session for every packet
+        RelaySessionKeyManager receiverManager = new RelaySessionKeyManager(I2PAppContext.getGlobalContext());
+        List<byte[]> packets = new ArrayList<byte[]>();
+        long startTime = System.nanoTime();
+        for (int i=0; i<numPackets; i++)
+            packets.add(encrypt(data, publicKey));
+        double newSessionEncryptMillis = (System.nanoTime()-startTime) / 1e6 / numPackets;
+        double newSessionDecryptMillis = decrypt(packets, privateKey, receiverManager);
+        
+        // session tags, confirming each packet right after it is created
+        RelaySessionKeyManager senderManager = new RelaySessionKeyManager(I2PAppContext.getGlobalContext());
+        receiverManager = new RelaySessionKeyManager(I2PAppContext.getGlobalContext());
+        packets.clear();
+        int numExistingSession = 0;
+        startTime = System.nanoTime();
+        for (int i=0; i<numPackets; i++) {
+            OutboundMessage message = senderManager.prepareMessage(publicKey, System.currentTimeMillis());
+            if (message.getCurrentTag() != null)
+                numExistingSession++;
+            packets.add(encrypt(data, message));
+            UniqueId packetId = new UniqueId();
+            senderManager.tagsSent(message, packetId);
+            // the receiver must see the tags before they are confirmed
+            Util.decrypt(packets.get(i), privateKey, receiverManager);
+            senderManager.packetConfirmed(packetId, RelaySessionKeyManager.MIN_PROTOCOL_VERSION);
+        }
+        double totalMillis = (System.nanoTime()-startTime) / 1e6 / numPackets;
+        
+        // decrypt again with a fresh receiver to measure decryption separately
+        receiverManager = new RelaySessionKeyManager(I2PAppContext.getGlobalContext());
+        double taggedDecryptMillis = decrypt(packets, privateKey, receiverManager);
+        
+        System.out.println(String.format("New sessions:  %7.2f ms per encryption, %7.2f ms per decryption", newSessionEncryptMillis, newSessionDecryptMillis));
+        System.out.println(String.format("Session tags:  %7.2f ms per encryption and decryption, %d of %d packets used a tag", totalMillis, numExistingSession, numPackets));
+        System.out.println(String.format("               %7.2f ms per decryption (existing decrypt path)", taggedDecryptMillis));
+    }
+    
+    private static byte[] encrypt(byte[] data, PublicKey publicKey) {
+        byte[] buffer = new byte[Util.ENCRYPTION_PREFIX_LENGTH + data.length + 16];
+        System.arraycopy(data, 0, buffer, Util.ENCRYPTION_PREFIX_LENGTH, data.length);
+        int length = Util.encryptInPlace(buffer, Util.ENCRYPTION_PREFIX_LENGTH, data.length, publicKey);
+        return Arrays.copyOf(buffer, length);
+    }
+    
+    private static byte[] encrypt(byte[] data, OutboundMessage message) {
+        int prefixLength = Util.getEncryptionPrefixLength(message.getCurrentTag()!=null, message.getTagsForDelivery().size());
+        byte[] buffer = new byte[prefixLength + data.length + 16];
+        System.arraycopy(data, 0, buffer, prefixLength, data.length);
+        int length = Util.encryptInPlace(buffer, prefixLength, data.length, message);
+        return Arrays.copyOf(buffer, length);
+    }
+    
+    /** Returns the average time per packet in milliseconds */
+    private static double decrypt(List<byte[]> packets, PrivateKey privateKey, RelaySessionKeyManager sessionKeyManager) throws Exception {
+        long startTime = System.nanoTime();
+        for (byte[] packet: packets)
+            if (Util.decrypt(packet, privateKey, sessionKeyManager) == null)
+                System.out.println("Decryption failed!");
+        return (System.nanoTime()-startTime) / 1e6 / packets.size();
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import i2p.bote.UniqueId;
+import i2p.bote.Util;
+import i2p.bote.crypto.RelaySessionKeyManager.OutboundMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.data.PrivateKey;
+import net.i2p.data.PublicKey;
+import net.i2p.data.SessionTag;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link RelaySessionKeyManager} together with the existing decryption path
+ * in <code>ElGamalAESEngine</code>.
+ */
+public class RelaySessionKeyManagerTest {
+    private RelaySessionKeyManager senderManager;
+    private RelaySessionKeyManager receiverManager;
+    private PublicKey receiverPublicKey;
+    private PrivateKey receiverPrivateKey;
+    private byte[] testData;
+
+    @Before
+    public void setUp() throws Exception {
+        senderManager = new RelaySessionKeyManager(I2PAppContext.getGlobalContext());
+        receiverManager = new RelaySessionKeyManager(I2PAppContext.getGlobalContext());
+        
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        ByteArrayOutputStream keyStream = new ByteArrayOutputStream();
+        i2pClient.createDestination(keyStream);
+        I2PSession i2pSession = i2pClient.createSession(new ByteArrayInputStream(keyStream.toByteArray()), null);
+        receiverPublicKey = i2pSession.getMyDestination().getPublicKey();
+        receiverPrivateKey = i2pSession.getDecryptionKey();
+        
+        testData = new byte[10000];
+        new Random(0).nextBytes(testData);
+    }
+    
+    @Test
+    public void testNewSession() throws Exception {
+        OutboundMessage message = senderManager.prepareMessage(receiverPublicKey, System.currentTimeMillis());
+        assertNull(message.getCurrentTag());
+        assertEquals(RelaySessionKeyManager.TAGS_PER_DELIVERY, message.getTagsForDelivery().size());
+        byte[] encryptedData = encrypt(message);
+        
+        // a receiver that doesn't remember tags can still decrypt a new session
+        assertArrayEquals(testData, Util.decrypt(encryptedData, receiverPrivateKey));
+        
+        assertArrayEquals(testData, Util.decrypt(encryptedData, receiverPrivateKey, receiverManager));
+        assertEquals(RelaySessionKeyManager.TAGS_PER_DELIVERY, receiverManager.getNumInboundTags());
+    }
+    
+    @Test
+    public void testExistingSession() throws Exception {
+        OutboundMessage message = senderManager.prepareMessage(receiverPublicKey, System.currentTimeMillis());
+        byte[] newSessionData = encrypt(message);
+        UniqueId packetId = new UniqueId();
+        senderManager.tagsSent(message, packetId);
+        assertArrayEquals(testData, Util.decrypt(newSessionData, receiverPrivateKey, receiverManager));
+        
+        // no tags are used before the packet is confirmed, and no new ones are sent
+        message = senderManager.prepareMessage(receiverPublicKey, System.currentTimeMillis());
+        assertNull(message.getCurrentTag());
+        assertTrue(message.getTagsForDelivery().isEmpty());
+        assertEquals(0, senderManager.getNumAvailableTags(receiverPublicKey));
+        
+        senderManager.packetConfirmed(packetId, RelaySessionKeyManager.MIN_PROTOCOL_VERSION);
+        assertEquals(RelaySessionKeyManager.TAGS_PER_DELIVERY, senderManager.getNumAvailableTags(receiverPublicKey));
+        
+        message = senderManager.prepareMessage(receiverPublicKey, System.currentTimeMillis());
+        assertNotNull(message.getCurrentTag());
+        byte[] existingSessionData = encrypt(message);
+        assertTrue(existingSessionData.length < newSessionData.length);
+        assertArrayEquals(testData, Util.decrypt(existingSessionData, receiverPrivateKey, receiverManager));
+        assertEquals(RelaySessionKeyManager.TAGS_PER_DELIVERY-1, receiverManager.getNumInboundTags());
+        
+        // a tag can only be used once
+        assertNull(Util.decrypt(existingSessionData, receiverPrivateKey, receiverManager));
+        // a receiver that doesn't remember tags can't decrypt it
+        assertNull(Util.decrypt(existingSessionData, receiverPrivateKey));
+    }
+    
+    @Test
+    public void testAllTagsUsed() throws Exception {
+        confirmNewSession();
+        
+        Set<SessionTag> usedTags = new HashSet<SessionTag>();
+        for (int i=0; i<RelaySessionKeyManager.TAGS_PER_DELIVERY; i++) {
+            OutboundMessage message = senderManager.prepareMessage(receiverPublicKey, System.currentTimeMillis());
+            assertNotNull(message.getCurrentTag());
+            assertTrue(usedTags.add(message.getCurrentTag()));
+            assertArrayEquals(testData, Util.decrypt(encrypt(message), receiverPrivateKey, receiverManager));
+            // new tags are sent when few are left
+            senderManager.tagsSent(message, new UniqueId());
+        }
+        assertNull(senderManager.prepareMessage(receiverPublicKey, System.currentTimeMillis()).getCurrentTag());
+    }
+    
+    @Test
+    public void testDeadline() throws Exception {
+        confirmNewSession();
+        long deadline = System.currentTimeMillis() + RelaySessionKeyManager.OUTBOUND_TAG_LIFETIME + 1000;
+        assertNull(senderManager.prepareMessage(receiverPublicKey, deadline).getCurrentTag());
+        assertNotNull(senderManager.prepareMessage(receiverPublicKey, System.currentTimeMillis()).getCurrentTag());
+    }
+    
+    @Test
+    public void testLegacyPeer() throws Exception {
+        OutboundMessage message = senderManager.prepareMessage(receiverPublicKey, System.currentTimeMillis());
+        UniqueId packetId = new UniqueId();
+        senderManager.tagsSent(message, packetId);
+        senderManager.packetConfirmed(packetId, RelaySessionKeyManager.MIN_PROTOCOL_VERSION - 1);
+        
+        message = senderManager.prepareMessage(receiverPublicKey, System.currentTimeMillis());
+        assertNull(message.getCurrentTag());
+        assertTrue(message.getTagsForDelivery().isEmpty());
+    }
+    
+    @Test
+    public void testDiscardSession() throws Exception {
+        confirmNewSession();
+        senderManager.discardSession(receiverPublicKey);
+        assertEquals(0, senderManager.getNumAvailableTags(receiverPublicKey));
+        OutboundMessage message = senderManager.prepareMessage(receiverPublicKey, System.currentTimeMillis());
+        assertNull(message.getCurrentTag());
+        assertFalse(message.getTagsForDelivery().isEmpty());
+    }
+    
+    @Test
+    public void testTooManyTags() {
+        Set<SessionTag> tags = new HashSet<SessionTag>();
+        for (int i=0; i<=RelaySessionKeyManager.TAGS_PER_DELIVERY; i++)
+            tags.add(new SessionTag(true));
+        receiverManager.tagsReceived(I2PAppContext.getGlobalContext().keyGenerator().generateSessionKey(), tags);
+        assertEquals(0, receiverManager.getNumInboundTags());
+    }
+    
+    /** Sends a new session to the receiver and confirms it */
+    private void confirmNewSession() throws Exception {
+        OutboundMessage message = senderManager.prepareMessage(receiverPublicKey, System.currentTimeMillis());
+        UniqueId packetId = new UniqueId();
+        senderManager.tagsSent(message, packetId);
+        assertArrayEquals(testData, Util.decrypt(encrypt(message), receiverPrivateKey, receiverManager));
+        senderManager.packetConfirmed(packetId, RelaySessionKeyManager.MIN_PROTOCOL_VERSION);
+    }
+    
+    private byte[] encrypt(OutboundMessage message) {
+        int prefixLength = Util.getEncryptionPrefixLength(message.getCurrentTag()!=null, message.getTagsForDelivery().size());
+        byte[] buffer = new byte[prefixLength + testData.length + 16];
+        System.arraycopy(testData, 0, buffer, prefixLength, testData.length);
+        int length = Util.encryptInPlace(buffer, prefixLength, testData.length, message);
+        assertEquals(Util.getEncryptedLength(testData.length, message), length);
+        return Arrays.copyOf(buffer, length);
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.email;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import i2p.bote.crypto.CryptoFactory;
+
+import java.nio.ByteBuffer;
+
+import net.i2p.data.Hash;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FingerprintTest {
+    private EmailIdentity identity;
+    private Hash nameHash;
+
+    @Before
+    public void setUp() throws Exception {
+        identity = new EmailIdentity(CryptoFactory.getInstance(2), "");   // ECDH-256 / ECDSA-256
+        identity.setPublicName("Fingerprint Test");
+        nameHash = EmailIdentity.calculateHash(identity.getPublicName());
+    }
+
+    @Test
+    public void testGenerate() throws Exception {
+        Fingerprint fingerprint = Fingerprint.generate(identity);
+        assertEquals(Fingerprint.NUM_SALT_BYTES, fingerprint.getSalt().length);
+        assertTrue(fingerprint.isValid());
+        
+        // a fingerprint recreated from the salt must have the same words
+        String[] wordList = new String[1 << 13];
+        for (int i=0; i<wordList.length; i++)
+            wordList[i] = String.valueOf(i);
+        Fingerprint copy = new Fingerprint(nameHash, identity, fingerprint.getSalt());
+        assertEquals(fingerprint.getWords(wordList), copy.getWords(wordList));
+    }
+    
+    /** The result for a given start value must not depend on the number of threads. */
+    @Test
+    public void testDeterministic() throws Exception {
+        int firstSalt = -5;   // also tests wrapping from negative to positive salts
+        Fingerprint fingerprint1 = Fingerprint.generate(nameHash, identity, firstSalt, 2);
+        Fingerprint fingerprint2 = Fingerprint.generate(nameHash, identity, firstSalt, 3);
+        assertArrayEquals(fingerprint1.getSalt(), fingerprint2.getSalt());
+        assertTrue(fingerprint1.isValid());
+        
+        // starting at the salt that was found must find the same salt
+        int foundSalt = ByteBuffer.wrap(fingerprint1.getSalt()).getInt();
+        Fingerprint fingerprint3 = Fingerprint.generate(nameHash, identity, foundSalt, 4);
+        assertArrayEquals(fingerprint1.getSalt(), fingerprint3.getSalt());
+    }
+}
@@ -21,8 +21,13 @@
 
 package i2p.bote.email;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import i2p.bote.TestUtil;
 import i2p.bote.TestUtil.TestIdentity;
 import i2p.bote.crypto.CryptoImplementation;
@@ -31,7 +36,9 @@ import i2p.bote.fileencryption.PasswordException;
 import i2p.bote.fileencryption.PasswordHolder;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -44,7 +51,8 @@ import org.junit.Test;
 
 public class IdentitiesTest {
     private File testDir;
-    private File identitiesFile;
+    private File identitiesDir;
+    private File journalFile;
     private PasswordHolder passwordHolder;
     private Identities identities;
     
@@ -52,18 +60,20 @@ public class IdentitiesTest {
     public void setUp() throws Exception {
         File tmpDir = new File(System.getProperty("java.io.tmpdir"));
         testDir = new File(tmpDir, "IdentitiesTest-" + System.currentTimeMillis());
-        identitiesFile = new File(testDir, "identities");
+        identitiesDir = new File(testDir, "identities");
+        journalFile = Identities.getJournalFile(identitiesDir);
         assertTrue("Can't create directory: " + testDir.getAbsolutePath(), testDir.mkdir());
         passwordHolder = TestUtil.createPasswordCache(testDir);
         
-        identities = new Identities(identitiesFile, passwordHolder);
+        identities = new Identities(identitiesDir, passwordHolder);
         for (TestIdentity identity: TestUtil.createTestIdentities())
             identities.add(identity.identity);
     }
     
     @After
     public void tearDown() throws Exception {
-        assertTrue("Can't delete file: " + identitiesFile.getAbsolutePath(), identitiesFile.delete());
+        TestUtil.deleteDirectory(identitiesDir);
+        assertFalse("Can't delete directory: " + identitiesDir.getAbsolutePath(), identitiesDir.exists());
         File derivParamsFile = TestUtil.createConfiguration(testDir).getKeyDerivationParametersFile();
         assertTrue("Can't delete file: " + derivParamsFile, derivParamsFile.delete());
         assertTrue("Can't delete directory: " + testDir.getAbsolutePath(), testDir.delete());
@@ -90,10 +100,10 @@ public class IdentitiesTest {
             // read identities from file and compare keys before / after
             boolean publicKeyChanged;
             boolean privateKeyChanged;
-            if (!identitiesFile.exists())
+            if (!identitiesDir.exists())
                 publicKeyChanged = privateKeyChanged = false;
             else {
-                Identities newIdentities = new Identities(identitiesFile, passwordHolder);
+                Identities newIdentities = new Identities(identitiesDir, passwordHolder);
                 PublicKey newPublicKey = newIdentities.get(identity).getPublicSigningKey();
                 PrivateKey newPrivateKey = newIdentities.get(identity).getPrivateSigningKey();
                 publicKeyChanged = !Arrays.equals(encodedPublicKey, newPublicKey.getEncoded());
@@ -103,4 +113,235 @@ public class IdentitiesTest {
             assertTrue(privateKeyChanged == (cryptoImpl instanceof NTRUEncrypt1087_GMSS512));
         }
     }
-}
\ No newline at end of file
+    
+    /** Checks that a key update is appended to the journal and doesn't rewrite the identity record */
+    @Test
+    public void testJournaledKeyUpdate() throws Exception {
+        identities.save();
+        EmailIdentity identity = getGmssIdentity(identities);
+        File recordFile = getRecordFile(identity);
+        byte[] fileContents = TestUtil.readFile(recordFile);
+        
+        identity.getCryptoImpl().sign("test".getBytes(), identity.getPrivateSigningKey(), identities);
+        assertTrue(journalFile.exists());
+        assertArrayEquals(fileContents, TestUtil.readFile(recordFile));
+        assertArrayEquals(identity.getPrivateSigningKey().getEncoded(), readGmssKey());
+        
+        // saving folds the journal into the record
+        identities.save();
+        assertFalse(journalFile.exists());
+        assertArrayEquals(identity.getPrivateSigningKey().getEncoded(), readGmssKey());
+    }
+    
+    /** Checks that the journal is compacted once it holds too many records */
+    @Test
+    public void testCompaction() throws Exception {
+        identities.save();
+        EmailIdentity identity = getGmssIdentity(identities);
+        for (int i=0; i<Identities.MAX_JOURNAL_RECORDS; i++)
+            identity.getCryptoImpl().sign("test".getBytes(), identity.getPrivateSigningKey(), identities);
+        assertTrue(journalFile.exists());
+        
+        identity.getCryptoImpl().sign("test".getBytes(), identity.getPrivateSigningKey(), identities);
+        assertFalse(journalFile.exists());
+        assertArrayEquals(identity.getPrivateSigningKey().getEncoded(), readGmssKey());
+    }
+    
+    /**
+     * Simulates a power loss after the key has changed but before the new state is
+     * on disk. No signature must be handed out in that case, so the old key state
+     * can safely be used after a restart.
+     */
+    @Test
+    public void testPowerLossBeforeJournalWrite() throws Exception {
+        identities.save();
+        EmailIdentity identity = getGmssIdentity(identities);
+        byte[] oldKey = identity.getPrivateSigningKey().getEncoded().clone();
+        
+        // make appending to the journal fail
+        assertTrue(journalFile.mkdir());
+        try {
+            identity.getCryptoImpl().sign("test".getBytes(), identity.getPrivateSigningKey(), identities);
+            fail("A signature was returned although the key state wasn't persisted.");
+        } catch (GeneralSecurityException e) {
+        } finally {
+            assertTrue(journalFile.delete());
+        }
+        
+        assertArrayEquals(oldKey, readGmssKey());
+    }
+    
+    /**
+     * Simulates a power loss while a journal record is being written. The last
+     * complete record must be used, and later records must be readable.
+     */
+    @Test
+    public void testPowerLossDuringJournalWrite() throws Exception {
+        identities.save();
+        EmailIdentity identity = getGmssIdentity(identities);
+        identity.getCryptoImpl().sign("test".getBytes(), identity.getPrivateSigningKey(), identities);
+        byte[] persistedKey = identity.getPrivateSigningKey().getEncoded().clone();
+        long oneRecordLength = journalFile.length();
+        identity.getCryptoImpl().sign("test".getBytes(), identity.getPrivateSigningKey(), identities);
+        
+        // cut off the end of the second record
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.setLength(oneRecordLength + 100);
+        } finally {
+            file.close();
+        }
+        
+        Identities newIdentities = new Identities(identitiesDir, passwordHolder);
+        EmailIdentity newIdentity = getGmssIdentity(newIdentities);
+        assertArrayEquals(persistedKey, newIdentity.getPrivateSigningKey().getEncoded());
+        assertEquals(oneRecordLength, journalFile.length());
+        
+        newIdentity.getCryptoImpl().sign("test".getBytes(), newIdentity.getPrivateSigningKey(), newIdentities);
+        assertArrayEquals(newIdentity.getPrivateSigningKey().getEncoded(), readGmssKey());
+    }
+    
+    /** Checks that lookups by destination, hash and name stay consistent with adds, removes and renames */
+    @Test
+    public void testLookup() throws Exception {
+        identities.save();
+        for (EmailIdentity identity: identities.getAll()) {
+            assertSame(identity, identities.get(identity.getKey()));
+            assertSame(identity, identities.get(new EmailDestination(identity.getKey())));
+            assertSame(identity, identities.getByHash(identity.getHash()));
+            assertTrue(identities.contains(identity.toBase64()));
+            assertTrue(identities.getByName(identity.getPublicName().toUpperCase()).contains(identity));
+        }
+        
+        EmailIdentity identity = identities.getAll().iterator().next();
+        String oldName = identity.getPublicName();
+        identity.setPublicName("zzz");
+        identities.identityUpdated(identity.getKey());
+        assertTrue(identities.getByName(oldName).isEmpty());
+        assertSame(identity, identities.getByName("ZZZ").get(0));
+        EmailIdentity last = null;
+        for (EmailIdentity anIdentity: identities.getAll())
+            last = anIdentity;
+        assertSame(identity, last);
+        
+        int size = identities.size();
+        identities.remove(identity.getKey());
+        assertNull(identities.get(identity.getKey()));
+        assertNull(identities.getByHash(identity.getHash()));
+        assertTrue(identities.getByName("zzz").isEmpty());
+        assertFalse(identities.contains(identity.toBase64()));
+        assertEquals(size-1, identities.size());
+        
+        // adding an identity with the same destination replaces the old one
+        EmailIdentity copy = new EmailIdentity(identity.getFullKey());
+        copy.setPublicName("Copy");
+        identities.add(identity);
+        identities.add(copy);
+        assertEquals(size, identities.size());
+        assertSame(copy, identities.getByHash(identity.getHash()));
+        assertTrue(identities.getByName("zzz").isEmpty());
+    }
+    
+    /** Checks that lookups work after importing identities */
+    @Test
+    public void testLookupAfterImport() throws Exception {
+        identities.save();
+        File exportFile = new File(testDir, "export.txt");
+        identities.export(exportFile, null);
+        File newIdentitiesDir = new File(testDir, "identities2");
+        Identities newIdentities = new Identities(newIdentitiesDir, passwordHolder);
+        EmailIdentity gmssIdentity = getGmssIdentity(identities);
+        newIdentities.add(gmssIdentity);
+        FileInputStream inputStream = new FileInputStream(exportFile);
+        try {
+            newIdentities.importFromFileDescriptor(inputStream.getFD(), null, true, true);
+        } finally {
+            inputStream.close();
+            assertTrue(exportFile.delete());
+        }
+        
+        try {
+            assertEquals(identities.size(), newIdentities.size());
+            for (EmailIdentity identity: identities.getAll()) {
+                EmailIdentity newIdentity = newIdentities.getByHash(identity.getHash());
+                assertEquals(identity.getKey(), newIdentity.getKey());
+                assertSame(newIdentity, newIdentities.getByName(identity.getPublicName()).get(0));
+            }
+            // the imported copy replaced the identity that was added before the import
+            assertFalse(newIdentities.get(gmssIdentity.getKey()) == gmssIdentity);
+        } finally {
+            TestUtil.deleteDirectory(newIdentitiesDir);
+        }
+    }
+    
+    /** Checks that saving only rewrites the records of identities that have changed */
+    @Test
+    public void testOnlyChangedRecordsWritten() throws Exception {
+        identities.save();
+        Iterator<EmailIdentity> iterator = identities.iterator();
+        EmailIdentity changedIdentity = iterator.next();
+        EmailIdentity unchangedIdentity = iterator.next();
+        byte[] changedRecord = TestUtil.readFile(getRecordFile(changedIdentity));
+        byte[] unchangedRecord = TestUtil.readFile(getRecordFile(unchangedIdentity));
+        
+        changedIdentity.setDescription("changed");
+        identities.save();
+        assertFalse(Arrays.equals(changedRecord, TestUtil.readFile(getRecordFile(changedIdentity))));
+        assertArrayEquals(unchangedRecord, TestUtil.readFile(getRecordFile(unchangedIdentity)));
+        
+        // removing an identity deletes its record and nothing else
+        int numIdentities = identities.size();
+        identities.remove(changedIdentity.getKey());
+        identities.save();
+        assertFalse(getRecordFile(changedIdentity).exists());
+        assertArrayEquals(unchangedRecord, TestUtil.readFile(getRecordFile(unchangedIdentity)));
+        assertEquals(numIdentities-1, new Identities(identitiesDir, passwordHolder).size());
+    }
+    
+    /** Checks that pictures are read when they are needed, and aren't lost when an identity is saved without reading its picture */
+    @Test
+    public void testLazyPicture() throws Exception {
+        EmailIdentity identity = identities.iterator().next();
+        byte[] picture = new byte[] {(byte)0x89, 'P', 'N', 'G', 1, 2, 3};
+        identity.setPicture(picture);
+        identities.save();
+        
+        Identities newIdentities = new Identities(identitiesDir, passwordHolder);
+        EmailIdentity newIdentity = newIdentities.get(identity.getKey());
+        assertTrue(newIdentity.getPictureSource() != null);
+        for (EmailIdentity anIdentity: newIdentities.getAll())
+            if (anIdentity != newIdentity)
+                assertNull(anIdentity.getPicture());
+        newIdentity.setDescription("changed");
+        newIdentities.save();
+        
+        newIdentities = new Identities(identitiesDir, passwordHolder);
+        newIdentity = newIdentities.get(identity.getKey());
+        assertEquals("changed", newIdentity.getDescription());
+        assertArrayEquals(picture, newIdentity.getPicture());
+        assertNull(newIdentity.getPictureSource());
+        
+        // removing the picture deletes it from disk
+        newIdentity.setPicture(null);
+        newIdentities.save();
+        assertNull(new Identities(identitiesDir, passwordHolder).get(identity.getKey()).getPicture());
+    }
+    
+    private EmailIdentity getGmssIdentity(Identities identities) throws GeneralSecurityException, PasswordException, IOException {
+        for (EmailIdentity identity: identities.getAll())
+            if (identity.getCryptoImpl() instanceof NTRUEncrypt1087_GMSS512)
+                return identity;
+        fail("No GMSS identity found.");
+        return null;
+    }
+    
+    private File getRecordFile(EmailIdentity identity) {
+        return new File(identitiesDir, Identities.getRecordId(identity) + ".record");
+    }
+    
+    /** Returns the GMSS private key as read from disk */
+    private byte[] readGmssKey() throws GeneralSecurityException, PasswordException, IOException {
+        Identities newIdentities = new Identities(identitiesDir, passwordHolder);
+        return getGmssIdentity(newIdentities).getPrivateSigningKey().getEncoded();
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.email;
+
+import i2p.bote.TestUtil;
+import i2p.bote.crypto.CryptoFactory;
+import i2p.bote.crypto.CryptoImplementation;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Measures the time per email for verifying signatures with {@link SignatureVerifier#verify(Email)}
+ * on one thread and with {@link SignatureVerifier#verifyAll(java.util.Collection)} on one thread
+ * per processor, for each {@link CryptoImplementation} in the {@link CryptoFactory}.<br/>
+ * This is not a unit test; run it with <code>java i2p.bote.email.SignatureVerifierBenchmark [number of emails]</code>.
+ */
+public class SignatureVerifierBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numEmails = args.length>0 ? Integer.valueOf(args[0]) : 200;
+        
+        for (CryptoImplementation cryptoImpl: CryptoFactory.getInstances())
+            benchmark(cryptoImpl, numEmails);
+    }
+    
+    private static void benchmark(CryptoImplementation cryptoImpl, int numEmails) throws Exception {
+        EmailIdentity identity = new EmailIdentity(cryptoImpl, (String)null);
+        List<byte[]> signedEmails = new ArrayList<byte[]>();
+        for (int i=0; i<numEmails; i++)
+            signedEmails.add(createSignedEmail(identity, "Test " + i));
+        
+        SignatureVerifier signatureVerifier = new SignatureVerifier();
+        try {
+            // warm up
+            signatureVerifier.verifyAll(parse(signedEmails.subList(0, Math.min(20, numEmails))));
+            
+            List<Email> emails = parse(signedEmails);
+            long startTime = System.nanoTime();
+            for (Email email: emails)
+                signatureVerifier.verify(email);
+            double verifyMillis = (System.nanoTime()-startTime) / 1e6 / numEmails;
+            checkValid(emails);
+            
+            emails = parse(signedEmails);
+            startTime = System.nanoTime();
+            signatureVerifier.verifyAll(emails);
+            double verifyAllMillis = (System.nanoTime()-startTime) / 1e6 / numEmails;
+            checkValid(emails);
+            
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            System.out.println(cryptoImpl.getName() + ", " + numEmails + " emails, " + numThreads + " threads:");
+            System.out.println(String.format("  verify:    %7.3f ms", verifyMillis));
+            System.out.println(String.format("  verifyAll: %7.3f ms", verifyAllMillis));
+        } finally {
+            signatureVerifier.shutDown();
+        }
+    }
+    
+    /** Returns a signed email in the format it is received in */
+    private static byte[] createSignedEmail(EmailIdentity identity, String text) throws Exception {
+        Email email = new Email(true);
+        email.setFrom(new InternetAddress("Max Mustermann <" + identity.getKey() + ">"));
+        email.addRecipient(RecipientType.TO, new InternetAddress("Erika Mustermann <" + identity.getKey() + ">"));
+        email.setSubject("Test", "UTF-8");
+        email.setText(text);
+        email.sign(identity, TestUtil.createDummyKeyUpdateHandler());
+        
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        email.writeTo(outputStream);
+        return outputStream.toByteArray();
+    }
+    
+    /** Makes new, unverified emails so no stored verification results are used */
+    private static List<Email> parse(List<byte[]> signedEmails) throws Exception {
+        List<Email> emails = new ArrayList<Email>();
+        for (byte[] signedEmail: signedEmails)
+            emails.add(new Email(signedEmail));
+        return emails;
+    }
+    
+    private static void checkValid(List<Email> emails) {
+        for (Email email: emails)
+            if (!Boolean.TRUE.equals(email.getMetadata().getSignatureValid())) {
+                System.out.println("Verification failed!");
+                return;
+            }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import i2p.bote.TestUtil;
+import i2p.bote.TestUtil.TestIdentity;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SignatureVerifierTest {
+    private SignatureVerifier signatureVerifier;
+    private List<Email> validEmails;
+    private List<Email> invalidEmails;
+
+    @Before
+    public void setUp() throws Exception {
+        signatureVerifier = new SignatureVerifier(2);
+        validEmails = new ArrayList<Email>();
+        invalidEmails = new ArrayList<Email>();
+        
+        for (TestIdentity testIdentity: TestUtil.createTestIdentities()) {
+            EmailIdentity identity = testIdentity.identity;
+            for (int i=0; i<3; i++) {
+                Email email = createSignedEmail(identity, "Test " + i);
+                // make a copy without the signature flag, like a received email
+                validEmails.add(copy(email));
+            }
+            
+            // change the email after signing
+            Email email = createSignedEmail(identity, "Test");
+            email.setSubject("Changed", "UTF-8");
+            invalidEmails.add(copy(email));
+        }
+        
+        Email anonEmail = new Email(true);
+        anonEmail.setFrom(new InternetAddress("anonymous"));
+        anonEmail.setText("Test");
+        invalidEmails.add(anonEmail);
+    }
+    
+    @After
+    public void tearDown() {
+        signatureVerifier.shutDown();
+    }
+    
+    private Email createSignedEmail(EmailIdentity identity, String text) throws Exception {
+        Email email = new Email(true);
+        email.setFrom(new InternetAddress("Max Mustermann <" + identity.getKey() + ">"));
+        email.addRecipient(RecipientType.TO, new InternetAddress("Erika Mustermann <" + identity.getKey() + ">"));
+        email.setSubject("Test", "UTF-8");
+        email.setText(text);
+        email.sign(identity, TestUtil.createDummyKeyUpdateHandler());
+        return email;
+    }
+
+    /** Writes an email to a byte array and makes a new email from it */
+    private Email copy(Email email) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        email.writeTo(outputStream);
+        return new Email(outputStream.toByteArray());
+    }
+
+    @Test
+    public void testVerifyAll() throws Exception {
+        List<Email> emails = new ArrayList<Email>();
+        emails.addAll(validEmails);
+        emails.addAll(invalidEmails);
+        for (Email email: emails)
+            assertNull(email.getMetadata().getSignatureValid());
+        
+        signatureVerifier.verifyAll(emails);
+        
+        for (Email email: validEmails) {
+            assertEquals(Boolean.TRUE, email.getMetadata().getSignatureValid());
+            assertTrue(email.isSignatureValid());
+        }
+        for (Email email: invalidEmails) {
+            assertEquals(Boolean.FALSE, email.getMetadata().getSignatureValid());
+            assertFalse(email.isSignatureValid());
+        }
+    }
+    
+    /** Verifies that the result stored in the metadata is used instead of verifying again */
+    @Test
+    public void testResultInMetadata() throws Exception {
+        Email email = validEmails.get(0);
+        signatureVerifier.verify(email);
+        assertTrue(email.isSignatureValid());
+        
+        email.getMetadata().setSignatureValid(false);
+        assertFalse(email.isSignatureValid());
+        
+        // without a stored result, isSignatureValid() verifies and stores the result
+        Email unverifiedEmail = validEmails.get(1);
+        assertTrue(unverifiedEmail.isSignatureValid());
+        assertEquals(Boolean.TRUE, unverifiedEmail.getMetadata().getSignatureValid());
+        
+        // removing the signature flag also removes the stored result
+        unverifiedEmail.removeSignatureFlag();
+        assertNull(unverifiedEmail.getMetadata().getSignatureValid());
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.email;
+
+import i2p.bote.crypto.CryptoFactory;
+import i2p.bote.crypto.CryptoImplementation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the vanity key search scales with the number of threads.<br/>
+ * This is not a unit test; run it with <code>java i2p.bote.email.VanityGeneratorBenchmark [seconds per run]</code>.
+ */
+public class VanityGeneratorBenchmark {
+    private static final String UNREACHABLE_PREFIX = "zzzzzzzzzz";   // keeps the generator busy for the whole run
+
+    public static void main(String[] args) throws Exception {
+        int secondsPerRun = args.length>0 ? Integer.valueOf(args[0]) : 10;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        
+        for (CryptoImplementation cryptoImpl: CryptoFactory.getInstances()) {
+            if (!cryptoImpl.getBase64InitialCharacters().contains(UNREACHABLE_PREFIX.substring(0, 1)))
+                continue;
+            System.out.println(cryptoImpl.getName());
+            double singleThreadRate = 0;
+            for (int numThreads=1; numThreads<=maxThreads; numThreads*=2) {
+                VanityGenerator generator = new VanityGenerator(cryptoImpl, UNREACHABLE_PREFIX, numThreads);
+                generator.start();
+                generator.await(secondsPerRun, TimeUnit.SECONDS);
+                double rate = generator.getAttemptsPerSecond();
+                generator.cancel();
+                
+                if (numThreads == 1)
+                    singleThreadRate = rate;
+                double speedup = singleThreadRate>0 ? rate/singleThreadRate : 0;
+                System.out.println(String.format("  %2d thread(s): %10.1f keys/s, speedup %.2f", numThreads, rate, speedup));
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import i2p.bote.crypto.CryptoFactory;
+import i2p.bote.crypto.CryptoImplementation;
+
+import java.security.KeyException;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class VanityGeneratorTest {
+
+    @Test
+    public void testGenerate() throws Exception {
+        for (CryptoImplementation cryptoImpl: CryptoFactory.getInstances()) {
+            // use the first char of a random key so the prefix is known to be possible
+            String prefix = cryptoImpl.encryptionKeyToBase64(cryptoImpl.generateEncryptionKeyPair().getPublic()).substring(0, 1);
+            VanityGenerator generator = new VanityGenerator(cryptoImpl, prefix, 2);
+            generator.start();
+            KeyPair keyPair = generator.getKeyPair();
+            
+            assertTrue(generator.isDone());
+            assertFalse(generator.isCancelled());
+            assertTrue(generator.getNumAttempts() > 0);
+            assertEquals(0, generator.getEstimatedTimeRemaining());
+            String base64 = cryptoImpl.encryptionKeyToBase64(keyPair.getPublic());
+            assertTrue("Key for " + cryptoImpl.getName() + " doesn't start with <" + prefix + ">: " + base64, base64.startsWith(prefix));
+            
+            // the key pair should work with the EmailIdentity constructor
+            EmailIdentity identity = new EmailIdentity(cryptoImpl, keyPair);
+            assertTrue(identity.getKey().startsWith(prefix));
+        }
+    }
+    
+    @Test
+    public void testCancel() throws Exception {
+        CryptoImplementation cryptoImpl = CryptoFactory.getInstance(2);   // ECDH-256 / ECDSA-256
+        // a prefix this long would take years to find
+        VanityGenerator generator = new VanityGenerator(cryptoImpl, "zzzzzzzzzz", 2);
+        generator.start();
+        assertFalse(generator.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(generator.getEstimatedTimeRemaining() > 0);
+        
+        generator.cancel();
+        assertTrue(generator.isDone());
+        assertTrue(generator.isCancelled());
+        try {
+            generator.getKeyPair();
+            fail("KeyException expected");
+        } catch (KeyException e) {
+        }
+        
+        // no more keys should be generated once the threads have stopped
+        Thread.sleep(100);
+        long numAttempts = generator.getNumAttempts();
+        Thread.sleep(200);
+        assertEquals(numAttempts, generator.getNumAttempts());
+    }
+    
+    @Test
+    public void testInvalidPrefix() {
+        CryptoImplementation cryptoImpl = CryptoFactory.getInstance(2);   // ECDH-256 / ECDSA-256
+        try {
+            new VanityGenerator(cryptoImpl, "A");
+            fail("IllegalDestinationParametersException expected");
+        } catch (IllegalDestinationParametersException e) {
+            assertEquals('A', e.getBadChar());
+            assertEquals(cryptoImpl.getBase64InitialCharacters(), e.getValidChars());
+        }
+    }
+}
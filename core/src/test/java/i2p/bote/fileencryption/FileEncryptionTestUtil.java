@@ -21,15 +21,32 @@
 
 package i2p.bote.fileencryption;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 
 public class FileEncryptionTestUtil {
     
     public static DerivedKey deriveKey(byte[] password) throws GeneralSecurityException {
+        return deriveKey(password, FileEncryptionConstants.KDF_PARAMETERS);
+    }
+    
+    /** Derives a key from a password and a random salt */
+    public static DerivedKey deriveKey(byte[] password, SCryptParameters scryptParams) throws GeneralSecurityException {
         byte[] salt = new byte[FileEncryptionConstants.SALT_LENGTH];
         new SecureRandom().nextBytes(salt);
-        byte[] keyBytes = FileEncryptionUtil.getEncryptionKey(password, salt, FileEncryptionConstants.KDF_PARAMETERS);
-        return new DerivedKey(salt, FileEncryptionConstants.KDF_PARAMETERS, keyBytes);
+        byte[] keyBytes = FileEncryptionUtil.getEncryptionKey(password, salt, scryptParams);
+        return new DerivedKey(salt, scryptParams, keyBytes);
+    }
+    
+    /** Encrypts data with a given key and returns the result in the format written by {@link EncryptedOutputStream} */
+    public static byte[] encrypt(byte[] data, DerivedKey key) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        OutputStream outputStream = new EncryptedOutputStream(byteStream, key);
+        outputStream.write(data);
+        outputStream.close();
+        return byteStream.toByteArray();
     }
 }
\ No newline at end of file
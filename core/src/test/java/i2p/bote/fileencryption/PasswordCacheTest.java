@@ -26,20 +26,26 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import i2p.bote.Configuration;
 import i2p.bote.TestUtil;
+import i2p.bote.Util;
 import i2p.bote.fileencryption.DerivedKey;
 import i2p.bote.fileencryption.FileEncryptionConstants;
 import i2p.bote.fileencryption.FileEncryptionUtil;
 import i2p.bote.fileencryption.PasswordCache;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
@@ -48,6 +54,7 @@ import org.junit.Test;
 
 public class PasswordCacheTest {
     private static final byte[] PASSWORD = "MySecretPassword12345".getBytes();
+    private static final SCryptParameters TEST_SCRYPT_PARAMETERS = new SCryptParameters(1024, 8, 1);   // cheaper than the real parameters
     
     private File testDir;
     private PasswordCache passwordCache;
@@ -147,6 +154,77 @@ public class PasswordCacheTest {
         assertArrayEquals(passwordCache.getPassword(), PASSWORD);
     }
     
+    /** Verifies that <code>scrypt</code> runs once per salt rather than once per file */
+    @Test
+    public void testKeyCache() throws Exception {
+        passwordCache.setPassword(PASSWORD);
+        List<byte[]> encryptedFiles = new ArrayList<byte[]>();
+        for (int i=0; i<3; i++) {
+            DerivedKey key = FileEncryptionTestUtil.deriveKey(PASSWORD, TEST_SCRYPT_PARAMETERS);
+            for (int j=0; j<4; j++)
+                encryptedFiles.add(FileEncryptionTestUtil.encrypt(("file " + i + "/" + j).getBytes(), key));
+        }
+        
+        int numDerivations = FileEncryptionUtil.getNumKeyDerivations();
+        for (byte[] encryptedFile: encryptedFiles)
+            decrypt(encryptedFile, passwordCache);
+        assertEquals(3, FileEncryptionUtil.getNumKeyDerivations() - numDerivations);
+        assertEquals(3, passwordCache.getNumCachedKeys());
+        
+        // a second pass should not derive any keys
+        numDerivations = FileEncryptionUtil.getNumKeyDerivations();
+        for (byte[] encryptedFile: encryptedFiles)
+            decrypt(encryptedFile, passwordCache);
+        assertEquals(0, FileEncryptionUtil.getNumKeyDerivations() - numDerivations);
+        
+        // a wrong password must not be cached
+        byte[] wrongPasswordFile = FileEncryptionTestUtil.encrypt("abc".getBytes(), FileEncryptionTestUtil.deriveKey("wrong".getBytes(), TEST_SCRYPT_PARAMETERS));
+        try {
+            decrypt(wrongPasswordFile, passwordCache);
+            fail("PasswordException expected!");
+        } catch (PasswordException e) {
+        }
+        assertEquals(3, passwordCache.getNumCachedKeys());
+        
+        // changing the password clears the cache
+        passwordCache.setPassword(PASSWORD);
+        assertEquals(0, passwordCache.getNumCachedKeys());
+    }
+    
+    @Test
+    public void testKeyCacheBounded() throws Exception {
+        passwordCache.setPassword(PASSWORD);
+        List<byte[]> encryptedFiles = new ArrayList<byte[]>();
+        for (int i=0; i<PasswordCache.MAX_CACHED_KEYS+2; i++) {
+            DerivedKey key = FileEncryptionTestUtil.deriveKey(PASSWORD, TEST_SCRYPT_PARAMETERS);
+            encryptedFiles.add(FileEncryptionTestUtil.encrypt(("file " + i).getBytes(), key));
+        }
+        
+        for (byte[] encryptedFile: encryptedFiles)
+            decrypt(encryptedFile, passwordCache);
+        assertEquals(PasswordCache.MAX_CACHED_KEYS, passwordCache.getNumCachedKeys());
+        
+        // the two oldest keys should have been evicted, the newest ones should still be there
+        int numDerivations = FileEncryptionUtil.getNumKeyDerivations();
+        decrypt(encryptedFiles.get(encryptedFiles.size()-1), passwordCache);
+        assertEquals(0, FileEncryptionUtil.getNumKeyDerivations() - numDerivations);
+        decrypt(encryptedFiles.get(0), passwordCache);
+        assertEquals(1, FileEncryptionUtil.getNumKeyDerivations() - numDerivations);
+        
+        // clearing the password clears the cache
+        passwordCache.clear();
+        assertEquals(0, passwordCache.getNumCachedKeys());
+    }
+    
+    private byte[] decrypt(byte[] encryptedData, PasswordHolder passwordHolder) throws Exception {
+        InputStream inputStream = new EncryptedInputStream(new ByteArrayInputStream(encryptedData), passwordHolder);
+        try {
+            return Util.readBytes(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+    
     /**
      * Returns the value of the private field <code>password</code>. Does not reset
      * the expiration time, unlike {@link PasswordCache#getPassword()}.
@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.fileencryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import i2p.bote.Util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReEncryptorTest {
+    private static final int NUM_FILES = 20;
+    private static final int NUM_THREADS = 4;
+    
+    private File testDir;
+    private File progressFile;
+    private byte[] oldPassword = "old password".getBytes();
+    private byte[] newPassword = "new password".getBytes();
+    private DerivedKey newKey;
+    private File[] files;
+    private byte[][] plainTexts;
+    
+    @Before
+    public void setUp() throws Exception {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        testDir = new File(tempDir, "ReEncryptorTest-" + System.currentTimeMillis());
+        testDir.mkdirs();
+        progressFile = new File(testDir, "progress");
+        newKey = FileEncryptionTestUtil.deriveKey(newPassword);
+        
+        // encrypt all files with the same key, like PasswordCache does
+        DerivedKey oldKey = FileEncryptionTestUtil.deriveKey(oldPassword);
+        files = new File[NUM_FILES];
+        plainTexts = new byte[NUM_FILES][];
+        for (int i=0; i<NUM_FILES; i++) {
+            files[i] = new File(testDir, "file" + i);
+            plainTexts[i] = ("plain text #" + i).getBytes();
+            OutputStream outputStream = new EncryptedOutputStream(new FileOutputStream(files[i]), oldKey);
+            outputStream.write(plainTexts[i]);
+            outputStream.close();
+        }
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        for (File file: testDir.listFiles())
+            file.delete();
+        testDir.delete();
+        assertFalse(testDir.exists());
+    }
+    
+    @Test
+    public void testReEncrypt() throws Exception {
+        ReEncryptor reEncryptor = new ReEncryptor(oldPassword, newPassword, newKey, progressFile, NUM_THREADS);
+        for (File file: files)
+            reEncryptor.submit(file);
+        reEncryptor.await();
+        reEncryptor.complete();
+        
+        verifyNewPassword();
+        assertEquals("The old key should only be derived once!", 1, reEncryptor.getNumKeyDerivations());
+        assertFalse("Progress file not deleted!", progressFile.exists());
+    }
+    
+    /** Simulates a password change that is interrupted, then resumed */
+    @Test
+    public void testResume() throws Exception {
+        ReEncryptor reEncryptor = new ReEncryptor(oldPassword, newPassword, newKey, progressFile, NUM_THREADS);
+        for (int i=0; i<NUM_FILES/2; i++)
+            reEncryptor.submit(files[i]);
+        reEncryptor.await();
+        byte[] reEncryptedFile1 = readFile(files[1]);
+        
+        // interruption after file 0 was written to a temp file and recorded, but before it was renamed
+        File tempFile = new File(files[0].getAbsolutePath() + ".reenc");
+        files[0].renameTo(tempFile);
+        OutputStream outputStream = new EncryptedOutputStream(new FileOutputStream(files[0]), FileEncryptionTestUtil.deriveKey(oldPassword));
+        outputStream.write(plainTexts[0]);
+        outputStream.close();
+        
+        // interruption while file 10 was being written to a temp file
+        outputStream = new FileOutputStream(new File(files[NUM_FILES/2].getAbsolutePath() + ".reenc"));
+        outputStream.write(new byte[] {1, 2, 3});
+        outputStream.close();
+        reEncryptor.shutdown();
+        
+        // resume
+        reEncryptor = new ReEncryptor(oldPassword, newPassword, newKey, progressFile, NUM_THREADS);
+        for (File file: files)
+            reEncryptor.submit(file);
+        reEncryptor.await();
+        reEncryptor.complete();
+        
+        verifyNewPassword();
+        assertArrayEquals("File was re-encrypted twice!", reEncryptedFile1, readFile(files[1]));
+        assertEquals("Temp files were not cleaned up!", NUM_FILES, testDir.list().length);
+    }
+    
+    /**
+     * Simulates an interruption after which the progress file and the files disagree:
+     * re-encrypted files are missing from the progress file, and a recorded file
+     * still has its old contents.
+     */
+    @Test
+    public void testResumeChecksHeaders() throws Exception {
+        ReEncryptor reEncryptor = new ReEncryptor(oldPassword, newPassword, newKey, progressFile, NUM_THREADS);
+        for (int i=0; i<NUM_FILES/2; i++)
+            reEncryptor.submit(files[i]);
+        reEncryptor.await();
+        reEncryptor.shutdown();
+        byte[] reEncryptedFile1 = readFile(files[1]);
+        
+        // file 0 is recorded but encrypted with the old password
+        OutputStream outputStream = new EncryptedOutputStream(new FileOutputStream(files[0]), FileEncryptionTestUtil.deriveKey(oldPassword));
+        outputStream.write(plainTexts[0]);
+        outputStream.close();
+        
+        // only the first line of the progress file survived
+        BufferedReader reader = new BufferedReader(new FileReader(progressFile));
+        String verifierLine = reader.readLine();
+        reader.close();
+        Writer writer = new FileWriter(progressFile);
+        writer.write(verifierLine + System.getProperty("line.separator") + files[0].getAbsolutePath() + System.getProperty("line.separator"));
+        writer.close();
+        
+        // resume
+        reEncryptor = new ReEncryptor(oldPassword, newPassword, newKey, progressFile, NUM_THREADS);
+        for (File file: files)
+            reEncryptor.submit(file);
+        reEncryptor.await();
+        reEncryptor.complete();
+        
+        verifyNewPassword();
+        assertArrayEquals("File was re-encrypted twice!", reEncryptedFile1, readFile(files[1]));
+    }
+    
+    /** An interrupted password change must be resumed with the same new password */
+    @Test
+    public void testResumeWithDifferentPassword() throws Exception {
+        ReEncryptor reEncryptor = new ReEncryptor(oldPassword, newPassword, newKey, progressFile, NUM_THREADS);
+        reEncryptor.submit(files[0]);
+        reEncryptor.await();
+        reEncryptor.shutdown();
+        
+        byte[] otherPassword = "another password".getBytes();
+        try {
+            new ReEncryptor(oldPassword, otherPassword, FileEncryptionTestUtil.deriveKey(otherPassword), progressFile, NUM_THREADS);
+            fail("PasswordException expected!");
+        } catch (PasswordException e) {
+        }
+    }
+    
+    private void verifyNewPassword() throws IOException, GeneralSecurityException, PasswordException {
+        for (int i=0; i<NUM_FILES; i++) {
+            InputStream inputStream = new EncryptedInputStream(new FileInputStream(files[i]), newPassword);
+            assertArrayEquals(plainTexts[i], Util.readBytes(inputStream));
+            inputStream.close();
+        }
+    }
+    
+    private byte[] readFile(File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            return Util.readBytes(inputStream);
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.fileencryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import i2p.bote.TestUtil;
+import i2p.bote.Util;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReKeyThreadTest {
+    private static final byte[] PASSWORD = "MySecretPassword12345".getBytes();
+    private static final SCryptParameters TEST_SCRYPT_PARAMETERS = new SCryptParameters(1024, 8, 1);
+    private static final String EXTENSION = ".test";
+    
+    private File testDir;
+    private File dataDir;
+    private PasswordCache passwordCache;
+    private ReKeyThread reKeyThread;
+    
+    @Before
+    public void setUp() throws Exception {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        testDir = new File(tempDir, "ReKeyThreadTest-" + System.currentTimeMillis());
+        dataDir = new File(testDir, "data");
+        assertTrue("Can't create directory: " + dataDir.getAbsolutePath(), dataDir.mkdirs());
+        passwordCache = TestUtil.createPasswordCache(testDir);
+        reKeyThread = new ReKeyThread(passwordCache, Collections.singletonList(dataDir), Collections.singletonList(EXTENSION));
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        TestUtil.deleteDirectory(testDir);
+    }
+    
+    @Test
+    public void testReKeyAll() throws Exception {
+        passwordCache.setPassword(PASSWORD);
+        
+        // two files with the current key, four files with two other salts
+        DerivedKey currentKey = passwordCache.getKey();
+        DerivedKey otherKey1 = FileEncryptionTestUtil.deriveKey(PASSWORD, TEST_SCRYPT_PARAMETERS);
+        DerivedKey otherKey2 = FileEncryptionTestUtil.deriveKey(PASSWORD, TEST_SCRYPT_PARAMETERS);
+        writeFile("current1", currentKey);
+        writeFile("current2", currentKey);
+        writeFile("other1a", otherKey1);
+        writeFile("other1b", otherKey1);
+        writeFile("other2a", otherKey2);
+        writeFile("other2b", otherKey2);
+        
+        // files without the extension are not touched
+        File ignoredFile = new File(dataDir, "other.journal");
+        byte[] ignoredContent = FileEncryptionTestUtil.encrypt("ignored".getBytes(), otherKey1);
+        writeBytes(ignoredFile, ignoredContent);
+        
+        int numDerivations = FileEncryptionUtil.getNumKeyDerivations();
+        assertEquals(4, reKeyThread.reKeyAll());
+        assertEquals("scrypt should run once per salt", 2, FileEncryptionUtil.getNumKeyDerivations() - numDerivations);
+        
+        for (String name: Arrays.asList("current1", "current2", "other1a", "other1b", "other2a", "other2b")) {
+            File file = new File(dataDir, name + EXTENSION);
+            assertTrue(readParameters(file).matches(currentKey));
+            assertArrayEquals(name.getBytes(), decrypt(file));
+        }
+        assertArrayEquals(ignoredContent, TestUtil.readFile(ignoredFile));
+        assertFalse(new File(dataDir, "other1a" + EXTENSION + ".rekey").exists());
+        
+        // nothing left to do on the second pass
+        numDerivations = FileEncryptionUtil.getNumKeyDerivations();
+        assertEquals(0, reKeyThread.reKeyAll());
+        assertEquals(0, FileEncryptionUtil.getNumKeyDerivations() - numDerivations);
+    }
+    
+    @Test
+    public void testNoPassword() throws Exception {
+        passwordCache.setPassword(PASSWORD);
+        writeFile("other", FileEncryptionTestUtil.deriveKey(PASSWORD, TEST_SCRYPT_PARAMETERS));
+        passwordCache.clear();
+        
+        assertEquals(0, reKeyThread.reKeyAll());
+        passwordCache.setPassword(PASSWORD);
+        assertEquals(1, reKeyThread.reKeyAll());
+    }
+    
+    @Test
+    public void testWrongPassword() throws Exception {
+        passwordCache.setPassword(PASSWORD);
+        File file = writeFile("wrong", FileEncryptionTestUtil.deriveKey("wrong".getBytes(), TEST_SCRYPT_PARAMETERS));
+        byte[] content = TestUtil.readFile(file);
+        
+        assertEquals(0, reKeyThread.reKeyAll());
+        assertArrayEquals(content, TestUtil.readFile(file));
+        
+        // the file should not be tried again
+        int numDerivations = FileEncryptionUtil.getNumKeyDerivations();
+        assertEquals(0, reKeyThread.reKeyAll());
+        assertEquals(0, FileEncryptionUtil.getNumKeyDerivations() - numDerivations);
+    }
+    
+    /**
+     * Checks that a file written by another thread while holding the lock on the
+     * <code>PasswordCache</code> (like <code>EmailFolder</code> and <code>RecordStore</code>
+     * do) isn't replaced with the old content.
+     */
+    @Test
+    public void testConcurrentWrite() throws Exception {
+        passwordCache.setPassword(PASSWORD);
+        final DerivedKey otherKey = FileEncryptionTestUtil.deriveKey(PASSWORD, TEST_SCRYPT_PARAMETERS);
+        File file = writeFile("other", otherKey);
+        
+        Thread reKeyCaller = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    reKeyThread.reKeyAll();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        synchronized(passwordCache) {
+            reKeyCaller.start();
+            Thread.sleep(100);   // let the ReKeyThread wait for the lock
+            writeBytes(file, FileEncryptionTestUtil.encrypt("new".getBytes(), otherKey));
+        }
+        reKeyCaller.join();
+        
+        assertTrue(readParameters(file).matches(passwordCache.getKey()));
+        assertArrayEquals("new".getBytes(), decrypt(file));
+    }
+    
+    /** Writes a file whose plain text is its name, encrypted with a given key */
+    private File writeFile(String name, DerivedKey key) throws Exception {
+        File file = new File(dataDir, name + EXTENSION);
+        writeBytes(file, FileEncryptionTestUtil.encrypt(name.getBytes(), key));
+        return file;
+    }
+    
+    private void writeBytes(File file, byte[] data) throws Exception {
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(data);
+        } finally {
+            outputStream.close();
+        }
+    }
+    
+    private KeyParameters readParameters(File file) throws Exception {
+        DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+        try {
+            return KeyParameters.readHeader(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+    
+    private byte[] decrypt(File file) throws Exception {
+        InputStream inputStream = new EncryptedInputStream(new FileInputStream(file), passwordCache);
+        try {
+            return Util.readBytes(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+}
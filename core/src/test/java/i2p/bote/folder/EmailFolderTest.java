@@ -151,5 +151,16 @@ public class EmailFolderTest {
         Email emailFromFolder = iterator.next();
         assertEquals("\"unread\" flag is false after adding email to folder!", emailFromFolder.isUnread(), true);
         folder1.setNew(email1.getMessageID(), false);
+        assertEquals("\"unread\" flag is true after setNew(false)!", folder1.getEmail(email1.getMessageID()).isUnread(), false);
+        assertEquals(0, folder1.getNumNewEmails());
+        
+        // the flag should survive a restart
+        EmailFolder folder1Reloaded = new EmailFolder(folderDir1, TestUtil.createPasswordCache(testDir));
+        assertEquals("\"unread\" flag not persisted!", folder1Reloaded.getEmail(email1.getMessageID()).isUnread(), false);
+        
+        // the flag should stay with the email when it is moved
+        folder1.move(email1, folder2);
+        assertEquals("\"unread\" flag lost after moving the email!", folder2.getEmail(email1.getMessageID()).isUnread(), false);
+        assertEquals("Source folder is not empty!", 0, folderDir1.list().length);
     }
 }
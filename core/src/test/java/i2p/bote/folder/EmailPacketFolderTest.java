@@ -201,6 +201,25 @@ public class EmailPacketFolderTest {
         assertEquals(0, packetFolder.getElements().size());
     }
     
+    /** Checks that packets deleted through an iterator are no longer counted as expired */
+    @Test
+    public void testIteratorRemoveExpired() throws GeneralSecurityException, PasswordException {
+        long expirationTime = System.currentTimeMillis() - ExpirationListener.EXPIRATION_TIME_MILLISECONDS - 10*1000;
+        packetFolder.store(new SettableStoreTimeEncryptedEmailPacket(unencryptedPacket, recipient, expirationTime));
+        packetFolder.store(new SettableStoreTimeEncryptedEmailPacket(unencryptedPacket2, recipient, expirationTime));
+        assertEquals(2, packetFolder.getNumExpired());
+        
+        Iterator<EncryptedEmailPacket> iterator = packetFolder.iterator();
+        iterator.next();
+        iterator.remove();
+        assertEquals(1, packetFolder.getNumExpired());
+        
+        // the deleted packet doesn't use up the limit
+        assertEquals(1, packetFolder.deleteExpired(1));
+        assertEquals(0, packetFolder.getElements().size());
+        assertEquals(0, packetFolder.getNumExpired());
+    }
+    
     /**
      * A modified version of {@link EncryptedEmailPacket} that allows for the store time
      * to be set externally (the store time would otherwise be set to the current time).
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.folder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExpirationIndexTest {
+    private static final long LIFETIME = 1000000;
+    private static final long BUCKET_DURATION = 1000;
+    
+    private ExpirationIndex<String> index;
+
+    @Before
+    public void setUp() throws Exception {
+        index = new ExpirationIndex<String>(LIFETIME, BUCKET_DURATION);
+    }
+
+    @Test
+    public void testPollExpired() {
+        index.add("a", 0);
+        index.add("b", 500);
+        index.add("c", 1500);
+        index.add("d", 5000);
+        assertEquals(4, index.size());
+        
+        // "a" and "b" are in the same bucket but only "a" has expired
+        long currentTime = LIFETIME + 200;
+        assertEquals(1, index.getNumExpired(currentTime));
+        List<String> expired = index.pollExpired(currentTime, Integer.MAX_VALUE);
+        assertEquals(1, expired.size());
+        assertEquals("a", expired.get(0));
+        assertEquals(3, index.size());
+        
+        // everything except "d" has expired, but only two keys may be returned
+        currentTime = LIFETIME + 2000;
+        assertEquals(2, index.getNumExpired(currentTime));
+        index.add("e", 0);
+        assertEquals(3, index.getNumExpired(currentTime));
+        expired = index.pollExpired(currentTime, 2);
+        assertEquals(2, expired.size());
+        assertTrue(expired.contains("b"));   // oldest bucket first
+        assertTrue(expired.contains("e"));
+        assertEquals(1, index.getNumExpired(currentTime));
+        expired = index.pollExpired(currentTime, 2);
+        assertEquals(1, expired.size());
+        assertEquals(0, index.getNumExpired(currentTime));
+        assertEquals(1, index.size());
+    }
+    
+    @Test
+    public void testAddAndRemove() {
+        index.add("a", 0);
+        // re-adding a key replaces the old expiration time
+        index.add("a", 10000);
+        assertEquals(1, index.size());
+        assertTrue(index.pollExpired(LIFETIME + 1000, Integer.MAX_VALUE).isEmpty());
+        assertEquals(1, index.pollExpired(LIFETIME + 20000, Integer.MAX_VALUE).size());
+        
+        index.add("b", 0);
+        index.remove("b");
+        index.remove("c");   // not in the index
+        assertEquals(0, index.size());
+        assertEquals(0, index.getNumExpired(LIFETIME + 1000));
+    }
+}
@@ -21,6 +21,8 @@
 
 package i2p.bote.folder;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import i2p.bote.TestUtil;
 import i2p.bote.crypto.KeyUpdateHandler;
@@ -30,9 +32,16 @@ import i2p.bote.fileencryption.PasswordCache;
 import i2p.bote.packet.I2PBotePacket;
 import i2p.bote.packet.dht.UnencryptedEmailPacket;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Message.RecipientType;
 import javax.mail.internet.InternetAddress;
@@ -43,9 +52,13 @@ import org.junit.Test;
 
 public class IncompleteEmailFolderTest {
     private static final String MSG_ID_CACHE_DIR = "msgidcache.txt";
+    private static final String RECIPIENT = "test@bote.i2p";
+    private static final String IDENTITY = "DVkhqF6R9SHB5svViGtqRYZO7oI-0-omnIFtae29fNnNtTTH2j37Fr5fWp4t6rseTjiJ8gwg08DnbA4qP72aSQcDQPSErOELOMSU5BUTtsT8hnv1-DKdhIn~1qoIjxzIFHbxT3xnR3nFI7lKd6couscilzPBCjoFDUKb5ds2u23RO29K7~EKxU1O7Ltu6sT5etXkJkhAziOcuyfZyxJXqH1caYX5e2aWIhY3D2ESfy4nMK66r5KcDVQOPTzCkJq6d1FFOmnDGrlJjN~HgHmfUCtLbO~TLugWx9FCiDGfPkBb-3ODYTDaUR1zobOj1tiffV3Nm73PsYddRt84emLKzIRsC77JJpflw~h8UIRYJ29vJDf4VQ54BhZcelmN192sIrWr2nKN8n6PpSP4LI4RAuG2UvLytnDYzFM7O9WcnFP2-Qs3t1lD9aF72JVTYTpH5PZupnB1cglSsdRg8RmtRa41Fseyx8D3EdH~DCdpMGmfupaWp9~dKpFMleqk9scRAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABTjDxn3wEOjCjJ4APg~2IGpqWwy2Hw728aZ3eCC5l0MP913BLdIfSUiXPbs6sN9A2";
     
     private File inboxDir;
     private EmailFolder inbox;
+    private File incompleteDir;
+    private MessageIdCache messageIdCache;
     private IncompleteEmailFolder incompleteFolder;
     private File testDir;
 
@@ -59,8 +72,8 @@ public class IncompleteEmailFolderTest {
         inboxDir = new File(testDir, "inbox");
         inbox = new EmailFolder(inboxDir, passwordCache);
         
-        File incompleteDir = new File(testDir, "incomplete");
-        MessageIdCache messageIdCache = new MessageIdCache(new File(testDir, MSG_ID_CACHE_DIR), 1000);
+        incompleteDir = new File(testDir, "incomplete");
+        messageIdCache = new MessageIdCache(new File(testDir, MSG_ID_CACHE_DIR), 1000);
         incompleteFolder = new IncompleteEmailFolder(incompleteDir, messageIdCache, inbox);
     }
     
@@ -83,32 +96,190 @@ public class IncompleteEmailFolderTest {
     
     @Test
     public void testAddThreePacketEmail() throws Exception {
-        // Create a 29,000-char string. Use random data (more or less, because it has to be
-        // US ASCII chars) so it doesn't get compressed into less than 3 packets.
-        Random rng = new Random();
-        rng.setSeed(0);
-        byte[] message = new byte[29000];
-        for (int i=0; i<message.length; i++)
-            message[i] = (byte)(32 + rng.nextInt(127-32));
+        testAddEmail(createRandomText(29000), 3);
+    }
+    
+    /** Adds the packets of a multi-packet email in random order */
+    @Test
+    public void testRandomArrivalOrder() throws Exception {
+        Email email = createEmail(createRandomText(50000));
+        List<UnencryptedEmailPacket> packets = createEmailPackets(email);
+        assertTrue("Expected more than 3 email packets, got " + packets.size(), packets.size() > 3);
+        Collections.shuffle(packets, new Random(1));
+        
+        CountDownLatch emailReceived = listenForEmail(incompleteFolder);
+        for (int i=0; i<packets.size(); i++) {
+            boolean completed = incompleteFolder.addEmailPacket(packets.get(i));
+            assertEquals("Email completed too early or too late", i==packets.size()-1, completed);
+        }
+        // adding a packet again should be ignored
+        assertFalse(incompleteFolder.addEmailPacket(packets.get(0)));
         
-        testAddEmail(new String(message), 3);
+        assertTrue("Timeout waiting for the email to be assembled", emailReceived.await(1, TimeUnit.MINUTES));
+        verifyInbox(email);
+    }
+    
+    /** Adds some packets of an email, then "restarts" by creating a new folder object, and adds the remaining packets */
+    @Test
+    public void testRestartMidEmail() throws Exception {
+        Email email = createEmail(createRandomText(50000));
+        List<UnencryptedEmailPacket> packets = createEmailPackets(email);
+        Collections.shuffle(packets, new Random(2));
+        int numBeforeRestart = packets.size() / 2;
+        
+        for (int i=0; i<numBeforeRestart; i++)
+            assertFalse(incompleteFolder.addEmailPacket(packets.get(i)));
+        assertEquals(1, incompleteFolder.getNumIncompleteEmails());
+        
+        // restart, making sure the fragments are found again
+        incompleteFolder = new IncompleteEmailFolder(incompleteDir, messageIdCache, inbox);
+        assertEquals(1, incompleteFolder.getNumIncompleteEmails());
+        assertEquals(numBeforeRestart, incompleteFolder.getElements().size());
+        
+        // add a packet that was received before the restart, then add the remaining packets
+        CountDownLatch emailReceived = listenForEmail(incompleteFolder);
+        assertFalse(incompleteFolder.addEmailPacket(packets.get(0)));
+        for (int i=numBeforeRestart; i<packets.size(); i++)
+            assertEquals(i==packets.size()-1, incompleteFolder.addEmailPacket(packets.get(i)));
+        
+        assertTrue("Timeout waiting for the email to be assembled", emailReceived.await(1, TimeUnit.MINUTES));
+        assertEquals(0, incompleteFolder.getNumIncompleteEmails());
+        verifyInbox(email);
     }
 
-    private void testAddEmail(String mailContent, int expectedNumPackets) throws Exception {
-        Email email = new Email(true);
-        String recipient = "test@bote.i2p";
-        email.addRecipient(RecipientType.TO, new InternetAddress(recipient));
-        email.setText(mailContent);
+    /** Checks that a packet whose number of fragments doesn't match the email's other packets is dropped */
+    @Test
+    public void testMismatchedNumFragments() throws Exception {
+        Email email = createEmail(createRandomText(29000));
+        List<UnencryptedEmailPacket> packets = createEmailPackets(email);
+        assertEquals(3, packets.size());
         
-        EmailIdentity identity = new EmailIdentity("DVkhqF6R9SHB5svViGtqRYZO7oI-0-omnIFtae29fNnNtTTH2j37Fr5fWp4t6rseTjiJ8gwg08DnbA4qP72aSQcDQPSErOELOMSU5BUTtsT8hnv1-DKdhIn~1qoIjxzIFHbxT3xnR3nFI7lKd6couscilzPBCjoFDUKb5ds2u23RO29K7~EKxU1O7Ltu6sT5etXkJkhAziOcuyfZyxJXqH1caYX5e2aWIhY3D2ESfy4nMK66r5KcDVQOPTzCkJq6d1FFOmnDGrlJjN~HgHmfUCtLbO~TLugWx9FCiDGfPkBb-3ODYTDaUR1zobOj1tiffV3Nm73PsYddRt84emLKzIRsC77JJpflw~h8UIRYJ29vJDf4VQ54BhZcelmN192sIrWr2nKN8n6PpSP4LI4RAuG2UvLytnDYzFM7O9WcnFP2-Qs3t1lD9aF72JVTYTpH5PZupnB1cglSsdRg8RmtRa41Fseyx8D3EdH~DCdpMGmfupaWp9~dKpFMleqk9scRAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABTjDxn3wEOjCjJ4APg~2IGpqWwy2Hw728aZ3eCC5l0MP913BLdIfSUiXPbs6sN9A2");
-        KeyUpdateHandler keyUpdateHandler = TestUtil.createDummyKeyUpdateHandler();
-        Collection<UnencryptedEmailPacket> packets = email.createEmailPackets(identity, keyUpdateHandler, recipient, I2PBotePacket.MAX_DATAGRAM_SIZE);
+        assertFalse(incompleteFolder.addEmailPacket(packets.get(0)));
+        UnencryptedEmailPacket mismatchedPacket = new UnencryptedEmailPacket(new ByteArrayInputStream(new byte[100]), packets.get(0).getMessageId(), 1, I2PBotePacket.MAX_DATAGRAM_SIZE);
+        mismatchedPacket.setNumFragments(2);
+        assertFalse(incompleteFolder.addEmailPacket(mismatchedPacket));
+        assertEquals(1, incompleteFolder.getElements().size());
+        
+        CountDownLatch emailReceived = listenForEmail(incompleteFolder);
+        assertFalse(incompleteFolder.addEmailPacket(packets.get(1)));
+        assertTrue(incompleteFolder.addEmailPacket(packets.get(2)));
+        assertTrue("Timeout waiting for the email to be assembled", emailReceived.await(1, TimeUnit.MINUTES));
+        verifyInbox(email);
+    }
+    
+    /**
+     * Checks that an email which is complete but wasn't assembled before a restart is
+     * assembled when the folder is unlocked, and not before.
+     */
+    @Test
+    public void testCompleteAtStartup() throws Exception {
+        Email email = createEmail(createRandomText(29000));
+        List<UnencryptedEmailPacket> packets = createEmailPackets(email);
+        
+        // write the packet files without going through the FragmentTracker
+        for (UnencryptedEmailPacket packet: packets)
+            incompleteFolder.add(packet, getFilename(packet));
+        
+        incompleteFolder = new IncompleteEmailFolder(incompleteDir, messageIdCache, inbox);
+        TimeUnit.SECONDS.sleep(1);
+        assertEquals(packets.size(), incompleteFolder.getNumElements());
+        assertEquals(0, inbox.getElements().size());
+        
+        incompleteFolder.passwordProvided();
+        long timeout = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        while (incompleteFolder.getNumElements()>0 && System.currentTimeMillis()<timeout)   // packet files are deleted after the email is stored
+            TimeUnit.MILLISECONDS.sleep(100);
+        verifyInbox(email);
+        assertEquals(0, incompleteFolder.getNumIncompleteEmails());
+    }
+
+    /** Checks that the packets of an email that can't be assembled are deleted instead of being kept forever */
+    @Test
+    public void testUnassemblableEmail() throws Exception {
+        Email email = createEmail(createRandomText(29000));
+        List<UnencryptedEmailPacket> packets = createEmailPackets(email);
+        assertEquals(3, packets.size());
+        
+        incompleteFolder.addEmailPacket(packets.get(0));
+        incompleteFolder.addEmailPacket(packets.get(1));
+        // corrupt a packet file
+        FileOutputStream outputStream = new FileOutputStream(new File(incompleteDir, getFilename(packets.get(0))));
+        try {
+            outputStream.write(new byte[] {1, 2, 3, 4});
+        } finally {
+            outputStream.close();
+        }
+        assertTrue(incompleteFolder.addEmailPacket(packets.get(2)));
+        
+        long timeout = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        while (incompleteFolder.getNumIncompleteEmails()>0 && System.currentTimeMillis()<timeout)
+            TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(0, incompleteFolder.getNumIncompleteEmails());
+        assertEquals(0, incompleteFolder.getNumElements());
+        assertEquals(0, inbox.getElements().size());
+        
+        // the message ID is still cached, so resent packets are ignored
+        assertFalse(incompleteFolder.addEmailPacket(packets.get(0)));
+        assertEquals(0, incompleteFolder.getNumElements());
+    }
+    
+    private String getFilename(UnencryptedEmailPacket packet) {
+        return packet.getMessageId() + "_" + String.format("%03d", packet.getFragmentIndex()) + PacketFolder.PACKET_FILE_EXTENSION;
+    }
+    
+    private void testAddEmail(String mailContent, int expectedNumPackets) throws Exception {
+        Email email = createEmail(mailContent);
+        Collection<UnencryptedEmailPacket> packets = createEmailPackets(email);
         assertTrue("Expected " + expectedNumPackets + " email packets, got " + packets.size(), packets.size() == expectedNumPackets);
         
         assertTrue("The inbox should be empty at this point!", inbox.getElements().size() == 0);
+        CountDownLatch emailReceived = listenForEmail(incompleteFolder);
         for (UnencryptedEmailPacket emailPacket: packets)
             incompleteFolder.addEmailPacket(emailPacket);
+        assertTrue("Timeout waiting for the email to be assembled", emailReceived.await(1, TimeUnit.MINUTES));
         
+        verifyInbox(email);
+    }
+    
+    /**
+     * Create a string of a given length. Use random data (more or less, because it has to be
+     * US ASCII chars) so it doesn't get compressed into fewer packets.
+     */
+    private String createRandomText(int length) {
+        Random rng = new Random();
+        rng.setSeed(0);
+        byte[] message = new byte[length];
+        for (int i=0; i<message.length; i++)
+            message[i] = (byte)(32 + rng.nextInt(127-32));
+        return new String(message);
+    }
+    
+    private Email createEmail(String mailContent) throws Exception {
+        Email email = new Email(true);
+        email.addRecipient(RecipientType.TO, new InternetAddress(RECIPIENT));
+        email.setText(mailContent);
+        return email;
+    }
+    
+    private List<UnencryptedEmailPacket> createEmailPackets(Email email) throws Exception {
+        EmailIdentity identity = new EmailIdentity(IDENTITY);
+        KeyUpdateHandler keyUpdateHandler = TestUtil.createDummyKeyUpdateHandler();
+        return new ArrayList<UnencryptedEmailPacket>(email.createEmailPackets(identity, keyUpdateHandler, RECIPIENT, I2PBotePacket.MAX_DATAGRAM_SIZE));
+    }
+    
+    /** Returns a <code>CountDownLatch</code> that reaches zero when the folder has added an email to the inbox */
+    private CountDownLatch listenForEmail(IncompleteEmailFolder folder) {
+        final CountDownLatch emailReceived = new CountDownLatch(1);
+        folder.addNewEmailListener(new NewEmailListener() {
+            @Override
+            public void emailReceived(String messageId) {
+                emailReceived.countDown();
+            }
+        });
+        return emailReceived;
+    }
+    
+    private void verifyInbox(Email email) throws Exception {
         assertTrue("The incomplete emails folder is not empty!", incompleteFolder.getElements().size() == 0);
         assertTrue("Expected: one email in the inbox, actual number = " + inbox.getElements().size(), inbox.getElements().size() == 1);
         // Verify that the original email and the email in the folder are the same except for the signature header
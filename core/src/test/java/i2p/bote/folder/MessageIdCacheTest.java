@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.folder;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import i2p.bote.UniqueId;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageIdCacheTest {
+    private static final int CACHE_SIZE = 10;
+    
+    private File testDir;
+    private File cacheFile;
+
+    @Before
+    public void setUp() throws Exception {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        testDir = new File(tempDir, "MessageIdCacheTest-" + System.currentTimeMillis());
+        testDir.mkdir();
+        cacheFile = new File(testDir, "msgidcache.txt");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cacheFile.delete();
+        testDir.delete();
+        assertFalse(testDir.exists());
+    }
+
+    /** Checks that the oldest IDs are evicted first, and that the cache is the same after a restart */
+    @Test
+    public void testEviction() {
+        MessageIdCache cache = new MessageIdCache(cacheFile, CACHE_SIZE);
+        UniqueId[] ids = new UniqueId[CACHE_SIZE + 5];
+        for (int i=0; i<ids.length; i++) {
+            ids[i] = new UniqueId();
+            cache.add(ids[i]);
+        }
+        verifyNewest(cache, ids, CACHE_SIZE+1);
+        
+        // reload from the file
+        cache = new MessageIdCache(cacheFile, CACHE_SIZE);
+        verifyNewest(cache, ids, CACHE_SIZE+1);
+    }
+    
+    /** Checks that the file doesn't grow indefinitely */
+    @Test
+    public void testCompaction() throws IOException {
+        MessageIdCache cache = new MessageIdCache(cacheFile, CACHE_SIZE);
+        UniqueId[] ids = new UniqueId[CACHE_SIZE * 10];
+        for (int i=0; i<ids.length; i++) {
+            ids[i] = new UniqueId();
+            cache.add(ids[i]);
+        }
+        assertTrue("Cache file not compacted", countLines(cacheFile) <= 2*(CACHE_SIZE+1));
+        
+        cache = new MessageIdCache(cacheFile, CACHE_SIZE);
+        verifyNewest(cache, ids, CACHE_SIZE+1);
+    }
+    
+    /** Simulates a crash while a message ID was being appended */
+    @Test
+    public void testIncompleteLine() throws IOException {
+        MessageIdCache cache = new MessageIdCache(cacheFile, CACHE_SIZE);
+        UniqueId id = new UniqueId();
+        cache.add(id);
+        
+        FileWriter writer = new FileWriter(cacheFile, true);
+        writer.write(new UniqueId().toBase64().substring(0, 20));
+        writer.close();
+        
+        cache = new MessageIdCache(cacheFile, CACHE_SIZE);
+        assertTrue(cache.contains(id));
+        UniqueId id2 = new UniqueId();
+        cache.add(id2);
+        cache = new MessageIdCache(cacheFile, CACHE_SIZE);
+        assertTrue(cache.contains(id));
+        assertTrue(cache.contains(id2));
+    }
+    
+    /** Verifies that the cache contains the last <code>num</code> IDs of an array, but no others */
+    private void verifyNewest(MessageIdCache cache, UniqueId[] ids, int num) {
+        for (int i=0; i<ids.length; i++)
+            if (i < ids.length-num)
+                assertFalse("ID #" + i + " should have been evicted", cache.contains(ids[i]));
+            else
+                assertTrue("ID #" + i + " should be in the cache", cache.contains(ids[i]));
+    }
+    
+    private int countLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        int numLines = 0;
+        while (reader.readLine() != null)
+            numLines++;
+        reader.close();
+        return numLines;
+    }
+}
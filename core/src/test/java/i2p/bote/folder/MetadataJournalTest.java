@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.folder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import i2p.bote.TestUtil;
+import i2p.bote.fileencryption.PasswordCache;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetadataJournalTest {
+    private File testDir;
+    private File journalFile;
+    private PasswordCache passwordCache;
+
+    @Before
+    public void setUp() throws Exception {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        testDir = new File(tempDir, "MetadataJournalTest-" + System.currentTimeMillis());
+        testDir.mkdir();
+        journalFile = new File(testDir, "metadata.journal");
+        passwordCache = TestUtil.createPasswordCache(testDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journalFile.delete();
+        new File(journalFile.getAbsolutePath() + ".tmp").delete();
+        TestUtil.deleteGeneratedFiles(testDir);
+        testDir.delete();
+        assertFalse(testDir.exists());
+    }
+
+    /** Checks that changes survive a restart, and that later changes override earlier ones */
+    @Test
+    public void testReload() throws Exception {
+        MetadataJournal journal = new MetadataJournal(journalFile, passwordCache);
+        journal.setProperty(Arrays.asList("id1", "id2"), "new", "false");
+        journal.setProperty(Arrays.asList("id2"), "replied", "true");
+        journal.setProperty(Arrays.asList("id1"), "new", "true");
+        
+        journal = new MetadataJournal(journalFile, passwordCache);
+        Properties metadata1 = new Properties();
+        assertTrue(journal.applyTo("id1", metadata1));
+        assertEquals("true", metadata1.getProperty("new"));
+        assertEquals(null, metadata1.getProperty("replied"));
+        Properties metadata2 = new Properties();
+        assertTrue(journal.applyTo("id2", metadata2));
+        assertEquals("false", metadata2.getProperty("new"));
+        assertEquals("true", metadata2.getProperty("replied"));
+        assertFalse(journal.applyTo("id3", new Properties()));
+    }
+    
+    /** Checks that a change to many emails is written as one record */
+    @Test
+    public void testBulkChange() throws Exception {
+        MetadataJournal journal = new MetadataJournal(journalFile, passwordCache);
+        List<String> messageIds = new ArrayList<String>();
+        for (int i=0; i<1000; i++)
+            messageIds.add("id" + i);
+        journal.setProperty(messageIds, "new", "false");
+        long oneRecordLength = journalFile.length();
+        journal.setProperty(messageIds, "new", "true");
+        assertEquals(2 * oneRecordLength, journalFile.length());
+        
+        journal = new MetadataJournal(journalFile, passwordCache);
+        for (String messageId: messageIds) {
+            Properties metadata = new Properties();
+            journal.applyTo(messageId, metadata);
+            assertEquals("true", metadata.getProperty("new"));
+        }
+    }
+    
+    /** Checks that the journal file doesn't grow indefinitely */
+    @Test
+    public void testCompaction() throws Exception {
+        MetadataJournal journal = new MetadataJournal(journalFile, passwordCache);
+        journal.setProperty(Arrays.asList("id1"), "new", "false");
+        long oneRecordLength = journalFile.length();
+        for (int i=0; i<MetadataJournal.MAX_RECORDS*3; i++)
+            journal.setProperty(Arrays.asList("id1"), "new", String.valueOf(i%2 == 0));
+        assertTrue(journalFile.length() <= MetadataJournal.MAX_RECORDS * oneRecordLength);
+        
+        journal = new MetadataJournal(journalFile, passwordCache);
+        Properties metadata = new Properties();
+        journal.applyTo("id1", metadata);
+        assertEquals(String.valueOf((MetadataJournal.MAX_RECORDS*3-1)%2 == 0), metadata.getProperty("new"));
+    }
+    
+    /** Checks that forgetting the last email deletes the journal file */
+    @Test
+    public void testForget() throws Exception {
+        MetadataJournal journal = new MetadataJournal(journalFile, passwordCache);
+        journal.setProperty(Arrays.asList("id1", "id2"), "new", "false");
+        journal.forget("id1");
+        assertFalse(journal.hasChanges("id1"));
+        assertTrue(journal.hasChanges("id2"));
+        
+        journal = new MetadataJournal(journalFile, passwordCache);
+        assertFalse(journal.hasChanges("id1"));
+        assertTrue(journal.hasChanges("id2"));
+        journal.forget("id2");
+        assertFalse(journalFile.exists());
+    }
+    
+    /** Checks that a partially written record is ignored, and that new records can be appended after it */
+    @Test
+    public void testIncompleteRecord() throws Exception {
+        MetadataJournal journal = new MetadataJournal(journalFile, passwordCache);
+        journal.setProperty(Arrays.asList("id1"), "new", "false");
+        
+        // simulate a crash while appending a record
+        OutputStream outputStream = new FileOutputStream(journalFile, true);
+        outputStream.write(new byte[] {0, 0, 1, 0, 42, 42, 42});
+        outputStream.close();
+        
+        journal = new MetadataJournal(journalFile, passwordCache);
+        journal.setProperty(Arrays.asList("id2"), "replied", "true");
+        
+        journal = new MetadataJournal(journalFile, passwordCache);
+        Properties metadata = new Properties();
+        journal.applyTo("id1", metadata);
+        journal.applyTo("id2", metadata);
+        assertEquals("false", metadata.getProperty("new"));
+        assertEquals("true", metadata.getProperty("replied"));
+    }
+    
+    /** Checks that a partially written length field is removed before the next record is appended */
+    @Test
+    public void testIncompleteLength() throws Exception {
+        MetadataJournal journal = new MetadataJournal(journalFile, passwordCache);
+        journal.setProperty(Arrays.asList("id1"), "new", "false");
+        long validLength = journalFile.length();
+        
+        // simulate a crash after writing two bytes of the next record's length
+        OutputStream outputStream = new FileOutputStream(journalFile, true);
+        outputStream.write(new byte[] {0, 0});
+        outputStream.close();
+        
+        journal = new MetadataJournal(journalFile, passwordCache);
+        assertTrue(journal.hasChanges("id1"));
+        assertEquals(validLength, journalFile.length());
+        journal.setProperty(Arrays.asList("id2"), "replied", "true");
+        
+        journal = new MetadataJournal(journalFile, passwordCache);
+        Properties metadata = new Properties();
+        journal.applyTo("id1", metadata);
+        journal.applyTo("id2", metadata);
+        assertEquals("false", metadata.getProperty("new"));
+        assertEquals("true", metadata.getProperty("replied"));
+    }
+    
+    /** Checks that a negative or oversized record length doesn't cause an exception */
+    @Test
+    public void testInvalidLength() throws Exception {
+        for (int length: new int[] {-1, Integer.MAX_VALUE}) {
+            MetadataJournal journal = new MetadataJournal(journalFile, passwordCache);
+            journal.setProperty(Arrays.asList("id1"), "new", "false");
+            
+            DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(journalFile, true));
+            outputStream.writeInt(length);
+            outputStream.write(new byte[] {42, 42, 42});
+            outputStream.close();
+            
+            journal = new MetadataJournal(journalFile, passwordCache);
+            journal.setProperty(Arrays.asList("id2"), "replied", "true");
+            
+            journal = new MetadataJournal(journalFile, passwordCache);
+            Properties metadata = new Properties();
+            journal.applyTo("id1", metadata);
+            journal.applyTo("id2", metadata);
+            assertEquals("false", metadata.getProperty("new"));
+            assertEquals("true", metadata.getProperty("replied"));
+            journalFile.delete();
+        }
+    }
+}
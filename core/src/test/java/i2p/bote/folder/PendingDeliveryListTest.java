@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.folder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import i2p.bote.TestUtil;
+import i2p.bote.email.EmailDestination;
+import i2p.bote.email.EmailMetadata;
+import i2p.bote.email.EmailMetadata.PacketInfo;
+import i2p.bote.fileencryption.PasswordCache;
+import i2p.bote.folder.PendingDeliveryList.PendingDelivery;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import net.i2p.data.Hash;
+import net.i2p.util.RandomSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PendingDeliveryListTest {
+    private File testDir;
+    private File listFile;
+    private PasswordCache passwordCache;
+    private EmailDestination destination;
+
+    @Before
+    public void setUp() throws Exception {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        testDir = new File(tempDir, "PendingDeliveryListTest-" + System.currentTimeMillis());
+        testDir.mkdir();
+        listFile = new File(testDir, "pendingDeliveries");
+        passwordCache = TestUtil.createPasswordCache(testDir);
+        destination = new EmailDestination("3LbBiN2nxtQVxPXYBQL3~PjBg-xOPalsFKZ0YqobHXP1u3MiBxqthF6TJxqdPS2LWWKb90FVzaPyIIEQOT0qSb");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        listFile.delete();
+        new File(listFile.getAbsolutePath() + ".tmp").delete();
+        TestUtil.deleteGeneratedFiles(testDir);
+        testDir.delete();
+        assertFalse(testDir.exists());
+    }
+
+    @Test
+    public void testAddAndReload() throws Exception {
+        PendingDeliveryList list = new PendingDeliveryList(listFile, passwordCache);
+        assertFalse(list.exists());
+        list.addAll(Collections.<String, Collection<PacketInfo>>emptyMap());
+        assertTrue(list.exists());
+        assertTrue(list.getAll().isEmpty());
+        
+        Collection<PacketInfo> packets1 = createPackets(2);
+        Collection<PacketInfo> packets2 = createPackets(1);
+        list.add("id1", packets1);
+        list.add("id2", packets2);
+        
+        list = new PendingDeliveryList(listFile, passwordCache);
+        List<PendingDelivery> deliveries = list.getAll();
+        assertEquals(3, deliveries.size());
+        for (PacketInfo packet: packets1)
+            assertTrue(contains(deliveries, "id1", packet));
+        for (PacketInfo packet: packets2)
+            assertTrue(contains(deliveries, "id2", packet));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        PendingDeliveryList list = new PendingDeliveryList(listFile, passwordCache);
+        list.add("id1", createPackets(2));
+        list.add("id2", createPackets(2));
+        
+        List<PendingDelivery> deliveries = list.getAll();
+        PendingDelivery removed = deliveries.get(0);
+        list.remove(Collections.singleton(removed));
+        
+        list = new PendingDeliveryList(listFile, passwordCache);
+        deliveries = list.getAll();
+        assertEquals(3, deliveries.size());
+        for (PendingDelivery delivery: deliveries)
+            assertFalse(removed.dhtKey.equals(delivery.dhtKey));
+    }
+    
+    private Collection<PacketInfo> createPackets(int numPackets) {
+        EmailMetadata metadata = new EmailMetadata();
+        for (int i=0; i<numPackets; i++)
+            metadata.addPacketInfo(destination, randomHash(), randomHash());
+        return metadata.getUndeliveredPacketKeys();
+    }
+    
+    private Hash randomHash() {
+        byte[] bytes = new byte[Hash.HASH_LENGTH];
+        RandomSource.getInstance().nextBytes(bytes);
+        return new Hash(bytes);
+    }
+    
+    private boolean contains(List<PendingDelivery> deliveries, String messageId, PacketInfo packet) {
+        for (PendingDelivery delivery: deliveries)
+            if (messageId.equals(delivery.messageId) && packet.dhtKey.equals(delivery.dhtKey) && packet.delVerificationHash.equals(delivery.delVerificationHash))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.folder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import i2p.bote.TestUtil;
+import i2p.bote.email.PictureSource;
+import i2p.bote.fileencryption.PasswordCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordStoreTest {
+    private File testDir;
+    private File storeDir;
+    private PasswordCache passwordCache;
+    private RecordStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        testDir = new File(tempDir, "RecordStoreTest-" + System.currentTimeMillis());
+        testDir.mkdir();
+        storeDir = new File(testDir, "store");
+        passwordCache = TestUtil.createPasswordCache(testDir);
+        store = new RecordStore(storeDir, passwordCache);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestUtil.deleteDirectory(storeDir);
+        TestUtil.deleteGeneratedFiles(testDir);
+        testDir.delete();
+        assertFalse(testDir.exists());
+    }
+
+    /** Checks that committed records and large fields can be read by a new <code>RecordStore</code> */
+    @Test
+    public void testCommit() throws Exception {
+        assertFalse(store.hasRecords());
+        RecordStore.Transaction transaction = store.beginTransaction();
+        transaction.putRecord("a", createRecord("name", "Alice"));
+        transaction.putRecord("b", createRecord("name", "Bob"));
+        transaction.putLargeField("a", "picture", new byte[] {1, 2, 3});
+        assertFalse(store.hasRecords());
+        transaction.commit();
+        assertTrue(store.hasRecords());
+        
+        RecordStore newStore = new RecordStore(storeDir, passwordCache);
+        Map<String, Properties> records = newStore.readAll();
+        assertEquals(2, records.size());
+        assertEquals("Alice", records.get("a").getProperty("name"));
+        assertEquals("Bob", records.get("b").getProperty("name"));
+        assertTrue(newStore.hasLargeField("a", "picture"));
+        assertFalse(newStore.hasLargeField("b", "picture"));
+        assertArrayEquals(new byte[] {1, 2, 3}, newStore.readLargeField("a", "picture"));
+        assertNull(newStore.readLargeField("b", "picture"));
+        
+        PictureSource pictureSource = newStore.getPictureSource("a", "picture");
+        assertArrayEquals(new byte[] {1, 2, 3}, pictureSource.loadPicture());
+        assertNull(newStore.getPictureSource("b", "picture"));
+        
+        // records are encrypted
+        for (File file: newStore.getFiles())
+            assertFalse(new String(TestUtil.readFile(file), "ISO-8859-1").contains("Alice"));
+    }
+
+    /** Checks that only changed records are rewritten */
+    @Test
+    public void testUnchangedRecordsNotWritten() throws Exception {
+        RecordStore.Transaction transaction = store.beginTransaction();
+        transaction.putRecord("a", createRecord("name", "Alice"));
+        transaction.putRecord("b", createRecord("name", "Bob"));
+        transaction.putLargeField("a", "picture", new byte[] {1, 2, 3});
+        transaction.commit();
+        
+        File recordFileA = new File(storeDir, "a.record");
+        File recordFileB = new File(storeDir, "b.record");
+        File fieldFile = new File(storeDir, "a.picture.field");
+        byte[] oldRecordA = TestUtil.readFile(recordFileA);
+        byte[] oldRecordB = TestUtil.readFile(recordFileB);
+        byte[] oldField = TestUtil.readFile(fieldFile);
+        
+        transaction = store.beginTransaction();
+        transaction.putRecord("a", createRecord("name", "Alice"));
+        transaction.putRecord("b", createRecord("name", "Robert"));
+        transaction.putLargeField("a", "picture", new byte[] {1, 2, 3});
+        transaction.commit();
+        
+        // encryption uses a random IV, so a rewritten file never has the same contents
+        assertArrayEquals(oldRecordA, TestUtil.readFile(recordFileA));
+        assertFalse(Arrays.equals(oldRecordB, TestUtil.readFile(recordFileB)));
+        assertArrayEquals(oldField, TestUtil.readFile(fieldFile));
+        
+        // the same applies to a store that has read the records from disk
+        RecordStore newStore = new RecordStore(storeDir, passwordCache);
+        newStore.readAll();
+        transaction = newStore.beginTransaction();
+        transaction.putRecord("a", createRecord("name", "Alice"));
+        transaction.commit();
+        assertArrayEquals(oldRecordA, TestUtil.readFile(recordFileA));
+    }
+
+    /** Checks that deleting a record also deletes its large fields */
+    @Test
+    public void testDelete() throws Exception {
+        RecordStore.Transaction transaction = store.beginTransaction();
+        transaction.putRecord("a", createRecord("name", "Alice"));
+        transaction.putLargeField("a", "picture", new byte[] {1, 2, 3});
+        transaction.putRecord("b", createRecord("name", "Bob"));
+        transaction.commit();
+        
+        transaction = store.beginTransaction();
+        transaction.deleteRecord("a");
+        transaction.putLargeField("b", "picture", null);
+        transaction.commit();
+        
+        assertEquals(1, store.getRecordIds().size());
+        assertTrue(store.getRecordIds().contains("b"));
+        assertFalse(store.hasLargeField("a", "picture"));
+        assertEquals(1, store.getFiles().size());
+    }
+
+    /** Simulates a crash after the commit file was written. The commit must be completed on the next access. */
+    @Test
+    public void testRollForward() throws Exception {
+        RecordStore.Transaction transaction = store.beginTransaction();
+        transaction.putRecord("a", createRecord("name", "Alice"));
+        transaction.putRecord("b", createRecord("name", "Bob"));
+        transaction.commit();
+        
+        // write a new version of a, and a commit file that replaces a and deletes b
+        File newStoreDir = new File(testDir, "store2");
+        RecordStore newStore = new RecordStore(newStoreDir, passwordCache);
+        transaction = newStore.beginTransaction();
+        transaction.putRecord("a", createRecord("name", "Alfred"));
+        transaction.commit();
+        File newRecordFile = new File(newStoreDir, "a.record");
+        assertTrue(newRecordFile.renameTo(new File(storeDir, "a.record.new")));
+        assertTrue(newStoreDir.delete());
+        writeFile(new File(storeDir, "commit"), "R a.record\nD b.record\nEND\n");
+        
+        Map<String, Properties> records = new RecordStore(storeDir, passwordCache).readAll();
+        assertEquals(1, records.size());
+        assertEquals("Alfred", records.get("a").getProperty("name"));
+        assertFalse(new File(storeDir, "commit").exists());
+        assertFalse(new File(storeDir, "a.record.new").exists());
+    }
+
+    /** Simulates a crash before the commit file was complete. The store must be left unchanged. */
+    @Test
+    public void testIncompleteCommit() throws Exception {
+        RecordStore.Transaction transaction = store.beginTransaction();
+        transaction.putRecord("a", createRecord("name", "Alice"));
+        transaction.putRecord("b", createRecord("name", "Bob"));
+        transaction.commit();
+        
+        writeFile(new File(storeDir, "c.record.new"), "garbage");
+        writeFile(new File(storeDir, "commit"), "R c.record\nD b.rec");
+        
+        RecordStore newStore = new RecordStore(storeDir, passwordCache);
+        Map<String, Properties> records = newStore.readAll();
+        assertEquals(2, records.size());
+        assertEquals("Bob", records.get("b").getProperty("name"));
+        assertFalse(new File(storeDir, "commit").exists());
+        assertFalse(new File(storeDir, "c.record.new").exists());
+        
+        // uncommitted files without a commit file are deleted as well
+        writeFile(new File(storeDir, "c.record.new"), "garbage");
+        assertEquals(2, newStore.getRecordIds().size());
+        assertFalse(new File(storeDir, "c.record.new").exists());
+    }
+
+    private Properties createRecord(String key, String value) {
+        Properties record = new Properties();
+        record.setProperty(key, value);
+        return record;
+    }
+    
+    private void writeFile(File file, String contents) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(contents.getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+}
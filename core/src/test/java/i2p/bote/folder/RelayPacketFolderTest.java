@@ -22,6 +22,7 @@
 package i2p.bote.folder;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import i2p.bote.UniqueId;
@@ -111,4 +112,45 @@ public class RelayPacketFolderTest {
         iterator.remove();
         assertFalse("Packet was not deleted!", folder.iterator().hasNext());
     }
-}
\ No newline at end of file
+    
+    /** Tests {@link RelayPacketFolder#remove(RelayRequest)}. */
+    @Test
+    public void testRemovePacket() {
+        folder.add(relayRequest);
+        RelayRequest storedPacket = folder.iterator().next();
+        
+        assertTrue("Packet was not deleted!", folder.remove(storedPacket));
+        assertFalse("Folder is not empty!", folder.iterator().hasNext());
+        assertFalse("Packet was deleted twice!", folder.remove(storedPacket));
+    }
+    
+    /** Checks that packets deleted through an iterator are no longer counted as expired */
+    @Test
+    public void testIteratorRemoveExpired() {
+        long sendTime = System.currentTimeMillis() - ExpirationListener.EXPIRATION_TIME_MILLISECONDS - 10*1000;
+        folder.add(relayRequest, sendTime + "_0" + RelayPacketFolder.PACKET_FILE_EXTENSION);
+        assertEquals(1, folder.getNumExpired());
+        
+        Iterator<RelayRequest> iterator = folder.iterator();
+        iterator.next();
+        iterator.remove();
+        assertEquals(0, folder.getNumExpired());
+    }
+    
+    /** Checks that files that have disappeared don't count towards the limit in {@link RelayPacketFolder#deleteExpired(int)} */
+    @Test
+    public void testDeleteExpiredMissingFile() {
+        long sendTime = System.currentTimeMillis() - ExpirationListener.EXPIRATION_TIME_MILLISECONDS - 10*1000;
+        // the missing file is the oldest, so it is polled first
+        String missingFilename = (sendTime - TimeUnit.HOURS.toMillis(2)) + "_0" + RelayPacketFolder.PACKET_FILE_EXTENSION;
+        folder.add(relayRequest, missingFilename);
+        folder.add(relayRequest, sendTime + "_1" + RelayPacketFolder.PACKET_FILE_EXTENSION);
+        folder.add(relayRequest, sendTime + "_2" + RelayPacketFolder.PACKET_FILE_EXTENSION);
+        assertEquals(3, folder.getNumExpired());
+        assertTrue(new File(folderDir, missingFilename).delete());
+        
+        assertEquals(2, folder.deleteExpired(2));
+        assertFalse(folder.iterator().hasNext());
+        assertEquals(0, folder.getNumExpired());
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network;
+
+import i2p.bote.UniqueId;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.client.datagram.I2PDatagramDissector;
+import net.i2p.client.datagram.I2PDatagramMaker;
+import net.i2p.data.Destination;
+
+/**
+ * Compares the CPU time needed to create and check 1 KB datagrams as signed repliable
+ * datagrams, and as raw datagrams authenticated by a {@link DatagramSessionManager} session.<br/>
+ * This is not a unit test; run it with <code>java i2p.bote.network.DatagramSessionBenchmark [number of datagrams]</code>.
+ */
+public class DatagramSessionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numDatagrams = args.length>0 ? Integer.valueOf(args[0]) : 1000;
+        
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        ByteArrayOutputStream keyStream = new ByteArrayOutputStream();
+        Destination sender = i2pClient.createDestination(keyStream);
+        I2PSession i2pSession = i2pClient.createSession(new ByteArrayInputStream(keyStream.toByteArray()), null);
+        Destination receiver = i2pClient.createDestination(new ByteArrayOutputStream());
+        byte[] data = new byte[1024];
+        new Random(0).nextBytes(data);
+        
+        // signed datagrams
+        I2PDatagramMaker datagramMaker = new I2PDatagramMaker(i2pSession);
+        long startTime = System.nanoTime();
+        for (int i=0; i<numDatagrams; i++) {
+            byte[] datagram = datagramMaker.makeI2PDatagram(data);
+            I2PDatagramDissector dissector = new I2PDatagramDissector();
+            dissector.loadI2PDatagram(datagram);
+            dissector.verifySignature();
+            dissector.extractPayload();
+        }
+        double signedMicros = (System.nanoTime()-startTime) / 1e3 / numDatagrams;
+        
+        // raw datagrams with a session MAC
+        DatagramSessionManager senderManager = new DatagramSessionManager(I2PAppContext.getGlobalContext());
+        DatagramSessionManager receiverManager = new DatagramSessionManager(I2PAppContext.getGlobalContext());
+        UniqueId packetId = new UniqueId();
+        senderManager.peerVersionSeen(receiver, DatagramSessionManager.MIN_PROTOCOL_VERSION);
+        receiverManager.processSignedPayload(senderManager.addSessionOffer(data, packetId, receiver), sender);
+        senderManager.packetConfirmed(receiver, packetId);
+        int numRejected = 0;
+        startTime = System.nanoTime();
+        for (int i=0; i<numDatagrams; i++) {
+            byte[] datagram = senderManager.createRawDatagram(data, receiver);
+            if (receiverManager.verifyRawDatagram(datagram) == null)
+                numRejected++;
+            DatagramSessionManager.getRawPayload(datagram);
+        }
+        double rawMicros = (System.nanoTime()-startTime) / 1e3 / numDatagrams;
+        
+        System.out.println("Average of " + numDatagrams + " datagrams, create + verify:");
+        System.out.println(String.format("  signed:           %9.1f us", signedMicros));
+        System.out.println(String.format("  raw with MAC:     %9.1f us (%d rejected)", rawMicros, numRejected));
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import i2p.bote.UniqueId;
+import i2p.bote.packet.ResponsePacket;
+import i2p.bote.packet.StatusCode;
+import i2p.bote.packet.dht.DeletionQuery;
+import i2p.bote.packet.dht.EmailPacketDeleteRequest;
+import i2p.bote.packet.dht.EncryptedEmailPacket;
+import i2p.bote.packet.dht.FindClosePeersPacket;
+import i2p.bote.packet.dht.RetrieveRequest;
+
+import java.util.Arrays;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Destination;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DatagramSessionManagerTest {
+    private Destination destinationA;
+    private Destination destinationB;
+    private DatagramSessionManager managerA;   // the session manager on A's side
+    private DatagramSessionManager managerB;   // the session manager on B's side
+    private byte[] packetData;
+    private UniqueId packetId;
+
+    @Before
+    public void setUp() throws Exception {
+        destinationA = new Destination("c41n4lNINwohF7b0Q9Lk~XG1hKdmtLVnvsuYZ~Cp~oqdid6X80bje7mAmvbPIxrmpt~cP2YBhJdPK58gFBLyTGZ~aLrZ7~os6khqxFsdVtZpoGC4MrO5vtm0GolLicZT0GYX~rOjjLR9L~aPHHYD2TmSjo10lCf7PLCkdRDT~qDUfB~djfBIhoqSUQAUNu8GRbHNC9p6lshvH--do9Ja9bxVHrSs~Gesg4c6ylAwR8Y-w699LwL0Nh9vZnoLjIdCAckFK0NYpq4btc4zq4zQU4HWLPNSJVz1XzT4yfLoKt5ggYNDfzrKqbY5lcDmuKSSV-XyW4uX4MieqqUMInu40l~OiGs670zCIl-2X2EP-guPrgXUK0D1i7V3aeYpH8G~9Vhx8LmlBD5XPvKjr1EVjvbvm1scwLhg6S1pDiaCUkK~WtilESVa8lFFPshIlrFsX0jYOm5C9J72fBamS~HmVXCnsDw5V7CxeaSwWwBZ1nROXGU3e-9JX-1lB3FLlTKuAAAA");
+        destinationB = new Destination("nn6eEP8mqldEwjr6c76fpuILWyQXNXWd0JIiA1qVoQPkNil4QSwZsNy7sBU9sIBL~7Vxz~QV-d6bqzVkmVfQN69DUs10Gcd~d6ZxzhfHZb51JVM9nUhNO1OMaRfc3YMXWrnlPShYlMXtDojHtgJD508mDpKQnRlws1fO8ngIzfdnyEv~LCuqbxO9~qCRtD4KwHpOeMn1Rak6dEBb2RNilzQsdBcEpL8hfyzYTv4EHUXs-TUSnJTto880N7CH2RNw~dWGUFG~MGwEquyIBDQ-5mfdzW03eIFXBLMdleHaOi49zggS-LlGpHPFlLEQyitz8-APmDuhzpfu0Yv8cZaBby~tAkIpNNKqmwdOO9A0~~E~rHWEIi5KcuRd8SiIy99kGqeCnaR52WfCn3SL-JkOZFae2H-OTh2gBAgNp~WwZETY45qHxnhKOXfZ90vcfrIXBWqYycfXalUVBh4-nKrL~688Yogk2ubbc5yKluDhr0ZN86xveqjq4ynwKIcWTun0AAAA");
+        managerA = new DatagramSessionManager(I2PAppContext.getGlobalContext());
+        managerB = new DatagramSessionManager(I2PAppContext.getGlobalContext());
+        
+        FindClosePeersPacket packet = new FindClosePeersPacket(destinationB.calculateHash());
+        packetData = packet.toByteArray();
+        packetId = packet.getPacketId();
+    }
+    
+    /** Sets up a session from A to B and returns a raw datagram sent from A to B */
+    private byte[] establishSession() {
+        managerA.peerVersionSeen(destinationB, DatagramSessionManager.MIN_PROTOCOL_VERSION);
+        byte[] signedPayload = managerA.addSessionOffer(packetData, packetId, destinationB);
+        assertArrayEquals(packetData, managerB.processSignedPayload(signedPayload, destinationA));
+        managerA.packetConfirmed(destinationB, packetId);
+        return managerA.createRawDatagram(packetData, destinationB);
+    }
+    
+    @Test
+    public void testSession() {
+        managerA.peerVersionSeen(destinationB, DatagramSessionManager.MIN_PROTOCOL_VERSION);
+        byte[] signedPayload = managerA.addSessionOffer(packetData, packetId, destinationB);
+        assertFalse(Arrays.equals(packetData, signedPayload));
+        assertNull("Raw datagram created before the session was confirmed", managerA.createRawDatagram(packetData, destinationB));
+        
+        assertArrayEquals(packetData, managerB.processSignedPayload(signedPayload, destinationA));
+        managerA.packetConfirmed(destinationB, new UniqueId());
+        assertNull("Session confirmed by an unrelated packet", managerA.createRawDatagram(packetData, destinationB));
+        managerA.packetConfirmed(destinationB, packetId);
+        
+        byte[] rawDatagram = managerA.createRawDatagram(packetData, destinationB);
+        assertNotNull(rawDatagram);
+        assertEquals(destinationA, managerB.verifyRawDatagram(rawDatagram));
+        assertArrayEquals(packetData, DatagramSessionManager.getRawPayload(rawDatagram));
+        
+        // no more session offers once the session is confirmed
+        assertSame(packetData, managerA.addSessionOffer(packetData, new UniqueId(), destinationB));
+    }
+    
+    /** Checks that the session is confirmed when the peer responds to a packet that carried the offer */
+    @Test
+    public void testConfirmByResponse() {
+        managerA.packetReceived(new FindClosePeersPacket(destinationA.calculateHash()), destinationB);
+        managerA.addSessionOffer(packetData, packetId, destinationB);
+        ResponsePacket response = ResponsePacket.create(null, StatusCode.OK, packetId).iterator().next();
+        managerA.packetReceived(response, destinationB);
+        assertNotNull(managerA.createRawDatagram(packetData, destinationB));
+    }
+    
+    /** Checks that A falls back to signed datagrams when B doesn't respond to a raw request */
+    @Test
+    public void testUnansweredRawRequest() {
+        assertNotNull(establishSession());
+        
+        // answered requests don't affect the session
+        UniqueId answeredPacketId = new UniqueId();
+        managerA.rawRequestSent(destinationB, answeredPacketId, System.currentTimeMillis() - DatagramSessionManager.RAW_RESPONSE_TIMEOUT - 1);
+        managerA.packetConfirmed(destinationB, answeredPacketId);
+        assertNotNull(managerA.createRawDatagram(packetData, destinationB));
+        
+        // B has lost the session, e.g. because of a restart
+        managerA.rawRequestSent(destinationB, new UniqueId(), System.currentTimeMillis() - DatagramSessionManager.RAW_RESPONSE_TIMEOUT - 1);
+        assertNull(managerA.createRawDatagram(packetData, destinationB));
+        byte[] signedPayload = managerA.addSessionOffer(packetData, packetId, destinationB);
+        assertFalse("No new session offer", Arrays.equals(packetData, signedPayload));
+    }
+    
+    /** Checks that packets which never get a response don't make A discard the session */
+    @Test
+    public void testOneWayPacket() {
+        assertNotNull(establishSession());
+        long sendTime = System.currentTimeMillis() - DatagramSessionManager.RAW_RESPONSE_TIMEOUT - 1;
+        
+        managerA.rawPacketSent(destinationB, new EmailPacketDeleteRequest(destinationA.calculateHash(), new UniqueId()), sendTime);
+        managerA.rawPacketSent(destinationB, new DeletionQuery(destinationA.calculateHash()), sendTime);
+        managerA.rawPacketSent(destinationB, ResponsePacket.create(null, StatusCode.OK, new UniqueId()).iterator().next(), sendTime);
+        assertNotNull(managerA.createRawDatagram(packetData, destinationB));
+        
+        // an unanswered request still ends the session
+        managerA.rawPacketSent(destinationB, new RetrieveRequest(destinationA.calculateHash(), EncryptedEmailPacket.class), sendTime);
+        assertNull(managerA.createRawDatagram(packetData, destinationB));
+    }
+    
+    @Test
+    public void testOldPeer() {
+        managerA.peerVersionSeen(destinationB, DatagramSessionManager.MIN_PROTOCOL_VERSION - 1);
+        assertSame(packetData, managerA.addSessionOffer(packetData, packetId, destinationB));
+        managerA.packetConfirmed(destinationB, packetId);
+        assertNull(managerA.createRawDatagram(packetData, destinationB));
+        
+        // unknown peers don't get offers either
+        assertSame(packetData, managerA.addSessionOffer(packetData, packetId, destinationA));
+    }
+    
+    @Test
+    public void testNoOfferInPayload() {
+        assertSame(packetData, managerB.processSignedPayload(packetData, destinationA));
+    }
+    
+    @Test
+    public void testInvalidMac() {
+        byte[] rawDatagram = establishSession();
+        rawDatagram[rawDatagram.length-1] ^= 1;
+        assertNull("Modified payload accepted", managerB.verifyRawDatagram(rawDatagram));
+        
+        rawDatagram = managerA.createRawDatagram(packetData, destinationB);
+        rawDatagram[DatagramSessionManager.SESSION_ID_LENGTH] ^= 1;
+        assertNull("Modified MAC accepted", managerB.verifyRawDatagram(rawDatagram));
+    }
+    
+    @Test
+    public void testUnknownSession() {
+        byte[] rawDatagram = establishSession();
+        DatagramSessionManager managerC = new DatagramSessionManager(I2PAppContext.getGlobalContext());
+        assertNull(managerC.verifyRawDatagram(rawDatagram));
+        assertNull(managerB.verifyRawDatagram(new byte[DatagramSessionManager.RAW_HEADER_LENGTH - 1]));
+    }
+}
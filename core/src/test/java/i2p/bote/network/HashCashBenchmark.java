@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network;
+
+import i2p.bote.packet.StatusCode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.nettgryppa.security.HashCash;
+
+/**
+ * Measures how long it takes to mint HashCash stamps of different strengths on one
+ * and on all cores, and how many stamps can be verified per second.<br/>
+ * This is not a unit test; run it with <code>java i2p.bote.network.HashCashBenchmark [stamps per strength]</code>.
+ */
+public class HashCashBenchmark {
+    private static final String RESOURCE = "b7ZdQhnwYTtsF3ch9qxrTjbO5K5EPa0xdYbESvL6Bqk=";
+
+    public static void main(String[] args) throws Exception {
+        int numStamps = args.length>0 ? Integer.valueOf(args[0]) : 10;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        
+        System.out.println("Minting (average of " + numStamps + " stamps)");
+        List<HashCash> stamps = new ArrayList<HashCash>();
+        for (int strength=8; strength<=20; strength+=4) {
+            long startTime = System.nanoTime();
+            for (int i=0; i<numStamps; i++)
+                stamps.add(HashCashMinter.mint(RESOURCE, strength, 1));
+            double singleThreadMillis = (System.nanoTime()-startTime) / 1e6 / numStamps;
+            
+            startTime = System.nanoTime();
+            for (int i=0; i<numStamps; i++)
+                HashCashMinter.mint(RESOURCE, strength, numThreads);
+            double multiThreadMillis = (System.nanoTime()-startTime) / 1e6 / numStamps;
+            
+            System.out.println(String.format("  strength %2d: %9.2f ms on 1 thread, %9.2f ms on %d threads", strength, singleThreadMillis, multiThreadMillis, numThreads));
+        }
+        
+        // verify the same stamps many times; only the first round is accepted, the others are rejected as replays
+        int numRounds = 1000;
+        HashCashVerifier verifier = new HashCashVerifier(8);
+        long startTime = System.nanoTime();
+        int numAccepted = 0;
+        for (int i=0; i<numRounds; i++)
+            for (HashCash stamp: stamps)
+                if (verifier.verify(stamp, RESOURCE) == StatusCode.OK)
+                    numAccepted++;
+        double verificationsPerSecond = numRounds * stamps.size() * 1e9 / (System.nanoTime()-startTime);
+        System.out.println(String.format("Verification: %.0f stamps/s (%d accepted)", verificationsPerSecond, numAccepted));
+    }
+}
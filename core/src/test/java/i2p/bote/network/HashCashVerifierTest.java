@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import i2p.bote.packet.StatusCode;
+
+import org.junit.Test;
+
+import com.nettgryppa.security.HashCash;
+
+public class HashCashVerifierTest {
+    private static final String RESOURCE = "b7ZdQhnwYTtsF3ch9qxrTjbO5K5EPa0xdYbESvL6Bqk=";
+
+    @Test
+    public void testMintAndVerify() throws Exception {
+        for (int strength: new int[] {1, 8, 12}) {
+            HashCash hashCash = HashCashMinter.mint(RESOURCE, strength);
+            assertTrue(hashCash.toString().startsWith("1:" + strength + ":"));
+            HashCashVerifier verifier = new HashCashVerifier(strength);
+            assertEquals(StatusCode.OK, verifier.verify(hashCash, RESOURCE));
+        }
+    }
+    
+    @Test
+    public void testParallelMint() throws Exception {
+        HashCash hashCash = HashCashMinter.mint(RESOURCE, 14, 4);
+        assertEquals(StatusCode.OK, new HashCashVerifier(14).verify(hashCash, RESOURCE));
+    }
+    
+    @Test
+    public void testRejectInvalid() throws Exception {
+        HashCash hashCash = HashCashMinter.mint(RESOURCE, 8);
+        
+        assertEquals(StatusCode.INSUFFICIENT_HASHCASH, new HashCashVerifier(12).verify(hashCash, RESOURCE));
+        assertEquals(StatusCode.INVALID_HASHCASH, new HashCashVerifier(8).verify(hashCash, "otherResource"));
+        assertEquals(StatusCode.INVALID_HASHCASH, new HashCashVerifier(8).verify(null, RESOURCE));
+        // a negative maximum age means every stamp has expired
+        assertEquals(StatusCode.INVALID_HASHCASH, new HashCashVerifier(8, -1000).verify(hashCash, RESOURCE));
+    }
+    
+    @Test
+    public void testReplay() throws Exception {
+        HashCashVerifier verifier = new HashCashVerifier(8);
+        HashCash hashCash1 = HashCashMinter.mint(RESOURCE, 8);
+        HashCash hashCash2 = HashCashMinter.mint(RESOURCE, 8);
+        
+        assertEquals(StatusCode.OK, verifier.verify(hashCash1, RESOURCE));
+        assertEquals(StatusCode.INVALID_HASHCASH, verifier.verify(hashCash1, RESOURCE));
+        assertEquals(StatusCode.OK, verifier.verify(hashCash2, RESOURCE));
+        assertEquals(2, verifier.getNumSpentStamps());
+    }
+    
+    @Test
+    public void testRelease() throws Exception {
+        HashCashVerifier verifier = new HashCashVerifier(8);
+        HashCash hashCash = HashCashMinter.mint(RESOURCE, 8);
+        
+        assertEquals(StatusCode.OK, verifier.verify(hashCash, RESOURCE));
+        verifier.release(hashCash);
+        assertEquals(0, verifier.getNumSpentStamps());
+        // the packet was rejected, so the same stamp can be sent again
+        assertEquals(StatusCode.OK, verifier.verify(hashCash, RESOURCE));
+        assertEquals(StatusCode.INVALID_HASHCASH, verifier.verify(hashCash, RESOURCE));
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import i2p.bote.UniqueId;
+import i2p.bote.crypto.RelaySessionKeyManager;
+import i2p.bote.email.EmailDestination;
+import i2p.bote.folder.RelayPacketFolder;
+import i2p.bote.packet.DataPacket;
+import i2p.bote.packet.StatusCode;
+import i2p.bote.packet.dht.IndexPacket;
+import i2p.bote.packet.dht.StoreRequest;
+import i2p.bote.packet.relay.RelayRequest;
+import i2p.bote.service.ReturnChainTracker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.data.Destination;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Feeds a local {@link RelayPacketHandler} with synthetic relay requests and measures
+ * how long the delivering thread is blocked, and how many requests per second are
+ * stored and confirmed.<br/>
+ * This is not a unit test; run it with <code>java i2p.bote.network.RelayPacketHandlerBenchmark [number of packets]</code>.
+ */
+public class RelayPacketHandlerBenchmark {
+    private static final int HASHCASH_STRENGTH = 10;
+
+    public static void main(String[] args) throws Exception {
+        int numPackets = args.length>0 ? Integer.valueOf(args[0]) : 500;
+        
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        ByteArrayOutputStream keyStream = new ByteArrayOutputStream();
+        i2pClient.createDestination(keyStream);
+        I2PSession i2pSession = i2pClient.createSession(new ByteArrayInputStream(keyStream.toByteArray()), null);
+        Destination localDestination = i2pSession.getMyDestination();
+        Destination sender = i2pClient.createDestination(new ByteArrayOutputStream());
+        
+        // relay requests addressed to the local destination, each containing a relay request for another peer
+        System.out.println("Creating " + numPackets + " relay requests...");
+        EmailDestination emailDestination = new EmailDestination("3LbBiN2nxtQVxPXYBQL3~PjBg-xOPalsFKZ0YqobHXP1u3MiBxqthF6TJxqdPS2LWWKb90FVzaPyIIEQOT0qSb");
+        StoreRequest storeRequest = new StoreRequest(new IndexPacket(emailDestination));
+        List<RelayRequest> requests = new ArrayList<RelayRequest>();
+        for (int i=0; i<numPackets; i++) {
+            RelayRequest innerRequest = new RelayRequest(storeRequest, sender, TimeUnit.HOURS.toMillis(1), 0, HASHCASH_STRENGTH);
+            requests.add(new RelayRequest(innerRequest, localDestination, 0, 0, HASHCASH_STRENGTH));
+        }
+        
+        DHT dht = mock(DHT.class);
+        when(dht.isReady()).thenReturn(true);
+        
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int numThreads=1; numThreads<=maxThreads; numThreads*=2) {
+            File testDir = new File(System.getProperty("java.io.tmpdir"), "RelayPacketHandlerBenchmark-" + System.currentTimeMillis());
+            testDir.mkdir();
+            
+            final CountDownLatch responseSignal = new CountDownLatch(numPackets);
+            final AtomicInteger numRejected = new AtomicInteger();
+            I2PSendQueue sendQueue = mock(I2PSendQueue.class);
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    responseSignal.countDown();
+                    return null;
+                }
+            }).when(sendQueue).sendResponse(any(Destination.class), any(UniqueId.class));
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    if (invocation.getArgument(2) != StatusCode.OK)
+                        numRejected.incrementAndGet();
+                    responseSignal.countDown();
+                    return null;
+                }
+            }).when(sendQueue).sendResponse(any(DataPacket.class), any(Destination.class), any(StatusCode.class), any(UniqueId.class));
+            
+            RelayPacketHandler handler = new RelayPacketHandler(new RelayPacketFolder(testDir), dht, sendQueue, i2pSession, mock(ReturnChainTracker.class), new RelaySessionKeyManager(I2PAppContext.getGlobalContext()), HASHCASH_STRENGTH, numThreads);
+            handler.start();
+            
+            long startTime = System.nanoTime();
+            for (RelayRequest request: requests)
+                handler.packetReceived(request, sender, System.currentTimeMillis());
+            long dispatchTime = System.nanoTime() - startTime;
+            responseSignal.await();
+            long totalTime = System.nanoTime() - startTime;
+            handler.interrupt();
+            handler.join();
+            
+            double packetsPerSecond = numPackets * 1e9 / totalTime;
+            double dispatchMicros = dispatchTime / 1000.0 / numPackets;
+            System.out.println(String.format("  %2d decryption thread(s): %8.1f packets/s, %6.1f us per packet on the delivering thread, %d rejected",
+                    numThreads, packetsPerSecond, dispatchMicros, numRejected.get()));
+            
+            for (File file: testDir.listFiles())
+                file.delete();
+            testDir.delete();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import i2p.bote.UniqueId;
+import i2p.bote.crypto.RelaySessionKeyManager;
+import i2p.bote.email.EmailDestination;
+import i2p.bote.folder.RelayPacketFolder;
+import i2p.bote.packet.DataPacket;
+import i2p.bote.packet.StatusCode;
+import i2p.bote.packet.dht.IndexPacket;
+import i2p.bote.packet.dht.StoreRequest;
+import i2p.bote.packet.relay.RelayRequest;
+import i2p.bote.service.ReturnChainTracker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.data.Destination;
+import net.i2p.data.PrivateKey;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.nettgryppa.security.HashCash;
+
+public class RelayPacketHandlerTest {
+    private Destination localDestination;
+    private Destination sender;
+    private StoreRequest storeRequest;
+    private I2PSession i2pSession;
+    private I2PSendQueue sendQueue;
+    private RelayPacketFolder relayPacketFolder;
+    private RelayPacketHandler handler;
+
+    private static I2PSession receiverSession;   // the local node in the tests that decrypt relay requests
+    private static List<RelayRequest> relayRequests;   // requests for receiverSession that contain a relay packet for another peer
+
+    /** Creates the relay requests once because creating them is slow */
+    @BeforeClass
+    public static void setUpRelayRequests() throws Exception {
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        ByteArrayOutputStream keyStream = new ByteArrayOutputStream();
+        i2pClient.createDestination(keyStream);
+        receiverSession = i2pClient.createSession(new ByteArrayInputStream(keyStream.toByteArray()), null);
+        
+        EmailDestination emailDestination = new EmailDestination("3LbBiN2nxtQVxPXYBQL3~PjBg-xOPalsFKZ0YqobHXP1u3MiBxqthF6TJxqdPS2LWWKb90FVzaPyIIEQOT0qSb");
+        StoreRequest storeRequest = new StoreRequest(new IndexPacket(emailDestination));
+        Destination nextHop = i2pClient.createDestination(new ByteArrayOutputStream());
+        RelayRequest innerRequest = new RelayRequest(storeRequest, nextHop, TimeUnit.HOURS.toMillis(1), 0, 12);
+        relayRequests = new ArrayList<RelayRequest>();
+        int numRequests = Math.max(RelayPacketHandler.MAX_QUEUED_DECRYPTIONS + 2, RelayPacketHandler.MAX_QUEUED_WRITES + 1);
+        for (int i=0; i<numRequests; i++)
+            relayRequests.add(new RelayRequest(innerRequest, receiverSession.getMyDestination(), 0, 0, 12));
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        localDestination = new Destination("X3oKYQJ~1EAz7B1ZYGSrOTIMCW5Rnn2Svoc38dx5D9~zvz8vqiWcH-pCqQDwLgPWl9RTBzHtTmZcGRPXIv54i0XWeUfX6rTPDQGuZsnBMM0xrkH2FNLNFaJa0NgW3uKXWpNj9AI1AXUXzK-2MYTYoaZHx5SBoCaKfAGMcFJvTON1~kopxBxdBF9Q7T4~PJ3I2LeU-ycmUlehe9N9bIu7adUGyPGVl8Ka-UxwQromoJ~vSWHHl8HkwcDkW--v9Aj~wvFqxqriFkB1EeBiThi3V4XtVY~GUP4IkRj9YZGTsSBf3eS4xwXgnYWlB7IvxAGBfHY9MCg3lbAa1Dg~1IH6rhtXxsXUtGcXsz9yMZTxXHd~rGo~JrXeM1y~Vcenpr6tJcum6pxevkKzzT0qDegGPH3Zhqz7sSeeIaJEcPBUAkX89csqyFWFIjTMm6yZp2rW-QYUnVNLNTjf7vndYUAEICogAkq~btqpIzrGEpm3Pr9F23br3SpbOmdxQxg51AMmAAAA");
+        sender = localDestination;
+        EmailDestination destination = new EmailDestination("3LbBiN2nxtQVxPXYBQL3~PjBg-xOPalsFKZ0YqobHXP1u3MiBxqthF6TJxqdPS2LWWKb90FVzaPyIIEQOT0qSb");
+        storeRequest = new StoreRequest(new IndexPacket(destination));
+        
+        i2pSession = mock(I2PSession.class);
+        sendQueue = mock(I2PSendQueue.class);
+        relayPacketFolder = mock(RelayPacketFolder.class);
+        DHT dht = mock(DHT.class);
+        when(dht.isReady()).thenReturn(true);
+        handler = new RelayPacketHandler(relayPacketFolder, dht, sendQueue, i2pSession, mock(ReturnChainTracker.class), new RelaySessionKeyManager(I2PAppContext.getGlobalContext()), 12, 1);
+    }
+
+    /** Checks that a request with a weak stamp is answered right away and never decrypted */
+    @Test
+    public void testRejectInsufficientHashCash() throws Exception {
+        RelayRequest request = new RelayRequest(storeRequest, localDestination, 0, 0, 4);
+        handler.packetReceived(request, sender, System.currentTimeMillis());
+        
+        verify(sendQueue).sendResponse(isNull(DataPacket.class), eq(sender), eq(StatusCode.INSUFFICIENT_HASHCASH), eq(request.getPacketId()));
+        verifyZeroInteractions(i2pSession, relayPacketFolder);
+    }
+    
+    /** Checks that a stamp can only be used once */
+    @Test
+    public void testRejectReplayedHashCash() throws Exception {
+        RelayRequest request = new RelayRequest(storeRequest, localDestination, 0, 0, 12);
+        RelayRequest replayedRequest = new RelayRequest(request.toByteArray());
+        handler.verifyHashCash(request);
+        handler.packetReceived(replayedRequest, sender, System.currentTimeMillis());
+        
+        verify(sendQueue).sendResponse(isNull(DataPacket.class), eq(sender), eq(StatusCode.INVALID_HASHCASH), any(UniqueId.class));
+        verifyZeroInteractions(i2pSession, relayPacketFolder);
+    }
+    
+    /** Checks that a request rejected with NO_DISK_SPACE can be sent again with the same stamp */
+    @Test
+    public void testResendAfterNoDiskSpace() throws Exception {
+        RelayRequest request = new RelayRequest(storeRequest, localDestination, 0, 0, 12);
+        assertEquals(StatusCode.OK, handler.verifyHashCash(request));
+        handler.reject(sender, request);
+        verify(sendQueue).sendResponse(isNull(DataPacket.class), eq(sender), eq(StatusCode.NO_DISK_SPACE), eq(request.getPacketId()));
+        
+        RelayRequest resentRequest = new RelayRequest(request.toByteArray());
+        assertEquals(StatusCode.OK, handler.verifyHashCash(resentRequest));
+        // once the packet has been accepted, the stamp is spent
+        assertEquals(StatusCode.INVALID_HASHCASH, handler.verifyHashCash(resentRequest));
+    }
+    
+    /** Checks that a request is answered with NO_DISK_SPACE and its stamp released when the decryption queue is full */
+    @Test
+    public void testDecryptionQueueFull() throws Exception {
+        final CountDownLatch decryptionSignal = new CountDownLatch(1);
+        I2PSession blockingSession = mock(I2PSession.class);
+        when(blockingSession.getDecryptionKey()).thenAnswer(new Answer<PrivateKey>() {
+            @Override
+            public PrivateKey answer(InvocationOnMock invocation) throws Throwable {
+                decryptionSignal.await(1, TimeUnit.MINUTES);
+                return receiverSession.getDecryptionKey();
+            }
+        });
+        handler = createHandler(blockingSession);
+        
+        // one request is being decrypted, the others wait in the queue
+        for (int i=0; i<=RelayPacketHandler.MAX_QUEUED_DECRYPTIONS; i++)
+            handler.packetReceived(relayRequests.get(i), sender, System.currentTimeMillis());
+        verifyZeroInteractions(sendQueue);
+        
+        RelayRequest rejectedRequest = relayRequests.get(RelayPacketHandler.MAX_QUEUED_DECRYPTIONS + 1);
+        handler.packetReceived(rejectedRequest, sender, System.currentTimeMillis());
+        verify(sendQueue).sendResponse(isNull(DataPacket.class), eq(sender), eq(StatusCode.NO_DISK_SPACE), eq(rejectedRequest.getPacketId()));
+        assertEquals("Stamp not released", StatusCode.OK, handler.verifyHashCash(rejectedRequest));
+        assertEquals(StatusCode.INVALID_HASHCASH, handler.verifyHashCash(relayRequests.get(0)));
+        
+        decryptionSignal.countDown();
+        handler.start();
+        stopHandler();
+    }
+    
+    /** Checks that a request is answered with NO_DISK_SPACE and its stamp released when the write queue is full */
+    @Test
+    public void testWriteQueueFull() throws Exception {
+        handler = createHandler(receiverSession);
+        
+        // the handler thread isn't running, so nothing is written
+        for (int i=0; i<RelayPacketHandler.MAX_QUEUED_WRITES; i++)
+            handler.packetReceived(relayRequests.get(i), sender, System.currentTimeMillis());
+        waitForQueuedWrites(RelayPacketHandler.MAX_QUEUED_WRITES);
+        
+        RelayRequest rejectedRequest = relayRequests.get(RelayPacketHandler.MAX_QUEUED_WRITES);
+        handler.packetReceived(rejectedRequest, sender, System.currentTimeMillis());
+        verify(sendQueue, timeout(TimeUnit.MINUTES.toMillis(1))).sendResponse(isNull(DataPacket.class), eq(sender), eq(StatusCode.NO_DISK_SPACE), eq(rejectedRequest.getPacketId()));
+        verify(sendQueue, never()).sendResponse(any(Destination.class), any(UniqueId.class));
+        assertEquals("Stamp not released", StatusCode.OK, handler.verifyHashCash(rejectedRequest));
+        verifyZeroInteractions(relayPacketFolder);
+        
+        handler.start();
+        stopHandler();
+    }
+    
+    /** Checks that relay packets waiting to be written are stored in the folder in one batch, then confirmed */
+    @Test
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void testWriteBatch() throws Exception {
+        int numPackets = 10;
+        handler = createHandler(receiverSession);
+        for (int i=0; i<numPackets; i++)
+            handler.packetReceived(relayRequests.get(i), sender, System.currentTimeMillis());
+        waitForQueuedWrites(numPackets);
+        
+        handler.start();
+        verify(sendQueue, timeout(TimeUnit.MINUTES.toMillis(1)).times(numPackets)).sendResponse(eq(sender), any(UniqueId.class));
+        for (int i=0; i<numPackets; i++)
+            verify(sendQueue).sendResponse(sender, relayRequests.get(i).getPacketId());
+        
+        ArgumentCaptor<Collection> batchCaptor = ArgumentCaptor.forClass(Collection.class);
+        verify(relayPacketFolder).add(batchCaptor.capture());
+        assertEquals(numPackets, batchCaptor.getValue().size());
+        verify(relayPacketFolder, never()).add(any(RelayRequest.class));
+        
+        stopHandler();
+    }
+    
+    private RelayPacketHandler createHandler(I2PSession i2pSession) {
+        DHT dht = mock(DHT.class);
+        when(dht.isReady()).thenReturn(true);
+        return new RelayPacketHandler(relayPacketFolder, dht, sendQueue, i2pSession, mock(ReturnChainTracker.class), new RelaySessionKeyManager(I2PAppContext.getGlobalContext()), 12, 1);
+    }
+    
+    private void waitForQueuedWrites(int numPackets) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        while (handler.getNumQueuedWrites()<numPackets && System.currentTimeMillis()<timeout)
+            TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(numPackets, handler.getNumQueuedWrites());
+    }
+    
+    /** Stops the handler thread, which shuts down the decryption threads */
+    private void stopHandler() throws InterruptedException {
+        handler.interrupt();
+        handler.join();
+    }
+    
+    /** Checks that placeholder stamps are accepted from old peers only */
+    @Test
+    public void testLegacyHashCash() throws Exception {
+        RelayRequest request = new RelayRequest(storeRequest, localDestination, 0, 0, 12);
+        
+        RelayRequest legacyRequest = createLegacyRequest(request, RelayPacketHandler.MIN_HASHCASH_PROTOCOL_VERSION - 1);
+        assertEquals(StatusCode.OK, handler.verifyHashCash(legacyRequest));
+        assertEquals(StatusCode.OK, handler.verifyHashCash(legacyRequest));
+        
+        RelayRequest currentRequest = createLegacyRequest(request, RelayPacketHandler.MIN_HASHCASH_PROTOCOL_VERSION);
+        assertEquals(StatusCode.INVALID_HASHCASH, handler.verifyHashCash(currentRequest));
+    }
+    
+    /**
+     * Returns a copy of a <code>RelayRequest</code> with a different protocol version
+     * and the placeholder stamp older peers send.
+     */
+    private RelayRequest createLegacyRequest(RelayRequest request, int protocolVersion) throws Exception {
+        byte[] data = request.toByteArray();
+        int headerLength = 6 + UniqueId.LENGTH;   // prefix, type, version, packet id
+        int stampLength = ((data[headerLength]&0xFF) << 8) | (data[headerLength+1]&0xFF);
+        byte[] legacyStamp = HashCash.mintCash("", 1).toString().getBytes();
+        
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream dataStream = new DataOutputStream(byteStream);
+        dataStream.write(data, 0, 5);
+        dataStream.write(protocolVersion);
+        dataStream.write(data, 6, headerLength-6);
+        dataStream.writeShort(legacyStamp.length);
+        dataStream.write(legacyStamp);
+        int rest = headerLength + 2 + stampLength;
+        dataStream.write(data, rest, data.length-rest);
+        return new RelayRequest(byteStream.toByteArray());
+    }
+}
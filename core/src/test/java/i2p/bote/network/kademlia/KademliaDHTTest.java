@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network.kademlia;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import i2p.bote.network.I2PSendQueue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import net.i2p.client.I2PClientFactory;
+import net.i2p.data.Destination;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KademliaDHTTest {
+    private KademliaDHT dht;
+
+    @Before
+    public void setUp() throws Exception {
+        Destination localDestination = I2PClientFactory.createClient().createDestination(new ByteArrayOutputStream());
+        I2PSendQueue sendQueue = mock(I2PSendQueue.class);
+        when(sendQueue.getLocalDestination()).thenReturn(localDestination);
+        
+        // neither file exists, so the routing table is empty and lookups find no peers
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        File peerFile = new File(tempDir, "KademliaDHTTest-peers-" + System.currentTimeMillis());
+        File routingTableFile = new File(tempDir, "KademliaDHTTest-routing_table-" + System.currentTimeMillis());
+        dht = new KademliaDHT(sendQueue, null, peerFile, routingTableFile, null);
+    }
+    
+    /** Checks that buckets are refreshed again after <code>REFRESH_RETRY_WAIT</code> if a refresh finds no peers */
+    @Test
+    public void testRefreshWithoutPeers() throws Exception {
+        long startTime = System.currentTimeMillis();
+        dht.refreshOldBuckets();
+        long endTime = System.currentTimeMillis();
+        
+        long nextRefreshTime = dht.getNextRefreshTime();
+        assertTrue("Bucket refreshed again too early", nextRefreshTime >= startTime + KademliaDHT.REFRESH_RETRY_WAIT);
+        assertTrue("Bucket not due after REFRESH_RETRY_WAIT", nextRefreshTime <= endTime + KademliaDHT.REFRESH_RETRY_WAIT);
+    }
+}
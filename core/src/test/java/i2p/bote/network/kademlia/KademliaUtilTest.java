@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network.kademlia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import net.i2p.data.Hash;
+
+import org.junit.Test;
+
+public class KademliaUtilTest {
+    private Random random = new Random(0);
+
+    @Test
+    public void testToHash() {
+        BigInteger[] values = new BigInteger[] {
+                AbstractBucket.MIN_HASH_VALUE,
+                BigInteger.ONE,
+                BigInteger.ONE.shiftLeft(255),   // has a leading sign byte in toByteArray()
+                AbstractBucket.MAX_HASH_VALUE
+        };
+        for (BigInteger value: values) {
+            Hash hash = KademliaUtil.toHash(value);
+            assertEquals(Hash.HASH_LENGTH, hash.getData().length);
+            assertEquals(value, new BigInteger(1, hash.getData()));
+        }
+    }
+    
+    @Test
+    public void testCreateRandomHash() {
+        // whole ID space, as in the root k-bucket
+        checkRange(AbstractBucket.MIN_HASH_VALUE, AbstractBucket.MAX_HASH_VALUE);
+        // upper half, as in a k-bucket after the first split
+        BigInteger pivot = AbstractBucket.MAX_HASH_VALUE.divide(BigInteger.valueOf(2));
+        checkRange(pivot, AbstractBucket.MAX_HASH_VALUE);
+        // a range that is not a power of two
+        checkRange(BigInteger.valueOf(1000), BigInteger.valueOf(1003));
+        
+        // all values in a small range should come up
+        Set<BigInteger> values = new HashSet<BigInteger>();
+        for (int i=0; i<100; i++)
+            values.add(new BigInteger(1, KademliaUtil.createRandomHash(BigInteger.valueOf(5), BigInteger.valueOf(8), random).getData()));
+        assertEquals(3, values.size());
+    }
+    
+    /** <code>min</code> is returned if the range is empty */
+    @Test
+    public void testEmptyRange() {
+        BigInteger min = BigInteger.valueOf(42);
+        assertEquals(min, new BigInteger(1, KademliaUtil.createRandomHash(min, min, random).getData()));
+        assertEquals(min, new BigInteger(1, KademliaUtil.createRandomHash(min, BigInteger.ONE, random).getData()));
+    }
+    
+    private void checkRange(BigInteger min, BigInteger max) {
+        for (int i=0; i<100; i++) {
+            BigInteger value = new BigInteger(1, KademliaUtil.createRandomHash(min, max, random).getData());
+            assertTrue("Value below range: " + value, value.compareTo(min) >= 0);
+            assertTrue("Value above range: " + value, value.compareTo(max) < 0);
+        }
+    }
+}
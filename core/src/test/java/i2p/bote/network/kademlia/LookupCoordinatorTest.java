@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network.kademlia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import i2p.bote.UniqueId;
+import i2p.bote.network.I2PSendQueue;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.PeerList;
+import i2p.bote.packet.ResponsePacket;
+import i2p.bote.packet.StatusCode;
+import i2p.bote.packet.dht.FindClosePeersPacket;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class LookupCoordinatorTest {
+    private static final int NUM_PEERS = 5;
+    
+    private List<Destination> peers;
+    private LookupCoordinator lookupCoordinator;
+    private AtomicInteger numRequests;   // the number of FindClosePeersPackets sent
+    private CountDownLatch firstRequestSent;
+    private Hash key;
+
+    @Before
+    public void setUp() throws Exception {
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        Destination localDestination = i2pClient.createDestination(new ByteArrayOutputStream());
+        BucketManager bucketManager = new BucketManager(localDestination.calculateHash());
+        peers = new ArrayList<Destination>();
+        for (int i=0; i<NUM_PEERS; i++) {
+            Destination peer = i2pClient.createDestination(new ByteArrayOutputStream());
+            peers.add(peer);
+            bucketManager.addOrUpdate(new KademliaPeer(peer));
+        }
+        key = peers.get(0).calculateHash();
+        
+        // every peer responds right away with an empty peer list
+        numRequests = new AtomicInteger();
+        firstRequestSent = new CountDownLatch(1);
+        I2PSendQueue sendQueue = mock(I2PSendQueue.class);
+        when(sendQueue.getLocalDestination()).thenReturn(localDestination);
+        when(sendQueue.send(any(CommunicationPacket.class), any(Destination.class))).thenAnswer(new Answer<CountDownLatch>() {
+            @Override
+            public CountDownLatch answer(InvocationOnMock invocation) {
+                CommunicationPacket request = invocation.getArgument(0);
+                Destination peer = invocation.getArgument(1);
+                if (request instanceof FindClosePeersPacket) {
+                    numRequests.incrementAndGet();
+                    firstRequestSent.countDown();
+                    PeerList peerList = new PeerList(Collections.<Destination>emptyList());
+                    ResponsePacket response = ResponsePacket.create(peerList, StatusCode.OK, request.getPacketId()).iterator().next();
+                    lookupCoordinator.packetReceived(response, peer, System.currentTimeMillis());
+                }
+                return new CountDownLatch(0);
+            }
+        });
+        
+        lookupCoordinator = new LookupCoordinator(sendQueue, bucketManager);
+    }
+    
+    @Test
+    public void testLookup() throws Exception {
+        List<Destination> result = lookupCoordinator.getClosestNodesUncached(key);
+        assertEquals(new HashSet<Destination>(peers), new HashSet<Destination>(result));
+        assertEquals(NUM_PEERS, numRequests.get());
+        assertEquals("Requests still routed after the lookup finished", 0, lookupCoordinator.getNumPendingRequests());
+    }
+    
+    /** Tests that a second lookup for the same key joins the running lookup */
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<List<Destination>> lookup = new Callable<List<Destination>>() {
+                @Override
+                public List<Destination> call() throws InterruptedException {
+                    return lookupCoordinator.getClosestNodesUncached(key);
+                }
+            };
+            Future<List<Destination>> result1 = executor.submit(lookup);
+            assertTrue(firstRequestSent.await(10, TimeUnit.SECONDS));
+            Future<List<Destination>> result2 = executor.submit(lookup);   // the first lookup waits at least a second before finishing
+            
+            assertEquals(result1.get(), result2.get());
+            assertEquals(NUM_PEERS, numRequests.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testCachedResult() throws Exception {
+        List<Destination> result = lookupCoordinator.getClosestNodes(key);
+        assertEquals(NUM_PEERS, numRequests.get());
+        
+        assertEquals(result, lookupCoordinator.getClosestNodes(key));
+        assertEquals("Cached result not used", NUM_PEERS, numRequests.get());
+        
+        assertEquals(result, lookupCoordinator.getClosestNodesUncached(key));
+        assertEquals("Uncached lookup didn't query the network", 2*NUM_PEERS, numRequests.get());
+    }
+    
+    /** Responses that don't belong to a running lookup should be ignored */
+    @Test
+    public void testUnknownResponse() throws Exception {
+        PeerList peerList = new PeerList(Collections.<Destination>emptyList());
+        ResponsePacket response = ResponsePacket.create(peerList, StatusCode.OK, new UniqueId()).iterator().next();
+        lookupCoordinator.packetReceived(response, peers.get(0), System.currentTimeMillis());
+        assertEquals(0, lookupCoordinator.getNumPendingRequests());
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.network.kademlia;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RoutingTableSnapshotTest {
+    private File testDir;
+    private File snapshotFile;
+    private Hash localDestinationHash;
+    private BucketManager bucketManager;
+
+    @Before
+    public void setUp() throws Exception {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        testDir = new File(tempDir, "RoutingTableSnapshotTest-" + System.currentTimeMillis());
+        assertTrue("Can't create directory: " + testDir.getAbsolutePath(), testDir.mkdir());
+        snapshotFile = new File(testDir, "routing_table.dat");
+        
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        localDestinationHash = i2pClient.createDestination(new ByteArrayOutputStream()).calculateHash();
+        bucketManager = new BucketManager(localDestinationHash);
+        
+        // enough peers to fill the s-bucket and split the k-buckets
+        List<Destination> peers = new ArrayList<Destination>();
+        for (int i=0; i<KademliaConstants.S+3*KademliaConstants.K; i++) {
+            Destination destination = i2pClient.createDestination(new ByteArrayOutputStream());
+            peers.add(destination);
+            bucketManager.addOrUpdate(new KademliaPeer(destination, 1000L*i));
+        }
+        
+        // lock a few peers and do some lookups
+        for (int i=0; i<10; i+=3)
+            bucketManager.noResponse(peers.get(i));
+        bucketManager.noResponse(peers.get(0));
+        bucketManager.updateLastLookupTime(peers.get(1).calculateHash());
+        bucketManager.updateLastLookupTime(localDestinationHash);
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        File tempFile = new File(snapshotFile.getAbsolutePath() + ".tmp");
+        if (tempFile.exists())
+            assertTrue("Can't delete file: " + tempFile.getAbsolutePath(), tempFile.delete());
+        if (snapshotFile.exists())
+            assertTrue("Can't delete file: " + snapshotFile.getAbsolutePath(), snapshotFile.delete());
+        assertTrue("Can't delete directory: " + testDir.getAbsolutePath(), testDir.delete());
+    }
+    
+    @Test
+    public void testWriteAndRead() {
+        assertTrue(new RoutingTableSnapshot(snapshotFile).write(bucketManager, localDestinationHash));
+        BucketManager restoredManager = new BucketManager(localDestinationHash);
+        assertTrue(new RoutingTableSnapshot(snapshotFile).read(restoredManager, localDestinationHash));
+        
+        assertEquals(bucketManager.getPeerCount(), restoredManager.getPeerCount());
+        assertEquals(bucketManager.getUnlockedPeerCount(), restoredManager.getUnlockedPeerCount());
+        
+        // compare k-buckets
+        Iterator<KBucket> restoredIterator = restoredManager.iterator();
+        int numBuckets = 0;
+        for (KBucket bucket: bucketManager) {
+            KBucket restoredBucket = restoredIterator.next();
+            assertEquals(bucket.getStartId(), restoredBucket.getStartId());
+            assertEquals(bucket.getEndId(), restoredBucket.getEndId());
+            assertEquals(bucket.getDepth(), restoredBucket.getDepth());
+            assertEquals(bucket.getLastLookupTime(), restoredBucket.getLastLookupTime());
+            assertEquals(new ArrayList<KademliaPeer>(bucket.getPeers()), new ArrayList<KademliaPeer>(restoredBucket.getPeers()));
+            assertEquals(bucket.getReplacementCache(), restoredBucket.getReplacementCache());
+            numBuckets++;
+        }
+        assertFalse(restoredIterator.hasNext());
+        assertTrue("Test needs more than one k-bucket", numBuckets > 1);
+        
+        // compare the s-bucket
+        SBucket sBucket = bucketManager.getSBucket();
+        SBucket restoredSBucket = restoredManager.getSBucket();
+        assertEquals(new ArrayList<KademliaPeer>(sBucket.getPeers()), new ArrayList<KademliaPeer>(restoredSBucket.getPeers()));
+        assertArrayEquals(sBucket.getLastLookupTimes(), restoredSBucket.getLastLookupTimes());
+        
+        // compare peer details
+        Map<Destination, KademliaPeer> restoredPeers = new HashMap<Destination, KademliaPeer>();
+        for (KademliaPeer peer: restoredManager.getAllPeers())
+            restoredPeers.put(peer, peer);
+        for (KademliaPeer peer: bucketManager.getAllPeers()) {
+            KademliaPeer restoredPeer = restoredPeers.get(peer);
+            assertEquals(peer.getFirstSeen(), restoredPeer.getFirstSeen());
+            assertEquals(peer.getConsecTimeouts(), restoredPeer.getConsecTimeouts());
+            assertEquals(peer.getLockedUntil(), restoredPeer.getLockedUntil());
+            assertEquals(peer.isLocked(), restoredPeer.isLocked());
+        }
+    }
+    
+    @Test
+    public void testDifferentLocalDestination() {
+        assertTrue(new RoutingTableSnapshot(snapshotFile).write(bucketManager, localDestinationHash));
+        Hash otherHash = new Hash(new byte[Hash.HASH_LENGTH]);
+        BucketManager otherManager = new BucketManager(otherHash);
+        assertFalse(new RoutingTableSnapshot(snapshotFile).read(otherManager, otherHash));
+        assertEquals(0, otherManager.getPeerCount());
+    }
+    
+    @Test
+    public void testTruncatedSnapshot() throws Exception {
+        RoutingTableSnapshot snapshot = new RoutingTableSnapshot(snapshotFile);
+        assertTrue(snapshot.write(bucketManager, localDestinationHash));
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        file.setLength(file.length() / 2);
+        file.close();
+        
+        BucketManager restoredManager = new BucketManager(localDestinationHash);
+        assertFalse(snapshot.read(restoredManager, localDestinationHash));
+        assertEquals(0, restoredManager.getPeerCount());
+    }
+    
+    /** An empty routing table should not overwrite an existing snapshot */
+    @Test
+    public void testEmptyTable() {
+        RoutingTableSnapshot snapshot = new RoutingTableSnapshot(snapshotFile);
+        assertTrue(snapshot.write(bucketManager, localDestinationHash));
+        assertFalse(snapshot.write(new BucketManager(localDestinationHash), localDestinationHash));
+        
+        BucketManager restoredManager = new BucketManager(localDestinationHash);
+        assertTrue(snapshot.read(restoredManager, localDestinationHash));
+        assertEquals(bucketManager.getPeerCount(), restoredManager.getPeerCount());
+    }
+    
+    /** Tests that the temp file is used if the program crashed while replacing the snapshot */
+    @Test
+    public void testCrashRecovery() {
+        RoutingTableSnapshot snapshot = new RoutingTableSnapshot(snapshotFile);
+        assertTrue(snapshot.write(bucketManager, localDestinationHash));
+        File tempFile = new File(snapshotFile.getAbsolutePath() + ".tmp");
+        assertTrue(snapshotFile.renameTo(tempFile));
+        
+        BucketManager restoredManager = new BucketManager(localDestinationHash);
+        assertTrue(snapshot.read(restoredManager, localDestinationHash));
+        assertEquals(bucketManager.getPeerCount(), restoredManager.getPeerCount());
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.packet.relay;
+
+import i2p.bote.email.EmailDestination;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.I2PBotePacket;
+import i2p.bote.packet.dht.IndexPacket;
+import i2p.bote.packet.dht.StoreRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.data.Destination;
+
+/**
+ * Compares the time it takes to build relay onions for 1 to 4 hops with nested
+ * <code>RelayRequest</code> constructors and with a {@link RelayOnionEncoder}.
+ * The payload is padded to the maximum datagram size (10 KB) either way, and
+ * each encoder is used for a number of redundant copies, like in
+ * <code>OutboxProcessor</code>.<br/>
+ * HashCash strength is set to zero so the numbers only reflect serialization
+ * and encryption.<br/>
+ * This is not a unit test; run it with <code>java i2p.bote.packet.relay.RelayOnionEncoderBenchmark [number of onions]</code>.
+ */
+public class RelayOnionEncoderBenchmark {
+    private static final int HASHCASH_STRENGTH = 0;
+    private static final int REDUNDANCY = 2;
+
+    public static void main(String[] args) throws Exception {
+        int numOnions = args.length>0 ? Integer.valueOf(args[0]) : 100;
+        
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        List<Destination> relayPeers = new ArrayList<Destination>();
+        for (int i=0; i<4; i++)
+            relayPeers.add(i2pClient.createDestination(new ByteArrayOutputStream()));
+        EmailDestination emailDestination = new EmailDestination("3LbBiN2nxtQVxPXYBQL3~PjBg-xOPalsFKZ0YqobHXP1u3MiBxqthF6TJxqdPS2LWWKb90FVzaPyIIEQOT0qSb");
+        StoreRequest storeRequest = new StoreRequest(new IndexPacket(emailDestination));
+        
+        // warm up
+        for (int i=0; i<10; i++) {
+            createNested(storeRequest, relayPeers);
+            new RelayOnionEncoder(storeRequest).encode(relayPeers, 0, 0, HASHCASH_STRENGTH, new ReturnChain());
+        }
+        
+        System.out.println("Average time per onion (" + numOnions + " onions, " + REDUNDANCY + " copies per encoder)");
+        for (int numHops=1; numHops<=4; numHops++) {
+            List<Destination> peers = relayPeers.subList(0, numHops);
+            
+            long startTime = System.nanoTime();
+            int size = 0;
+            for (int i=0; i<numOnions; i++)
+                size = createNested(storeRequest, peers).toByteArray().length;
+            double nestedMillis = (System.nanoTime()-startTime) / 1e6 / numOnions;
+            
+            startTime = System.nanoTime();
+            for (int i=0; i<numOnions/REDUNDANCY; i++) {
+                RelayOnionEncoder encoder = new RelayOnionEncoder(storeRequest);
+                for (int j=0; j<REDUNDANCY; j++)
+                    size = encoder.encode(peers, 0, 0, HASHCASH_STRENGTH, new ReturnChain()).toByteArray().length;
+            }
+            double encoderMillis = (System.nanoTime()-startTime) / 1e6 / (numOnions/REDUNDANCY*REDUNDANCY);
+            
+            System.out.println(String.format("  %d hop(s), %5d bytes: %7.2f ms nested, %7.2f ms encoder", numHops, size, nestedMillis, encoderMillis));
+        }
+    }
+    
+    /** Builds an onion the way <code>RelayRequest.create</code> used to */
+    private static RelayRequest createNested(CommunicationPacket payload, List<Destination> relayPeers) {
+        int padBytes = I2PBotePacket.MAX_DATAGRAM_SIZE - RelayRequest.getMaxOverhead(relayPeers.size()) - new ReturnChain().getSize() - payload.getSize();
+        CommunicationPacket request = payload;
+        for (Destination relayPeer: relayPeers) {
+            request = new RelayRequest(request, relayPeer, 0, padBytes, HASHCASH_STRENGTH);
+            padBytes = 0;
+        }
+        return (RelayRequest)request;
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.packet.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import i2p.bote.UniqueId;
+import i2p.bote.Util;
+import i2p.bote.crypto.RelaySessionKeyManager;
+import i2p.bote.email.EmailDestination;
+import i2p.bote.network.HashCashVerifier;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.I2PBotePacket;
+import i2p.bote.packet.StatusCode;
+import i2p.bote.packet.dht.IndexPacket;
+import i2p.bote.packet.dht.StoreRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.data.Destination;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A unit test for {@link RelayOnionEncoder}.
+ */
+public class RelayOnionEncoderTest {
+    private static final int HASHCASH_STRENGTH = 8;
+    
+    private StoreRequest storeRequest;
+    private List<I2PSession> sessions;
+    private List<Destination> relayPeers;
+
+    @Before
+    public void setUp() throws Exception {
+        EmailDestination destination = new EmailDestination("3LbBiN2nxtQVxPXYBQL3~PjBg-xOPalsFKZ0YqobHXP1u3MiBxqthF6TJxqdPS2LWWKb90FVzaPyIIEQOT0qSb");
+        storeRequest = new StoreRequest(new IndexPacket(destination));
+        
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        sessions = new ArrayList<I2PSession>();
+        relayPeers = new ArrayList<Destination>();
+        for (int i=0; i<3; i++) {
+            ByteArrayOutputStream keyStream = new ByteArrayOutputStream();
+            i2pClient.createDestination(keyStream);
+            I2PSession session = i2pClient.createSession(new ByteArrayInputStream(keyStream.toByteArray()), null);
+            sessions.add(session);
+            relayPeers.add(session.getMyDestination());
+        }
+    }
+    
+    @Test
+    public void testEncryptInPlace() throws Exception {
+        byte[] data = storeRequest.toByteArray();
+        byte[] buffer = new byte[Util.ENCRYPTION_PREFIX_LENGTH + data.length + 16];
+        System.arraycopy(data, 0, buffer, Util.ENCRYPTION_PREFIX_LENGTH, data.length);
+        
+        int length = Util.encryptInPlace(buffer, Util.ENCRYPTION_PREFIX_LENGTH, data.length, relayPeers.get(0).getPublicKey());
+        assertEquals(Util.getEncryptedLength(data.length), length);
+        assertEquals(Util.encrypt(data, relayPeers.get(0).getPublicKey()).length, length);
+        
+        byte[] encryptedData = Arrays.copyOf(buffer, length);
+        assertArrayEquals(data, Util.decrypt(encryptedData, sessions.get(0).getDecryptionKey()));
+    }
+    
+    @Test
+    public void testUnwrap() throws Exception {
+        RelayOnionEncoder encoder = new RelayOnionEncoder(storeRequest);
+        RelayRequest request = encoder.encode(relayPeers, 1000, 2000, HASHCASH_STRENGTH, new ReturnChain());
+        assertTrue(request.toByteArray().length <= I2PBotePacket.MAX_DATAGRAM_SIZE);
+        
+        // peel off the layers, starting with the last peer in the list
+        HashCashVerifier verifier = new HashCashVerifier(HASHCASH_STRENGTH);
+        CommunicationPacket packet = request;
+        for (int i=relayPeers.size()-1; i>=0; i--) {
+            assertTrue(packet instanceof RelayRequest);
+            RelayRequest relayRequest = new RelayRequest(packet.toByteArray());
+            assertEquals(relayPeers.get(i), relayRequest.getNextDestination());
+            assertTrue(relayRequest.getDelay()>=1000 && relayRequest.getDelay()<=2000);
+            assertEquals(StatusCode.OK, verifier.verify(relayRequest.getHashCash(), relayRequest.getHashCashResource()));
+            packet = relayRequest.getStoredPacket(sessions.get(i));
+        }
+        assertArrayEquals(storeRequest.toByteArray(), packet.toByteArray());
+    }
+    
+    /** The encoder should produce the same packet sizes as nested <code>RelayRequest</code> constructors */
+    @Test
+    public void testPadding() throws Exception {
+        for (int numHops=1; numHops<=relayPeers.size(); numHops++) {
+            List<Destination> peers = relayPeers.subList(0, numHops);
+            RelayRequest request = new RelayOnionEncoder(storeRequest).encode(peers, 0, 0, HASHCASH_STRENGTH, new ReturnChain());
+            
+            int padBytes = I2PBotePacket.MAX_DATAGRAM_SIZE - RelayRequest.getMaxOverhead(numHops) - 2 - storeRequest.getSize();
+            CommunicationPacket nestedRequest = storeRequest;
+            for (int i=0; i<numHops; i++)
+                nestedRequest = new RelayRequest(nestedRequest, peers.get(i), 0, i==0?padBytes:0, HASHCASH_STRENGTH);
+            
+            // only the HashCash stamps can differ in length
+            int maxDifference = numHops * 32;
+            assertTrue(Math.abs(nestedRequest.toByteArray().length - request.toByteArray().length) <= maxDifference);
+        }
+    }
+    
+    @Test
+    public void testReturnChain() throws Exception {
+        ReturnChain returnChain = ReturnChain.create(new UniqueId(), relayPeers.get(0), Collections.singletonList(relayPeers.get(1)),
+                relayPeers.get(2), 0, 0, 1);
+        RelayRequest request = new RelayOnionEncoder(storeRequest).encode(relayPeers.subList(0, 2), 0, 0, HASHCASH_STRENGTH, returnChain);
+        assertTrue(request.getReturnChain().isEmpty());
+        
+        RelayRequest exitRequest = (RelayRequest)request.getStoredPacket(sessions.get(1));
+        assertArrayEquals(returnChain.toByteArray(), exitRequest.getReturnChain().toByteArray());
+    }
+    
+    /** Copies made with the same encoder must not share keys or ciphertext */
+    @Test
+    public void testCopiesDiffer() throws Exception {
+        RelayOnionEncoder encoder = new RelayOnionEncoder(storeRequest);
+        List<Destination> peers = Collections.singletonList(relayPeers.get(0));
+        RelayRequest request1 = encoder.encode(peers, 0, 0, HASHCASH_STRENGTH, new ReturnChain());
+        RelayRequest request2 = encoder.encode(peers, 0, 0, HASHCASH_STRENGTH, new ReturnChain());
+        assertFalse(Arrays.equals(request1.getPayload(), request2.getPayload()));
+        assertFalse(Arrays.equals(Arrays.copyOf(request1.getPayload(), 514), Arrays.copyOf(request2.getPayload(), 514)));
+    }
+    
+    /** Only the outermost layer may use session tags */
+    @Test
+    public void testSessionTags() throws Exception {
+        RelaySessionKeyManager senderManager = new RelaySessionKeyManager(I2PAppContext.getGlobalContext());
+        RelaySessionKeyManager receiverManager = new RelaySessionKeyManager(I2PAppContext.getGlobalContext());
+        RelayOnionEncoder encoder = new RelayOnionEncoder(storeRequest, senderManager);
+        List<Destination> peers = relayPeers.subList(0, 2);
+        I2PSession firstHop = sessions.get(1);
+        
+        // the first packet starts a new session
+        RelayRequest request = encoder.encode(peers, 0, 0, HASHCASH_STRENGTH, new ReturnChain());
+        assertTrue(request.toByteArray().length <= I2PBotePacket.MAX_DATAGRAM_SIZE);
+        assertTrue(request.getStoredPacket(firstHop, receiverManager) instanceof RelayRequest);
+        senderManager.packetConfirmed(request.getPacketId(), RelaySessionKeyManager.MIN_PROTOCOL_VERSION);
+        assertEquals(RelaySessionKeyManager.TAGS_PER_DELIVERY, senderManager.getNumAvailableTags(firstHop.getMyDestination().getPublicKey()));
+        
+        // the second one uses a tag for the first hop
+        request = encoder.encode(peers, 0, 0, HASHCASH_STRENGTH, new ReturnChain());
+        assertEquals(RelaySessionKeyManager.TAGS_PER_DELIVERY-1, senderManager.getNumAvailableTags(firstHop.getMyDestination().getPublicKey()));
+        CommunicationPacket packet = request.getStoredPacket(firstHop, receiverManager);
+        assertTrue(packet instanceof RelayRequest);
+        assertEquals(0, senderManager.getNumAvailableTags(relayPeers.get(0).getPublicKey()));
+        packet = ((RelayRequest)packet).getStoredPacket(sessions.get(0));
+        assertArrayEquals(storeRequest.toByteArray(), packet.toByteArray());
+    }
+    
+    @Test
+    public void testNoHops() {
+        assertNull(new RelayOnionEncoder(storeRequest).encode(new ArrayList<Destination>(), 0, 0, HASHCASH_STRENGTH, new ReturnChain()));
+    }
+}
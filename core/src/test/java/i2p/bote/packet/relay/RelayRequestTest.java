@@ -187,4 +187,16 @@ public class RelayRequestTest {
             assertTrue("delay > max delay!", delay <= maxDelayMilliseconds);
         }
     }
-}
\ No newline at end of file
+    
+    /** Checks that a <code>RelayRequest</code> without a HashCash stamp can't be created */
+    @Test(expected=IllegalStateException.class)
+    public void testMintFailure() throws Exception {
+        // minting gives up when the thread is interrupted
+        Thread.currentThread().interrupt();
+        try {
+            new RelayRequest(storeRequest, relayRequestSingle.getNextDestination(), 0, 0, 12);
+        } finally {
+            Thread.interrupted();
+        }
+    }
+}
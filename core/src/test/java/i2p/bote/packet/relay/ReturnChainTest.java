@@ -22,9 +22,26 @@
 package i2p.bote.packet.relay;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import i2p.bote.UniqueId;
+import i2p.bote.email.EmailDestination;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.ResponsePacket;
+import i2p.bote.packet.dht.IndexPacket;
+import i2p.bote.packet.dht.StoreRequest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -56,4 +73,59 @@ public class ReturnChainTest {
         byte[] arrayB = returnChain.toByteArray();
         assertArrayEquals("The two arrays differ!", arrayA, arrayB);
     }
+    
+    /** Follows a confirmation from the exit node through one return hop to the sender */
+    @Test
+    public void testReturnPath() throws Exception {
+        I2PSession exitNode = createSession();
+        I2PSession returnHop = createSession();
+        I2PSession sender = createSession();
+        UniqueId confirmationId = new UniqueId();
+        
+        ReturnChain returnChain = ReturnChain.create(confirmationId, exitNode.getMyDestination(), Collections.singletonList(returnHop.getMyDestination()),
+                sender.getMyDestination(), 0, 0, 1);
+        assertFalse(returnChain.isEmpty());
+        assertTrue(returnChain.getSize() <= ReturnChain.getMaxOverhead(1));
+        
+        // serialize and read back in, like the exit node would
+        returnChain = new ReturnChain(ByteBuffer.wrap(returnChain.toByteArray()));
+        RelayRequest returnRequest = returnChain.getReturnRequest(exitNode);
+        assertEquals(returnHop.getMyDestination(), returnRequest.getNextDestination());
+        
+        CommunicationPacket packet = returnRequest.getStoredPacket(returnHop);
+        assertTrue(packet instanceof RelayRequest);
+        RelayRequest lastRequest = (RelayRequest)packet;
+        assertEquals(sender.getMyDestination(), lastRequest.getNextDestination());
+        
+        packet = lastRequest.getStoredPacket(sender);
+        assertTrue(packet instanceof ResponsePacket);
+        assertEquals(confirmationId, ((ResponsePacket)packet).getPacketId());
+    }
+    
+    /** Checks that only the exit node's <code>RelayRequest</code> carries the return chain */
+    @Test
+    public void testReturnChainInRelayRequest() throws Exception {
+        I2PSession exitNode = createSession();
+        I2PSession firstHop = createSession();
+        I2PSession sender = createSession();
+        ReturnChain returnChain = ReturnChain.create(new UniqueId(), exitNode.getMyDestination(), Collections.singletonList(firstHop.getMyDestination()),
+                sender.getMyDestination(), 0, 0, 1);
+        
+        EmailDestination destination = new EmailDestination("3LbBiN2nxtQVxPXYBQL3~PjBg-xOPalsFKZ0YqobHXP1u3MiBxqthF6TJxqdPS2LWWKb90FVzaPyIIEQOT0qSb");
+        StoreRequest storeRequest = new StoreRequest(new IndexPacket(destination));
+        RelayRequest request = RelayRequest.create(storeRequest, Arrays.asList(exitNode.getMyDestination(), firstHop.getMyDestination()), 0, 0, 1, returnChain);
+        assertTrue(request.getReturnChain().isEmpty());
+        
+        RelayRequest exitRequest = (RelayRequest)request.getStoredPacket(firstHop);
+        assertEquals(exitNode.getMyDestination(), exitRequest.getNextDestination());
+        assertArrayEquals(returnChain.toByteArray(), exitRequest.getReturnChain().toByteArray());
+    }
+    
+    /** Creates an <code>I2PSession</code> with new keys that is not connected to a router. */
+    private I2PSession createSession() throws Exception {
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        ByteArrayOutputStream keyStream = new ByteArrayOutputStream();
+        i2pClient.createDestination(keyStream);
+        return i2pClient.createSession(new ByteArrayInputStream(keyStream.toByteArray()), null);
+    }
 }
\ No newline at end of file
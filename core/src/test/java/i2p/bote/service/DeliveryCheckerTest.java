@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import i2p.bote.Configuration;
+import i2p.bote.TestUtil;
+import i2p.bote.UniqueId;
+import i2p.bote.email.Email;
+import i2p.bote.email.EmailDestination;
+import i2p.bote.email.EmailMetadata.PacketInfo;
+import i2p.bote.fileencryption.PasswordCache;
+import i2p.bote.folder.EmailFolder;
+import i2p.bote.folder.PendingDeliveryList;
+import i2p.bote.folder.PendingDeliveryList.PendingDelivery;
+import i2p.bote.network.DHT;
+import i2p.bote.network.NetworkStatusSource;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.i2p.data.Hash;
+import net.i2p.util.RandomSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeliveryCheckerTest {
+    private File testDir;
+    private File sentFolderDir;
+    private EmailFolder sentFolder;
+    private PendingDeliveryList pendingDeliveries;
+    private DHT dht;
+    private DeliveryChecker deliveryChecker;
+    private EmailDestination destination;
+
+    @Before
+    public void setUp() throws Exception {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        testDir = new File(tempDir, "DeliveryCheckerTest-" + System.currentTimeMillis());
+        testDir.mkdir();
+        sentFolderDir = new File(testDir, "sent");
+        PasswordCache passwordCache = TestUtil.createPasswordCache(testDir);
+        sentFolder = new EmailFolder(sentFolderDir, passwordCache);
+        pendingDeliveries = new PendingDeliveryList(new File(testDir, "pendingDeliveries"), passwordCache);
+        destination = new EmailDestination("3LbBiN2nxtQVxPXYBQL3~PjBg-xOPalsFKZ0YqobHXP1u3MiBxqthF6TJxqdPS2LWWKb90FVzaPyIIEQOT0qSb");
+        
+        dht = mock(DHT.class);
+        when(dht.findDeleteAuthorizationKeys(anyMap())).thenReturn(Collections.<Hash, UniqueId>emptyMap());
+        deliveryChecker = new DeliveryChecker(dht, sentFolder, pendingDeliveries, mock(Configuration.class), mock(NetworkStatusSource.class));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestUtil.deleteDirectory(sentFolderDir);
+        TestUtil.deleteGeneratedFiles(testDir);
+        TestUtil.deleteDirectory(testDir);
+        assertFalse(testDir.exists());
+    }
+
+    /**
+     * Checks that emails sent before the list of pending deliveries existed are imported
+     * even if the list file has been created by sending an email before the first check.
+     */
+    @Test
+    public void testImportAfterListCreated() throws Exception {
+        Email oldEmail = createSentEmail(2);
+        Email newEmail = createSentEmail(1);
+        // the outbox listener adds the new email to the list before the first check
+        pendingDeliveries.add(newEmail.getMessageID(), newEmail.getMetadata().getUndeliveredPacketKeys());
+        assertTrue(pendingDeliveries.exists());
+        assertFalse(pendingDeliveries.isImportDone());
+        
+        deliveryChecker.checkDeliveries();
+        
+        assertTrue(pendingDeliveries.isImportDone());
+        List<PendingDelivery> deliveries = pendingDeliveries.getAll();
+        assertEquals(3, deliveries.size());   // the new email's packet is not added twice
+        assertEquals(getDhtKeys(oldEmail, newEmail), getDhtKeys(deliveries));
+    }
+    
+    @Test
+    public void testDeliveryConfirmed() throws Exception {
+        Email email = createSentEmail(2);
+        PacketInfo deliveredPacket = email.getMetadata().getUndeliveredPacketKeys().iterator().next();
+        deliveryChecker.checkDeliveries();
+        assertEquals(2, pendingDeliveries.getAll().size());
+        
+        Map<Hash, UniqueId> delAuthorizations = Collections.singletonMap(deliveredPacket.dhtKey, new UniqueId());
+        when(dht.findDeleteAuthorizationKeys(anyMap())).thenReturn(delAuthorizations);
+        deliveryChecker.checkDeliveries();
+        
+        List<PendingDelivery> deliveries = pendingDeliveries.getAll();
+        assertEquals(1, deliveries.size());
+        assertFalse(deliveredPacket.dhtKey.equals(deliveries.get(0).dhtKey));
+        assertEquals(1, sentFolder.getEmail(email.getMessageID()).getMetadata().getUndeliveredPacketKeys().size());
+    }
+    
+    /** Checks that emails removed from the sent folder are no longer checked */
+    @Test
+    public void testEmailDeleted() throws Exception {
+        Email email = createSentEmail(2);
+        deliveryChecker.checkDeliveries();
+        assertEquals(2, pendingDeliveries.getAll().size());
+        
+        sentFolder.delete(email.getMessageID());
+        deliveryChecker.checkDeliveries();
+        assertTrue(pendingDeliveries.getAll().isEmpty());
+    }
+    
+    /** Creates an email with undelivered packets and adds it to the sent folder */
+    private Email createSentEmail(int numPackets) throws Exception {
+        Email email = new Email(true);
+        email.setText("test");
+        for (int i=0; i<numPackets; i++)
+            email.getMetadata().addPacketInfo(destination, randomHash(), randomHash());
+        sentFolder.add(email);
+        return email;
+    }
+    
+    private Set<Hash> getDhtKeys(Email... emails) {
+        Set<Hash> dhtKeys = new HashSet<Hash>();
+        for (Email email: emails)
+            for (PacketInfo packet: email.getMetadata().getUndeliveredPacketKeys())
+                dhtKeys.add(packet.dhtKey);
+        return dhtKeys;
+    }
+    
+    private Set<Hash> getDhtKeys(List<PendingDelivery> deliveries) {
+        Set<Hash> dhtKeys = new HashSet<Hash>();
+        for (PendingDelivery delivery: deliveries)
+            dhtKeys.add(delivery.dhtKey);
+        return dhtKeys;
+    }
+    
+    private Hash randomHash() {
+        byte[] bytes = new byte[Hash.HASH_LENGTH];
+        RandomSource.getInstance().nextBytes(bytes);
+        return new Hash(bytes);
+    }
+}
@@ -10,6 +10,7 @@ import javax.mail.internet.InternetAddress;
 
 import i2p.bote.Configuration;
 import i2p.bote.TestUtil;
+import i2p.bote.crypto.RelaySessionKeyManager;
 import i2p.bote.email.Email;
 import i2p.bote.email.EmailIdentity;
 import i2p.bote.email.Identities;
@@ -36,6 +37,8 @@ public class OutboxProcessorTest {
     @Mock Outbox outbox;
     @Mock RelayPeerManager peerManager;
     @Mock RelayPacketFolder relayPacketFolder;
+    @Mock ReturnChainTracker returnChainTracker;
+    @Mock RelaySessionKeyManager sessionKeyManager;
     @Mock Identities identities;
     @Mock Configuration configuration;
     @Mock NetworkStatusSource networkStatusSource;
@@ -50,6 +53,8 @@ public class OutboxProcessorTest {
                 outbox,
                 peerManager,
                 relayPacketFolder,
+                returnChainTracker,
+                sessionKeyManager,
                 identities,
                 configuration,
                 networkStatusSource);
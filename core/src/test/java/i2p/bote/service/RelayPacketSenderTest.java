@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import i2p.bote.Configuration;
+import i2p.bote.crypto.RelaySessionKeyManager;
+import i2p.bote.email.EmailDestination;
+import i2p.bote.folder.RelayPacketFolder;
+import i2p.bote.network.I2PSendQueue;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.ResponsePacket;
+import i2p.bote.packet.StatusCode;
+import i2p.bote.packet.dht.IndexPacket;
+import i2p.bote.packet.dht.StoreRequest;
+import i2p.bote.packet.relay.RelayOnionEncoder;
+import i2p.bote.packet.relay.RelayRequest;
+import i2p.bote.packet.relay.ReturnChain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.data.Destination;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests {@link RelayPacketSender} with a simulated relay peer that decrypts
+ * packets the way <code>RelayPacketHandler</code> does.
+ */
+public class RelayPacketSenderTest {
+    private static final int HASHCASH_STRENGTH = 8;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    
+    private File testDir;
+    private RelayPacketFolder packetFolder;
+    private RelaySessionKeyManager senderManager;
+    private RelaySessionKeyManager peerManager;
+    private I2PSession peerSession;
+    private Destination peer;
+    private StoreRequest storeRequest;
+    private RelayPacketSender packetSender;
+    private AtomicInteger numSendAttempts;
+    private List<CommunicationPacket> storedPackets;   // the packets the peer decrypted and confirmed
+
+    @Before
+    public void setUp() throws Exception {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        testDir = new File(tempDir, "RelayPacketSenderTest-" + System.currentTimeMillis());
+        packetFolder = new RelayPacketFolder(new File(testDir, "relay_pkt"));
+        
+        senderManager = new RelaySessionKeyManager(I2PAppContext.getGlobalContext());
+        peerManager = new RelaySessionKeyManager(I2PAppContext.getGlobalContext());
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        ByteArrayOutputStream keyStream = new ByteArrayOutputStream();
+        i2pClient.createDestination(keyStream);
+        peerSession = i2pClient.createSession(new ByteArrayInputStream(keyStream.toByteArray()), null);
+        peer = peerSession.getMyDestination();
+        
+        EmailDestination destination = new EmailDestination("3LbBiN2nxtQVxPXYBQL3~PjBg-xOPalsFKZ0YqobHXP1u3MiBxqthF6TJxqdPS2LWWKb90FVzaPyIIEQOT0qSb");
+        storeRequest = new StoreRequest(new IndexPacket(destination));
+        
+        numSendAttempts = new AtomicInteger();
+        storedPackets = Collections.synchronizedList(new ArrayList<CommunicationPacket>());
+        I2PSendQueue sendQueue = mock(I2PSendQueue.class);
+        when(sendQueue.send(any(CommunicationPacket.class), any(Destination.class))).thenAnswer(new Answer<CountDownLatch>() {
+            @Override
+            public CountDownLatch answer(InvocationOnMock invocation) {
+                numSendAttempts.incrementAndGet();
+                RelayRequest request = (RelayRequest)invocation.getArguments()[0];
+                StatusCode statusCode;
+                try {
+                    CommunicationPacket storedPacket = request.getStoredPacket(peerSession, peerManager);
+                    if (storedPacket == null)
+                        statusCode = StatusCode.INVALID_PACKET;
+                    else {
+                        storedPackets.add(storedPacket);
+                        statusCode = StatusCode.OK;
+                    }
+                } catch (Exception e) {
+                    statusCode = StatusCode.INVALID_PACKET;
+                }
+                respond(ResponsePacket.create(null, statusCode, request.getPacketId()).iterator().next());
+                return new CountDownLatch(0);
+            }
+        });
+        
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.getRelaySendPause()).thenReturn(1);
+        when(configuration.getHashCashStrength()).thenReturn(HASHCASH_STRENGTH);
+        packetSender = new RelayPacketSender(sendQueue, packetFolder, mock(RelayPeerManager.class), senderManager, configuration);
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        packetSender.interrupt();
+        packetSender.join();
+        for (File file: packetFolder.getStorageDirectory().listFiles())
+            file.delete();
+        packetFolder.getStorageDirectory().delete();
+        testDir.delete();
+    }
+    
+    /**
+     * The peer stores a packet that was encrypted with a session tag, but its confirmation
+     * gets lost. When the packet is sent again, the peer can't decrypt it because the tag
+     * has been used up. The packet must be re-encrypted and sent again, not deleted.
+     */
+    @Test
+    public void testResendAfterLostConfirmation() throws Exception {
+        confirmNewSession();
+        RelayRequest packet = createPacket();
+        assertEquals(RelaySessionKeyManager.TAGS_PER_DELIVERY-1, senderManager.getNumAvailableTags(peer.getPublicKey()));
+        
+        // the first attempt reaches the peer, but no confirmation arrives
+        assertArrayEquals(storeRequest.toByteArray(), packet.getStoredPacket(peerSession, peerManager).toByteArray());
+        
+        packetFolder.add(packet);
+        packetSender.start();
+        waitForEmptyFolder();
+        
+        assertEquals(2, numSendAttempts.get());
+        assertEquals(1, storedPackets.size());
+        assertArrayEquals(storeRequest.toByteArray(), storedPackets.get(0).toByteArray());
+        // the session has been discarded, so the next packet starts a new one
+        assertEquals(0, senderManager.getNumAvailableTags(peer.getPublicKey()));
+    }
+    
+    /** Checks that packets encrypted with a session tag are delivered and deleted normally */
+    @Test
+    public void testExistingSession() throws Exception {
+        confirmNewSession();
+        packetFolder.add(createPacket());
+        packetSender.start();
+        waitForEmptyFolder();
+        
+        assertEquals(1, numSendAttempts.get());
+        assertEquals(1, storedPackets.size());
+        assertArrayEquals(storeRequest.toByteArray(), storedPackets.get(0).toByteArray());
+    }
+    
+    /** Sends a packet that starts a new session directly to the peer and confirms it */
+    private void confirmNewSession() throws Exception {
+        RelayRequest packet = createPacket();
+        packet.getStoredPacket(peerSession, peerManager);
+        senderManager.packetConfirmed(packet.getPacketId(), RelaySessionKeyManager.MIN_PROTOCOL_VERSION);
+        assertEquals(RelaySessionKeyManager.TAGS_PER_DELIVERY, senderManager.getNumAvailableTags(peer.getPublicKey()));
+    }
+    
+    private RelayRequest createPacket() {
+        return new RelayOnionEncoder(storeRequest, senderManager).encode(Collections.singletonList(peer), 0, 0, HASHCASH_STRENGTH, new ReturnChain());
+    }
+    
+    /** Delivers a response on another thread, like <code>I2PPacketDispatcher</code> does */
+    private void respond(final ResponsePacket response) {
+        new Thread() {
+            @Override
+            public void run() {
+                packetSender.packetReceived(response, peer, System.currentTimeMillis());
+            }
+        }.start();
+    }
+    
+    private void waitForEmptyFolder() throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        while (packetFolder.getNumElements() > 0) {
+            if (System.currentTimeMillis() > startTime+TIMEOUT)
+                fail("The packet was not confirmed within " + TIMEOUT + " milliseconds.");
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+    }
+}
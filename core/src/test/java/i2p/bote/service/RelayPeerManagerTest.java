@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import i2p.bote.network.I2PSendQueue;
+import i2p.bote.network.RelayPeer;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.PeerList;
+import i2p.bote.packet.ResponsePacket;
+import i2p.bote.packet.StatusCode;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.data.Destination;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests {@link RelayPeerManager} against a set of simulated peers,
+ * each of which fails to respond with a configurable probability.
+ */
+public class RelayPeerManagerTest {
+    private static final int NUM_RELIABLE_PEERS = 5;
+    private static final int NUM_UNRELIABLE_PEERS = 5;
+    
+    private File testDir;
+    private File peerFile;
+    private Destination localDestination;
+    private List<Destination> reliablePeers;
+    private List<Destination> unreliablePeers;
+    private I2PSendQueue sendQueue;
+    private RelayPeerManager peerManager;
+
+    @Before
+    public void setUp() throws Exception {
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        testDir = new File(tempDir, "RelayPeerManagerTest-" + System.currentTimeMillis());
+        assertTrue(testDir.mkdir());
+        peerFile = new File(testDir, "relayPeers.txt");
+        
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        localDestination = i2pClient.createDestination(new ByteArrayOutputStream());
+        reliablePeers = new ArrayList<Destination>();
+        for (int i=0; i<NUM_RELIABLE_PEERS; i++)
+            reliablePeers.add(i2pClient.createDestination(new ByteArrayOutputStream()));
+        unreliablePeers = new ArrayList<Destination>();
+        for (int i=0; i<NUM_UNRELIABLE_PEERS; i++)
+            unreliablePeers.add(i2pClient.createDestination(new ByteArrayOutputStream()));
+        
+        // write a peer file without reachability data
+        BufferedWriter writer = new BufferedWriter(new FileWriter(peerFile));
+        for (Destination peer: reliablePeers) {
+            writer.write(peer.toBase64());
+            writer.newLine();
+        }
+        for (Destination peer: unreliablePeers) {
+            writer.write(peer.toBase64());
+            writer.newLine();
+        }
+        writer.close();
+        
+        sendQueue = mock(I2PSendQueue.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (peerManager.isAlive()) {
+            peerManager.interrupt();
+            peerManager.join();
+        }
+        peerFile.delete();
+        testDir.delete();
+    }
+    
+    /**
+     * Makes the simulated peers respond to <code>PeerListRequest</code>s.
+     * @param reliableFailureRate The probability that a reliable peer doesn't respond
+     * @param unreliableFailureRate The probability that an unreliable peer doesn't respond
+     */
+    private void simulatePeers(final double reliableFailureRate, final double unreliableFailureRate) {
+        final Random random = new Random(0);
+        when(sendQueue.send(any(CommunicationPacket.class), any(Destination.class))).thenAnswer(new Answer<CountDownLatch>() {
+            @Override
+            public CountDownLatch answer(InvocationOnMock invocation) {
+                CommunicationPacket request = invocation.getArgument(0);
+                Destination peer = invocation.getArgument(1);
+                double failureRate = reliablePeers.contains(peer) ? reliableFailureRate : unreliableFailureRate;
+                if (random.nextDouble() >= failureRate) {
+                    PeerList peerList = new PeerList(Collections.<Destination>emptyList());
+                    ResponsePacket response = ResponsePacket.create(peerList, StatusCode.OK, request.getPacketId()).iterator().next();
+                    peerManager.packetReceived(response, peer, System.currentTimeMillis());
+                }
+                return new CountDownLatch(0);
+            }
+        });
+    }
+    
+    @Test
+    public void testSelectionWaitsForPeers() throws Exception {
+        simulatePeers(0, 1);
+        peerManager = new RelayPeerManager(sendQueue, localDestination, peerFile);
+        
+        // no reachability data yet, so the selection can't complete without blocking
+        Future<List<Destination>> result = peerManager.getRandomPeersAsync(3);
+        assertFalse(result.isDone());
+        
+        peerManager.start();
+        List<Destination> selectedPeers = result.get(10, TimeUnit.SECONDS);
+        assertEquals(3, selectedPeers.size());
+        assertEquals(3, new HashSet<Destination>(selectedPeers).size());
+        assertTrue(reliablePeers.containsAll(selectedPeers));
+        
+        // now that reachability data exists, a selection should complete right away
+        assertTrue(peerManager.getRandomPeersAsync(NUM_RELIABLE_PEERS).isDone());
+    }
+    
+    @Test
+    public void testCancelOnShutdown() throws Exception {
+        simulatePeers(1, 1);
+        peerManager = new RelayPeerManager(sendQueue, localDestination, peerFile);
+        peerManager.start();
+        
+        Future<List<Destination>> result = peerManager.getRandomPeersAsync(1);
+        peerManager.interrupt();
+        peerManager.join();
+        assertTrue(result.isCancelled());
+        assertTrue(peerManager.getRandomPeers(1).isEmpty());
+    }
+    
+    /** Peers that respond less often should be picked less often, and low-reachability peers never. */
+    @Test
+    public void testScoredSelection() throws Exception {
+        peerManager = new RelayPeerManager(sendQueue, localDestination, peerFile);
+        Set<RelayPeer> peers = peerManager.getAllPeers();
+        RelayPeer bestPeer = null;
+        RelayPeer slowPeer = null;
+        for (RelayPeer peer: peers) {
+            boolean reliable = reliablePeers.contains(peer);
+            for (int i=0; i<20; i++)
+                peer.addReachabilitySample(reliable);
+            if (reliable && bestPeer==null) {
+                bestPeer = peer;
+                peer.addLatencySample(100);
+            }
+            else if (reliable && slowPeer==null) {
+                slowPeer = peer;
+                peer.addLatencySample(60000);
+            }
+            else if (reliable)
+                peer.addLatencySample(5000);
+        }
+        assertTrue(bestPeer.getScore() > slowPeer.getScore());
+        
+        int bestPeerCount = 0;
+        int slowPeerCount = 0;
+        for (int i=0; i<1000; i++) {
+            List<Destination> selectedPeers = peerManager.getRandomPeersAsync(1).get();
+            assertTrue(reliablePeers.containsAll(selectedPeers));
+            if (selectedPeers.contains(bestPeer))
+                bestPeerCount++;
+            if (selectedPeers.contains(slowPeer))
+                slowPeerCount++;
+        }
+        assertTrue(bestPeerCount > slowPeerCount);
+    }
+    
+    /** Tests the moving averages in {@link RelayPeer}. */
+    @Test
+    public void testRelayPeerScore() throws Exception {
+        RelayPeer peer = new RelayPeer(reliablePeers.get(0));
+        assertEquals(0, peer.getReachability());
+        assertEquals(-1, peer.getLatency());
+        
+        peer.addReachabilitySample(true);
+        assertEquals(100, peer.getReachability());
+        peer.addReachabilitySample(false);
+        assertEquals(80, peer.getReachability());
+        peer.addReachabilitySample(false);
+        assertEquals(64, peer.getReachability());
+        
+        peer.addLatencySample(1000);
+        assertEquals(1000, peer.getLatency());
+        peer.addLatencySample(2000);
+        assertEquals(1300, peer.getLatency());
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.service;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import i2p.bote.email.EmailDestination;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.ResponsePacket;
+import i2p.bote.packet.dht.IndexPacket;
+import i2p.bote.packet.dht.StoreRequest;
+import i2p.bote.packet.relay.RelayRequest;
+import i2p.bote.packet.relay.ReturnChain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.data.Destination;
+
+/**
+ * Simulates relay requests with return chains on a set of in-process nodes. Each packet
+ * is serialized and parsed at every hop like it would be when sent over I2P, but relay
+ * delays are zero and there is no network, so the end-to-end latency only includes the
+ * processing time; on a real network, it is dominated by the relay delays and tunnel
+ * latency. Also prints the packet size at each hop.<br/>
+ * This is not a unit test; run it with <code>java i2p.bote.service.ReturnChainBenchmark [forward hops] [return hops] [number of requests]</code>.
+ */
+public class ReturnChainBenchmark {
+    
+    public static void main(String[] args) throws Exception {
+        int numForwardHops = args.length>0 ? Integer.valueOf(args[0]) : 3;
+        int numReturnHops = args.length>1 ? Integer.valueOf(args[1]) : 2;
+        int numRequests = args.length>2 ? Integer.valueOf(args[2]) : 20;
+        
+        I2PSession sender = createSession();
+        List<Destination> forwardPeers = new ArrayList<Destination>();   // starting with the exit node
+        List<Destination> returnPeers = new ArrayList<Destination>();
+        Map<Destination, I2PSession> nodes = new HashMap<Destination, I2PSession>();
+        nodes.put(sender.getMyDestination(), sender);
+        for (int i=0; i<numForwardHops; i++)
+            forwardPeers.add(addNode(nodes));
+        for (int i=0; i<numReturnHops; i++)
+            returnPeers.add(addNode(nodes));
+        
+        RelayPeerManager peerManager = mock(RelayPeerManager.class);
+        when(peerManager.getRandomPeers(anyInt())).thenReturn(returnPeers);
+        ReturnChainTracker tracker = new ReturnChainTracker(sender.getMyDestination(), peerManager);
+        EmailDestination emailDestination = new EmailDestination("3LbBiN2nxtQVxPXYBQL3~PjBg-xOPalsFKZ0YqobHXP1u3MiBxqthF6TJxqdPS2LWWKb90FVzaPyIIEQOT0qSb");
+        StoreRequest storeRequest = new StoreRequest(new IndexPacket(emailDestination));
+        
+        long createNanos = 0;
+        long forwardNanos = 0;
+        long returnNanos = 0;
+        long endToEndNanos = 0;
+        List<Integer> packetSizes = new ArrayList<Integer>();
+        for (int i=0; i<numRequests; i++) {
+            packetSizes.clear();
+            long startTime = System.nanoTime();
+            ReturnChain returnChain = tracker.createReturnChain(forwardPeers, numReturnHops, 0, 0, 1);
+            RelayRequest request = RelayRequest.create(storeRequest, forwardPeers, 0, 0, 1, returnChain);
+            long forwardStartTime = System.nanoTime();
+            createNanos += forwardStartTime - startTime;
+            
+            // forward path; the outermost request goes to the first hop, the innermost one to the exit node
+            CommunicationPacket packet = request;
+            I2PSession node = null;
+            while (packet instanceof RelayRequest) {
+                request = (RelayRequest)packet;
+                byte[] data = request.toByteArray();
+                packetSizes.add(data.length);
+                node = nodes.get(request.getNextDestination());
+                packet = new RelayRequest(data).getStoredPacket(node);
+            }
+            if (!(packet instanceof StoreRequest))
+                throw new IllegalStateException("Expected a StoreRequest at the exit node, got " + packet);
+            long returnStartTime = System.nanoTime();
+            forwardNanos += returnStartTime - forwardStartTime;
+            
+            // return path, starting at the exit node
+            packet = request.getReturnChain().getReturnRequest(node);
+            while (packet instanceof RelayRequest) {
+                request = (RelayRequest)packet;
+                byte[] data = request.toByteArray();
+                packetSizes.add(data.length);
+                packet = new RelayRequest(data).getStoredPacket(nodes.get(request.getNextDestination()));
+            }
+            if (!(packet instanceof ResponsePacket) || !tracker.confirmationReceived(packet.getPacketId()))
+                throw new IllegalStateException("Confirmation not matched: " + packet);
+            long endTime = System.nanoTime();
+            returnNanos += endTime - returnStartTime;
+            endToEndNanos += endTime - startTime;
+        }
+        
+        System.out.println(String.format("%d forward hops, %d return hops, %d requests", numForwardHops, numReturnHops, numRequests));
+        System.out.println(String.format("Creating the onion and return chain: %7.2f ms", createNanos/1e6/numRequests));
+        System.out.println(String.format("Forward path:                        %7.2f ms per hop", forwardNanos/1e6/numRequests/numForwardHops));
+        System.out.println(String.format("Return path:                         %7.2f ms per hop", returnNanos/1e6/numRequests/(numReturnHops+1)));
+        System.out.println(String.format("End to end:                          %7.2f ms", endToEndNanos/1e6/numRequests));
+        System.out.println("Packet sizes at each hop, in bytes: " + packetSizes);
+        System.out.println("Return chain overhead: up to " + ReturnChain.getMaxOverhead(numReturnHops) + " bytes");
+    }
+    
+    private static Destination addNode(Map<Destination, I2PSession> nodes) throws Exception {
+        I2PSession node = createSession();
+        nodes.put(node.getMyDestination(), node);
+        return node.getMyDestination();
+    }
+    
+    /** Creates an <code>I2PSession</code> with new keys that is not connected to a router. */
+    private static I2PSession createSession() throws Exception {
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        ByteArrayOutputStream keyStream = new ByteArrayOutputStream();
+        i2pClient.createDestination(keyStream);
+        return i2pClient.createSession(new ByteArrayInputStream(keyStream.toByteArray()), null);
+    }
+}
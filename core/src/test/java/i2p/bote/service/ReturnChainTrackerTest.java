@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2009  HungryHobo@mail.i2p
+ * 
+ * The GPG fingerprint for HungryHobo@mail.i2p is:
+ * 6DD3 EAA2 9990 29BC 4AD2 7486 1E2C 7B61 76DC DC12
+ * 
+ * This file is part of I2P-Bote.
+ * I2P-Bote is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * I2P-Bote is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with I2P-Bote.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package i2p.bote.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import i2p.bote.UniqueId;
+import i2p.bote.packet.CommunicationPacket;
+import i2p.bote.packet.ResponsePacket;
+import i2p.bote.packet.relay.RelayRequest;
+import i2p.bote.packet.relay.ReturnChain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.data.Destination;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReturnChainTrackerTest {
+    private I2PSession sender;
+    private I2PSession exitNode;
+    private I2PSession forwardHop;
+    private I2PSession returnHop;
+    private RelayPeerManager peerManager;
+    private ReturnChainTracker tracker;
+
+    @Before
+    public void setUp() throws Exception {
+        sender = createSession();
+        exitNode = createSession();
+        forwardHop = createSession();
+        returnHop = createSession();
+        
+        peerManager = mock(RelayPeerManager.class);
+        when(peerManager.getRandomPeers(anyInt())).thenReturn(Collections.singletonList(returnHop.getMyDestination()));
+        tracker = new ReturnChainTracker(sender.getMyDestination(), peerManager);
+    }
+    
+    /** Checks that a confirmation is matched once, and that all peers on the path are reported as reachable */
+    @Test
+    public void testConfirmation() throws Exception {
+        List<Destination> forwardPeers = Arrays.asList(exitNode.getMyDestination(), forwardHop.getMyDestination());
+        ReturnChain returnChain = tracker.createReturnChain(forwardPeers, 1, 0, 0, 1);
+        assertFalse(returnChain.isEmpty());
+        assertEquals(1, tracker.getNumPending());
+        assertEquals(-1, tracker.getAverageLatency());
+        
+        UniqueId confirmationId = getConfirmationId(returnChain);
+        assertTrue(tracker.confirmationReceived(confirmationId));
+        assertEquals(0, tracker.getNumPending());
+        assertEquals(1, tracker.getNumConfirmed());
+        assertTrue(tracker.getAverageLatency() >= 0);
+        verify(peerManager).addReachabilitySample(exitNode.getMyDestination(), true);
+        verify(peerManager).addReachabilitySample(forwardHop.getMyDestination(), true);
+        verify(peerManager).addReachabilitySample(returnHop.getMyDestination(), true);
+        
+        // a duplicate confirmation is ignored
+        assertFalse(tracker.confirmationReceived(confirmationId));
+        assertEquals(1, tracker.getNumConfirmed());
+    }
+    
+    @Test
+    public void testUnknownConfirmation() throws Exception {
+        tracker.createReturnChain(Collections.singletonList(exitNode.getMyDestination()), 1, 0, 0, 1);
+        assertFalse(tracker.confirmationReceived(new UniqueId()));
+        assertEquals(1, tracker.getNumPending());
+        assertEquals(0, tracker.getNumConfirmed());
+        verify(peerManager, never()).addReachabilitySample(any(Destination.class), anyBoolean());
+    }
+    
+    /** Checks that a confirmation is forgotten when it arrives after the deadline */
+    @Test
+    public void testExpiry() throws Exception {
+        long maxDelay = TimeUnit.MINUTES.toMillis(1);
+        ReturnChain returnChain = tracker.createReturnChain(Collections.singletonList(exitNode.getMyDestination()), 1, 0, maxDelay, 1);
+        UniqueId confirmationId = getConfirmationId(returnChain);
+        
+        // the exit node, the return hop, and the final hop to the sender, each allowed maxDelay plus an hour for retries
+        long lateTime = System.currentTimeMillis() + 3*(maxDelay+TimeUnit.HOURS.toMillis(1)) + TimeUnit.MINUTES.toMillis(1);
+        assertFalse(tracker.confirmationReceived(confirmationId, lateTime));
+        assertEquals(0, tracker.getNumPending());
+        assertEquals(0, tracker.getNumConfirmed());
+        verify(peerManager, never()).addReachabilitySample(any(Destination.class), anyBoolean());
+    }
+    
+    /** No confirmation is requested if there are no relay peers for either direction */
+    @Test
+    public void testNoPeers() throws Exception {
+        assertTrue(tracker.createReturnChain(Collections.<Destination>emptyList(), 1, 0, 0, 1).isEmpty());
+        assertTrue(tracker.createReturnChain(Collections.singletonList(exitNode.getMyDestination()), 0, 0, 0, 1).isEmpty());
+        when(peerManager.getRandomPeers(anyInt())).thenReturn(Collections.<Destination>emptyList());
+        assertTrue(tracker.createReturnChain(Collections.singletonList(exitNode.getMyDestination()), 1, 0, 0, 1).isEmpty());
+        assertEquals(0, tracker.getNumPending());
+    }
+    
+    /** Follows a return chain from the exit node to the sender and returns the confirmation ID */
+    private UniqueId getConfirmationId(ReturnChain returnChain) throws Exception {
+        RelayRequest returnRequest = returnChain.getReturnRequest(exitNode);
+        CommunicationPacket packet = returnRequest.getStoredPacket(returnHop);
+        assertTrue(packet instanceof RelayRequest);
+        packet = ((RelayRequest)packet).getStoredPacket(sender);
+        assertTrue(packet instanceof ResponsePacket);
+        return packet.getPacketId();
+    }
+    
+    /** Creates an <code>I2PSession</code> with new keys that is not connected to a router. */
+    private I2PSession createSession() throws Exception {
+        I2PClient i2pClient = I2PClientFactory.createClient();
+        ByteArrayOutputStream keyStream = new ByteArrayOutputStream();
+        i2pClient.createDestination(keyStream);
+        return i2pClient.createSession(new ByteArrayInputStream(keyStream.toByteArray()), null);
+    }
+}